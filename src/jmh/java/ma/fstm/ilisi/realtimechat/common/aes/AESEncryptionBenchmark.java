@@ -0,0 +1,113 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole-message encryption and decryption with AESEncryption, from a single block to 1 MiB.
+ * The array variants write into preallocated buffers, so with {@code -prof gc} they should report no
+ * allocation; the String variants include UTF-8 and Base64 conversions, as on the legacy wire path.
+ * The shared variants run one AESEncryption instance from every available core.
+ * The engine is that of {@code -p backend=...}, or the default backend when left to {@code auto}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AESEncryptionBenchmark {
+    @Param({"16", "256", "4096", "65536", "1048576"})
+    public int size;
+
+    @Param({"CBC", "CTR", "GCM"})
+    public CipherMode mode;
+
+    @Param({"auto"})
+    public String backend;
+
+    private AESEncryption aes;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private String message;
+    private String encryptedMessage;
+
+    /**
+     * Output buffers of one benchmark thread, sized for the message.
+     */
+    @State(Scope.Thread)
+    public static class Buffers {
+        byte[] encrypted;
+        byte[] decrypted;
+
+        @Setup
+        public void setUp(AESEncryptionBenchmark benchmark) {
+            encrypted = new byte[AESEncryption.getEncryptedLength(benchmark.size, benchmark.mode)];
+            decrypted = new byte[benchmark.ciphertext.length];
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        CipherBackend engines = CipherBackend.select(backend);
+        aes = new AESEncryption(engines.newCipher());
+
+        plaintext = new byte[size];
+        new SplittableRandom(42).nextBytes(plaintext);
+        ciphertext = new byte[AESEncryption.getEncryptedLength(size, mode)];
+        aes.encrypt(plaintext, 0, size, ciphertext, 0, mode);
+
+        // ASCII only, so the String variants handle the same number of bytes
+        message = "X".repeat(size);
+        encryptedMessage = aes.encrypt(message, mode);
+    }
+
+    @Benchmark
+    public int encrypt(Buffers buffers) {
+        return aes.encrypt(plaintext, 0, size, buffers.encrypted, 0, mode);
+    }
+
+    @Benchmark
+    public int decrypt(Buffers buffers) {
+        return aes.decrypt(ciphertext, 0, ciphertext.length, buffers.decrypted, 0);
+    }
+
+    @Benchmark
+    public String encryptString() {
+        return aes.encrypt(message, mode);
+    }
+
+    @Benchmark
+    public String decryptString() {
+        return aes.decrypt(encryptedMessage);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(Threads.MAX)
+    public int encryptShared(Buffers buffers) {
+        return aes.encrypt(plaintext, 0, size, buffers.encrypted, 0, mode);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(Threads.MAX)
+    public int decryptShared(Buffers buffers) {
+        return aes.decrypt(ciphertext, 0, ciphertext.length, buffers.decrypted, 0);
+    }
+}
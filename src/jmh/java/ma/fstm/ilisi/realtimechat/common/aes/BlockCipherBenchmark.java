@@ -0,0 +1,102 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the BlockCipher engines on their own: key expansion, and single-block encryption and decryption
+ * through the allocation-free offset API, for each backend and key size.
+ * The shared variants run one keyed engine from every available core, which shows whether an engine scales
+ * or contends on shared state (e.g. the thread-local ciphers of JCEBlockCipher).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockCipherBenchmark {
+    @Param({"core", "table", "bitslice", "jce"})
+    public String backend;
+
+    @Param({"128", "256"})
+    public int keySize;
+
+    private byte[] key;
+    private BlockCipher cipher;
+    private BlockCipher expanding;
+
+    /**
+     * Input and output block of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Blocks {
+        final byte[] in = new byte[BlockCipher.BLOCK_SIZE];
+        final byte[] out = new byte[BlockCipher.BLOCK_SIZE];
+
+        @Setup
+        public void setUp() {
+            new SplittableRandom(1).nextBytes(in);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        // The benchmark key protects nothing, so it does not need to come from SecureRandom
+        key = new byte[KeySize.fromBits(keySize).getKeyLength()];
+        new SplittableRandom(42).nextBytes(key);
+        CipherBackend engines = CipherBackend.fromName(backend);
+        cipher = engines.newCipher();
+        cipher.keyExpansion(key);
+        expanding = engines.newCipher();
+    }
+
+    @Benchmark
+    public BlockCipher keyExpansion() {
+        expanding.keyExpansion(key);
+        return expanding;
+    }
+
+    @Benchmark
+    public byte[] encryptBlock(Blocks blocks) {
+        cipher.encryptBlock(blocks.in, 0, blocks.out, 0);
+        return blocks.out;
+    }
+
+    @Benchmark
+    public byte[] decryptBlock(Blocks blocks) {
+        cipher.decryptBlock(blocks.in, 0, blocks.out, 0);
+        return blocks.out;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(Threads.MAX)
+    public byte[] encryptBlockShared(Blocks blocks) {
+        cipher.encryptBlock(blocks.in, 0, blocks.out, 0);
+        return blocks.out;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(Threads.MAX)
+    public byte[] decryptBlockShared(Blocks blocks) {
+        cipher.decryptBlock(blocks.in, 0, blocks.out, 0);
+        return blocks.out;
+    }
+}
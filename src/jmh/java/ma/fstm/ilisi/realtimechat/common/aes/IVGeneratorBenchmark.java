@@ -0,0 +1,80 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the IV sources on the send path: a SecureRandom constructed per message (the former behaviour),
+ * one shared SecureRandom, the buffered thread-local SecureRandomIVGenerator and the CounterIVGenerator DRBG.
+ * Sampling mode reports the percentiles of the cost of one IV, where entropy reads and lock contention show up;
+ * the shared variant draws from every available core at once.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IVGeneratorBenchmark {
+    @Param({"new-securerandom", "shared-securerandom", "random", "counter"})
+    public String source;
+
+    private IVGenerator generator;
+
+    /**
+     * IV buffer of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Buffer {
+        final byte[] iv = new byte[BlockCipher.BLOCK_SIZE];
+    }
+
+    @Setup
+    public void setUp() {
+        generator = switch (source) {
+            case "new-securerandom" -> (dst, off, len) -> {
+                byte[] iv = new byte[len];
+                new SecureRandom().nextBytes(iv);
+                System.arraycopy(iv, 0, dst, off, len);
+            };
+            case "shared-securerandom" -> {
+                SecureRandom shared = new SecureRandom();
+                yield (dst, off, len) -> {
+                    byte[] iv = new byte[len];
+                    shared.nextBytes(iv);
+                    System.arraycopy(iv, 0, dst, off, len);
+                };
+            }
+            case "random" -> new SecureRandomIVGenerator();
+            case "counter" -> new CounterIVGenerator();
+            default -> throw new IllegalArgumentException("Unknown IV source: " + source);
+        };
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] nextIV(Buffer buffer) {
+        generator.nextIV(buffer.iv, 0, 12);
+        return buffer.iv;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] nextIVShared(Buffer buffer) {
+        generator.nextIV(buffer.iv, 0, 12);
+        return buffer.iv;
+    }
+}
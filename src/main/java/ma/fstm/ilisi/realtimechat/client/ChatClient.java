@@ -1,14 +1,19 @@
 package ma.fstm.ilisi.realtimechat.client;
 
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.HistoryEntry;
 import ma.fstm.ilisi.realtimechat.common.IChatClient;
 import ma.fstm.ilisi.realtimechat.common.IChatServer;
+import ma.fstm.ilisi.realtimechat.common.RemoteCompatibility;
+import ma.fstm.ilisi.realtimechat.common.ServerAddress;
 import ma.fstm.ilisi.realtimechat.common.User;
 import ma.fstm.ilisi.realtimechat.common.aes.AESEncryption;
 
+import java.nio.charset.StandardCharsets;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -16,12 +21,32 @@ import java.util.List;
  * Extends UnicastRemoteObject and implements IChatClient for RMI support.
  */
 public class ChatClient extends UnicastRemoteObject implements IChatClient {
+    /**
+     * System property setting the address of the server to contact, {@code host:port}; in a cluster, any of its
+     * servers.
+     */
+    static final String SERVER_PROPERTY = "realtimechat.server";
+
     private static volatile ChatClient instance;
 
-    private IChatServer chatServer;
-    private User currentUser;
-    private IChatController controller;
-    private AESEncryption aes;
+    private volatile IChatServer chatServer;
+    private volatile User currentUser;
+    private volatile IChatController controller;
+    // Shared by the Swing send path and the RMI callback threads; AESEncryption is thread-safe
+    private volatile AESEncryption aes;
+    // Set once the server turns out to predate envelopes, messages are then sent as Base64 text
+    private volatile boolean legacyServer;
+    // Set once the server turns out to predate the history, conversations then start empty
+    private volatile boolean legacyHistory;
+    // Connected users, kept up to date by the presence deltas of the server
+    private final PresenceModel presence = new PresenceModel();
+    /**
+     * Prefix of the conversation name under which room messages are indexed, and rooms shown.
+     */
+    static final String ROOM_PREFIX = "#";
+
+    // Full-text index of the messages sent and received, null if it could not be opened
+    private volatile SearchIndex searchIndex;
 
     /**
      * Private constructor to prevent direct instantiation.
@@ -53,7 +78,10 @@ public class ChatClient extends UnicastRemoteObject implements IChatClient {
 
     /**
      * Initializes the chat client with the specified username and controller.
-     * Registers the client with the chat server and initializes AES encryption.
+     * Opens the user's search index, registers the client with the chat server and initializes AES encryption.
+     * The client works without search if the index cannot be opened. The server is the one named by the
+     * {@value #SERVER_PROPERTY} system property, {@code localhost:1099} by default, or in a cluster the
+     * user's home server, which it names.
      *
      * @param username the username of the current user
      * @param controller the controller to handle chat client operations
@@ -62,9 +90,9 @@ public class ChatClient extends UnicastRemoteObject implements IChatClient {
         try {
             this.currentUser = new User(username);
             this.controller = controller;
+            openSearchIndex(username);
 
-            Registry registry = LocateRegistry.getRegistry("localhost", 1099);
-            this.chatServer = (IChatServer) registry.lookup("ChatService");
+            this.chatServer = lookupHomeServer(username);
 
             // Get encryption key from server and initialize AES
             byte[] key = chatServer.getEncryptionKey();
@@ -77,6 +105,35 @@ public class ChatClient extends UnicastRemoteObject implements IChatClient {
         }
     }
 
+    /**
+     * Looks up the configured server, then the user's home server if the configured one belongs to a cluster
+     * and is not it. A server that predates clusters is the home server of every user.
+     *
+     * @param username the username of the current user
+     * @return the home server
+     * @throws RemoteException if a server cannot be reached
+     * @throws NotBoundException if no chat server is bound at an address
+     */
+    private static IChatServer lookupHomeServer(String username) throws RemoteException, NotBoundException {
+        String setting = System.getProperty(SERVER_PROPERTY);
+        ServerAddress address = ServerAddress.parse(setting == null || setting.isBlank()
+                ? "localhost:" + ServerAddress.DEFAULT_PORT : setting);
+        IChatServer server = (IChatServer) address.lookup(ServerAddress.CHAT_SERVICE);
+        ServerAddress home;
+        try {
+            home = server.getHomeServer(username);
+        } catch (RemoteException e) {
+            if (!RemoteCompatibility.isUnsupportedMethod(e)) {
+                throw e;
+            }
+            return server;
+        }
+        if (home == null || home.equals(address)) {
+            return server;
+        }
+        return (IChatServer) home.lookup(ServerAddress.CHAT_SERVICE);
+    }
+
     /**
      * Receives a message from a sender and processes it.
      * Decrypts the message if it is from a user.
@@ -93,8 +150,9 @@ public class ChatClient extends UnicastRemoteObject implements IChatClient {
                 // System messages are not encrypted
                 controller.receiveMessage(message, sender);
             } else {
-                // User messages are encrypted
-                String decryptedMessage = aes.decrypt(message);
+                // User messages come as text from peers that predate envelopes, in their legacy layout
+                String decryptedMessage = aes.decryptLegacy(message);
+                index(sender.getUsername(), sender, decryptedMessage);
                 controller.receiveMessage(decryptedMessage, sender);
             }
         } catch (Exception e) {
@@ -103,35 +161,303 @@ public class ChatClient extends UnicastRemoteObject implements IChatClient {
     }
 
     /**
-     * Updates the list of users in the chat.
+     * Receives an encrypted envelope from a sender, decrypts it and passes it to the controller.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void receiveEnvelope(Envelope envelope, User sender) throws RemoteException {
+        try {
+            byte[] payload = envelope.getPayload();
+            byte[] decrypted = new byte[payload.length];
+            int length = aes.decrypt(payload, 0, payload.length, decrypted, 0);
+            String text = new String(decrypted, 0, length, StandardCharsets.UTF_8);
+            index(sender.getUsername(), sender, text);
+            controller.receiveMessage(text, sender);
+        } catch (Exception e) {
+            System.err.println("Failed to process message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Receives several encrypted envelopes, decrypting them one after the other into a shared buffer
+     * and passing them to the controller in order. A message that cannot be decrypted is skipped.
+     *
+     * @param envelopes the encrypted messages
+     * @param senders the user who sent each message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void receiveMessages(List<Envelope> envelopes, List<User> senders) throws RemoteException {
+        byte[] buffer = new byte[0];
+        for (int i = 0; i < envelopes.size(); i++) {
+            try {
+                byte[] payload = envelopes.get(i).getPayload();
+                if (buffer.length < payload.length) {
+                    buffer = new byte[Math.max(payload.length, 2 * buffer.length)];
+                }
+                int length = aes.decrypt(payload, 0, payload.length, buffer, 0);
+                String text = new String(buffer, 0, length, StandardCharsets.UTF_8);
+                User sender = senders.get(i);
+                index(sender.getUsername(), sender, text);
+                controller.receiveMessage(text, sender);
+            } catch (Exception e) {
+                System.err.println("Failed to process message: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Receives an encrypted message posted to a room, decrypts it and passes it to the controller.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the user who posted the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void receiveRoomEnvelope(String room, Envelope envelope, User sender) throws RemoteException {
+        try {
+            byte[] payload = envelope.getPayload();
+            byte[] decrypted = new byte[payload.length];
+            int length = aes.decrypt(payload, 0, payload.length, decrypted, 0);
+            String text = new String(decrypted, 0, length, StandardCharsets.UTF_8);
+            index(ROOM_PREFIX + room, sender, text);
+            controller.receiveRoomMessage(room, text, sender);
+        } catch (Exception e) {
+            System.err.println("Failed to process message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Updates the list of users in the chat. Only called by servers that predate presence deltas.
      *
      * @param users the list of users to be updated
      * @throws RemoteException if a remote communication error occurs
      */
     @Override
     public void updateUserList(List<User> users) throws RemoteException {
-        controller.updateUserList(users);
+        presence.replace(users);
+        controller.updateUserList(presence.getUsers());
+    }
+
+    /**
+     * Adds a user to the list of users, or loads a snapshot if a presence change was missed.
+     *
+     * @param user the user who joined
+     * @param sequence the sequence number of the change
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void userJoined(User user, long sequence) throws RemoteException {
+        presenceChanged(presence.joined(user, sequence));
+    }
+
+    /**
+     * Removes a user from the list of users, or loads a snapshot if a presence change was missed.
+     *
+     * @param user the user who left
+     * @param sequence the sequence number of the change
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void userLeft(User user, long sequence) throws RemoteException {
+        presenceChanged(presence.left(user, sequence));
+    }
+
+    /**
+     * Updates the status of a user, or loads a snapshot if a presence change was missed.
+     *
+     * @param user the user, with its new status
+     * @param sequence the sequence number of the change
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void statusChanged(User user, long sequence) throws RemoteException {
+        presenceChanged(presence.statusChanged(user, sequence));
+    }
+
+    /**
+     * Updates the status of several users, or loads a snapshot if a presence change was missed.
+     *
+     * @param users the users, with their new status
+     * @param sequence the sequence number of the change
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void statusesChanged(List<User> users, long sequence) throws RemoteException {
+        presenceChanged(presence.statusesChanged(users, sequence));
+    }
+
+    /**
+     * Passes the list of users to the controller after a presence delta, loading a snapshot from the server
+     * first if the delta revealed a gap. The first delta after registering always does.
+     *
+     * @param inSync whether the delta was applied or already covered
+     * @throws RemoteException if a remote communication error occurs
+     */
+    private void presenceChanged(boolean inSync) throws RemoteException {
+        if (!inSync) {
+            presence.reset(chatServer.getPresenceSnapshot());
+        }
+        controller.updateUserList(presence.getUsers());
     }
 
     /**
      * Sends a message to a receiver.
-     * Encrypts the message before sending.
+     * Encrypts the message into a binary envelope, falling back to Base64 text in the legacy layout if the server
+     * predates envelopes.
+     * The message is added to the search index.
      *
      * @param message the message to be sent
      * @param receiver the user who will receive the message
      */
     public void sendMessage(String message, User receiver) {
+        index(receiver.getUsername(), currentUser, message);
         try {
-            String encryptedMessage = aes.encrypt(message);
-            chatServer.sendMessage(encryptedMessage, currentUser, receiver);
+            byte[] data = message.getBytes(StandardCharsets.UTF_8);
+            byte[] encrypted = new byte[AESEncryption.getEncryptedLength(data.length)];
+            aes.encrypt(data, 0, data.length, encrypted, 0);
+            Envelope envelope = new Envelope(encrypted);
+
+            if (!legacyServer) {
+                try {
+                    chatServer.sendEnvelope(envelope, currentUser, receiver);
+                    return;
+                } catch (RemoteException e) {
+                    if (!RemoteCompatibility.isUnsupportedMethod(e)) {
+                        throw e;
+                    }
+                    legacyServer = true;
+                }
+            }
+            // Such a server only relays to clients of its age, which read the legacy layout
+            chatServer.sendMessage(aes.encryptLegacy(message), currentUser, receiver);
         } catch (Exception e) {
             throw new RuntimeException("Failed to send message", e);
         }
     }
 
+    /**
+     * Joins a room, creating it if it does not exist yet.
+     *
+     * @param room the name of the room
+     */
+    public void joinRoom(String room) {
+        try {
+            // Another user may create the room, or remove it by leaving, between the two calls
+            while (!chatServer.joinRoom(room, currentUser)) {
+                if (chatServer.createRoom(room, currentUser)) {
+                    return;
+                }
+            }
+        } catch (RemoteException e) {
+            throw new RuntimeException("Failed to join room " + room, e);
+        }
+    }
+
+    /**
+     * Leaves a room.
+     *
+     * @param room the name of the room
+     */
+    public void leaveRoom(String room) {
+        try {
+            chatServer.leaveRoom(room, currentUser);
+        } catch (RemoteException e) {
+            throw new RuntimeException("Failed to leave room " + room, e);
+        }
+    }
+
+    /**
+     * Posts a message to a room. The message is encrypted once, and the server fans it out to the members.
+     * The message is added to the search index.
+     *
+     * @param room the name of the room
+     * @param message the message to be posted
+     * @throws IllegalStateException if the current user is not a member of the room
+     */
+    public void postToRoom(String room, String message) {
+        index(ROOM_PREFIX + room, currentUser, message);
+        boolean posted;
+        try {
+            byte[] data = message.getBytes(StandardCharsets.UTF_8);
+            byte[] encrypted = new byte[AESEncryption.getEncryptedLength(data.length)];
+            aes.encrypt(data, 0, data.length, encrypted, 0);
+            posted = chatServer.postToRoom(room, new Envelope(encrypted), currentUser);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to post message", e);
+        }
+        if (!posted) {
+            throw new IllegalStateException("Not a member of room " + room);
+        }
+    }
+
+    /**
+     * Fetches a page of the history of the conversation with a peer and decrypts it into a shared buffer.
+     * A message that cannot be decrypted is skipped. A server that predates the history has none to give.
+     *
+     * @param peer the other user of the conversation
+     * @param beforeSequence the page ends just before this sequence number, {@link Long#MAX_VALUE} for the latest
+     * @param limit the largest number of messages to fetch
+     * @return the messages, oldest first
+     */
+    public List<ChatMessage> fetchHistory(User peer, long beforeSequence, int limit) {
+        if (legacyHistory) {
+            return List.of();
+        }
+        List<HistoryEntry> entries;
+        try {
+            entries = chatServer.fetchHistory(currentUser, peer, beforeSequence, limit);
+        } catch (RemoteException e) {
+            if (!RemoteCompatibility.isUnsupportedMethod(e)) {
+                throw new RuntimeException("Failed to fetch history", e);
+            }
+            legacyHistory = true;
+            return List.of();
+        }
+        List<ChatMessage> messages = new ArrayList<>(entries.size());
+        byte[] buffer = new byte[0];
+        for (HistoryEntry entry : entries) {
+            try {
+                byte[] payload = entry.getEnvelope().getPayload();
+                if (buffer.length < payload.length) {
+                    buffer = new byte[Math.max(payload.length, 2 * buffer.length)];
+                }
+                int length = aes.decrypt(payload, 0, payload.length, buffer, 0);
+                messages.add(new ChatMessage(entry.getSequence(), entry.getTimestamp(), entry.getSender(),
+                        new String(buffer, 0, length, StandardCharsets.UTF_8)));
+            } catch (Exception e) {
+                System.err.println("Failed to process message: " + e.getMessage());
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Searches the messages sent and received for all the words of a query, the last one as a prefix.
+     *
+     * @param query the words to look for
+     * @param limit the largest number of messages to return
+     * @return the messages found, newest first, empty if indexing is off or the index is not available
+     */
+    public List<SearchHit> search(String query, int limit) {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            return List.of();
+        }
+        try {
+            return index.search(query, limit);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to search messages", e);
+        }
+    }
+
     /**
      * Disconnects the chat client from the server.
-     * Updates the user's online status and unregisters the client.
+     * Updates the user's online status, unregisters the client and saves the search index.
      */
     public void disconnect() {
         try {
@@ -143,6 +469,50 @@ public class ChatClient extends UnicastRemoteObject implements IChatClient {
         } catch (Exception e) {
             System.err.println("Error during disconnect: " + e.getMessage());
         }
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            searchIndex = null;
+            try {
+                index.close();
+            } catch (Exception e) {
+                System.err.println("Failed to save the search index: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens the search index of a user, if indexing is turned on, leaving search disabled if it cannot be opened.
+     *
+     * @param username the username of the current user
+     */
+    private void openSearchIndex(String username) {
+        if (!SearchIndex.isEnabled()) {
+            return;
+        }
+        try {
+            searchIndex = new SearchIndex(SearchIndex.getDefaultDirectory(username));
+        } catch (Exception e) {
+            System.err.println("Search disabled, failed to open the index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a decrypted message to the search index, if there is one.
+     *
+     * @param peer the username of the other user of the conversation
+     * @param sender the user who sent the message
+     * @param text the decrypted text
+     */
+    private void index(String peer, User sender, String text) {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            return;
+        }
+        try {
+            index.add(peer, sender.getUsername(), System.currentTimeMillis(), text);
+        } catch (Exception e) {
+            System.err.println("Failed to index message: " + e.getMessage());
+        }
     }
 
     /**
@@ -9,6 +9,16 @@ import java.util.List;
  * Manages the interaction between the GUI and the chat client.
  */
 public class ChatController implements IChatController {
+    /**
+     * Number of messages loaded each time the user opens or scrolls back through a conversation.
+     */
+    static final int HISTORY_PAGE_SIZE = 50;
+
+    /**
+     * Largest number of messages a search shows.
+     */
+    static final int SEARCH_LIMIT = 100;
+
     private final ChatGUI gui;
     private final ChatClient client;
 
@@ -58,6 +68,64 @@ public class ChatController implements IChatController {
         );
     }
 
+    /**
+     * Joins a room, creating it if it does not exist yet.
+     *
+     * @param room the name of the room
+     */
+    @Override
+    public void joinRoom(String room) {
+        client.joinRoom(room);
+    }
+
+    /**
+     * Posts a message to a room.
+     *
+     * @param room the name of the room
+     * @param message the message to be posted
+     */
+    @Override
+    public void postToRoom(String room, String message) {
+        client.postToRoom(room, message);
+    }
+
+    /**
+     * Receives a message posted to a room and displays it in the room's panel of the GUI.
+     *
+     * @param room the name of the room
+     * @param message the message
+     * @param sender the user who posted the message
+     */
+    @Override
+    public void receiveRoomMessage(String room, String message, User sender) {
+        SwingUtilities.invokeLater(() ->
+                gui.displayMessage(sender.getUsername() + ": " + message, new User(ChatClient.ROOM_PREFIX + room))
+        );
+    }
+
+    /**
+     * Loads a page of {@value #HISTORY_PAGE_SIZE} messages of the history of the conversation with a peer.
+     *
+     * @param peer the other user of the conversation
+     * @param beforeSequence the page ends just before this sequence number, {@link Long#MAX_VALUE} for the latest
+     * @return the messages, oldest first, empty if there are no more
+     */
+    @Override
+    public List<ChatMessage> loadHistory(User peer, long beforeSequence) {
+        return client.fetchHistory(peer, beforeSequence, HISTORY_PAGE_SIZE);
+    }
+
+    /**
+     * Searches the local index for the {@value #SEARCH_LIMIT} newest messages containing all the words of a query.
+     *
+     * @param query the words to look for, the last one matching as a prefix
+     * @return the messages found, newest first
+     */
+    @Override
+    public List<SearchHit> search(String query) {
+        return client.search(query, SEARCH_LIMIT);
+    }
+
     /**
      * Updates the list of users in the chat.
      *
@@ -11,7 +11,13 @@ import java.util.List;
 public class ChatGUI extends JFrame {
     private final Map<User, JTextArea> chatAreas;
     private final Map<User, JPanel> chatPanels;
+    // Rooms joined, shown after the users as "#name"
+    private final List<User> rooms;
+    // Sequence number of the oldest history message shown in each conversation, by username
+    private final Map<String, Long> oldestLoaded;
     private final JTextField messageInput;
+    private final JTextField searchInput;
+    private final JTextArea searchResults;
     private final JList<User> userList;
     private final DefaultListModel<User> userListModel;
     private final CardLayout cardLayout;
@@ -22,6 +28,8 @@ public class ChatGUI extends JFrame {
     public ChatGUI() {
         chatAreas = new HashMap<>();
         chatPanels = new HashMap<>();
+        oldestLoaded = new HashMap<>();
+        rooms = new ArrayList<>();
 
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -54,6 +62,18 @@ public class ChatGUI extends JFrame {
         welcomePanel.add(welcomeLabel);
         chatContainer.add(welcomePanel, "welcome");
 
+        // Search results panel
+        searchResults = new JTextArea();
+        searchResults.setEditable(false);
+        searchResults.setLineWrap(true);
+        searchResults.setWrapStyleWord(true);
+        searchResults.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        JScrollPane searchScrollPane = new JScrollPane(searchResults);
+        searchScrollPane.setBorder(BorderFactory.createLineBorder(new Color(222, 226, 230), 1));
+        chatContainer.add(searchScrollPane, "search");
+
+        searchInput = new JTextField();
+
         messageInput = new JTextField();
         messageInput.setFont(new Font("Dialog", Font.PLAIN, 14));
 
@@ -85,14 +105,42 @@ public class ChatGUI extends JFrame {
                 new EmptyBorder(15, 15, 15, 15)
         ));
 
+        // Search box, over the messages decrypted on this machine
+        searchInput.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        searchInput.setToolTipText("Search messages");
+        searchInput.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createLineBorder(new Color(206, 212, 218), 1),
+                BorderFactory.createEmptyBorder(6, 10, 6, 10)
+        ));
+        JPanel searchPanel = new JPanel(new BorderLayout());
+        searchPanel.setBackground(Color.WHITE);
+        searchPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+        searchPanel.add(searchInput, BorderLayout.CENTER);
+
+        JPanel userListHeader = new JPanel(new BorderLayout());
+        userListHeader.setBackground(Color.WHITE);
+        userListHeader.add(userListLabel, BorderLayout.NORTH);
+        userListHeader.add(searchPanel, BorderLayout.SOUTH);
+
         userList.setBackground(Color.WHITE);
         userList.setBorder(null);
         JScrollPane userScrollPane = new JScrollPane(userList);
         userScrollPane.setBorder(null);
 
-        userListPanel.add(userListLabel, BorderLayout.NORTH);
+        userListPanel.add(userListHeader, BorderLayout.NORTH);
         userListPanel.add(userScrollPane, BorderLayout.CENTER);
 
+        // Room button
+        JButton roomButton = new JButton("Join room");
+        roomButton.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        roomButton.setFocusPainted(false);
+        roomButton.addActionListener(e -> joinRoom());
+        JPanel roomPanel = new JPanel(new BorderLayout());
+        roomPanel.setBackground(Color.WHITE);
+        roomPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+        roomPanel.add(roomButton, BorderLayout.CENTER);
+        userListPanel.add(roomPanel, BorderLayout.SOUTH);
+
         // Chat panel
         JPanel rightPanel = new JPanel(new BorderLayout(0, 0));
         rightPanel.setBackground(new Color(248, 249, 250));
@@ -154,12 +202,58 @@ public class ChatGUI extends JFrame {
         // Chat header
         JPanel headerPanel = getHeaderPanel(user);
 
+        // Button paging back through the history kept by the server
+        JButton earlierButton = new JButton("Load earlier messages");
+        earlierButton.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        earlierButton.setFocusPainted(false);
+        earlierButton.addActionListener(e -> earlierButton.setEnabled(loadHistory(user)));
+
+        JPanel historyPanel = new JPanel(new BorderLayout(0, 5));
+        historyPanel.setBackground(panel.getBackground());
+        historyPanel.add(earlierButton, BorderLayout.NORTH);
+        historyPanel.add(scrollPane, BorderLayout.CENTER);
+
         panel.add(headerPanel, BorderLayout.NORTH);
-        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(historyPanel, BorderLayout.CENTER);
+
+        // Opening a conversation shows its latest page; rooms have no history
+        if (rooms.contains(user)) {
+            historyPanel.remove(earlierButton);
+        } else {
+            earlierButton.setEnabled(loadHistory(user));
+        }
 
         return panel;
     }
 
+    /**
+     * Inserts the page of history before the oldest message shown, and tells whether older ones remain.
+     */
+    private boolean loadHistory(User user) {
+        long before = oldestLoaded.getOrDefault(user.getUsername(), Long.MAX_VALUE);
+        List<ChatMessage> messages;
+        try {
+            messages = controller.loadHistory(user, before);
+        } catch (Exception e) {
+            System.err.println("Failed to load history: " + e.getMessage());
+            return false;
+        }
+        if (messages.isEmpty()) {
+            return false;
+        }
+        StringBuilder text = new StringBuilder();
+        for (ChatMessage message : messages) {
+            String name = message.sender().getUsername().equals(user.getUsername())
+                    ? user.getUsername() : "You";
+            text.append(String.format("[%tT] ", new Date(message.timestamp())))
+                    .append(name).append(": ").append(message.text()).append('\n');
+        }
+        chatAreas.get(user).insert(text.toString(), 0);
+        long oldest = messages.get(0).sequence();
+        oldestLoaded.put(user.getUsername(), oldest);
+        return oldest > 1;
+    }
+
     private static JPanel getHeaderPanel(User user) {
         JPanel headerPanel = new JPanel(new BorderLayout());
         headerPanel.setBackground(new Color(248, 249, 250));
@@ -187,6 +281,7 @@ public class ChatGUI extends JFrame {
 
     private void setupEventHandlers() {
         messageInput.addActionListener(e -> sendMessage());
+        searchInput.addActionListener(e -> search());
 
         userList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
@@ -220,7 +315,12 @@ public class ChatGUI extends JFrame {
         if (selectedUser != null && !messageInput.getText().trim().isEmpty()) {
             try {
                 String message = messageInput.getText().trim();
-                controller.sendMessage(message, selectedUser);
+                if (rooms.contains(selectedUser)) {
+                    controller.postToRoom(selectedUser.getUsername().substring(ChatClient.ROOM_PREFIX.length()),
+                            message);
+                } else {
+                    controller.sendMessage(message, selectedUser);
+                }
                 displayMessage("You: " + message, selectedUser);
                 messageInput.setText("");
             } catch (Exception e) {
@@ -231,6 +331,61 @@ public class ChatGUI extends JFrame {
         }
     }
 
+    private void joinRoom() {
+        String name = JOptionPane.showInputDialog(this,
+                "Room name:",
+                "Join room",
+                JOptionPane.PLAIN_MESSAGE);
+        if (name == null || name.trim().isEmpty()) {
+            return;
+        }
+        User room = new User(ChatClient.ROOM_PREFIX + name.trim());
+        try {
+            controller.joinRoom(name.trim());
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this,
+                    "Failed to join room: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (!rooms.contains(room)) {
+            rooms.add(room);
+            userListModel.addElement(room);
+        }
+        userList.setSelectedValue(room, true);
+    }
+
+    private void search() {
+        String query = searchInput.getText().trim();
+        if (query.isEmpty()) {
+            return;
+        }
+        List<SearchHit> hits;
+        try {
+            hits = controller.search(query);
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this,
+                    "Failed to search messages: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        text.append(hits.isEmpty() ? "No message found for \"" : "Messages matching \"")
+                .append(query).append("\"\n\n");
+        for (SearchHit hit : hits) {
+            text.append(String.format("[%1$tF %1$tT] ", new Date(hit.timestamp())))
+                    .append(hit.peer()).append(" - ").append(hit.sender()).append(": ")
+                    .append(hit.text()).append('\n');
+        }
+        searchResults.setText(text.toString());
+        searchResults.setCaretPosition(0);
+        // Selecting a user again goes back to the conversation
+        userList.clearSelection();
+        selectedUser = null;
+        messageInput.setEnabled(false);
+        cardLayout.show(chatContainer, "search");
+    }
+
     public void displayMessage(String message, User chatPartner) {
         JTextArea chatArea = chatAreas.get(chatPartner);
         String timestamp = String.format("[%tT] ", new Date());
@@ -241,7 +396,10 @@ public class ChatGUI extends JFrame {
         } else {
             JPanel chatPanel = createChatPanel(chatPartner);
             chatContainer.add(chatPanel, chatPartner.getUsername());
-            chatAreas.get(chatPartner).append(timestamp + message + "\n");
+            // The server records a message before delivering it, so the history just loaded already has it
+            if (!oldestLoaded.containsKey(chatPartner.getUsername())) {
+                chatAreas.get(chatPartner).append(timestamp + message + "\n");
+            }
             cardLayout.show(chatContainer, chatPartner.getUsername());
         }
     }
@@ -249,6 +407,7 @@ public class ChatGUI extends JFrame {
     public void updateUserList(List<User> users) {
         userListModel.clear();
         users.forEach(userListModel::addElement);
+        rooms.forEach(userListModel::addElement);
     }
 
     public void initialize(String username) {
@@ -0,0 +1,14 @@
+package ma.fstm.ilisi.realtimechat.client;
+
+import ma.fstm.ilisi.realtimechat.common.User;
+
+/**
+ * Decrypted message of a conversation, as read from the history kept by the server.
+ *
+ * @param sequence the number of the message in its conversation, from 1
+ * @param timestamp when the server relayed the message, in milliseconds since the epoch
+ * @param sender the user who sent the message
+ * @param text the decrypted text
+ */
+public record ChatMessage(long sequence, long timestamp, User sender, String text) {
+}
@@ -32,6 +32,47 @@ public interface IChatController {
      */
     void receiveMessage(String message, User sender);
 
+    /**
+     * Joins a room, creating it if it does not exist yet.
+     *
+     * @param room the name of the room
+     */
+    void joinRoom(String room);
+
+    /**
+     * Posts a message to a room.
+     *
+     * @param room the name of the room
+     * @param message the message to be posted
+     */
+    void postToRoom(String room, String message);
+
+    /**
+     * Receives a message posted to a room.
+     *
+     * @param room the name of the room
+     * @param message the message
+     * @param sender the user who posted the message
+     */
+    void receiveRoomMessage(String room, String message, User sender);
+
+    /**
+     * Loads a page of the history of the conversation with a peer.
+     *
+     * @param peer the other user of the conversation
+     * @param beforeSequence the page ends just before this sequence number, {@link Long#MAX_VALUE} for the latest
+     * @return the messages, oldest first, empty if there are no more
+     */
+    List<ChatMessage> loadHistory(User peer, long beforeSequence);
+
+    /**
+     * Searches the messages sent and received for all the words of a query.
+     *
+     * @param query the words to look for, the last one matching as a prefix
+     * @return the messages found, newest first
+     */
+    List<SearchHit> search(String query);
+
     /**
      * Updates the list of users in the chat.
      *
@@ -0,0 +1,147 @@
+package ma.fstm.ilisi.realtimechat.client;
+
+import ma.fstm.ilisi.realtimechat.common.PresenceSnapshot;
+import ma.fstm.ilisi.realtimechat.common.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client-side copy of the list of connected users, kept up to date by the numbered presence deltas of the server.
+ * A delta is applied only if it is the one after the last applied; deltas already covered by the snapshot are
+ * ignored, and any other number means a delta was missed, so the caller must load a new snapshot.
+ */
+class PresenceModel {
+    private final Map<String, User> users = new LinkedHashMap<>();
+    // Sequence number of the last change applied, -1 until the first snapshot
+    private long sequence = -1;
+
+    /**
+     * Applies a join.
+     *
+     * @param user the user who joined
+     * @param sequence the sequence number of the change
+     * @return false if a change was missed and a snapshot must be loaded, true otherwise
+     */
+    synchronized boolean joined(User user, long sequence) {
+        if (!accepts(sequence)) {
+            return isCovered(sequence);
+        }
+        users.put(user.getUsername(), user);
+        this.sequence = sequence;
+        return true;
+    }
+
+    /**
+     * Applies a leave.
+     *
+     * @param user the user who left
+     * @param sequence the sequence number of the change
+     * @return false if a change was missed and a snapshot must be loaded, true otherwise
+     */
+    synchronized boolean left(User user, long sequence) {
+        if (!accepts(sequence)) {
+            return isCovered(sequence);
+        }
+        users.remove(user.getUsername());
+        this.sequence = sequence;
+        return true;
+    }
+
+    /**
+     * Applies a status change.
+     *
+     * @param user the user, with its new status
+     * @param sequence the sequence number of the change
+     * @return false if a change was missed and a snapshot must be loaded, true otherwise
+     */
+    synchronized boolean statusChanged(User user, long sequence) {
+        if (!accepts(sequence)) {
+            return isCovered(sequence);
+        }
+        users.replace(user.getUsername(), user);
+        this.sequence = sequence;
+        return true;
+    }
+
+    /**
+     * Applies a batch of status changes, numbered as a single change.
+     *
+     * @param changed the users, with their new status
+     * @param sequence the sequence number of the change
+     * @return false if a change was missed and a snapshot must be loaded, true otherwise
+     */
+    synchronized boolean statusesChanged(List<User> changed, long sequence) {
+        if (!accepts(sequence)) {
+            return isCovered(sequence);
+        }
+        changed.forEach(user -> users.replace(user.getUsername(), user));
+        this.sequence = sequence;
+        return true;
+    }
+
+    /**
+     * Replaces the list with a snapshot, unless the model is already past it.
+     *
+     * @param snapshot the snapshot
+     */
+    synchronized void reset(PresenceSnapshot snapshot) {
+        if (snapshot.getSequence() < sequence) {
+            return;
+        }
+        users.clear();
+        snapshot.getUsers().forEach(user -> users.put(user.getUsername(), user));
+        sequence = snapshot.getSequence();
+    }
+
+    /**
+     * Replaces the list with one from a server that predates deltas.
+     *
+     * @param list the connected users
+     */
+    synchronized void replace(List<User> list) {
+        users.clear();
+        list.forEach(user -> users.put(user.getUsername(), user));
+        sequence = -1;
+    }
+
+    /**
+     * Returns the connected users.
+     *
+     * @return a copy of the list of users, in the order they joined
+     */
+    synchronized List<User> getUsers() {
+        return new ArrayList<>(users.values());
+    }
+
+    /**
+     * Returns the sequence number of the last change applied.
+     *
+     * @return the sequence number, or -1 before the first snapshot
+     */
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Checks whether a change is the one after the last applied.
+     *
+     * @param sequence the sequence number of the change
+     * @return true if the change can be applied
+     */
+    private boolean accepts(long sequence) {
+        return this.sequence >= 0 && sequence == this.sequence + 1;
+    }
+
+    /**
+     * Checks whether a change is already included in the list.
+     *
+     * @param sequence the sequence number of the change
+     * @return true if the change is not newer than the last applied
+     */
+    private boolean isCovered(long sequence) {
+        return this.sequence >= 0 && sequence <= this.sequence;
+    }
+}
@@ -0,0 +1,12 @@
+package ma.fstm.ilisi.realtimechat.client;
+
+/**
+ * Message found by a full-text search of the local history.
+ *
+ * @param peer the username of the other user of the conversation
+ * @param sender the username of the user who sent the message
+ * @param timestamp when the message was sent or received, in milliseconds since the epoch
+ * @param text the decrypted text
+ */
+public record SearchHit(String peer, String sender, long timestamp, String text) {
+}
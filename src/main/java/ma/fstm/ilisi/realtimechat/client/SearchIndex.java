@@ -0,0 +1,518 @@
+package ma.fstm.ilisi.realtimechat.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Local full-text index of the messages sent and received by a user. The server only relays ciphertext, so
+ * search runs on the client, over the messages as they are decrypted or sent: each one is appended to a message
+ * file and its terms added to an inverted index, so a query never decrypts anything.
+ * Terms are the runs of letters and digits of a message, lower-cased and without accents. The posting list of a
+ * term holds the ids of the messages containing it, in increasing order, as varint-encoded gaps, so a term that
+ * occurs in every message costs about one byte per message, in memory as on disk. A query finds the messages
+ * containing all its terms, the last one as a prefix, by intersecting the lists from the shortest.
+ * The index is saved on {@link #close()}; messages appended after the last save are indexed again from the
+ * message file when it is reopened.
+ * The message file and the index hold the decrypted text in the clear, so indexing only runs when the
+ * {@value #ENABLED_PROPERTY} system property is {@code true}, and the directories are created readable by
+ * their owner only where the file system has POSIX permissions.
+ */
+class SearchIndex implements Closeable {
+
+    /**
+     * System property setting the directory of the indexes, one subdirectory per user.
+     */
+    static final String DIRECTORY_PROPERTY = "realtimechat.search.dir";
+
+    /**
+     * System property turning local indexing on; it is off by default since the index holds plaintext.
+     */
+    static final String ENABLED_PROPERTY = "realtimechat.search.enabled";
+
+    /**
+     * Longest term indexed; longer runs are cut.
+     */
+    static final int MAX_TERM_LENGTH = 64;
+
+    private static final String MESSAGES_FILE = "messages.dat";
+    private static final String INDEX_FILE = "index.dat";
+    private static final int INDEX_MAGIC = 0x52435349;
+    private static final int INDEX_VERSION = 1;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    /**
+     * Ids of the messages containing a term, as varint-encoded gaps between increasing ids.
+     */
+    private static final class Postings {
+        byte[] bytes = new byte[4];
+        int length;
+        int count;
+        int last = -1;
+
+        /**
+         * Appends an id, greater than the last one.
+         *
+         * @param id the message id
+         */
+        void add(int id) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + 5, 2 * bytes.length));
+            }
+            int gap = id - last;
+            while ((gap & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            bytes[length++] = (byte) gap;
+            last = id;
+            count++;
+        }
+
+        /**
+         * Decodes the ids.
+         *
+         * @return the ids, in increasing order
+         */
+        int[] decode() {
+            int[] ids = new int[count];
+            int id = -1;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += gap;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    private final Path directory;
+    private final FileChannel messages;
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    // Offset of each message in the message file, by id
+    private long[] offsets = new long[1024];
+    private int messageCount;
+    private boolean closed;
+
+    /**
+     * Opens the index in a directory, creating it if needed. Loads the saved index and indexes the messages
+     * appended after it was saved; a damaged message at the end of the file, left by a crash, is discarded.
+     *
+     * @param directory the directory of the index
+     * @throws IOException if the files cannot be read or created
+     */
+    SearchIndex(Path directory) throws IOException {
+        this.directory = directory;
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+            Files.createDirectories(directory);
+        }
+        this.messages = FileChannel.open(directory.resolve(MESSAGES_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int indexed = load();
+        long offset = 0;
+        long size = messages.size();
+        ByteBuffer header = ByteBuffer.allocate(4);
+        while (offset + 4 <= size) {
+            header.clear();
+            messages.read(header, offset);
+            int length = header.getInt(0);
+            if (length < 12 || offset + 4 + length > size) {
+                break;
+            }
+            int id = addOffset(offset);
+            if (id >= indexed) {
+                indexTerms(id, read(id).text());
+            }
+            offset += 4 + length;
+        }
+        if (indexed > messageCount) {
+            // The saved index refers to messages lost from the file: start over
+            terms.clear();
+            for (int id = 0; id < messageCount; id++) {
+                indexTerms(id, read(id).text());
+            }
+        }
+        messages.truncate(offset);
+        messages.position(offset);
+    }
+
+    /**
+     * Tells whether local indexing is turned on by the {@value #ENABLED_PROPERTY} system property.
+     *
+     * @return true if messages are to be indexed
+     */
+    static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Returns the directory named by the {@value #DIRECTORY_PROPERTY} system property, or
+     * {@code .realtimechat/search} in the home directory, for a user.
+     *
+     * @param username the username
+     * @return the directory of the user's index
+     * @throws IllegalArgumentException if the username is empty or only made of dots, which would name the
+     *                                  root of the indexes or a directory above it
+     */
+    static Path getDefaultDirectory(String username) {
+        String name = username.replaceAll("[^\\p{Alnum}._-]", "_");
+        if (name.isEmpty() || name.chars().allMatch(c -> c == '.')) {
+            throw new IllegalArgumentException("Username cannot name an index directory: " + username);
+        }
+        String setting = System.getProperty(DIRECTORY_PROPERTY);
+        Path root = setting == null || setting.isBlank()
+                ? Paths.get(System.getProperty("user.home"), ".realtimechat", "search")
+                : Paths.get(setting.trim());
+        return root.resolve(name);
+    }
+
+    /**
+     * Returns the number of messages indexed.
+     *
+     * @return the count
+     */
+    synchronized int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Returns the number of distinct terms indexed.
+     *
+     * @return the count
+     */
+    synchronized int getTermCount() {
+        return terms.size();
+    }
+
+    /**
+     * Appends a message and indexes its terms.
+     *
+     * @param peer the username of the other user of the conversation
+     * @param sender the username of the user who sent the message
+     * @param timestamp when the message was sent or received, in milliseconds since the epoch
+     * @param text the decrypted text
+     * @throws IOException if the message cannot be written, in which case the file is cut back to where it was
+     * @throws IllegalStateException if the index is closed
+     */
+    synchronized void add(String peer, String sender, long timestamp, String text) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Search index is closed");
+        }
+        byte[] peerBytes = peer.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 2 + peerBytes.length + 2 + senderBytes.length + textBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length)
+                .putInt(length)
+                .putLong(timestamp)
+                .putShort((short) peerBytes.length).put(peerBytes)
+                .putShort((short) senderBytes.length).put(senderBytes)
+                .put(textBytes)
+                .flip();
+        long offset = messages.position();
+        try {
+            while (record.hasRemaining()) {
+                messages.write(record);
+            }
+        } catch (IOException e) {
+            // A torn record would stop the scan on reopening, losing every message written after it
+            try {
+                messages.truncate(offset);
+                messages.position(offset);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        indexTerms(addOffset(offset), text);
+    }
+
+    /**
+     * Finds the messages containing every term of a query, the last term matching as a prefix so that
+     * results show up while the user types.
+     *
+     * @param query the words to look for
+     * @param limit the largest number of messages to return
+     * @return the messages, newest first, empty if the query has no terms
+     * @throws IOException if a message cannot be read
+     */
+    synchronized List<SearchHit> search(String query, int limit) throws IOException {
+        List<String> queryTerms = new ArrayList<>(tokenize(query));
+        if (queryTerms.isEmpty() || limit <= 0 || closed) {
+            return List.of();
+        }
+        List<int[]> lists = new ArrayList<>(queryTerms.size());
+        for (int i = 0; i < queryTerms.size(); i++) {
+            String term = queryTerms.get(i);
+            int[] ids;
+            if (i == queryTerms.size() - 1) {
+                ids = union(terms.subMap(term, true, term + Character.MAX_VALUE, false).values());
+            } else {
+                Postings postings = terms.get(term);
+                ids = postings == null ? new int[0] : postings.decode();
+            }
+            if (ids.length == 0) {
+                return List.of();
+            }
+            lists.add(ids);
+        }
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+        int[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        List<SearchHit> hits = new ArrayList<>(Math.min(limit, result.length));
+        for (int i = result.length - 1; i >= 0 && hits.size() < limit; i--) {
+            hits.add(read(result[i]));
+        }
+        return hits;
+    }
+
+    /**
+     * Saves the index, so that reopening it does not index the messages again.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    synchronized void save() throws IOException {
+        Path temporary = directory.resolve(INDEX_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(messageCount);
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                Postings postings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(postings.count);
+                out.writeInt(postings.last);
+                out.writeInt(postings.length);
+                out.write(postings.bytes, 0, postings.length);
+            }
+        }
+        messages.force(false);
+        Files.move(temporary, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Saves the index and closes the message file.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            save();
+        } finally {
+            closed = true;
+            messages.close();
+        }
+    }
+
+    /**
+     * Splits a text into terms: runs of letters and digits, lower-cased and without accents, each kept once.
+     *
+     * @param text the text
+     * @return the terms, in order of first occurrence
+     */
+    static Set<String> tokenize(String text) {
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.ROOT);
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean inWord = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                tokens.add(folded.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Adds a message to the posting lists of its terms.
+     *
+     * @param id the message id
+     * @param text the text of the message
+     */
+    private void indexTerms(int id, String text) {
+        for (String term : tokenize(text)) {
+            terms.computeIfAbsent(term, key -> new Postings()).add(id);
+        }
+    }
+
+    /**
+     * Records the offset of the next message.
+     *
+     * @param offset the offset of the message in the message file
+     * @return the id of the message
+     */
+    private int addOffset(long offset) {
+        if (messageCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        offsets[messageCount] = offset;
+        return messageCount++;
+    }
+
+    /**
+     * Reads a message from the message file.
+     *
+     * @param id the message id
+     * @return the message
+     * @throws IOException if the message cannot be read
+     */
+    private SearchHit read(int id) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        messages.read(header, offsets[id]);
+        ByteBuffer record = ByteBuffer.allocate(header.getInt(0));
+        while (record.hasRemaining()) {
+            if (messages.read(record, offsets[id] + 4 + record.position()) < 0) {
+                throw new IOException("Message " + id + " is truncated");
+            }
+        }
+        record.flip();
+        long timestamp = record.getLong();
+        String peer = readString(record);
+        String sender = readString(record);
+        String text = new String(record.array(), record.position(), record.remaining(), StandardCharsets.UTF_8);
+        return new SearchHit(peer, sender, timestamp, text);
+    }
+
+    /**
+     * Loads the saved index, if there is a valid one.
+     *
+     * @return the number of messages it covers, 0 if there is none
+     * @throws IOException if the file cannot be read
+     */
+    private int load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(directory.resolve(INDEX_FILE))))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return 0;
+            }
+            int indexed = in.readInt();
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+                String term = in.readUTF();
+                Postings postings = new Postings();
+                postings.count = in.readInt();
+                postings.last = in.readInt();
+                postings.length = in.readInt();
+                postings.bytes = new byte[Math.max(4, postings.length)];
+                in.readFully(postings.bytes, 0, postings.length);
+                terms.put(term, postings);
+            }
+            return indexed;
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            // A damaged index is rebuilt from the messages
+            terms.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Merges the posting lists of several terms.
+     *
+     * @param lists the posting lists
+     * @return the ids found in any of them, in increasing order, without duplicates
+     */
+    private static int[] union(Collection<Postings> lists) {
+        if (lists.size() == 1) {
+            return lists.iterator().next().decode();
+        }
+        int total = 0;
+        for (Postings postings : lists) {
+            total += postings.count;
+        }
+        int[] ids = new int[total];
+        int length = 0;
+        for (Postings postings : lists) {
+            int[] decoded = postings.decode();
+            System.arraycopy(decoded, 0, ids, length, decoded.length);
+            length += decoded.length;
+        }
+        return Arrays.stream(ids).sorted().distinct().toArray();
+    }
+
+    /**
+     * Intersects two sorted lists of ids.
+     *
+     * @param a the first list
+     * @param b the second list
+     * @return the ids in both, in increasing order
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int length = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[length++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Reads a length-prefixed username.
+     *
+     * @param record the record, positioned at the length
+     * @return the username
+     */
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[Short.toUnsignedInt(record.getShort())];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
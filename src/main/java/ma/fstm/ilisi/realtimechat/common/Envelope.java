@@ -0,0 +1,139 @@
+package ma.fstm.ilisi.realtimechat.common;
+
+import ma.fstm.ilisi.realtimechat.common.aes.CipherMode;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Binary frame carrying an encrypted message between clients through the server.
+ * The payload is the output of AESEncryption as is: the mode id, the IV (or nonce), the ciphertext and,
+ * for GCM, the tag. On the wire the frame is a version byte, the payload length and the payload bytes,
+ * with no Base64 and no modified-UTF-8 string encoding. The server relays envelopes without looking inside.
+ */
+public class Envelope implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Current version of the frame layout.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Largest payload accepted when reading a frame, so a corrupted length cannot trigger a huge allocation.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    private int version;
+    private byte[] payload;
+
+    /**
+     * Constructs an empty envelope. Required by Externalizable; the fields are filled by readExternal.
+     */
+    public Envelope() {
+    }
+
+    /**
+     * Constructs an envelope around an encrypted message. The array is not copied and must not be modified afterwards.
+     *
+     * @param payload the output of AESEncryption: mode id, IV, ciphertext and tag
+     * @throws IllegalArgumentException if the payload is null, empty or too large
+     */
+    public Envelope(byte[] payload) {
+        if (payload == null || payload.length == 0 || payload.length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload must hold between 1 and " + MAX_PAYLOAD_LENGTH + " bytes");
+        }
+        this.version = VERSION;
+        this.payload = payload;
+    }
+
+    /**
+     * Returns the version of the frame layout the envelope was written with.
+     *
+     * @return the version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the encrypted message. The array is not copied and must not be modified.
+     *
+     * @return the mode id, IV, ciphertext and tag
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the cipher mode of the message, read from its first byte.
+     *
+     * @return the cipher mode
+     * @throws IllegalArgumentException if the mode id is unknown
+     */
+    public CipherMode getMode() {
+        return CipherMode.fromId(payload[0]);
+    }
+
+    /**
+     * Returns a copy of the IV (or nonce) of the message.
+     *
+     * @return the IV
+     * @throws IllegalArgumentException if the mode id is unknown or the payload is shorter than its header
+     */
+    public byte[] getIv() {
+        CipherMode mode = getMode();
+        if (payload.length < mode.getHeaderLength()) {
+            throw new IllegalArgumentException("Payload is shorter than its header");
+        }
+        return Arrays.copyOfRange(payload, 1, mode.getHeaderLength());
+    }
+
+    /**
+     * Returns the payload in the Base64 text form of the String methods, for peers that predate envelopes.
+     *
+     * @return the Base64-encoded payload
+     */
+    public String toBase64() {
+        return Base64.getEncoder().encodeToString(payload);
+    }
+
+    /**
+     * Writes the version, the payload length and the payload.
+     *
+     * @param out the stream to write the object to
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(version);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Reads a frame written by writeExternal, rejecting unknown versions and out-of-range lengths.
+     *
+     * @param in the stream to read data from
+     * @throws IOException if the frame is invalid or an I/O error occurs
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int frameVersion = in.readUnsignedByte();
+        if (frameVersion != VERSION) {
+            throw new IOException("Unsupported envelope version: " + frameVersion);
+        }
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid envelope length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        this.version = frameVersion;
+        this.payload = bytes;
+    }
+}
@@ -0,0 +1,68 @@
+package ma.fstm.ilisi.realtimechat.common;
+
+import java.io.Serializable;
+
+/**
+ * Message of a conversation as kept by the server, still encrypted. Messages are numbered from 1 in each
+ * conversation, so a client pages back through the history by asking for the messages before the oldest
+ * sequence number it holds.
+ */
+public class HistoryEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long sequence;
+    private final long timestamp;
+    private final User sender;
+    private final Envelope envelope;
+
+    /**
+     * Constructs a history entry.
+     *
+     * @param sequence the number of the message in its conversation
+     * @param timestamp when the server relayed the message, in milliseconds since the epoch
+     * @param sender the user who sent the message
+     * @param envelope the encrypted message
+     */
+    public HistoryEntry(long sequence, long timestamp, User sender, Envelope envelope) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.envelope = envelope;
+    }
+
+    /**
+     * Returns the number of the message in its conversation.
+     *
+     * @return the sequence number, from 1
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns when the server relayed the message.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the user who sent the message.
+     *
+     * @return the sender
+     */
+    public User getSender() {
+        return sender;
+    }
+
+    /**
+     * Returns the encrypted message.
+     *
+     * @return the envelope
+     */
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+}
@@ -11,7 +11,8 @@ import java.util.List;
 public interface IChatClient extends Remote {
 
     /**
-     * Receives a message from a sender.
+     * Receives a message from a sender: a plain system message from the server, or an encrypted message
+     * as Base64 text from a client that predates {@link #receiveEnvelope(Envelope, User)}.
      *
      * @param message the message to be received
      * @param sender the user who sent the message
@@ -20,10 +21,84 @@ public interface IChatClient extends Remote {
     void receiveMessage(String message, User sender) throws RemoteException;
 
     /**
-     * Updates the list of users in the chat.
+     * Receives an encrypted message from a sender as a binary envelope.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void receiveEnvelope(Envelope envelope, User sender) throws RemoteException;
+
+    /**
+     * Receives several encrypted messages in one call, in the order they were sent.
+     * The server uses it whenever more than one envelope is waiting for the client.
+     *
+     * @param envelopes the encrypted messages
+     * @param senders the user who sent each message: {@code senders.get(i)} sent {@code envelopes.get(i)}
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void receiveMessages(List<Envelope> envelopes, List<User> senders) throws RemoteException;
+
+    /**
+     * Receives an encrypted message posted to a room the user is a member of. The sender encrypted it once,
+     * for every member. Clients that predate rooms get it through {@link #receiveEnvelope(Envelope, User)}.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the user who posted the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void receiveRoomEnvelope(String room, Envelope envelope, User sender) throws RemoteException;
+
+    /**
+     * Replaces the list of users in the chat.
+     * Only sent to clients that predate {@link #userJoined(User, long)} and the other presence deltas.
      *
      * @param users the list of users to be updated
      * @throws RemoteException if a remote communication error occurs
      */
     void updateUserList(List<User> users) throws RemoteException;
+
+    /**
+     * Adds a user to the list of connected users.
+     * Presence changes are numbered from 1 without gaps; a client that sees a number other than the one after
+     * its last fetches {@link IChatServer#getPresenceSnapshot()} instead of applying the change.
+     *
+     * @param user the user who joined
+     * @param sequence the sequence number of the change
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void userJoined(User user, long sequence) throws RemoteException;
+
+    /**
+     * Removes a user from the list of connected users.
+     *
+     * @param user the user who left
+     * @param sequence the sequence number of the change
+     * @throws RemoteException if a remote communication error occurs
+     * @see #userJoined(User, long)
+     */
+    void userLeft(User user, long sequence) throws RemoteException;
+
+    /**
+     * Updates the online status of a connected user.
+     *
+     * @param user the user, with its new status
+     * @param sequence the sequence number of the change
+     * @throws RemoteException if a remote communication error occurs
+     * @see #userJoined(User, long)
+     */
+    void statusChanged(User user, long sequence) throws RemoteException;
+
+    /**
+     * Updates the online status of several connected users, as a single change.
+     * Servers batch the status changes of a short window this way; clients that predate this method get the full
+     * list through {@link #updateUserList(List)} instead.
+     *
+     * @param users the users, with their new status
+     * @param sequence the sequence number of the change
+     * @throws RemoteException if a remote communication error occurs
+     * @see #userJoined(User, long)
+     */
+    void statusesChanged(List<User> users, long sequence) throws RemoteException;
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package ma.fstm.ilisi.realtimechat.common;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Interface representing a chat server for real-time communication.
@@ -35,7 +36,8 @@ public interface IChatServer extends Remote {
     void updateUserStatus(String username, boolean isOnline) throws RemoteException;
 
     /**
-     * Sends a message from one user to another.
+     * Sends a message from one user to another, as Base64 text.
+     * Kept for clients that predate {@link #sendEnvelope(Envelope, User, User)}.
      *
      * @param message the message to send
      * @param sender the user sending the message
@@ -44,8 +46,104 @@ public interface IChatServer extends Remote {
      */
     void sendMessage(String message, User sender, User receiver) throws RemoteException;
 
+    /**
+     * Sends an encrypted message from one user to another as a binary envelope.
+     * The server relays the envelope without decoding or decrypting it.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user sending the message
+     * @param receiver the user receiving the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void sendEnvelope(Envelope envelope, User sender, User receiver) throws RemoteException;
+
+    /**
+     * Creates a room, with the user as its first member.
+     *
+     * @param room the name of the room, at most 64 characters
+     * @param user the user creating the room
+     * @return true if the room was created, false if a room of that name already exists
+     * @throws RemoteException if a remote communication error occurs
+     * @throws IllegalArgumentException if the name is blank or too long
+     */
+    boolean createRoom(String room, User user) throws RemoteException;
+
+    /**
+     * Adds a user to the members of a room.
+     *
+     * @param room the name of the room
+     * @param user the user joining the room
+     * @return true if the user is a member, false if there is no such room
+     * @throws RemoteException if a remote communication error occurs
+     */
+    boolean joinRoom(String room, User user) throws RemoteException;
+
+    /**
+     * Removes a user from the members of a room. The room disappears with its last member.
+     *
+     * @param room the name of the room
+     * @param user the user leaving the room
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void leaveRoom(String room, User user) throws RemoteException;
+
+    /**
+     * Posts an encrypted message to every connected member of a room but the sender. The message is encrypted
+     * once, for all the members, and the server fans it out, so a post costs the sender a single call
+     * whatever the size of the room.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member posting the message
+     * @return true if the message was posted, false if there is no such room or the sender is not a member
+     * @throws RemoteException if a remote communication error occurs
+     */
+    boolean postToRoom(String room, Envelope envelope, User sender) throws RemoteException;
+
+    /**
+     * Returns the names of the existing rooms.
+     *
+     * @return the names, sorted
+     * @throws RemoteException if a remote communication error occurs
+     */
+    List<String> getRooms() throws RemoteException;
+
+    /**
+     * Returns the connected users with the sequence number of the last presence change they include.
+     * Clients call it when they join and whenever they miss a presence delta.
+     *
+     * @return the current presence snapshot
+     * @throws RemoteException if a remote communication error occurs
+     */
+    PresenceSnapshot getPresenceSnapshot() throws RemoteException;
+
+    /**
+     * Returns a page of the history of the conversation between two users: the latest messages numbered before
+     * a given sequence number, still encrypted. Clients open a conversation with {@link Long#MAX_VALUE} and page
+     * back with the sequence number of the oldest message they hold.
+     *
+     * @param user the user asking for the history
+     * @param peer the other user of the conversation
+     * @param beforeSequence the page ends just before this sequence number
+     * @param limit the largest number of messages to return; the server may return fewer
+     * @return the messages, oldest first, empty if there are none before that number
+     * @throws RemoteException if a remote communication error occurs
+     */
+    List<HistoryEntry> fetchHistory(User user, User peer, long beforeSequence, int limit) throws RemoteException;
+
+    /**
+     * Returns the server of the cluster that owns a user. Clients look up any server of the cluster, ask it for
+     * their home server and register there; messages for them are forwarded to it.
+     *
+     * @param username the username of the user
+     * @return the address of the server, or null if the server is not part of a cluster
+     * @throws RemoteException if a remote communication error occurs
+     */
+    ServerAddress getHomeServer(String username) throws RemoteException;
+
     /**
      * Retrieves the encryption key used for secure communication.
+     * The key is 16, 24 or 32 bytes long, and its length selects AES-128, AES-192 or AES-256 on the client.
      *
      * @return the encryption key as a byte array
      * @throws RemoteException if a remote communication error occurs
@@ -0,0 +1,45 @@
+package ma.fstm.ilisi.realtimechat.common;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Full list of connected users at a given presence sequence number.
+ * Clients start from a snapshot and then apply the userJoined, userLeft, statusChanged and statusesChanged deltas
+ * numbered after it; they fetch a new snapshot when they detect a gap in the numbering.
+ */
+public class PresenceSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long sequence;
+    private final List<User> users;
+
+    /**
+     * Constructs a snapshot.
+     *
+     * @param sequence the sequence number of the last change included in the snapshot
+     * @param users the connected users
+     */
+    public PresenceSnapshot(long sequence, List<User> users) {
+        this.sequence = sequence;
+        this.users = List.copyOf(users);
+    }
+
+    /**
+     * Returns the sequence number of the last change included in the snapshot.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the connected users, in the order they joined.
+     *
+     * @return an unmodifiable list of users
+     */
+    public List<User> getUsers() {
+        return users;
+    }
+}
@@ -0,0 +1,31 @@
+package ma.fstm.ilisi.realtimechat.common;
+
+import java.rmi.UnmarshalException;
+
+/**
+ * Helpers for talking to peers built against an older version of the remote interfaces.
+ */
+public final class RemoteCompatibility {
+
+    private RemoteCompatibility() {
+    }
+
+    /**
+     * Checks whether a remote call failed because the remote object does not have the method, i.e. the peer
+     * predates it. RMI reports this as an UnmarshalException about an unrecognized method hash, possibly
+     * wrapped in a ServerException.
+     *
+     * @param exception the exception thrown by the remote call
+     * @return true if the peer does not support the method
+     */
+    public static boolean isUnsupportedMethod(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UnmarshalException
+                    && cause.getMessage() != null
+                    && cause.getMessage().contains("unrecognized method hash")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,132 @@
+package ma.fstm.ilisi.realtimechat.common;
+
+import java.io.Serializable;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.Objects;
+
+/**
+ * Address of the RMI registry of a chat server, written {@code host:port}. In a cluster every node has its own
+ * registry, and the address of that registry names the node.
+ */
+public class ServerAddress implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name under which a chat server is bound in its registry.
+     */
+    public static final String CHAT_SERVICE = "ChatService";
+
+    /**
+     * Port of the registry when the address does not give one.
+     */
+    public static final int DEFAULT_PORT = 1099;
+
+    private final String host;
+    private final int port;
+
+    /**
+     * Constructs an address.
+     *
+     * @param host the host name or IP address of the registry
+     * @param port the port of the registry
+     * @throws IllegalArgumentException if the host is blank or the port is out of range
+     */
+    public ServerAddress(String host, int port) {
+        if (host == null || host.isBlank()) {
+            throw new IllegalArgumentException("Host must not be blank");
+        }
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Parses an address written {@code host:port}, or {@code host} for the default port.
+     *
+     * @param address the address
+     * @return the parsed address
+     * @throws IllegalArgumentException if the address is malformed
+     */
+    public static ServerAddress parse(String address) {
+        String trimmed = address.trim();
+        int colon = trimmed.lastIndexOf(':');
+        if (colon < 0) {
+            return new ServerAddress(trimmed, DEFAULT_PORT);
+        }
+        try {
+            return new ServerAddress(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid server address: " + address, e);
+        }
+    }
+
+    /**
+     * Looks up a remote object bound in the registry at this address.
+     *
+     * @param name the name the object is bound under
+     * @return the stub of the remote object
+     * @throws RemoteException if the registry cannot be reached
+     * @throws NotBoundException if nothing is bound under that name
+     */
+    public Remote lookup(String name) throws RemoteException, NotBoundException {
+        return LocateRegistry.getRegistry(host, port).lookup(name);
+    }
+
+    /**
+     * Returns the host of the registry.
+     *
+     * @return the host name or IP address
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns the port of the registry.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Indicates whether some other object is "equal to" this one.
+     * Two addresses are considered equal if they have the same host, as written, and the same port.
+     *
+     * @param object the reference object with which to compare
+     * @return true if this object is the same as the object argument, false otherwise
+     */
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) return true;
+        if (object == null || getClass() != object.getClass()) return false;
+        ServerAddress address = (ServerAddress) object;
+        return port == address.port && host.equals(address.host);
+    }
+
+    /**
+     * Returns a hash code value for the address.
+     *
+     * @return a hash code value for this address
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, port);
+    }
+
+    /**
+     * Returns the address written {@code host:port}, as parsed by {@link #parse(String)}.
+     *
+     * @return the address
+     */
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,635 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * AESBitsliceCore class implements AES as a bitsliced circuit over 64-bit words, encrypting four blocks at once.
+ * The state of four blocks is spread over eight longs, word {@code i} holding bit {@code i} of every byte,
+ * so SubBytes is a fixed sequence of boolean operations (the Boyar-Peralta circuit) and the rounds are
+ * shifts and XORs. There are no table lookups and no data-dependent branches, which makes the engine
+ * constant-time. Batches given to encryptBlocks/decryptBlocks are processed four blocks per pass;
+ * a single block runs alone in a pass.
+ * It produces exactly the same output as AESCore for the same key.
+ * The round keys are immutable once published and the state lives in a thread-confined buffer,
+ * so one keyed instance can be shared by any number of threads.
+ */
+public class AESBitsliceCore implements BlockCipher {
+    /**
+     * Number of blocks processed by one pass of the circuit.
+     */
+    static final int PARALLEL_BLOCKS = 4;
+
+    /**
+     * Little-endian int view of byte arrays, the word order of the bitsliced layout.
+     */
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Thread-confined bitsliced state of one pass.
+     */
+    private static final ThreadLocal<long[]> STATE = ThreadLocal.withInitial(() -> new long[8]);
+
+    /**
+     * Immutable expanded key: eight words per round key, each round key repeated for the four blocks.
+     *
+     * @param rounds the number of rounds of the key (NR)
+     * @param words the bitsliced round keys, {@code 8 * (rounds + 1)} words
+     */
+    private record RoundKeys(int rounds, long[] words) {
+    }
+
+    /**
+     * Round keys of the current key.
+     */
+    private volatile RoundKeys roundKeys;
+
+    /**
+     * Returns the round keys of the current key.
+     *
+     * @return the round keys
+     * @throws IllegalStateException if no key has been expanded yet
+     */
+    private RoundKeys keys() {
+        RoundKeys keys = roundKeys;
+        if (keys == null) {
+            throw new IllegalStateException("Key must be expanded before encrypting or decrypting");
+        }
+        return keys;
+    }
+
+    /**
+     * Expands the initial key into bitsliced round keys. SubWord goes through the bitsliced S-Box as well,
+     * so the key schedule is constant-time too.
+     *
+     * @param key the initial key used for the AES encryption/decryption, 16, 24 or 32 bytes long
+     * @throws IllegalArgumentException if the key is null or of an unsupported length
+     */
+    @Override
+    public void keyExpansion(byte[] key) {
+        // Check if the key is valid and derive NK and NR from its length
+        KeySize keySize = KeySize.of(key);
+        int nk = keySize.getKeyWords();
+        int nr = keySize.getRounds();
+
+        // Standard key schedule on little-endian words
+        int total = 4 * (nr + 1);
+        int[] w = new int[total];
+        for (int i = 0; i < nk; i++) {
+            w[i] = (int) INT_VIEW.get(key, i * 4);
+        }
+        long[] q = new long[8];
+        int temp = w[nk - 1];
+        for (int i = nk; i < total; i++) {
+            if (i % nk == 0) {
+                // RotWord, SubWord and XOR with Rcon (the first byte is the low one)
+                temp = subWord(Integer.rotateRight(temp, 8), q) ^ AESConstants.RCON[i / nk - 1];
+            } else if (nk > 6 && i % nk == 4) {
+                // Additional SubWord for AES-256
+                temp = subWord(temp, q);
+            }
+            temp ^= w[i - nk];
+            w[i] = temp;
+        }
+
+        // Bitslice every round key, repeated in the four block positions
+        long[] words = new long[8 * (nr + 1)];
+        for (int round = 0; round <= nr; round++) {
+            interleaveIn(q, 0, w[4 * round], w[4 * round + 1], w[4 * round + 2], w[4 * round + 3]);
+            q[1] = q[0];
+            q[2] = q[0];
+            q[3] = q[0];
+            q[5] = q[4];
+            q[6] = q[4];
+            q[7] = q[4];
+            ortho(q);
+            System.arraycopy(q, 0, words, 8 * round, 8);
+        }
+        this.roundKeys = new RoundKeys(nr, words);
+    }
+
+    /**
+     * Applies the S-Box to each byte of a word with the bitsliced circuit.
+     *
+     * @param word the word to substitute
+     * @param q scratch state of eight words
+     * @return the substituted word
+     */
+    private static int subWord(int word, long[] q) {
+        Arrays.fill(q, 0);
+        q[0] = word & 0xFFFFFFFFL;
+        ortho(q);
+        sbox(q);
+        ortho(q);
+        return (int) q[0];
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        encryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        decryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    /**
+     * Encrypts consecutive blocks, four per pass of the circuit.
+     */
+    @Override
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        process(in, inOff, out, outOff, blocks, true);
+    }
+
+    /**
+     * Decrypts consecutive blocks, four per pass of the circuit.
+     */
+    @Override
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        process(in, inOff, out, outOff, blocks, false);
+    }
+
+    /**
+     * Runs blocks through the circuit, a pass of up to four blocks at a time. Each pass reads all of its
+     * input before writing, so the output may start at the input in the same array.
+     *
+     * @param in the array holding the input blocks
+     * @param inOff the offset of the first input block
+     * @param out the array receiving the output blocks
+     * @param outOff the offset at which the output is written
+     * @param blocks the number of blocks
+     * @param encrypt true to encrypt, false to decrypt
+     * @throws IndexOutOfBoundsException if either range does not fit in its array
+     */
+    private void process(byte[] in, int inOff, byte[] out, int outOff, int blocks, boolean encrypt) {
+        int len = blocks * BLOCK_SIZE;
+        Objects.checkFromIndexSize(inOff, len, in.length);
+        Objects.checkFromIndexSize(outOff, len, out.length);
+        RoundKeys keys = keys();
+        long[] q = STATE.get();
+
+        for (int done = 0; done < blocks; done += PARALLEL_BLOCKS) {
+            int n = Math.min(PARALLEL_BLOCKS, blocks - done);
+            int src = inOff + done * BLOCK_SIZE;
+            int dst = outOff + done * BLOCK_SIZE;
+
+            // Load the blocks, leaving the unused positions of a partial pass at zero
+            for (int i = 0; i < PARALLEL_BLOCKS; i++) {
+                if (i < n) {
+                    int off = src + i * BLOCK_SIZE;
+                    interleaveIn(q, i, (int) INT_VIEW.get(in, off), (int) INT_VIEW.get(in, off + 4),
+                            (int) INT_VIEW.get(in, off + 8), (int) INT_VIEW.get(in, off + 12));
+                } else {
+                    q[i] = 0;
+                    q[i + 4] = 0;
+                }
+            }
+            ortho(q);
+            if (encrypt) {
+                encrypt(keys.rounds(), keys.words(), q);
+            } else {
+                decrypt(keys.rounds(), keys.words(), q);
+            }
+            ortho(q);
+            for (int i = 0; i < n; i++) {
+                interleaveOut(q[i], q[i + 4], out, dst + i * BLOCK_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Encrypts the bitsliced state of four blocks.
+     *
+     * @param rounds the number of rounds
+     * @param sk the bitsliced round keys
+     * @param q the state
+     */
+    private static void encrypt(int rounds, long[] sk, long[] q) {
+        // Initial round
+        addRoundKey(q, sk, 0);
+
+        // Main rounds
+        for (int round = 1; round < rounds; round++) {
+            sbox(q);
+            shiftRows(q);
+            mixColumns(q);
+            addRoundKey(q, sk, round);
+        }
+
+        // Final round
+        sbox(q);
+        shiftRows(q);
+        addRoundKey(q, sk, rounds);
+    }
+
+    /**
+     * Decrypts the bitsliced state of four blocks.
+     *
+     * @param rounds the number of rounds
+     * @param sk the bitsliced round keys
+     * @param q the state
+     */
+    private static void decrypt(int rounds, long[] sk, long[] q) {
+        // Initial round (inverse)
+        addRoundKey(q, sk, rounds);
+
+        for (int round = rounds - 1; round > 0; round--) {
+            invShiftRows(q);
+            invSbox(q);
+            addRoundKey(q, sk, round);
+            invMixColumns(q);
+        }
+
+        // Final round (inverse)
+        invShiftRows(q);
+        invSbox(q);
+        addRoundKey(q, sk, 0);
+    }
+
+    /**
+     * AddRoundKey transformation on the bitsliced state.
+     *
+     * @param q the state
+     * @param sk the bitsliced round keys
+     * @param round the round number
+     */
+    private static void addRoundKey(long[] q, long[] sk, int round) {
+        int k = round << 3;
+        for (int i = 0; i < 8; i++) {
+            q[i] ^= sk[k + i];
+        }
+    }
+
+    /**
+     * ShiftRows transformation: in each word, the 16-bit groups of the rows are rotated by 0 to 3 nibbles.
+     *
+     * @param q the state
+     */
+    private static void shiftRows(long[] q) {
+        for (int i = 0; i < 8; i++) {
+            long x = q[i];
+            q[i] = (x & 0x000000000000FFFFL)
+                    | ((x & 0x00000000FFF00000L) >>> 4)
+                    | ((x & 0x00000000000F0000L) << 12)
+                    | ((x & 0x0000FF0000000000L) >>> 8)
+                    | ((x & 0x000000FF00000000L) << 8)
+                    | ((x & 0xF000000000000000L) >>> 12)
+                    | ((x & 0x0FFF000000000000L) << 4);
+        }
+    }
+
+    /**
+     * InvShiftRows transformation, the inverse rotations of shiftRows.
+     *
+     * @param q the state
+     */
+    private static void invShiftRows(long[] q) {
+        for (int i = 0; i < 8; i++) {
+            long x = q[i];
+            q[i] = (x & 0x000000000000FFFFL)
+                    | ((x & 0x000000000FFF0000L) << 4)
+                    | ((x & 0x00000000F0000000L) >>> 12)
+                    | ((x & 0x000000FF00000000L) << 8)
+                    | ((x & 0x0000FF0000000000L) >>> 8)
+                    | ((x & 0x000F000000000000L) << 12)
+                    | ((x & 0xFFF0000000000000L) >>> 4);
+        }
+    }
+
+    /**
+     * Rotates a word by 32 bits, i.e. by two rows.
+     *
+     * @param x the word
+     * @return the rotated word
+     */
+    private static long rotr32(long x) {
+        return (x << 32) | (x >>> 32);
+    }
+
+    /**
+     * MixColumns transformation: multiplications by x become word moves and the row rotations are 16-bit rotations.
+     *
+     * @param q the state
+     */
+    private static void mixColumns(long[] q) {
+        long q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3], q4 = q[4], q5 = q[5], q6 = q[6], q7 = q[7];
+        long r0 = Long.rotateRight(q0, 16), r1 = Long.rotateRight(q1, 16);
+        long r2 = Long.rotateRight(q2, 16), r3 = Long.rotateRight(q3, 16);
+        long r4 = Long.rotateRight(q4, 16), r5 = Long.rotateRight(q5, 16);
+        long r6 = Long.rotateRight(q6, 16), r7 = Long.rotateRight(q7, 16);
+
+        q[0] = q7 ^ r7 ^ r0 ^ rotr32(q0 ^ r0);
+        q[1] = q0 ^ r0 ^ q7 ^ r7 ^ r1 ^ rotr32(q1 ^ r1);
+        q[2] = q1 ^ r1 ^ r2 ^ rotr32(q2 ^ r2);
+        q[3] = q2 ^ r2 ^ q7 ^ r7 ^ r3 ^ rotr32(q3 ^ r3);
+        q[4] = q3 ^ r3 ^ q7 ^ r7 ^ r4 ^ rotr32(q4 ^ r4);
+        q[5] = q4 ^ r4 ^ r5 ^ rotr32(q5 ^ r5);
+        q[6] = q5 ^ r5 ^ r6 ^ rotr32(q6 ^ r6);
+        q[7] = q6 ^ r6 ^ r7 ^ rotr32(q7 ^ r7);
+    }
+
+    /**
+     * InvMixColumns transformation, with the same word moves and rotations as mixColumns.
+     *
+     * @param q the state
+     */
+    private static void invMixColumns(long[] q) {
+        long q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3], q4 = q[4], q5 = q[5], q6 = q[6], q7 = q[7];
+        long r0 = Long.rotateRight(q0, 16), r1 = Long.rotateRight(q1, 16);
+        long r2 = Long.rotateRight(q2, 16), r3 = Long.rotateRight(q3, 16);
+        long r4 = Long.rotateRight(q4, 16), r5 = Long.rotateRight(q5, 16);
+        long r6 = Long.rotateRight(q6, 16), r7 = Long.rotateRight(q7, 16);
+
+        q[0] = q5 ^ q6 ^ q7 ^ r0 ^ r5 ^ r7 ^ rotr32(q0 ^ q5 ^ q6 ^ r0 ^ r5);
+        q[1] = q0 ^ q5 ^ r0 ^ r1 ^ r5 ^ r6 ^ r7 ^ rotr32(q1 ^ q5 ^ q7 ^ r1 ^ r5 ^ r6);
+        q[2] = q0 ^ q1 ^ q6 ^ r1 ^ r2 ^ r6 ^ r7 ^ rotr32(q0 ^ q2 ^ q6 ^ r2 ^ r6 ^ r7);
+        q[3] = q0 ^ q1 ^ q2 ^ q5 ^ q6 ^ r0 ^ r2 ^ r3 ^ r5
+                ^ rotr32(q0 ^ q1 ^ q3 ^ q5 ^ q6 ^ q7 ^ r0 ^ r3 ^ r5 ^ r7);
+        q[4] = q1 ^ q2 ^ q3 ^ q5 ^ r1 ^ r3 ^ r4 ^ r5 ^ r6 ^ r7
+                ^ rotr32(q1 ^ q2 ^ q4 ^ q5 ^ q7 ^ r1 ^ r4 ^ r5 ^ r6);
+        q[5] = q2 ^ q3 ^ q4 ^ q6 ^ r2 ^ r4 ^ r5 ^ r6 ^ r7
+                ^ rotr32(q2 ^ q3 ^ q5 ^ q6 ^ r2 ^ r5 ^ r6 ^ r7);
+        q[6] = q3 ^ q4 ^ q5 ^ q7 ^ r3 ^ r5 ^ r6 ^ r7 ^ rotr32(q3 ^ q4 ^ q6 ^ q7 ^ r3 ^ r6 ^ r7);
+        q[7] = q4 ^ q5 ^ q6 ^ r4 ^ r6 ^ r7 ^ rotr32(q4 ^ q5 ^ q7 ^ r4 ^ r7);
+    }
+
+    /**
+     * SubBytes transformation as the Boyar-Peralta circuit: a top linear layer, a shared GF(2^4) inversion
+     * and a bottom linear layer, 113 boolean operations for 32 bytes at once. Word 0 holds the low bit.
+     *
+     * @param q the state
+     */
+    private static void sbox(long[] q) {
+        long x0 = q[7], x1 = q[6], x2 = q[5], x3 = q[4];
+        long x4 = q[3], x5 = q[2], x6 = q[1], x7 = q[0];
+
+        // Top linear transformation
+        long y14 = x3 ^ x5;
+        long y13 = x0 ^ x6;
+        long y9 = x0 ^ x3;
+        long y8 = x0 ^ x5;
+        long t0 = x1 ^ x2;
+        long y1 = t0 ^ x7;
+        long y4 = y1 ^ x3;
+        long y12 = y13 ^ y14;
+        long y2 = y1 ^ x0;
+        long y5 = y1 ^ x6;
+        long y3 = y5 ^ y8;
+        long t1 = x4 ^ y12;
+        long y15 = t1 ^ x5;
+        long y20 = t1 ^ x1;
+        long y6 = y15 ^ x7;
+        long y10 = y15 ^ t0;
+        long y11 = y20 ^ y9;
+        long y7 = x7 ^ y11;
+        long y17 = y10 ^ y11;
+        long y19 = y10 ^ y8;
+        long y16 = t0 ^ y11;
+        long y21 = y13 ^ y16;
+        long y18 = x0 ^ y16;
+
+        // Non-linear section
+        long t2 = y12 & y15;
+        long t3 = y3 & y6;
+        long t4 = t3 ^ t2;
+        long t5 = y4 & x7;
+        long t6 = t5 ^ t2;
+        long t7 = y13 & y16;
+        long t8 = y5 & y1;
+        long t9 = t8 ^ t7;
+        long t10 = y2 & y7;
+        long t11 = t10 ^ t7;
+        long t12 = y9 & y11;
+        long t13 = y14 & y17;
+        long t14 = t13 ^ t12;
+        long t15 = y8 & y10;
+        long t16 = t15 ^ t12;
+        long t17 = t4 ^ t14;
+        long t18 = t6 ^ t16;
+        long t19 = t9 ^ t14;
+        long t20 = t11 ^ t16;
+        long t21 = t17 ^ y20;
+        long t22 = t18 ^ y19;
+        long t23 = t19 ^ y21;
+        long t24 = t20 ^ y18;
+
+        long t25 = t21 ^ t22;
+        long t26 = t21 & t23;
+        long t27 = t24 ^ t26;
+        long t28 = t25 & t27;
+        long t29 = t28 ^ t22;
+        long t30 = t23 ^ t24;
+        long t31 = t22 ^ t26;
+        long t32 = t31 & t30;
+        long t33 = t32 ^ t24;
+        long t34 = t23 ^ t33;
+        long t35 = t27 ^ t33;
+        long t36 = t24 & t35;
+        long t37 = t36 ^ t34;
+        long t38 = t27 ^ t36;
+        long t39 = t29 & t38;
+        long t40 = t25 ^ t39;
+
+        long t41 = t40 ^ t37;
+        long t42 = t29 ^ t33;
+        long t43 = t29 ^ t40;
+        long t44 = t33 ^ t37;
+        long t45 = t42 ^ t41;
+        long z0 = t44 & y15;
+        long z1 = t37 & y6;
+        long z2 = t33 & x7;
+        long z3 = t43 & y16;
+        long z4 = t40 & y1;
+        long z5 = t29 & y7;
+        long z6 = t42 & y11;
+        long z7 = t45 & y17;
+        long z8 = t41 & y10;
+        long z9 = t44 & y12;
+        long z10 = t37 & y3;
+        long z11 = t33 & y4;
+        long z12 = t43 & y13;
+        long z13 = t40 & y5;
+        long z14 = t29 & y2;
+        long z15 = t42 & y9;
+        long z16 = t45 & y14;
+        long z17 = t41 & y8;
+
+        // Bottom linear transformation
+        long t46 = z15 ^ z16;
+        long t47 = z10 ^ z11;
+        long t48 = z5 ^ z13;
+        long t49 = z9 ^ z10;
+        long t50 = z2 ^ z12;
+        long t51 = z2 ^ z5;
+        long t52 = z7 ^ z8;
+        long t53 = z0 ^ z3;
+        long t54 = z6 ^ z7;
+        long t55 = z16 ^ z17;
+        long t56 = z12 ^ t48;
+        long t57 = t50 ^ t53;
+        long t58 = z4 ^ t46;
+        long t59 = z3 ^ t54;
+        long t60 = t46 ^ t57;
+        long t61 = z14 ^ t57;
+        long t62 = t52 ^ t58;
+        long t63 = t49 ^ t58;
+        long t64 = z4 ^ t59;
+        long t65 = t61 ^ t62;
+        long t66 = z1 ^ t63;
+        long s0 = t59 ^ t63;
+        long s6 = t56 ^ ~t62;
+        long s7 = t48 ^ ~t60;
+        long t67 = t64 ^ t65;
+        long s3 = t53 ^ t66;
+        long s4 = t51 ^ t66;
+        long s5 = t47 ^ t65;
+        long s1 = t64 ^ ~s3;
+        long s2 = t55 ^ ~t67;
+
+        q[7] = s0;
+        q[6] = s1;
+        q[5] = s2;
+        q[4] = s3;
+        q[3] = s4;
+        q[2] = s5;
+        q[1] = s6;
+        q[0] = s7;
+    }
+
+    /**
+     * InvSubBytes transformation: the inverse S-Box is the S-Box wrapped in the inverse of its affine map,
+     * which is linear on the bitsliced words.
+     *
+     * @param q the state
+     */
+    private static void invSbox(long[] q) {
+        invAffine(q);
+        sbox(q);
+        invAffine(q);
+    }
+
+    /**
+     * Applies the inverse of the affine transformation of the S-Box (with the constant 0x63 folded in as
+     * complemented words), so that invAffine, sbox, invAffine computes the inverse S-Box.
+     *
+     * @param q the state
+     */
+    private static void invAffine(long[] q) {
+        long q0 = ~q[0], q1 = ~q[1], q2 = q[2], q3 = q[3];
+        long q4 = q[4], q5 = ~q[5], q6 = ~q[6], q7 = q[7];
+        q[7] = q1 ^ q4 ^ q6;
+        q[6] = q0 ^ q3 ^ q5;
+        q[5] = q7 ^ q2 ^ q4;
+        q[4] = q6 ^ q1 ^ q3;
+        q[3] = q5 ^ q0 ^ q2;
+        q[2] = q4 ^ q7 ^ q1;
+        q[1] = q3 ^ q6 ^ q0;
+        q[0] = q2 ^ q5 ^ q7;
+    }
+
+    /**
+     * Spreads the four little-endian words of a block over two longs, one byte every 16 bits,
+     * in position {@code i} of the state (words {@code i} and {@code i + 4}).
+     *
+     * @param q the state
+     * @param i the position of the block, 0 to 3
+     * @param w0 the first word of the block
+     * @param w1 the second word of the block
+     * @param w2 the third word of the block
+     * @param w3 the fourth word of the block
+     */
+    private static void interleaveIn(long[] q, int i, int w0, int w1, int w2, int w3) {
+        long x0 = spread(w0 & 0xFFFFFFFFL);
+        long x1 = spread(w1 & 0xFFFFFFFFL);
+        long x2 = spread(w2 & 0xFFFFFFFFL);
+        long x3 = spread(w3 & 0xFFFFFFFFL);
+        q[i] = x0 | (x2 << 8);
+        q[i + 4] = x1 | (x3 << 8);
+    }
+
+    /**
+     * Moves the four bytes of a 32-bit value to the low byte of each 16-bit group.
+     *
+     * @param x the value, in the low 32 bits
+     * @return the spread value
+     */
+    private static long spread(long x) {
+        x |= x << 16;
+        x &= 0x0000FFFF0000FFFFL;
+        x |= x << 8;
+        x &= 0x00FF00FF00FF00FFL;
+        return x;
+    }
+
+    /**
+     * Gathers the bytes spread by spread back into a 32-bit value.
+     *
+     * @param x the spread value
+     * @return the packed value
+     */
+    private static int gather(long x) {
+        x &= 0x00FF00FF00FF00FFL;
+        x |= x >>> 8;
+        x &= 0x0000FFFF0000FFFFL;
+        return (int) x | (int) (x >>> 16);
+    }
+
+    /**
+     * Writes the block held by two longs of the state, the inverse of interleaveIn.
+     *
+     * @param q0 the first long of the block
+     * @param q1 the second long of the block
+     * @param dst the array receiving the block
+     * @param off the offset at which the block is written
+     */
+    private static void interleaveOut(long q0, long q1, byte[] dst, int off) {
+        INT_VIEW.set(dst, off, gather(q0));
+        INT_VIEW.set(dst, off + 4, gather(q1));
+        INT_VIEW.set(dst, off + 8, gather(q0 >>> 8));
+        INT_VIEW.set(dst, off + 12, gather(q1 >>> 8));
+    }
+
+    /**
+     * Transposes the eight words of the state between the interleaved layout and the bitsliced layout,
+     * in which word {@code i} holds bit {@code i} of every byte. The transposition is its own inverse.
+     *
+     * @param q the state
+     */
+    private static void ortho(long[] q) {
+        swap(q, 0, 1, 0x5555555555555555L, 1);
+        swap(q, 2, 3, 0x5555555555555555L, 1);
+        swap(q, 4, 5, 0x5555555555555555L, 1);
+        swap(q, 6, 7, 0x5555555555555555L, 1);
+
+        swap(q, 0, 2, 0x3333333333333333L, 2);
+        swap(q, 1, 3, 0x3333333333333333L, 2);
+        swap(q, 4, 6, 0x3333333333333333L, 2);
+        swap(q, 5, 7, 0x3333333333333333L, 2);
+
+        swap(q, 0, 4, 0x0F0F0F0F0F0F0F0FL, 4);
+        swap(q, 1, 5, 0x0F0F0F0F0F0F0F0FL, 4);
+        swap(q, 2, 6, 0x0F0F0F0F0F0F0F0FL, 4);
+        swap(q, 3, 7, 0x0F0F0F0F0F0F0F0FL, 4);
+    }
+
+    /**
+     * Exchanges the high bits of {@code q[x]} with the low bits of {@code q[y]} within each group of {@code 2s} bits.
+     *
+     * @param q the state
+     * @param x the index of the first word
+     * @param y the index of the second word
+     * @param low the mask of the low bits of each group
+     * @param s the number of bits exchanged per group
+     */
+    private static void swap(long[] q, int x, int y, long low, int s) {
+        long a = q[x];
+        long b = q[y];
+        long high = ~low;
+        q[x] = (a & low) | ((b & low) << s);
+        q[y] = ((a & high) >>> s) | (b & high);
+    }
+}
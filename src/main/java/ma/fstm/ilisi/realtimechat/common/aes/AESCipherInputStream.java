@@ -0,0 +1,218 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * AESCipherInputStream class decrypts a message read from an underlying stream, in the format written by
+ * {@link AESCipherOutputStream} and the AESEncryption methods; the mode is read from the header.
+ * Data goes through fixed-size buffers, so a message of any length is decrypted in constant memory.
+ * Because of that, GCM plaintext is returned before the tag at the end of the message has been checked:
+ * a forged or truncated message is only reported, as an IOException, when the end of the stream is reached,
+ * and the caller must discard what it read so far. Like other streams, an instance is meant to be used
+ * by one thread at a time.
+ */
+public class AESCipherInputStream extends FilterInputStream {
+    /**
+     * Size of the chunks read from the underlying stream at once.
+     */
+    private static final int BUFFER_SIZE = AESEncryption.CHUNK_SIZE;
+
+    /**
+     * The encryption instance holding the key.
+     */
+    private final AESEncryption aes;
+
+    /**
+     * Ciphertext read from the underlying stream.
+     */
+    private final byte[] input = new byte[BUFFER_SIZE];
+
+    /**
+     * Plaintext not yet returned, in {@code output[outputPosition..outputLimit)}.
+     */
+    private final byte[] output = new byte[BUFFER_SIZE + BlockCipher.BLOCK_SIZE];
+    private int outputPosition;
+    private int outputLimit;
+
+    /**
+     * One-byte array backing {@link #read()}.
+     */
+    private final byte[] single = new byte[1];
+
+    /**
+     * The cipher of the message, created once the header has been read.
+     */
+    private IncrementalCipher cipher;
+
+    /**
+     * Whether the message has been completed and checked.
+     */
+    private boolean finished;
+
+    /**
+     * Constructs a stream decrypting the message read from {@code in}.
+     *
+     * @param in the underlying stream holding the ciphertext
+     * @param aes the encryption instance holding the key
+     * @throws IllegalArgumentException if any argument is null
+     */
+    public AESCipherInputStream(InputStream in, AESEncryption aes) {
+        super(in);
+        if (in == null) {
+            throw new IllegalArgumentException("Input stream cannot be null");
+        }
+        if (aes == null) {
+            throw new IllegalArgumentException("Encryption cannot be null");
+        }
+        this.aes = aes;
+    }
+
+    /**
+     * Reads a single decrypted byte.
+     *
+     * @return the byte, or -1 at the end of the message
+     * @throws IOException if the message is invalid or the underlying stream fails
+     */
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    /**
+     * Reads up to {@code len} decrypted bytes.
+     *
+     * @param b the array receiving the data
+     * @param off the offset at which the data is written
+     * @param len the maximum number of bytes to read
+     * @return the number of bytes read, or -1 at the end of the message
+     * @throws IOException if the message is invalid or the underlying stream fails
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, outputLimit - outputPosition);
+        System.arraycopy(output, outputPosition, b, off, n);
+        outputPosition += n;
+        return n;
+    }
+
+    /**
+     * Skips up to {@code n} decrypted bytes. They are decrypted anyway, since the ciphertext is chained.
+     *
+     * @param n the number of bytes to skip
+     * @return the number of bytes skipped
+     * @throws IOException if the message is invalid or the underlying stream fails
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int k = (int) Math.min(n - skipped, outputLimit - outputPosition);
+            outputPosition += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the number of decrypted bytes that can be read without blocking.
+     *
+     * @return the number of buffered plaintext bytes
+     */
+    @Override
+    public int available() {
+        return outputLimit - outputPosition;
+    }
+
+    /**
+     * Mark and reset are not supported.
+     *
+     * @return false
+     */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Does nothing, mark is not supported.
+     *
+     * @param readLimit ignored
+     */
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    /**
+     * Always fails, mark is not supported.
+     *
+     * @throws IOException always
+     */
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Mark/reset not supported");
+    }
+
+    /**
+     * Makes sure some plaintext is buffered, reading and decrypting chunks as needed.
+     *
+     * @return false at the end of the message
+     * @throws IOException if the message is invalid or the underlying stream fails
+     */
+    private boolean fill() throws IOException {
+        while (outputPosition == outputLimit) {
+            if (finished) {
+                return false;
+            }
+            if (cipher == null) {
+                readHeader();
+            }
+            int n = in.read(input, 0, BUFFER_SIZE);
+            outputPosition = 0;
+            try {
+                if (n < 0) {
+                    finished = true;
+                    outputLimit = cipher.doFinal(output, 0);
+                } else {
+                    outputLimit = cipher.update(input, 0, n, output, 0);
+                }
+            } catch (IllegalArgumentException e) {
+                outputLimit = 0;
+                throw new IOException("Invalid encrypted message: " + e.getMessage(), e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the mode id and the IV, and creates the cipher of the message.
+     *
+     * @throws IOException if the header is missing or invalid, or the underlying stream fails
+     */
+    private void readHeader() throws IOException {
+        int id = in.read();
+        if (id < 0) {
+            throw new IOException("Invalid encrypted message: missing header");
+        }
+        CipherMode mode;
+        try {
+            mode = CipherMode.fromId((byte) id);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid encrypted message: " + e.getMessage(), e);
+        }
+        byte[] iv = new byte[mode.getIvLength()];
+        if (in.readNBytes(iv, 0, iv.length) < iv.length) {
+            throw new IOException("Invalid encrypted message: truncated header");
+        }
+        cipher = aes.newDecryptor(mode, iv, 0);
+    }
+}
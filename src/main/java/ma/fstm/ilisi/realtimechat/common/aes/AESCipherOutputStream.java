@@ -0,0 +1,154 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * AESCipherOutputStream class encrypts everything written to it into an underlying stream, in the same
+ * format as {@link AESEncryption#encrypt(byte[], int, int, byte[], int, CipherMode)}: the mode id and a fresh
+ * IV first, then the ciphertext, then the tag for GCM. Data goes through a fixed-size buffer, so a message of
+ * any length is encrypted in constant memory. The message is completed (padding or tag) by {@link #close()}.
+ * Like other streams, an instance is meant to be used by one thread at a time.
+ */
+public class AESCipherOutputStream extends FilterOutputStream {
+    /**
+     * Size of the chunks encrypted at once.
+     */
+    private static final int BUFFER_SIZE = AESEncryption.CHUNK_SIZE;
+
+    /**
+     * The encryption instance holding the key.
+     */
+    private final AESEncryption aes;
+
+    /**
+     * The mode of operation of the message.
+     */
+    private final CipherMode mode;
+
+    /**
+     * Output buffer, with room for a chunk plus one block released from the cipher's pending data.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE + BlockCipher.BLOCK_SIZE];
+
+    /**
+     * One-byte array backing {@link #write(int)}.
+     */
+    private final byte[] single = new byte[1];
+
+    /**
+     * The cipher of the message, created when the header is written.
+     */
+    private IncrementalCipher cipher;
+
+    /**
+     * Whether the stream has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Constructs a stream encrypting in the default mode (GCM).
+     *
+     * @param out the underlying stream receiving the ciphertext
+     * @param aes the encryption instance holding the key
+     */
+    public AESCipherOutputStream(OutputStream out, AESEncryption aes) {
+        this(out, aes, AESEncryption.DEFAULT_MODE);
+    }
+
+    /**
+     * Constructs a stream encrypting in the given mode. The header is written with the first data or on close.
+     *
+     * @param out the underlying stream receiving the ciphertext
+     * @param aes the encryption instance holding the key
+     * @param mode the mode of operation
+     * @throws IllegalArgumentException if any argument is null
+     */
+    public AESCipherOutputStream(OutputStream out, AESEncryption aes, CipherMode mode) {
+        super(out);
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream cannot be null");
+        }
+        if (aes == null) {
+            throw new IllegalArgumentException("Encryption cannot be null");
+        }
+        if (mode == null) {
+            throw new IllegalArgumentException("Cipher mode cannot be null");
+        }
+        this.aes = aes;
+        this.mode = mode;
+    }
+
+    /**
+     * Encrypts a single byte.
+     *
+     * @param b the byte to write
+     * @throws IOException if the stream is closed or the underlying stream fails
+     */
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    /**
+     * Encrypts {@code b[off..off+len)}. Whole blocks are written through, a partial block is kept for later.
+     *
+     * @param b the array holding the data
+     * @param off the offset of the data
+     * @param len the length of the data
+     * @throws IOException if the stream is closed or the underlying stream fails
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        start();
+        while (len > 0) {
+            int n = Math.min(BUFFER_SIZE, len);
+            out.write(buffer, 0, cipher.update(b, off, n, buffer, 0));
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Completes the message with its padding or tag, then closes the underlying stream.
+     *
+     * @throws IOException if the underlying stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            start();
+            out.write(buffer, 0, cipher.doFinal(buffer, 0));
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the header and creates the cipher, the first time data is written.
+     *
+     * @throws IOException if the underlying stream fails
+     */
+    private void start() throws IOException {
+        if (cipher != null) {
+            return;
+        }
+        byte[] header = new byte[mode.getHeaderLength()];
+        header[0] = mode.getId();
+        aes.nextIV(header, 1, mode.getIvLength());
+        out.write(header);
+        cipher = aes.newEncryptor(mode, header, 1);
+    }
+}
@@ -1,46 +1,61 @@
 package ma.fstm.ilisi.realtimechat.common.aes;
 
+import java.util.Objects;
+
 /**
  * AESCore class implements the core functionalities of the AES encryption algorithm.
+ * The key size (AES-128, AES-192 or AES-256) and hence the number of rounds follow the length of the key.
+ * Once keyed, an instance is immutable: the state of each block lives in a thread-confined scratch, so one
+ * instance can serve any number of concurrent encrypt/decrypt calls, and no block allocates.
+ * Batches of at least {@value AESBitsliceCore#PARALLEL_BLOCKS} blocks, such as CTR keystream or CBC-decrypt
+ * ranges, are handed to an {@link AESBitsliceCore} keyed alongside, which processes several blocks per pass.
  */
-public class AESCore {
+public class AESCore implements BlockCipher {
     /**
      * Number of columns (32-bit words) comprising the State. For AES, NB is always 4.
      */
     private static final int NB = 4;
 
     /**
-     * Number of 32-bit words comprising the Cipher Key. For AES-256, NK is 8.
+     * Thread-confined scratch space: the four rows of the state, then a row of temporaries for the transformations.
      */
-    private static final int NK = 8;
+    private static final ThreadLocal<int[][]> SCRATCH = ThreadLocal.withInitial(() -> new int[5][NB]);
 
     /**
-     * Number of rounds, which is a function of NK and NB (which is fixed). For AES-256, NR is 14.
+     * Expanded key matrix generated from the initial key and used in each round of the AES algorithm.
+     * It holds NB * (NR + 1) columns, so its width gives the number of rounds of the key.
+     * It is never modified after publication; keyExpansion replaces it as a whole.
      */
-    private static final int NR = 14;
+    private volatile int[][] expandedKey;
 
     /**
-     * State matrix representing the data to be encrypted/decrypted.
+     * Bitsliced engine keyed with the same key, taking the batches; null until a key is expanded.
      */
-    private int[][] state;
+    private volatile AESBitsliceCore batchCore;
 
     /**
-     * Expanded key matrix generated from the initial key and used in each round of the AES algorithm.
+     * Constructor initializing the expandedKey matrix.
      */
-    private int[][] expandedKey;
+    public AESCore() {
+        expandedKey = new int[4][NB * (KeySize.AES_256.getRounds() + 1)];
+    }
 
     /**
-     * Constructor initializing the state and expandedKey matrices.
+     * Returns the number of rounds of an expanded key.
+     *
+     * @param roundKeys the expanded key matrix
+     * @return the number of rounds (NR)
      */
-    public AESCore() {
-        state = new int[4][NB];
-        expandedKey = new int[4][NB * (NR + 1)];
+    private static int rounds(int[][] roundKeys) {
+        return roundKeys[0].length / NB - 1;
     }
 
     /**
      * SubBytes transformation in AES, which substitutes each byte in the state with its corresponding byte in the S-Box.
+     *
+     * @param state the state matrix
      */
-    private void subBytes() {
+    private static void subBytes(int[][] state) {
         for (int row = 0; row < 4; row++) {
             for (int col = 0; col < NB; col++) {
                 state[row][col] = AESConstants.SBOX[state[row][col] & 0xFF];
@@ -50,8 +65,10 @@ public class AESCore {
 
     /**
      * InvSubBytes transformation in AES, which substitutes each byte in the state with its corresponding byte in the inverse S-Box.
+     *
+     * @param state the state matrix
      */
-    private void invSubBytes() {
+    private static void invSubBytes(int[][] state) {
         for (int row = 0; row < 4; row++) {
             for (int col = 0; col < NB; col++) {
                 state[row][col] = AESConstants.INV_SBOX[state[row][col] & 0xFF];
@@ -61,9 +78,11 @@ public class AESCore {
 
     /**
      * ShiftRows transformation in AES, which shifts the rows of the state to the left.
+     *
+     * @param state the state matrix
+     * @param temp a row of temporaries, overwritten
      */
-    private void shiftRows() {
-        int[] temp = new int[4];
+    private static void shiftRows(int[][] state, int[] temp) {
         for (int row = 1; row < 4; row++) {
             // Copy the row
             System.arraycopy(state[row], 0, temp, 0, 4);
@@ -76,9 +95,11 @@ public class AESCore {
 
     /**
      * InvShiftRows transformation in AES, which shifts the rows of the state to the right.
+     *
+     * @param state the state matrix
+     * @param temp a row of temporaries, overwritten
      */
-    private void invShiftRows() {
-        int[] temp = new int[4];
+    private static void invShiftRows(int[][] state, int[] temp) {
         for (int row = 1; row < 4; row++) {
             // Copy the row
             System.arraycopy(state[row], 0, temp, 0, 4);
@@ -96,7 +117,7 @@ public class AESCore {
      * @param b the second number
      * @return the product of the multiplication
      */
-    private int gmul(int a, int b) {
+    private static int gmul(int a, int b) {
         int p = 0;
         for (int counter = 0; counter < 8; counter++) {
             if ((b & 1) != 0) {
@@ -114,9 +135,11 @@ public class AESCore {
 
     /**
      * MixColumns transformation in AES, which mixes the columns of the state.
+     *
+     * @param state the state matrix
+     * @param temp a row of temporaries, overwritten
      */
-    private void mixColumns() {
-        int[] temp = new int[4];
+    private static void mixColumns(int[][] state, int[] temp) {
         for (int col = 0; col < 4; col++) {
             for (int row = 0; row < 4; row++) {
                 temp[row] = state[row][col];
@@ -130,9 +153,11 @@ public class AESCore {
 
     /**
      * InvMixColumns transformation in AES, which mixes the columns of the state using the inverse mix columns matrix.
+     *
+     * @param state the state matrix
+     * @param temp a row of temporaries, overwritten
      */
-    private void invMixColumns() {
-        int[] temp = new int[4];
+    private static void invMixColumns(int[][] state, int[] temp) {
         for (int col = 0; col < 4; col++) {
             for (int row = 0; row < 4; row++) {
                 temp[row] = state[row][col];
@@ -147,12 +172,14 @@ public class AESCore {
     /**
      * AddRoundKey transformation in AES, which adds (XORs) the round key to the state.
      *
+     * @param state the state matrix
+     * @param roundKeys the expanded key matrix
      * @param round the current round number
      */
-    private void addRoundKey(int round) {
+    private static void addRoundKey(int[][] state, int[][] roundKeys, int round) {
         for (int col = 0; col < NB; col++) {
             for (int row = 0; row < 4; row++) {
-                state[row][col] ^= expandedKey[row][round * NB + col];
+                state[row][col] ^= roundKeys[row][round * NB + col];
             }
         }
     }
@@ -160,27 +187,29 @@ public class AESCore {
     /**
      * Expands the initial key into the round keys for the AES algorithm.
      *
-     * @param key the initial key used for the AES encryption/decryption
+     * @param key the initial key used for the AES encryption/decryption, 16, 24 or 32 bytes long
+     * @throws IllegalArgumentException if the key is null or of an unsupported length
      */
+    @Override
     public void keyExpansion(byte[] key) {
-        // Check if the key is valid
-        if (key == null || key.length != 32) {
-            throw new IllegalArgumentException("Key must be exactly 32 bytes for AES-256");
-        }
+        // Check if the key is valid and derive NK and NR from its length
+        KeySize keySize = KeySize.of(key);
+        int nk = keySize.getKeyWords();
+        int nr = keySize.getRounds();
 
-        int[] w = new int[NB * (NR + 1) * 4];
-        int k = NK * 4;
+        int[] w = new int[NB * (nr + 1) * 4];
+        int k = nk * 4;
 
         // Copy the initial key
         for (int i = 0; i < k; i++) {
             w[i] = key[i] & 0xFF;
         }
 
-        while (k < NB * (NR + 1) * 4) {
-            int[] temp = new int[4];
+        int[] temp = new int[4];
+        while (k < NB * (nr + 1) * 4) {
             System.arraycopy(w, k - 4, temp, 0, 4);
 
-            if (k % (NK * 4) == 0) {
+            if (k % (nk * 4) == 0) {
                 // RotWord
                 int tempByte = temp[0];
                 temp[0] = temp[1];
@@ -194,8 +223,8 @@ public class AESCore {
                 }
 
                 // XOR with Rcon
-                temp[0] ^= AESConstants.RCON[k / (NK * 4) - 1];
-            } else if (NK > 6 && k % (NK * 4) == 16) {
+                temp[0] ^= AESConstants.RCON[k / (nk * 4) - 1];
+            } else if (nk > 6 && k % (nk * 4) == 16) {
                 // Additional SubWord for AES-256
                 for (int i = 0; i < 4; i++) {
                     temp[i] = AESConstants.SBOX[temp[i] & 0xFF];
@@ -203,105 +232,160 @@ public class AESCore {
             }
 
             for (int i = 0; i < 4; i++) {
-                w[k] = w[k - NK * 4] ^ temp[i];
+                w[k] = w[k - nk * 4] ^ temp[i];
                 k++;
             }
         }
 
         // Convert to matrix format for expandedKey
-        for (int i = 0; i < NB * (NR + 1); i++) {
+        int[][] roundKeys = new int[4][NB * (nr + 1)];
+        for (int i = 0; i < NB * (nr + 1); i++) {
             for (int j = 0; j < 4; j++) {
-                expandedKey[j][i] = w[i * 4 + j];
+                roundKeys[j][i] = w[i * 4 + j];
             }
         }
+        AESBitsliceCore batch = new AESBitsliceCore();
+        batch.keyExpansion(key);
+        batchCore = batch;
+        expandedKey = roundKeys;
     }
 
     /**
      * Encrypts a single block of plaintext using the AES algorithm.
+     * The output may overlap the input, which allows in-place operation.
      *
-     * @param input the plaintext block to be encrypted
-     * @return the encrypted block (ciphertext)
+     * @param in the array holding the plaintext block
+     * @param inOff the offset of the block in the input array
+     * @param out the array receiving the encrypted block
+     * @param outOff the offset at which the result is written
+     * @throws IndexOutOfBoundsException if either block does not fit in its array
      */
-    public byte[] encryptBlock(byte[] input) {
-        // Check if the input block is valid
-        if (input == null || input.length != 16) {
-            throw new IllegalArgumentException("Input block must be exactly 16 bytes");
-        }
+    @Override
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        Objects.checkFromIndexSize(inOff, BLOCK_SIZE, in.length);
+        Objects.checkFromIndexSize(outOff, BLOCK_SIZE, out.length);
+        int[][] roundKeys = expandedKey;
+        int nr = rounds(roundKeys);
+        int[][] state = SCRATCH.get();
+        int[] temp = state[4];
+
         // Initialize the state with the input block
         for (int i = 0; i < 4; i++) {
             for (int j = 0; j < 4; j++) {
-                state[j][i] = input[i * 4 + j] & 0xFF;
+                state[j][i] = in[inOff + i * 4 + j] & 0xFF;
             }
         }
 
         // Initial round
-        addRoundKey(0);
+        addRoundKey(state, roundKeys, 0);
 
         // Main rounds
-        for (int round = 1; round < NR; round++) {
-            subBytes();
-            shiftRows();
-            mixColumns();
-            addRoundKey(round);
+        for (int round = 1; round < nr; round++) {
+            subBytes(state);
+            shiftRows(state, temp);
+            mixColumns(state, temp);
+            addRoundKey(state, roundKeys, round);
         }
 
         // Final round
-        subBytes();
-        shiftRows();
-        addRoundKey(NR);
+        subBytes(state);
+        shiftRows(state, temp);
+        addRoundKey(state, roundKeys, nr);
 
         // Convert the state to output
-        byte[] output = new byte[16];
         for (int i = 0; i < 4; i++) {
             for (int j = 0; j < 4; j++) {
-                output[i * 4 + j] = (byte) (state[j][i] & 0xFF);
+                out[outOff + i * 4 + j] = (byte) (state[j][i] & 0xFF);
             }
         }
+    }
 
-        return output;
+    /**
+     * Encrypts consecutive blocks, on the bitsliced engine when there are enough of them to fill a pass.
+     *
+     * @param in the array holding the plaintext blocks
+     * @param inOff the offset of the first block in the input array
+     * @param out the array receiving the encrypted blocks
+     * @param outOff the offset at which the result is written
+     * @param blocks the number of blocks
+     * @throws IndexOutOfBoundsException if either range does not fit in its array
+     */
+    @Override
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        AESBitsliceCore batch = batchCore;
+        if (batch != null && blocks >= AESBitsliceCore.PARALLEL_BLOCKS) {
+            batch.encryptBlocks(in, inOff, out, outOff, blocks);
+        } else {
+            BlockCipher.super.encryptBlocks(in, inOff, out, outOff, blocks);
+        }
     }
 
     /**
-     * Decrypts a single block of ciphertext using the AES algorithm.
+     * Decrypts consecutive blocks, on the bitsliced engine when there are enough of them to fill a pass.
      *
-     * @param input the ciphertext block to be decrypted
-     * @return the decrypted block (plaintext)
+     * @param in the array holding the ciphertext blocks
+     * @param inOff the offset of the first block in the input array
+     * @param out the array receiving the decrypted blocks
+     * @param outOff the offset at which the result is written
+     * @param blocks the number of blocks
+     * @throws IndexOutOfBoundsException if either range does not fit in its array
      */
-    public byte[] decryptBlock(byte[] input) {
-        // Check if the input block is valid
-        if (input == null || input.length != 16) {
-            throw new IllegalArgumentException("Input block must be exactly 16 bytes");
+    @Override
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        AESBitsliceCore batch = batchCore;
+        if (batch != null && blocks >= AESBitsliceCore.PARALLEL_BLOCKS) {
+            batch.decryptBlocks(in, inOff, out, outOff, blocks);
+        } else {
+            BlockCipher.super.decryptBlocks(in, inOff, out, outOff, blocks);
         }
+    }
+
+    /**
+     * Decrypts a single block of ciphertext using the AES algorithm.
+     * The output may overlap the input, which allows in-place operation.
+     *
+     * @param in the array holding the ciphertext block
+     * @param inOff the offset of the block in the input array
+     * @param out the array receiving the decrypted block
+     * @param outOff the offset at which the result is written
+     * @throws IndexOutOfBoundsException if either block does not fit in its array
+     */
+    @Override
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        Objects.checkFromIndexSize(inOff, BLOCK_SIZE, in.length);
+        Objects.checkFromIndexSize(outOff, BLOCK_SIZE, out.length);
+        int[][] roundKeys = expandedKey;
+        int nr = rounds(roundKeys);
+        int[][] state = SCRATCH.get();
+        int[] temp = state[4];
+
         // Initialize the state with the input block
         for (int i = 0; i < 4; i++) {
             for (int j = 0; j < 4; j++) {
-                state[j][i] = input[i * 4 + j] & 0xFF;
+                state[j][i] = in[inOff + i * 4 + j] & 0xFF;
             }
         }
 
         // Initial round (inverse)
-        addRoundKey(NR);
+        addRoundKey(state, roundKeys, nr);
 
-        for (int round = NR - 1; round > 0; round--) {
-            invShiftRows();
-            invSubBytes();
-            addRoundKey(round);
-            invMixColumns();
+        for (int round = nr - 1; round > 0; round--) {
+            invShiftRows(state, temp);
+            invSubBytes(state);
+            addRoundKey(state, roundKeys, round);
+            invMixColumns(state, temp);
         }
 
         // Final round (inverse)
-        invShiftRows();
-        invSubBytes();
-        addRoundKey(0);
+        invShiftRows(state, temp);
+        invSubBytes(state);
+        addRoundKey(state, roundKeys, 0);
 
         // Convert the state to output
-        byte[] output = new byte[16];
         for (int i = 0; i < 4; i++) {
             for (int j = 0; j < 4; j++) {
-                output[i * 4 + j] = (byte) (state[j][i] & 0xFF);
+                out[outOff + i * 4 + j] = (byte) (state[j][i] & 0xFF);
             }
         }
-
-        return output;
     }
 }
\ No newline at end of file
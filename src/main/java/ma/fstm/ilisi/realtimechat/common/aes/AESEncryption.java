@@ -1,45 +1,185 @@
 package ma.fstm.ilisi.realtimechat.common.aes;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * AESEncryption class provides methods for AES-256 encryption and decryption.
+ * AESEncryption class provides methods for AES encryption and decryption with 128, 192 or 256-bit keys.
+ * The key size follows the length of the key, so peers sharing a key always agree on it; generated keys
+ * have the size given by {@link KeySize#getDefault()}, AES-256 unless configured otherwise.
+ * Every ciphertext starts with the id of its CipherMode followed by the IV (or nonce),
+ * so messages encrypted in different modes can be decrypted by the same instance.
+ * Peers that predate modes exchange the unauthenticated legacy layout, a bare IV followed by CBC blocks; it is
+ * only written and read by {@link #encryptLegacy(String)} and {@link #decryptLegacy(String)}, never guessed from
+ * the bytes, so a message with a mode id is always checked in that mode.
+ * IVs come from an IVGenerator owned by the instance, seeded once, so encryption never waits on entropy.
+ * Instances are immutable once constructed and every call works on its own buffers,
+ * so one instance can be shared between threads without locking.
  */
 public class AESEncryption {
     /**
-     * The AESCore instance used for encryption operations.
+     * Mode used when none is given: authenticated, so tampered messages are always rejected.
      */
-    private final AESCore aesCore;
+    public static final CipherMode DEFAULT_MODE = CipherMode.GCM;
+
+    /**
+     * Size of an AES block in bytes.
+     */
+    private static final int BLOCK_SIZE = BlockCipher.BLOCK_SIZE;
+
+    /**
+     * Length of the IV of the legacy layout, which has no mode id in front of it.
+     */
+    private static final int LEGACY_IV_LENGTH = BLOCK_SIZE;
+
+    /**
+     * Shared source of generated keys. SecureRandom is thread-safe, so it is seeded once instead of per key.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Size of the chunks in which direct and read-only buffers are copied through the work buffer.
+     */
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Thread-confined work buffer for buffers without an accessible array: one input chunk, then
+     * room for the output of that chunk plus a held-back or final block.
+     */
+    private static final ThreadLocal<byte[]> WORK_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[2 * CHUNK_SIZE + 2 * BLOCK_SIZE]);
+
+    /**
+     * Data size from which CBC decryption and CTR/GCM keystream generation are split across the fork/join pool.
+     * Below it, the cost of forking outweighs the gain and the mode runs sequentially.
+     */
+    static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    /**
+     * Size of the ranges processed sequentially by a single fork/join task.
+     */
+    static final int PARALLEL_SLICE = 16 * 1024;
+
+    /**
+     * Pool running the parallel CBC decryptions and keystream generations.
+     */
+    static final ForkJoinPool PARALLEL_POOL = ForkJoinPool.commonPool();
+
+    /**
+     * Number of slices per processor a batch is split into when it runs on an executor,
+     * so that slices of unequal cost still keep every thread busy.
+     */
+    static final int BATCH_SLICES_PER_CPU = 4;
+
+    /**
+     * The block cipher engine used for encryption operations.
+     */
+    private final BlockCipher blockCipher;
 
     /**
      * The AES encryption key.
      */
-    private byte[] key;
+    private final byte[] key;
+
+    /**
+     * GCM state derived from the key (hash subkey tables).
+     */
+    private final GCMMode gcm;
 
     /**
-     * Constructor that initializes the AESCore instance and generates the encryption key.
+     * Source of the IVs and nonces of the messages encrypted under the key.
+     */
+    private final IVGenerator ivGenerator;
+
+    /**
+     * The size of the key, which sets the number of rounds.
+     */
+    private final KeySize keySize;
+
+    /**
+     * Constructor that initializes the default block cipher engine and generates the encryption key.
+     * The engine comes from {@link CipherBackend#getDefault()} and the key size from {@link KeySize#getDefault()}.
      */
     public AESEncryption() {
-        this.aesCore = new AESCore();
-        generateKey();
+        this(KeySize.getDefault());
+    }
+
+    /**
+     * Constructor that initializes the default block cipher engine and generates an encryption key of the given size.
+     *
+     * @param keySize the size of the key to generate
+     * @throws IllegalArgumentException if the key size is null
+     */
+    public AESEncryption(KeySize keySize) {
+        this(generateKey(keySize), CipherBackend.getDefault().newCipher());
+    }
+
+    /**
+     * Constructor that initializes the AESEncryption instance with the given block cipher engine
+     * and generates the encryption key.
+     *
+     * @param blockCipher the block cipher engine to use, e.g. AESCore, AESTableCore or JCEBlockCipher
+     * @throws IllegalArgumentException if the block cipher is null
+     */
+    public AESEncryption(BlockCipher blockCipher) {
+        this(generateKey(KeySize.getDefault()), blockCipher);
     }
 
     /**
-     * Constructor that initializes the AESEncryption instance with a provided AES-256 key.
+     * Constructor that initializes the AESEncryption instance with a provided key,
+     * on the engine of the default backend ({@link CipherBackend#getDefault()}).
      *
-     * @param key the AES-256 key to be used for encryption and decryption. Must be exactly 32 bytes.
-     * @throws IllegalArgumentException if the key is null or not exactly 32 bytes.
+     * @param key the AES key to be used for encryption and decryption. Must be 16, 24 or 32 bytes.
+     * @throws IllegalArgumentException if the key is null or not 16, 24 or 32 bytes.
      */
     public AESEncryption(byte[] key) {
-        if (key == null || key.length != 32) {
-            throw new IllegalArgumentException("Key must be exactly 32 bytes for AES-256");
+        this(key, CipherBackend.getDefault().newCipher());
+    }
+
+    /**
+     * Constructor that initializes the AESEncryption instance with a provided key and block cipher engine.
+     * All engines produce the same ciphertext, so instances built on different engines interoperate.
+     *
+     * @param key the AES key to be used for encryption and decryption. Must be 16, 24 or 32 bytes.
+     * @param blockCipher the block cipher engine to use, e.g. AESCore, AESTableCore or JCEBlockCipher
+     * @throws IllegalArgumentException if the key is null or not 16, 24 or 32 bytes, or if the block cipher is null.
+     */
+    public AESEncryption(byte[] key, BlockCipher blockCipher) {
+        this(key, blockCipher, null);
+    }
+
+    /**
+     * Constructor that initializes the AESEncryption instance with a provided key, block cipher engine
+     * and IV generator. The generator is used for this key only; when null, one is created as configured by
+     * the {@value IVGenerator#IV_PROPERTY} system property.
+     *
+     * @param key the AES key to be used for encryption and decryption. Must be 16, 24 or 32 bytes.
+     * @param blockCipher the block cipher engine to use, e.g. AESCore, AESTableCore or JCEBlockCipher
+     * @param ivGenerator the source of IVs and nonces, or null for the configured default
+     * @throws IllegalArgumentException if the key is null or not 16, 24 or 32 bytes, or if the block cipher is null.
+     */
+    public AESEncryption(byte[] key, BlockCipher blockCipher, IVGenerator ivGenerator) {
+        KeySize keySize = KeySize.of(key);
+        if (blockCipher == null) {
+            throw new IllegalArgumentException("Block cipher cannot be null");
         }
-        this.aesCore = new AESCore();
+        this.blockCipher = blockCipher;
+        this.keySize = keySize;
         this.key = key.clone();
-        aesCore.keyExpansion(this.key);
+        blockCipher.keyExpansion(this.key);
+        this.gcm = new GCMMode(blockCipher);
+        this.ivGenerator = ivGenerator != null ? ivGenerator : IVGenerator.newDefault();
     }
 
     /**
@@ -52,61 +192,60 @@ public class AESEncryption {
     }
 
     /**
-     * Generates a random AES-256 key and expands it for use in encryption.
+     * Returns the size of the AES encryption key.
+     *
+     * @return the key size
+     */
+    public KeySize getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * Generates a random AES key of the given size.
+     *
+     * @param keySize the size of the key
+     * @return the generated key
      */
-    private void generateKey() {
-        key = new byte[32]; // AES-256
-        new SecureRandom().nextBytes(key);
-        aesCore.keyExpansion(key);
+    private static byte[] generateKey(KeySize keySize) {
+        if (keySize == null) {
+            throw new IllegalArgumentException("Key size cannot be null");
+        }
+        byte[] key = new byte[keySize.getKeyLength()];
+        RANDOM.nextBytes(key);
+        return key;
     }
 
     /**
-     * Encrypts a message using AES-256 encryption with PKCS7 padding and CBC mode.
+     * Encrypts a message using AES encryption in the default mode (GCM).
      *
      * @param message the plaintext message to be encrypted
      * @return the Base64-encoded ciphertext
      */
     public String encrypt(String message) {
+        return encrypt(message, DEFAULT_MODE);
+    }
+
+    /**
+     * Encrypts a message using AES encryption in the given mode.
+     *
+     * @param message the plaintext message to be encrypted
+     * @param mode the mode of operation: CBC with PKCS7 padding, CTR, or GCM
+     * @return the Base64-encoded ciphertext
+     */
+    public String encrypt(String message, CipherMode mode) {
         if (message == null) {
             throw new IllegalArgumentException("Message cannot be null");
         }
+        if (mode == null) {
+            throw new IllegalArgumentException("Cipher mode cannot be null");
+        }
         try {
             // Convert the message to bytes
             byte[] data = message.getBytes(StandardCharsets.UTF_8);
 
-            // Add PKCS7 padding
-            int blockSize = 16;
-            int padding = blockSize - (data.length % blockSize);
-            byte[] paddedData = new byte[data.length + padding];
-            System.arraycopy(data, 0, paddedData, 0, data.length);
-            Arrays.fill(paddedData, data.length, paddedData.length, (byte) padding);
-
-            // Generate the IV
-            byte[] iv = new byte[16];
-            new SecureRandom().nextBytes(iv);
-
-            // Encrypt in CBC mode
-            byte[] encrypted = new byte[paddedData.length];
-            byte[] previousBlock = iv;
-
-            for (int i = 0; i < paddedData.length; i += 16) {
-                // XOR with the previous block
-                byte[] block = new byte[16];
-                System.arraycopy(paddedData, i, block, 0, 16);
-                for (int j = 0; j < 16; j++) {
-                    block[j] ^= previousBlock[j];
-                }
-
-                // Encrypt the block
-                byte[] encryptedBlock = aesCore.encryptBlock(block);
-                System.arraycopy(encryptedBlock, 0, encrypted, i, 16);
-                previousBlock = encryptedBlock;
-            }
-
-            // Concatenate the IV and the encrypted data
-            byte[] result = new byte[iv.length + encrypted.length];
-            System.arraycopy(iv, 0, result, 0, iv.length);
-            System.arraycopy(encrypted, 0, result, iv.length, encrypted.length);
+            // Encrypt straight into the buffer that gets encoded
+            byte[] result = new byte[getEncryptedLength(data.length, mode)];
+            encrypt(data, 0, data.length, result, 0, mode);
 
             return Base64.getEncoder().encodeToString(result);
 
@@ -116,67 +255,645 @@ public class AESEncryption {
     }
 
     /**
-     * Decrypts a Base64-encoded ciphertext using AES-256 decryption with PKCS7 padding and CBC mode.
+     * Encrypts a message in the legacy layout of peers that predate modes: a 16-byte IV followed by the
+     * CBC ciphertext with PKCS7 padding, without a mode id. It is not authenticated: only use it for those peers.
+     *
+     * @param message the plaintext message to be encrypted
+     * @return the Base64-encoded ciphertext
+     */
+    public String encryptLegacy(String message) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null");
+        }
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[LEGACY_IV_LENGTH + CBCMode.getEncryptedLength(data.length)];
+        nextIV(result, 0, LEGACY_IV_LENGTH);
+        CBCMode.encrypt(blockCipher, data, 0, data.length, result, LEGACY_IV_LENGTH);
+        return Base64.getEncoder().encodeToString(result);
+    }
+
+    /**
+     * Decrypts a Base64-encoded ciphertext in the legacy layout of peers that predate modes, a 16-byte IV
+     * followed by CBC blocks. Every failure, of the encoding, the length or the padding, is reported alike, so
+     * callers cannot tell a bad padding apart.
      *
      * @param encryptedMessage the Base64-encoded ciphertext to be decrypted
      * @return the decrypted plaintext message
+     * @throws IllegalArgumentException if the message is null or invalid
      */
-    public String decrypt(String encryptedMessage) {
+    public String decryptLegacy(String encryptedMessage) {
         if (encryptedMessage == null) {
             throw new IllegalArgumentException("Encrypted message cannot be null");
         }
         try {
-            // Decode Base64
-            byte[] encryptedData = Base64.getDecoder().decode(encryptedMessage);
-
-            // Validate minimum length (IV + at least one block)
-            if (encryptedData.length < 32) { // 16 bytes IV + 16 bytes minimum data
+            byte[] data = Base64.getDecoder().decode(encryptedMessage);
+            if (data.length < LEGACY_IV_LENGTH + BLOCK_SIZE || data.length % BLOCK_SIZE != 0) {
                 throw new IllegalArgumentException("Invalid encrypted data length");
             }
+            int length = CBCMode.decrypt(blockCipher, data, LEGACY_IV_LENGTH, data.length, data, 0, false);
+            return new String(data, 0, length, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid encrypted message");
+        }
+    }
 
-            // Extract the IV
-            byte[] iv = new byte[16];
-            System.arraycopy(encryptedData, 0, iv, 0, 16);
+    /**
+     * Decrypts a Base64-encoded ciphertext produced in any of the supported modes.
+     * GCM messages are authenticated before being decrypted.
+     *
+     * @param encryptedMessage the Base64-encoded ciphertext to be decrypted
+     * @return the decrypted plaintext message
+     */
+    public String decrypt(String encryptedMessage) {
+        if (encryptedMessage == null) {
+            throw new IllegalArgumentException("Encrypted message cannot be null");
+        }
+        // Decode Base64
+        byte[] encryptedData;
+        try {
+            encryptedData = Base64.getDecoder().decode(encryptedMessage);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid Base64 encoding", e);
+        }
+        try {
+            // Small messages are decrypted in place, large ones into a separate buffer so they can go parallel
+            byte[] decrypted = encryptedData.length >= PARALLEL_THRESHOLD
+                    ? new byte[encryptedData.length]
+                    : encryptedData;
+            int length = decrypt(encryptedData, 0, encryptedData.length, decrypted, 0);
 
-            // Extract the encrypted data
-            byte[] encrypted = new byte[encryptedData.length - 16];
-            System.arraycopy(encryptedData, 16, encrypted, 0, encrypted.length);
+            return new String(decrypted, 0, length, StandardCharsets.UTF_8);
 
-            // Validate block size
-            if (encrypted.length % 16 != 0) {
-                throw new IllegalArgumentException("Invalid encrypted data length");
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid encrypted message", e);
+        } catch (Exception e) {
+            throw new RuntimeException("Decryption failed", e);
+        }
+    }
+
+    /**
+     * Encrypts several messages in the default mode (GCM), on the calling thread.
+     *
+     * @param messages the plaintext messages
+     * @return the Base64-encoded ciphertexts, in the order of the messages
+     * @see #encryptAll(Collection, CipherMode, Executor)
+     */
+    public List<String> encryptAll(Collection<String> messages) {
+        return encryptAll(messages, DEFAULT_MODE, null);
+    }
+
+    /**
+     * Encrypts several messages in the given mode, e.g. an announcement to many users or an offline backlog.
+     * The messages of a batch share one Base64 encoder and one ciphertext buffer, sized for the largest message,
+     * and draw their IVs from the generator's per-thread batch. With an executor, the messages are split into
+     * slices run concurrently, each with its own buffer; without one, everything runs on the calling thread.
+     *
+     * @param messages the plaintext messages
+     * @param mode the mode of operation
+     * @param executor the executor running the slices, or null to encrypt on the calling thread
+     * @return the Base64-encoded ciphertexts, in the order of the messages
+     * @throws IllegalArgumentException if the collection, a message or the mode is null
+     */
+    public List<String> encryptAll(Collection<String> messages, CipherMode mode, Executor executor) {
+        if (messages == null) {
+            throw new IllegalArgumentException("Messages cannot be null");
+        }
+        if (mode == null) {
+            throw new IllegalArgumentException("Cipher mode cannot be null");
+        }
+        List<String> list = new ArrayList<>(messages);
+        String[] results = new String[list.size()];
+        runAll(list.size(), executor, (from, to) -> {
+            Base64.Encoder encoder = Base64.getEncoder();
+            byte[] buffer = new byte[0];
+            for (int i = from; i < to; i++) {
+                String message = list.get(i);
+                if (message == null) {
+                    throw new IllegalArgumentException("Message cannot be null");
+                }
+                byte[] data = message.getBytes(StandardCharsets.UTF_8);
+                int length = getEncryptedLength(data.length, mode);
+                if (buffer.length < length) {
+                    buffer = new byte[Math.max(length, 2 * buffer.length)];
+                }
+                encrypt(data, 0, data.length, buffer, 0, mode);
+                ByteBuffer encoded = encoder.encode(ByteBuffer.wrap(buffer, 0, length));
+                results[i] = new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1);
             }
+        });
+        return Arrays.asList(results);
+    }
 
-            // Decrypt in CBC mode
-            byte[] decrypted = new byte[encrypted.length];
-            byte[] previousBlock = iv;
+    /**
+     * Decrypts several Base64-encoded ciphertexts, on the calling thread.
+     *
+     * @param encryptedMessages the Base64-encoded ciphertexts
+     * @return the plaintext messages, in the order of the ciphertexts
+     * @see #decryptAll(Collection, Executor)
+     */
+    public List<String> decryptAll(Collection<String> encryptedMessages) {
+        return decryptAll(encryptedMessages, null);
+    }
 
-            for (int i = 0; i < encrypted.length; i += 16) {
-                byte[] currentBlock = new byte[16];
-                System.arraycopy(encrypted, i, currentBlock, 0, 16);
+    /**
+     * Decrypts several Base64-encoded ciphertexts produced in any of the supported modes, e.g. the history
+     * loaded at startup. Each ciphertext is decoded with a shared decoder and decrypted in place, so the only
+     * allocations per message are the decoded bytes and the resulting String. With an executor, the messages
+     * are split into slices run concurrently; without one, everything runs on the calling thread.
+     *
+     * @param encryptedMessages the Base64-encoded ciphertexts
+     * @param executor the executor running the slices, or null to decrypt on the calling thread
+     * @return the plaintext messages, in the order of the ciphertexts
+     * @throws IllegalArgumentException if the collection or a ciphertext is null, or if a ciphertext is invalid;
+     *                                  the message gives the index of the first failing ciphertext of its slice
+     */
+    public List<String> decryptAll(Collection<String> encryptedMessages, Executor executor) {
+        if (encryptedMessages == null) {
+            throw new IllegalArgumentException("Encrypted messages cannot be null");
+        }
+        List<String> list = new ArrayList<>(encryptedMessages);
+        String[] results = new String[list.size()];
+        runAll(list.size(), executor, (from, to) -> {
+            Base64.Decoder decoder = Base64.getDecoder();
+            for (int i = from; i < to; i++) {
+                String encryptedMessage = list.get(i);
+                if (encryptedMessage == null) {
+                    throw new IllegalArgumentException("Encrypted message cannot be null");
+                }
+                try {
+                    byte[] data = decoder.decode(encryptedMessage);
+                    int length = decrypt(data, 0, data.length, data, 0);
+                    results[i] = new String(data, 0, length, StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid encrypted message at index " + i, e);
+                }
+            }
+        });
+        return Arrays.asList(results);
+    }
 
-                byte[] decryptedBlock = aesCore.decryptBlock(currentBlock);
+    /**
+     * Encrypts messages laid out back to back in {@code src}, starting at {@code off}, message {@code i} being
+     * {@code lengths[i]} bytes long. The ciphertexts are written back to back from {@code dst[dstOff]}, each
+     * {@link #getEncryptedLength(int, CipherMode)} bytes long; nothing is allocated per message.
+     * With an executor, the messages are split into slices run concurrently.
+     *
+     * @param src the array holding the plaintexts
+     * @param off the offset of the first plaintext
+     * @param lengths the length of each plaintext
+     * @param dst the array receiving the ciphertexts, which must not overlap the plaintexts
+     * @param dstOff the offset at which the first ciphertext is written
+     * @param mode the mode of operation
+     * @param executor the executor running the slices, or null to encrypt on the calling thread
+     * @return the number of bytes written to {@code dst}
+     * @throws IllegalArgumentException if a length is negative, the mode is null or the buffers overlap
+     * @throws IndexOutOfBoundsException if the plaintexts or ciphertexts do not fit in their arrays
+     */
+    public int encryptAll(byte[] src, int off, int[] lengths, byte[] dst, int dstOff, CipherMode mode,
+                          Executor executor) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Cipher mode cannot be null");
+        }
+        int count = lengths.length;
+        int[] inputs = new int[count + 1];
+        int[] outputs = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            inputs[i + 1] = Math.addExact(inputs[i], lengths[i]);
+            outputs[i + 1] = Math.addExact(outputs[i], getEncryptedLength(lengths[i], mode));
+        }
+        Objects.checkFromIndexSize(off, inputs[count], src.length);
+        Objects.checkFromIndexSize(dstOff, outputs[count], dst.length);
+        if (overlaps(src, off, inputs[count], dst, dstOff, outputs[count])) {
+            throw new IllegalArgumentException("Ciphertexts must not overlap the plaintexts");
+        }
+        runAll(count, executor, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                encrypt(src, off + inputs[i], lengths[i], dst, dstOff + outputs[i], mode);
+            }
+        });
+        return outputs[count];
+    }
 
-                // XOR with the previous block
-                for (int j = 0; j < 16; j++) {
-                    decryptedBlock[j] ^= previousBlock[j];
+    /**
+     * Decrypts ciphertexts laid out back to back in {@code src}, starting at {@code off}, ciphertext {@code i}
+     * being {@code lengths[i]} bytes long. The plaintext of each message is written where its ciphertext
+     * starts, relative to {@code dstOff}, so {@code dst} mirrors the layout of {@code src} and its length is
+     * stored in {@code plaintextLengths[i]}. The batch can be decrypted in place, with {@code dst == src} and
+     * {@code dstOff == off}; nothing is allocated per message. With an executor, the messages are split into
+     * slices run concurrently.
+     *
+     * @param src the array holding the ciphertexts
+     * @param off the offset of the first ciphertext
+     * @param lengths the length of each ciphertext
+     * @param dst the array receiving the plaintexts
+     * @param dstOff the offset matching {@code off} in the output layout
+     * @param plaintextLengths the array receiving the length of each plaintext, as long as {@code lengths}
+     * @param executor the executor running the slices, or null to decrypt on the calling thread
+     * @return the total length of the plaintexts
+     * @throws IllegalArgumentException if a ciphertext is invalid (the message gives its index), if the arrays
+     *                                  of lengths differ in size, or if the output is shifted within the input
+     * @throws IndexOutOfBoundsException if the ciphertexts or plaintexts do not fit in their arrays
+     */
+    public int decryptAll(byte[] src, int off, int[] lengths, byte[] dst, int dstOff, int[] plaintextLengths,
+                          Executor executor) {
+        int count = lengths.length;
+        if (plaintextLengths.length != count) {
+            throw new IllegalArgumentException("Plaintext lengths must have one entry per ciphertext");
+        }
+        int[] starts = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            if (lengths[i] < 0) {
+                throw new IllegalArgumentException("Length cannot be negative");
+            }
+            starts[i + 1] = Math.addExact(starts[i], lengths[i]);
+        }
+        Objects.checkFromIndexSize(off, starts[count], src.length);
+        Objects.checkFromIndexSize(dstOff, starts[count], dst.length);
+        if (src == dst && dstOff != off && overlaps(src, off, starts[count], dst, dstOff, starts[count])) {
+            throw new IllegalArgumentException("Plaintexts must be written in place or outside the ciphertexts");
+        }
+        runAll(count, executor, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                try {
+                    plaintextLengths[i] = decrypt(src, off + starts[i], lengths[i], dst, dstOff + starts[i]);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid encrypted message at index " + i, e);
                 }
+            }
+        });
+        int total = 0;
+        for (int length : plaintextLengths) {
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Range of the items of a batch, processed by one thread.
+     */
+    @FunctionalInterface
+    private interface BatchSlice {
+        /**
+         * Processes the items {@code from} (inclusive) to {@code to} (exclusive).
+         *
+         * @param from the index of the first item
+         * @param to the index after the last item
+         */
+        void run(int from, int to);
+    }
 
-                System.arraycopy(decryptedBlock, 0, decrypted, i, 16);
-                previousBlock = currentBlock;
+    /**
+     * Runs a batch of {@code count} items: on the calling thread without an executor, otherwise split into
+     * up to {@value #BATCH_SLICES_PER_CPU} slices per processor and run on the executor. Waits for every slice;
+     * the first failure is rethrown once all of them have completed.
+     *
+     * @param count the number of items
+     * @param executor the executor running the slices, or null
+     * @param slice the work on a range of items
+     */
+    private static void runAll(int count, Executor executor, BatchSlice slice) {
+        int slices = Math.min(count, BATCH_SLICES_PER_CPU * Runtime.getRuntime().availableProcessors());
+        if (executor == null || slices <= 1) {
+            slice.run(0, count);
+            return;
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[slices];
+        for (int k = 0; k < slices; k++) {
+            int from = (int) ((long) count * k / slices);
+            int to = (int) ((long) count * (k + 1) / slices);
+            futures[k] = CompletableFuture.runAsync(() -> slice.run(from, to), executor);
+        }
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
             }
+            throw e;
+        }
+    }
 
-            // Remove PKCS7 padding
-            int paddingLength = decrypted[decrypted.length - 1] & 0xFF;
-            byte[] unpaddedData = new byte[decrypted.length - paddingLength];
-            System.arraycopy(decrypted, 0, unpaddedData, 0, unpaddedData.length);
+    /**
+     * Returns the size of the ciphertext produced in the default mode for a plaintext of the given length.
+     *
+     * @param plaintextLength the length of the plaintext in bytes
+     * @return the length of the ciphertext in bytes
+     */
+    public static int getEncryptedLength(int plaintextLength) {
+        return getEncryptedLength(plaintextLength, DEFAULT_MODE);
+    }
 
-            return new String(unpaddedData, StandardCharsets.UTF_8);
+    /**
+     * Returns the size of the ciphertext produced for a plaintext of the given length:
+     * the mode id and the IV, followed by the (padded, for CBC) data and the tag, for GCM.
+     *
+     * @param plaintextLength the length of the plaintext in bytes
+     * @param mode the mode of operation
+     * @return the length of the ciphertext in bytes
+     */
+    public static int getEncryptedLength(int plaintextLength, CipherMode mode) {
+        if (plaintextLength < 0) {
+            throw new IllegalArgumentException("Length cannot be negative");
+        }
+        int dataLength = mode == CipherMode.CBC ? CBCMode.getEncryptedLength(plaintextLength) : plaintextLength;
+        return mode.getHeaderLength() + dataLength + mode.getTagLength();
+    }
 
-        } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException("Invalid Base64 encoding", e);
-        } catch (Exception e) {
-            throw new RuntimeException("Decryption failed", e);
+    /**
+     * Encrypts {@code src[off..off+len)} in the default mode (GCM) into a caller-supplied buffer.
+     *
+     * @param src the array holding the plaintext
+     * @param off the offset of the plaintext
+     * @param len the length of the plaintext
+     * @param dst the array receiving the ciphertext, with room for {@link #getEncryptedLength(int)} bytes
+     * @param dstOff the offset at which the output is written
+     * @return the number of bytes written to {@code dst}
+     * @see #encrypt(byte[], int, int, byte[], int, CipherMode)
+     */
+    public int encrypt(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        return encrypt(src, off, len, dst, dstOff, DEFAULT_MODE);
+    }
+
+    /**
+     * Encrypts {@code src[off..off+len)} in the given mode into a caller-supplied buffer.
+     * The mode id and the IV are written at {@code dst[dstOff]}, followed by the ciphertext; nothing is allocated.
+     * The buffers may be the same array as long as the output starts at least one header ahead of the input
+     * ({@code dstOff + mode.getHeaderLength() <= off}), e.g. with a headroom reserved in front of the plaintext.
+     * Large CTR and GCM inputs written to a separate buffer get their keystream generated in parallel.
+     *
+     * @param src the array holding the plaintext
+     * @param off the offset of the plaintext
+     * @param len the length of the plaintext
+     * @param dst the array receiving the ciphertext, with room for {@link #getEncryptedLength(int, CipherMode)} bytes
+     * @param dstOff the offset at which the output is written
+     * @param mode the mode of operation
+     * @return the number of bytes written to {@code dst}
+     * @throws IllegalArgumentException if the output would overwrite plaintext that has not been read yet
+     * @throws IndexOutOfBoundsException if either range does not fit in its array
+     */
+    public int encrypt(byte[] src, int off, int len, byte[] dst, int dstOff, CipherMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Cipher mode cannot be null");
+        }
+        int outputLength = getEncryptedLength(len, mode);
+        int header = mode.getHeaderLength();
+        Objects.checkFromIndexSize(off, len, src.length);
+        Objects.checkFromIndexSize(dstOff, outputLength, dst.length);
+        if (src == dst && dstOff + header > off && dstOff < off + len) {
+            throw new IllegalArgumentException("Output must start at least " + header + " bytes before the input");
         }
+        boolean parallel = !overlaps(src, off, len, dst, dstOff, outputLength);
+
+        // Write the header: mode id and a fresh IV
+        dst[dstOff] = mode.getId();
+        nextIV(dst, dstOff + 1, mode.getIvLength());
+
+        int ivOff = dstOff + 1;
+        int out = dstOff + header;
+        return header + switch (mode) {
+            case CBC -> CBCMode.encrypt(blockCipher, src, off, len, dst, out);
+            case CTR -> {
+                CTRMode.crypt(blockCipher, dst, ivOff, src, off, len, dst, out, parallel);
+                yield len;
+            }
+            case GCM -> gcm.encrypt(dst, ivOff, src, off, len, dst, out, parallel);
+        };
+    }
+
+    /**
+     * Decrypts a ciphertext {@code src[off..off+len)} produced in any supported mode into a caller-supplied
+     * buffer; nothing is allocated. The mode is read from the first byte. GCM messages are authenticated
+     * before any decryption work, and CBC padding is stripped.
+     * Decryption can run in place: with {@code dst == src} and {@code dstOff == off}, the plaintext
+     * ends up at the start of the ciphertext buffer. Ciphertexts of at least 64 KiB written to a
+     * non-overlapping buffer are decrypted in parallel on the common fork/join pool.
+     *
+     * @param src the array holding the ciphertext
+     * @param off the offset of the ciphertext
+     * @param len the length of the ciphertext
+     * @param dst the array receiving the plaintext, with room for {@code len} bytes
+     * @param dstOff the offset at which the plaintext is written
+     * @return the length of the plaintext
+     * @throws IllegalArgumentException if the mode, the length, the padding or the tag is invalid, or if the
+     *                                  output would overwrite ciphertext that has not been read yet
+     * @throws IndexOutOfBoundsException if either range does not fit in its array
+     */
+    public int decrypt(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        Objects.checkFromIndexSize(off, len, src.length);
+        if (len < 1) {
+            throw new IllegalArgumentException("Invalid encrypted data length");
+        }
+        CipherMode mode = CipherMode.fromId(src[off]);
+        int header = mode.getHeaderLength();
+        int dataLength = len - header;
+
+        // Validate minimum length (at least one block for CBC, the tag for GCM) and block size
+        int minimum = mode == CipherMode.CBC ? BLOCK_SIZE : mode.getTagLength();
+        if (dataLength < minimum || (mode == CipherMode.CBC && dataLength % BLOCK_SIZE != 0)) {
+            throw new IllegalArgumentException("Invalid encrypted data length");
+        }
+        Objects.checkFromIndexSize(dstOff, dataLength - mode.getTagLength(), dst.length);
+        if (src == dst && dstOff > off + header && dstOff < off + len) {
+            throw new IllegalArgumentException("Output must not start after the ciphertext");
+        }
+        boolean parallel = !overlaps(src, off, len, dst, dstOff, dataLength);
+
+        int ivOff = off + 1;
+        int in = off + header;
+        return switch (mode) {
+            case CBC -> CBCMode.decrypt(blockCipher, src, in, off + len, dst, dstOff, parallel);
+            case CTR -> {
+                CTRMode.crypt(blockCipher, src, ivOff, src, in, dataLength, dst, dstOff, parallel);
+                yield dataLength;
+            }
+            case GCM -> gcm.decrypt(src, ivOff, src, in, dataLength, dst, dstOff, parallel);
+        };
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code src} in the default mode (GCM) into {@code dst}.
+     *
+     * @param src the buffer holding the plaintext
+     * @param dst the buffer receiving the ciphertext
+     * @return the number of bytes written to {@code dst}
+     * @see #encrypt(ByteBuffer, ByteBuffer, CipherMode)
+     */
+    public int encrypt(ByteBuffer src, ByteBuffer dst) {
+        return encrypt(src, dst, DEFAULT_MODE);
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code src} in the given mode into {@code dst}, in the same format as
+     * the array methods. Buffers backed by arrays are processed in place through the array API; direct and
+     * read-only buffers are copied through a fixed-size thread-local work buffer, so nothing proportional
+     * to the message is allocated. On success both positions are advanced past the bytes read and written.
+     *
+     * @param src the buffer holding the plaintext
+     * @param dst the buffer receiving the ciphertext, with {@link #getEncryptedLength(int, CipherMode)} bytes remaining
+     * @param mode the mode of operation
+     * @return the number of bytes written to {@code dst}
+     * @throws IllegalArgumentException if {@code dst} is too small or the buffers overlap in an unsupported way
+     */
+    public int encrypt(ByteBuffer src, ByteBuffer dst, CipherMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Cipher mode cannot be null");
+        }
+        int len = src.remaining();
+        int outputLength = getEncryptedLength(len, mode);
+        if (dst.remaining() < outputLength) {
+            throw new IllegalArgumentException("Output buffer too small");
+        }
+        if (src.hasArray() && dst.hasArray()) {
+            int written = encrypt(src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position(), mode);
+            src.position(src.limit());
+            dst.position(dst.position() + written);
+            return written;
+        }
+
+        // Write the header: mode id and a fresh IV
+        byte[] work = WORK_BUFFER.get();
+        nextIV(work, 0, mode.getIvLength());
+        dst.put(mode.getId());
+        dst.put(work, 0, mode.getIvLength());
+        IncrementalCipher cipher = newEncryptor(mode, work, 0);
+        transfer(cipher, src, dst, work);
+        return outputLength;
+    }
+
+    /**
+     * Decrypts a ciphertext produced in any supported mode, made of the remaining bytes of {@code src},
+     * into {@code dst}. Buffers backed by arrays are processed through the array API; direct and read-only
+     * buffers are copied through a fixed-size thread-local work buffer. GCM messages are authenticated in a
+     * first pass over the buffer before anything is decrypted. On success both positions are advanced;
+     * on failure they are left where they were, although {@code dst} may hold partial output.
+     *
+     * @param src the buffer holding the ciphertext
+     * @param dst the buffer receiving the plaintext, with as many bytes remaining as the ciphertext data
+     * @return the length of the plaintext
+     * @throws IllegalArgumentException if the mode, the length, the padding or the tag is invalid,
+     *                                  or if {@code dst} is too small
+     */
+    public int decrypt(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        if (len < 1) {
+            throw new IllegalArgumentException("Invalid encrypted data length");
+        }
+        CipherMode mode = CipherMode.fromId(src.get(src.position()));
+        int dataLength = len - mode.getHeaderLength();
+        if (dst.remaining() < dataLength - mode.getTagLength()) {
+            throw new IllegalArgumentException("Output buffer too small");
+        }
+        if (src.hasArray() && dst.hasArray()) {
+            int length = decrypt(src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + length);
+            return length;
+        }
+
+        int minimum = mode == CipherMode.CBC ? BLOCK_SIZE : mode.getTagLength();
+        if (dataLength < minimum || (mode == CipherMode.CBC && dataLength % BLOCK_SIZE != 0)) {
+            throw new IllegalArgumentException("Invalid encrypted data length");
+        }
+        int srcStart = src.position();
+        int dstStart = dst.position();
+        try {
+            byte[] work = WORK_BUFFER.get();
+            src.get();
+            src.get(work, 0, mode.getIvLength());
+            IncrementalCipher cipher;
+            if (mode == CipherMode.GCM) {
+                // Authenticate first, then decrypt the data alone with the keystream from counter 2
+                byte[] counter = new byte[BLOCK_SIZE];
+                System.arraycopy(work, 0, counter, 0, GCMMode.NONCE_SIZE);
+                CTRMode.putInt(counter, GCMMode.NONCE_SIZE, 2);
+                gcm.verify(counter, 0, src, work);
+                cipher = IncrementalCipher.keystream(blockCipher, counter, 0);
+                src.limit(src.limit() - GCMMode.TAG_SIZE);
+                try {
+                    transfer(cipher, src, dst, work);
+                } finally {
+                    src.limit(src.limit() + GCMMode.TAG_SIZE);
+                }
+                src.position(src.limit());
+            } else {
+                cipher = newDecryptor(mode, work, 0);
+                transfer(cipher, src, dst, work);
+            }
+            return dst.position() - dstStart;
+        } catch (RuntimeException e) {
+            src.position(srcStart);
+            dst.position(dstStart);
+            throw e;
+        }
+    }
+
+    /**
+     * Feeds the remaining bytes of {@code src} through an incremental cipher into {@code dst}, one chunk
+     * of the work buffer at a time, and completes the message.
+     *
+     * @param cipher the incremental cipher
+     * @param src the buffer holding the input
+     * @param dst the buffer receiving the output
+     * @param work the work buffer
+     */
+    private static void transfer(IncrementalCipher cipher, ByteBuffer src, ByteBuffer dst, byte[] work) {
+        while (src.hasRemaining()) {
+            int n = Math.min(CHUNK_SIZE, src.remaining());
+            src.get(work, 0, n);
+            dst.put(work, CHUNK_SIZE, cipher.update(work, 0, n, work, CHUNK_SIZE));
+        }
+        dst.put(work, CHUNK_SIZE, cipher.doFinal(work, CHUNK_SIZE));
+    }
+
+    /**
+     * Creates an incremental encryptor for one message under this key, for the streaming classes.
+     *
+     * @param mode the mode of operation
+     * @param iv the array holding the IV (or nonce) of the message
+     * @param ivOff the offset of the IV
+     * @return the encryptor
+     */
+    IncrementalCipher newEncryptor(CipherMode mode, byte[] iv, int ivOff) {
+        return IncrementalCipher.encryptor(blockCipher, gcm.getGHash(), mode, iv, ivOff);
+    }
+
+    /**
+     * Creates an incremental decryptor for one message under this key, for the streaming classes.
+     *
+     * @param mode the mode of operation
+     * @param iv the array holding the IV (or nonce) of the message
+     * @param ivOff the offset of the IV
+     * @return the decryptor
+     */
+    IncrementalCipher newDecryptor(CipherMode mode, byte[] iv, int ivOff) {
+        return IncrementalCipher.decryptor(blockCipher, gcm.getGHash(), mode, iv, ivOff);
+    }
+
+    /**
+     * Writes a fresh IV (or nonce) of the given length from the generator of this key.
+     *
+     * @param dst the array receiving the IV
+     * @param off the offset at which the IV is written
+     * @param len the length of the IV
+     */
+    void nextIV(byte[] dst, int off, int len) {
+        ivGenerator.nextIV(dst, off, len);
+    }
+
+    /**
+     * Checks whether two array ranges share at least one byte.
+     *
+     * @param a the first array
+     * @param aOff the offset of the first range
+     * @param aLen the length of the first range
+     * @param b the second array
+     * @param bOff the offset of the second range
+     * @param bLen the length of the second range
+     * @return true if both ranges are in the same array and overlap
+     */
+    private static boolean overlaps(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        return a == b && aOff < bOff + bLen && bOff < aOff + aLen;
     }
-}
\ No newline at end of file
+}
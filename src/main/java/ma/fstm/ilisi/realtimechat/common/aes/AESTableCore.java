@@ -0,0 +1,317 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Objects;
+
+/**
+ * AESTableCore class implements AES with precomputed 32-bit round tables (T-tables).
+ * Each column of the state is packed into an int, so a full round is sixteen table lookups and XORs
+ * instead of the byte-by-byte SubBytes, ShiftRows and MixColumns steps performed by AESCore.
+ * It produces exactly the same output as AESCore for the same key, for AES-128, AES-192 and AES-256 keys.
+ * The round keys are immutable once published and the state lives in locals, so one keyed instance
+ * can be shared by any number of threads.
+ */
+public class AESTableCore implements BlockCipher {
+    /**
+     * Number of columns (32-bit words) comprising the State. For AES, NB is always 4.
+     */
+    private static final int NB = 4;
+
+    /**
+     * Encryption tables combining SubBytes and MixColumns, one per byte position of a column.
+     */
+    private static final int[] TE0 = new int[256];
+    private static final int[] TE1 = new int[256];
+    private static final int[] TE2 = new int[256];
+    private static final int[] TE3 = new int[256];
+
+    /**
+     * Decryption tables combining InvSubBytes and InvMixColumns, one per byte position of a column.
+     */
+    private static final int[] TD0 = new int[256];
+    private static final int[] TD1 = new int[256];
+    private static final int[] TD2 = new int[256];
+    private static final int[] TD3 = new int[256];
+
+    /**
+     * Big-endian int view of byte arrays, so a state column is packed with one 32-bit load or store
+     * instead of four byte accesses.
+     */
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * S-Box and inverse S-Box as byte-wide int tables for the final rounds and the key schedule.
+     */
+    private static final int[] SBOX = AESConstants.SBOX;
+    private static final int[] INV_SBOX = AESConstants.INV_SBOX;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int s = SBOX[i];
+            int te = (xtime(s) << 24) | (s << 16) | (s << 8) | (xtime(s) ^ s);
+            TE0[i] = te;
+            TE1[i] = Integer.rotateRight(te, 8);
+            TE2[i] = Integer.rotateRight(te, 16);
+            TE3[i] = Integer.rotateRight(te, 24);
+
+            int is = INV_SBOX[i];
+            int td = (mul(is, 0x0E) << 24) | (mul(is, 0x09) << 16) | (mul(is, 0x0D) << 8) | mul(is, 0x0B);
+            TD0[i] = td;
+            TD1[i] = Integer.rotateRight(td, 8);
+            TD2[i] = Integer.rotateRight(td, 16);
+            TD3[i] = Integer.rotateRight(td, 24);
+        }
+    }
+
+    /**
+     * Immutable pair of round key schedules, published together so that a concurrent keyExpansion
+     * can never mix the encryption keys of one key with the decryption keys of another.
+     *
+     * @param rounds the number of rounds of the key (NR)
+     * @param encryption round keys for encryption, one int per column, in round order
+     * @param decryption round keys for decryption (equivalent inverse cipher): reversed round order with
+     *                   InvMixColumns applied to every round key except the first and the last
+     */
+    private record RoundKeys(int rounds, int[] encryption, int[] decryption) {
+    }
+
+    /**
+     * Round keys of the current key.
+     */
+    private volatile RoundKeys roundKeys;
+
+    /**
+     * Returns the round keys of the current key.
+     *
+     * @return the round keys
+     * @throws IllegalStateException if no key has been expanded yet
+     */
+    private RoundKeys keys() {
+        RoundKeys keys = roundKeys;
+        if (keys == null) {
+            throw new IllegalStateException("Key must be expanded before encrypting or decrypting");
+        }
+        return keys;
+    }
+
+    /**
+     * Multiplies a number by x (i.e. {02}) in the Galois Field (2^8).
+     *
+     * @param a the number to multiply
+     * @return the product of the multiplication
+     */
+    private static int xtime(int a) {
+        a <<= 1;
+        return ((a & 0x100) != 0 ? a ^ 0x11B : a) & 0xFF;
+    }
+
+    /**
+     * Multiplies two numbers in the Galois Field (2^8). Only used to build the tables.
+     *
+     * @param a the first number
+     * @param b the second number
+     * @return the product of the multiplication
+     */
+    private static int mul(int a, int b) {
+        int p = 0;
+        while (b != 0) {
+            if ((b & 1) != 0) {
+                p ^= a;
+            }
+            a = xtime(a);
+            b >>= 1;
+        }
+        return p;
+    }
+
+    /**
+     * Applies the S-Box to each byte of a word.
+     *
+     * @param word the word to substitute
+     * @return the substituted word
+     */
+    private static int subWord(int word) {
+        return (SBOX[word >>> 24] << 24)
+                | (SBOX[(word >>> 16) & 0xFF] << 16)
+                | (SBOX[(word >>> 8) & 0xFF] << 8)
+                | SBOX[word & 0xFF];
+    }
+
+    /**
+     * Expands the initial key into the encryption and decryption round keys.
+     *
+     * @param key the initial key used for the AES encryption/decryption, 16, 24 or 32 bytes long
+     * @throws IllegalArgumentException if the key is null or of an unsupported length
+     */
+    @Override
+    public void keyExpansion(byte[] key) {
+        // Check if the key is valid and derive NK and NR from its length
+        KeySize keySize = KeySize.of(key);
+        int nk = keySize.getKeyWords();
+        int nr = keySize.getRounds();
+
+        int total = NB * (nr + 1);
+        int[] w = new int[total];
+        for (int i = 0; i < nk; i++) {
+            w[i] = getInt(key, i * 4);
+        }
+        for (int i = nk; i < total; i++) {
+            int temp = w[i - 1];
+            if (i % nk == 0) {
+                // RotWord, SubWord and XOR with Rcon
+                temp = subWord(Integer.rotateLeft(temp, 8)) ^ (AESConstants.RCON[i / nk - 1] << 24);
+            } else if (nk > 6 && i % nk == 4) {
+                // Additional SubWord for AES-256
+                temp = subWord(temp);
+            }
+            w[i] = w[i - nk] ^ temp;
+        }
+
+        // Inverse key schedule: reverse the rounds and apply InvMixColumns to the inner round keys
+        int[] dw = new int[total];
+        for (int round = 0; round <= nr; round++) {
+            for (int col = 0; col < NB; col++) {
+                int rk = w[(nr - round) * NB + col];
+                if (round > 0 && round < nr) {
+                    rk = TD0[SBOX[rk >>> 24]]
+                            ^ TD1[SBOX[(rk >>> 16) & 0xFF]]
+                            ^ TD2[SBOX[(rk >>> 8) & 0xFF]]
+                            ^ TD3[SBOX[rk & 0xFF]];
+                }
+                dw[round * NB + col] = rk;
+            }
+        }
+
+        this.roundKeys = new RoundKeys(nr, w, dw);
+    }
+
+    /**
+     * Encrypts a single block of plaintext using the AES algorithm.
+     * The output may overlap the input, which allows in-place operation.
+     *
+     * @param in the array holding the plaintext block
+     * @param inOff the offset of the block in the input array
+     * @param out the array receiving the encrypted block
+     * @param outOff the offset at which the result is written
+     * @throws IndexOutOfBoundsException if either block does not fit in its array
+     */
+    @Override
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        Objects.checkFromIndexSize(inOff, BLOCK_SIZE, in.length);
+        Objects.checkFromIndexSize(outOff, BLOCK_SIZE, out.length);
+        RoundKeys keys = keys();
+        int[] rk = keys.encryption();
+        int nr = keys.rounds();
+
+        // Initial round
+        int s0 = getInt(in, inOff) ^ rk[0];
+        int s1 = getInt(in, inOff + 4) ^ rk[1];
+        int s2 = getInt(in, inOff + 8) ^ rk[2];
+        int s3 = getInt(in, inOff + 12) ^ rk[3];
+
+        // Main rounds
+        int k = 4;
+        for (int round = 1; round < nr; round++) {
+            int t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xFF] ^ TE2[(s2 >>> 8) & 0xFF] ^ TE3[s3 & 0xFF] ^ rk[k];
+            int t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xFF] ^ TE2[(s3 >>> 8) & 0xFF] ^ TE3[s0 & 0xFF] ^ rk[k + 1];
+            int t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xFF] ^ TE2[(s0 >>> 8) & 0xFF] ^ TE3[s1 & 0xFF] ^ rk[k + 2];
+            int t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xFF] ^ TE2[(s1 >>> 8) & 0xFF] ^ TE3[s2 & 0xFF] ^ rk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+            k += 4;
+        }
+
+        // Final round (no MixColumns)
+        putInt(out, outOff, finalRound(SBOX, s0, s1, s2, s3) ^ rk[k]);
+        putInt(out, outOff + 4, finalRound(SBOX, s1, s2, s3, s0) ^ rk[k + 1]);
+        putInt(out, outOff + 8, finalRound(SBOX, s2, s3, s0, s1) ^ rk[k + 2]);
+        putInt(out, outOff + 12, finalRound(SBOX, s3, s0, s1, s2) ^ rk[k + 3]);
+    }
+
+    /**
+     * Decrypts a single block of ciphertext using the AES algorithm.
+     * The output may overlap the input, which allows in-place operation.
+     *
+     * @param in the array holding the ciphertext block
+     * @param inOff the offset of the block in the input array
+     * @param out the array receiving the decrypted block
+     * @param outOff the offset at which the result is written
+     * @throws IndexOutOfBoundsException if either block does not fit in its array
+     */
+    @Override
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        Objects.checkFromIndexSize(inOff, BLOCK_SIZE, in.length);
+        Objects.checkFromIndexSize(outOff, BLOCK_SIZE, out.length);
+        RoundKeys keys = keys();
+        int[] rk = keys.decryption();
+        int nr = keys.rounds();
+
+        // Initial round (inverse)
+        int s0 = getInt(in, inOff) ^ rk[0];
+        int s1 = getInt(in, inOff + 4) ^ rk[1];
+        int s2 = getInt(in, inOff + 8) ^ rk[2];
+        int s3 = getInt(in, inOff + 12) ^ rk[3];
+
+        int k = 4;
+        for (int round = 1; round < nr; round++) {
+            int t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xFF] ^ TD2[(s2 >>> 8) & 0xFF] ^ TD3[s1 & 0xFF] ^ rk[k];
+            int t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xFF] ^ TD2[(s3 >>> 8) & 0xFF] ^ TD3[s2 & 0xFF] ^ rk[k + 1];
+            int t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xFF] ^ TD2[(s0 >>> 8) & 0xFF] ^ TD3[s3 & 0xFF] ^ rk[k + 2];
+            int t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xFF] ^ TD2[(s1 >>> 8) & 0xFF] ^ TD3[s0 & 0xFF] ^ rk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+            k += 4;
+        }
+
+        // Final round (inverse, no InvMixColumns)
+        putInt(out, outOff, finalRound(INV_SBOX, s0, s3, s2, s1) ^ rk[k]);
+        putInt(out, outOff + 4, finalRound(INV_SBOX, s1, s0, s3, s2) ^ rk[k + 1]);
+        putInt(out, outOff + 8, finalRound(INV_SBOX, s2, s1, s0, s3) ^ rk[k + 2]);
+        putInt(out, outOff + 12, finalRound(INV_SBOX, s3, s2, s1, s0) ^ rk[k + 3]);
+    }
+
+    /**
+     * Computes one output column of the final round by substituting one byte from each of the given columns.
+     *
+     * @param box the S-Box (or inverse S-Box) to use
+     * @param a the column supplying the first byte
+     * @param b the column supplying the second byte
+     * @param c the column supplying the third byte
+     * @param d the column supplying the fourth byte
+     * @return the substituted column, before the last AddRoundKey
+     */
+    private static int finalRound(int[] box, int a, int b, int c, int d) {
+        return (box[a >>> 24] << 24)
+                | (box[(b >>> 16) & 0xFF] << 16)
+                | (box[(c >>> 8) & 0xFF] << 8)
+                | box[d & 0xFF];
+    }
+
+    /**
+     * Reads a big-endian int from a byte array.
+     *
+     * @param src the source array
+     * @param offset the offset of the first byte
+     * @return the packed int
+     */
+    private static int getInt(byte[] src, int offset) {
+        return (int) INT_VIEW.get(src, offset);
+    }
+
+    /**
+     * Writes an int to a byte array in big-endian order.
+     *
+     * @param dst the destination array
+     * @param offset the offset of the first byte
+     * @param value the value to write
+     */
+    private static void putInt(byte[] dst, int offset, int value) {
+        INT_VIEW.set(dst, offset, value);
+    }
+}
@@ -0,0 +1,114 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+/**
+ * BlockCipher interface represents an AES engine operating on single 16-byte blocks.
+ * It is the backend SPI of the package: implementations (see CipherBackend) can be swapped behind
+ * AESEncryption without changing the produced ciphertext.
+ * Once keyed, implementations keep no per-operation state in fields, so a single instance is safe
+ * to use from several threads at once.
+ */
+public interface BlockCipher {
+    /**
+     * Size of an AES block in bytes.
+     */
+    int BLOCK_SIZE = 16;
+
+    /**
+     * Expands the initial key into the round keys used by this engine.
+     *
+     * @param key the initial key used for the AES encryption/decryption
+     */
+    void keyExpansion(byte[] key);
+
+    /**
+     * Encrypts the block at {@code in[inOff]} into {@code out[outOff]} without allocating.
+     * The output may overlap the input, which allows in-place operation.
+     *
+     * @param in the array holding the plaintext block
+     * @param inOff the offset of the block in the input array
+     * @param out the array receiving the encrypted block
+     * @param outOff the offset at which the result is written
+     * @throws IndexOutOfBoundsException if either block does not fit in its array
+     */
+    void encryptBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+    /**
+     * Decrypts the block at {@code in[inOff]} into {@code out[outOff]} without allocating.
+     * The output may overlap the input, which allows in-place operation.
+     *
+     * @param in the array holding the ciphertext block
+     * @param inOff the offset of the block in the input array
+     * @param out the array receiving the decrypted block
+     * @param outOff the offset at which the result is written
+     * @throws IndexOutOfBoundsException if either block does not fit in its array
+     */
+    void decryptBlock(byte[] in, int inOff, byte[] out, int outOff);
+
+    /**
+     * Encrypts {@code blocks} consecutive blocks from {@code in[inOff]} into {@code out[outOff]}.
+     * Engines that gain from seeing several blocks at once (e.g. hardware pipelines) override it;
+     * the default encrypts one block at a time. The output must either start at the input or not overlap it.
+     *
+     * @param in the array holding the plaintext blocks
+     * @param inOff the offset of the first block in the input array
+     * @param out the array receiving the encrypted blocks
+     * @param outOff the offset at which the result is written
+     * @param blocks the number of blocks
+     * @throws IndexOutOfBoundsException if either range does not fit in its array
+     */
+    default void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        for (int i = 0; i < blocks; i++) {
+            encryptBlock(in, inOff + i * BLOCK_SIZE, out, outOff + i * BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Decrypts {@code blocks} consecutive blocks from {@code in[inOff]} into {@code out[outOff]}.
+     * Engines that gain from seeing several blocks at once (e.g. hardware pipelines) override it;
+     * the default decrypts one block at a time. The output must either start at the input or not overlap it.
+     *
+     * @param in the array holding the ciphertext blocks
+     * @param inOff the offset of the first block in the input array
+     * @param out the array receiving the decrypted blocks
+     * @param outOff the offset at which the result is written
+     * @param blocks the number of blocks
+     * @throws IndexOutOfBoundsException if either range does not fit in its array
+     */
+    default void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        for (int i = 0; i < blocks; i++) {
+            decryptBlock(in, inOff + i * BLOCK_SIZE, out, outOff + i * BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Encrypts a single block of plaintext.
+     *
+     * @param input the plaintext block to be encrypted
+     * @return the encrypted block (ciphertext)
+     */
+    default byte[] encryptBlock(byte[] input) {
+        // Check if the input block is valid
+        if (input == null || input.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("Input block must be exactly 16 bytes");
+        }
+        byte[] output = new byte[BLOCK_SIZE];
+        encryptBlock(input, 0, output, 0);
+        return output;
+    }
+
+    /**
+     * Decrypts a single block of ciphertext.
+     *
+     * @param input the ciphertext block to be decrypted
+     * @return the decrypted block (plaintext)
+     */
+    default byte[] decryptBlock(byte[] input) {
+        // Check if the input block is valid
+        if (input == null || input.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("Input block must be exactly 16 bytes");
+        }
+        byte[] output = new byte[BLOCK_SIZE];
+        decryptBlock(input, 0, output, 0);
+        return output;
+    }
+}
@@ -0,0 +1,195 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CBCMode class implements Cipher Block Chaining with PKCS7 padding on top of a BlockCipher.
+ * The IV is expected right before the first ciphertext block, as laid out in the message format.
+ */
+final class CBCMode {
+    /**
+     * Size of an AES block in bytes.
+     */
+    private static final int BLOCK_SIZE = BlockCipher.BLOCK_SIZE;
+
+    /**
+     * Thread-confined scratch space holding two blocks, so the block loops never allocate.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[2 * BLOCK_SIZE]);
+
+    private CBCMode() {
+    }
+
+    /**
+     * Returns the size of the padded ciphertext for a plaintext of the given length.
+     *
+     * @param plaintextLength the length of the plaintext in bytes
+     * @return the length of the ciphertext in bytes, without the IV
+     */
+    static int getEncryptedLength(int plaintextLength) {
+        return (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypts {@code src[off..off+len)} with PKCS7 padding. The IV is read at {@code dst[out - 16]}
+     * and the ciphertext is written from {@code dst[out]}, chaining each block with the one before it.
+     * The output may start at or before the input in the same array.
+     *
+     * @param cipher the keyed block cipher
+     * @param src the array holding the plaintext
+     * @param off the offset of the plaintext
+     * @param len the length of the plaintext
+     * @param dst the array holding the IV and receiving the ciphertext
+     * @param out the offset of the first ciphertext block, right after the IV
+     * @return the number of ciphertext bytes written
+     */
+    static int encrypt(BlockCipher cipher, byte[] src, int off, int len, byte[] dst, int out) {
+        int start = out;
+        int previous = out - BLOCK_SIZE;
+        int in = off;
+        int end = off + len;
+
+        // Encrypt in CBC mode, XORing each block with the previous ciphertext block (or the IV)
+        while (end - in >= BLOCK_SIZE) {
+            Xor.xorBlock(src, in, dst, previous, dst, out);
+            cipher.encryptBlock(dst, out, dst, out);
+            previous = out;
+            out += BLOCK_SIZE;
+            in += BLOCK_SIZE;
+        }
+
+        // Last block carries the PKCS7 padding
+        int remaining = end - in;
+        byte padding = (byte) (BLOCK_SIZE - remaining);
+        for (int j = 0; j < BLOCK_SIZE; j++) {
+            byte value = j < remaining ? src[in + j] : padding;
+            dst[out + j] = (byte) (value ^ dst[previous + j]);
+        }
+        cipher.encryptBlock(dst, out, dst, out);
+
+        return out + BLOCK_SIZE - start;
+    }
+
+    /**
+     * Decrypts the CBC ciphertext {@code src[in..end)}, whose IV is the block right before {@code in},
+     * and strips the PKCS7 padding. Large ciphertexts written to a buffer that does not overlap
+     * {@code src[ivOff..end)} are decrypted in parallel on the fork/join pool.
+     *
+     * @param cipher the keyed block cipher
+     * @param src the array holding the IV and ciphertext
+     * @param in the offset of the first ciphertext block
+     * @param end the offset just past the last ciphertext block
+     * @param dst the array receiving the plaintext
+     * @param out the offset at which the plaintext is written
+     * @param parallel whether the output does not overlap the input, allowing the parallel path
+     * @return the length of the plaintext, without padding
+     * @throws IllegalArgumentException if the padding is invalid
+     */
+    static int decrypt(BlockCipher cipher, byte[] src, int in, int end, byte[] dst, int out, boolean parallel) {
+        int length = end - in;
+        if (parallel && length >= AESEncryption.PARALLEL_THRESHOLD) {
+            AESEncryption.PARALLEL_POOL.invoke(new DecryptTask(cipher, src, in, end, dst, out));
+        } else {
+            decryptRange(cipher, src, in, end, dst, out);
+        }
+
+        // Remove PKCS7 padding
+        int last = out + length;
+        int paddingLength = dst[last - 1] & 0xFF;
+        if (paddingLength == 0 || paddingLength > BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid padding");
+        }
+        for (int j = last - paddingLength; j < last - 1; j++) {
+            if ((dst[j] & 0xFF) != paddingLength) {
+                throw new IllegalArgumentException("Invalid padding");
+            }
+        }
+        return length - paddingLength;
+    }
+
+    /**
+     * Decrypts the CBC blocks {@code src[in..end)} into {@code dst[out]}.
+     * The block preceding {@code in} (the IV or the previous ciphertext block) is read as the chaining value,
+     * so any range of a ciphertext can be decrypted independently of the others.
+     * When the output does not overlap the range and its chaining block, the blocks are decrypted in one batch.
+     *
+     * @param cipher the keyed block cipher
+     * @param src the array holding the ciphertext
+     * @param in the offset of the first block of the range
+     * @param end the offset just past the last block of the range
+     * @param dst the array receiving the plaintext
+     * @param out the offset at which the plaintext of the first block is written
+     */
+    private static void decryptRange(BlockCipher cipher, byte[] src, int in, int end, byte[] dst, int out) {
+        if (src != dst || out >= end || in - BLOCK_SIZE >= out + (end - in)) {
+            // The ciphertext stays intact, so all blocks go through the engine at once before chaining
+            cipher.decryptBlocks(src, in, dst, out, (end - in) / BLOCK_SIZE);
+            Xor.xor(dst, out, src, in - BLOCK_SIZE, dst, out, end - in);
+            return;
+        }
+
+        // The scratch keeps the previous and current ciphertext blocks, which in-place output overwrites
+        byte[] scratch = SCRATCH.get();
+        System.arraycopy(src, in - BLOCK_SIZE, scratch, 0, BLOCK_SIZE);
+        int previous = 0;
+
+        for (; in < end; in += BLOCK_SIZE) {
+            int current = BLOCK_SIZE - previous;
+            System.arraycopy(src, in, scratch, current, BLOCK_SIZE);
+            cipher.decryptBlock(src, in, dst, out);
+
+            // XOR with the previous block
+            Xor.xorBlock(dst, out, scratch, previous, dst, out);
+            previous = current;
+            out += BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Fork/join task decrypting a range of CBC blocks. In CBC mode a block only depends on itself and on the
+     * preceding ciphertext block, so the range is split in halves until it is small enough to run sequentially.
+     * The output must not overlap the input, otherwise one half could overwrite blocks the other still reads.
+     */
+    private static final class DecryptTask extends RecursiveAction {
+        private final BlockCipher cipher;
+        private final byte[] src;
+        private final int in;
+        private final int end;
+        private final byte[] dst;
+        private final int out;
+
+        /**
+         * Constructs a task decrypting the blocks {@code src[in..end)} into {@code dst[out]}.
+         *
+         * @param cipher the keyed block cipher
+         * @param src the array holding the ciphertext
+         * @param in the offset of the first block of the range
+         * @param end the offset just past the last block of the range
+         * @param dst the array receiving the plaintext
+         * @param out the offset at which the plaintext of the first block is written
+         */
+        DecryptTask(BlockCipher cipher, byte[] src, int in, int end, byte[] dst, int out) {
+            this.cipher = cipher;
+            this.src = src;
+            this.in = in;
+            this.end = end;
+            this.dst = dst;
+            this.out = out;
+        }
+
+        /**
+         * Decrypts the range directly when it is small, otherwise splits it on a block boundary.
+         */
+        @Override
+        protected void compute() {
+            int length = end - in;
+            if (length <= AESEncryption.PARALLEL_SLICE) {
+                decryptRange(cipher, src, in, end, dst, out);
+                return;
+            }
+            int half = (length / 2) & -BLOCK_SIZE;
+            invokeAll(new DecryptTask(cipher, src, in, in + half, dst, out),
+                    new DecryptTask(cipher, src, in + half, end, dst, out + half));
+        }
+    }
+}
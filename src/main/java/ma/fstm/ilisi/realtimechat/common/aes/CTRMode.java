@@ -0,0 +1,178 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CTRMode class implements counter mode on top of a BlockCipher.
+ * The keystream block {@code i} is the encryption of the initial counter block with {@code i} added to its
+ * last 32 bits, so any range of the keystream can be generated independently and in parallel.
+ * Encryption and decryption are the same operation.
+ */
+final class CTRMode {
+    /**
+     * Size of an AES block in bytes.
+     */
+    private static final int BLOCK_SIZE = BlockCipher.BLOCK_SIZE;
+
+    /**
+     * Number of counter blocks encrypted per call to the engine, so batching engines can pipeline them.
+     */
+    private static final int BATCH_BLOCKS = 16;
+    private static final int BATCH_SIZE = BATCH_BLOCKS * BLOCK_SIZE;
+
+    /**
+     * Thread-confined scratch space holding a batch of counter blocks, the matching keystream
+     * and the fixed part of the counter block.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[2 * BATCH_SIZE + BLOCK_SIZE]);
+
+    private CTRMode() {
+    }
+
+    /**
+     * XORs {@code src[in..in+len)} with the keystream starting at the counter block {@code iv[ivOff..ivOff+16)}.
+     * The counter block is read before any output is written, so the output may overwrite it. Large inputs
+     * written to a buffer that overlaps neither the data nor the counter block are processed in parallel.
+     *
+     * @param cipher the keyed block cipher
+     * @param iv the array holding the initial counter block
+     * @param ivOff the offset of the initial counter block
+     * @param src the array holding the input
+     * @param in the offset of the input
+     * @param len the length of the input
+     * @param dst the array receiving the output
+     * @param out the offset at which the output is written
+     * @param parallel whether the output does not overlap the input, allowing the parallel path
+     */
+    static void crypt(BlockCipher cipher, byte[] iv, int ivOff, byte[] src, int in, int len,
+                      byte[] dst, int out, boolean parallel) {
+        if (parallel && len >= AESEncryption.PARALLEL_THRESHOLD) {
+            byte[] counter = Arrays.copyOfRange(iv, ivOff, ivOff + BLOCK_SIZE);
+            AESEncryption.PARALLEL_POOL.invoke(new CryptTask(cipher, counter, 0, src, in, len, dst, out));
+        } else {
+            cryptRange(cipher, iv, ivOff, 0, src, in, len, dst, out);
+        }
+    }
+
+    /**
+     * XORs {@code src[in..in+len)} with the keystream, starting at keystream block {@code firstBlock}.
+     *
+     * @param cipher the keyed block cipher
+     * @param iv the array holding the initial counter block
+     * @param ivOff the offset of the initial counter block
+     * @param firstBlock the index of the first keystream block to use
+     * @param src the array holding the input
+     * @param in the offset of the input
+     * @param len the length of the input
+     * @param dst the array receiving the output
+     * @param out the offset at which the output is written
+     */
+    static void cryptRange(BlockCipher cipher, byte[] iv, int ivOff, int firstBlock,
+                           byte[] src, int in, int len, byte[] dst, int out) {
+        // Copy the counter block before writing anything, the output may overwrite it
+        byte[] scratch = SCRATCH.get();
+        int prefix = 2 * BATCH_SIZE;
+        System.arraycopy(iv, ivOff, scratch, prefix, BLOCK_SIZE - 4);
+        int counter = getInt(iv, ivOff + BLOCK_SIZE - 4) + firstBlock;
+
+        while (len > 0) {
+            // Encrypt a batch of counter blocks into keystream
+            int blocks = Math.min(BATCH_BLOCKS, (len + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            for (int b = 0; b < blocks; b++) {
+                System.arraycopy(scratch, prefix, scratch, b * BLOCK_SIZE, BLOCK_SIZE - 4);
+                putInt(scratch, b * BLOCK_SIZE + BLOCK_SIZE - 4, counter++);
+            }
+            cipher.encryptBlocks(scratch, 0, scratch, BATCH_SIZE, blocks);
+
+            int n = Math.min(blocks * BLOCK_SIZE, len);
+            Xor.xor(src, in, scratch, BATCH_SIZE, dst, out, n);
+            in += n;
+            out += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Reads a big-endian int from a byte array.
+     *
+     * @param src the source array
+     * @param offset the offset of the first byte
+     * @return the packed int
+     */
+    static int getInt(byte[] src, int offset) {
+        return (src[offset] << 24)
+                | ((src[offset + 1] & 0xFF) << 16)
+                | ((src[offset + 2] & 0xFF) << 8)
+                | (src[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Writes an int to a byte array in big-endian order.
+     *
+     * @param dst the destination array
+     * @param offset the offset of the first byte
+     * @param value the value to write
+     */
+    static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Fork/join task generating and applying a range of the keystream.
+     * The range is split in halves on block boundaries until it is small enough to run sequentially.
+     */
+    private static final class CryptTask extends RecursiveAction {
+        private final BlockCipher cipher;
+        private final byte[] counter;
+        private final int firstBlock;
+        private final byte[] src;
+        private final int in;
+        private final int len;
+        private final byte[] dst;
+        private final int out;
+
+        /**
+         * Constructs a task applying the keystream from block {@code firstBlock} to {@code src[in..in+len)}.
+         *
+         * @param cipher the keyed block cipher
+         * @param counter a private copy of the initial counter block
+         * @param firstBlock the index of the first keystream block to use
+         * @param src the array holding the input
+         * @param in the offset of the input
+         * @param len the length of the input
+         * @param dst the array receiving the output
+         * @param out the offset at which the output is written
+         */
+        CryptTask(BlockCipher cipher, byte[] counter, int firstBlock, byte[] src, int in, int len,
+                  byte[] dst, int out) {
+            this.cipher = cipher;
+            this.counter = counter;
+            this.firstBlock = firstBlock;
+            this.src = src;
+            this.in = in;
+            this.len = len;
+            this.dst = dst;
+            this.out = out;
+        }
+
+        /**
+         * Applies the keystream directly when the range is small, otherwise splits it on a block boundary.
+         */
+        @Override
+        protected void compute() {
+            if (len <= AESEncryption.PARALLEL_SLICE) {
+                cryptRange(cipher, counter, 0, firstBlock, src, in, len, dst, out);
+                return;
+            }
+            int half = (len / 2) & -BLOCK_SIZE;
+            invokeAll(new CryptTask(cipher, counter, firstBlock, src, in, half, dst, out),
+                    new CryptTask(cipher, counter, firstBlock + half / BLOCK_SIZE,
+                            src, in + half, len - half, dst, out + half));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * CipherBackend enum lists the BlockCipher engines AESEncryption can run on.
+ * All backends produce the same ciphertext for the same key, so peers on different backends interoperate.
+ * The default backend is picked once per JVM: the one named by the {@value #BACKEND_PROPERTY} system property,
+ * or, when the property is absent or {@code auto}, the fastest available one according to a short self-benchmark.
+ */
+public enum CipherBackend {
+    /**
+     * Pure-Java reference engine following FIPS-197 step by step, handing batches to the bitsliced engine.
+     */
+    CORE("core", AESCore::new),
+
+    /**
+     * Pure-Java engine with precomputed round tables.
+     */
+    TABLE("table", AESTableCore::new),
+
+    /**
+     * Pure-Java constant-time engine, bitsliced over four blocks per pass.
+     */
+    BITSLICE("bitslice", AESBitsliceCore::new),
+
+    /**
+     * Engine delegating to the javax.crypto provider, hardware-accelerated where the JVM supports it.
+     */
+    JCE("jce", JCEBlockCipher::new);
+
+    /**
+     * System property naming the backend to use: {@code core}, {@code table}, {@code bitslice}, {@code jce} or {@code auto}.
+     */
+    public static final String BACKEND_PROPERTY = "realtimechat.aes.backend";
+
+    /**
+     * Value of the property requesting the self-benchmark.
+     */
+    private static final String AUTO = "auto";
+
+    /**
+     * Number of blocks encrypted per round of the self-benchmark.
+     */
+    private static final int BENCHMARK_BLOCKS = 64;
+
+    /**
+     * Rounds run to warm up each engine, then rounds per timed sample, and timed samples per engine.
+     */
+    private static final int WARMUP_ROUNDS = 50;
+    private static final int SAMPLE_ROUNDS = 10;
+    private static final int SAMPLES = 5;
+
+    /**
+     * The backend chosen for this JVM, selected on first use.
+     */
+    private static volatile CipherBackend defaultBackend;
+
+    /**
+     * Name of the backend, as used in the system property.
+     */
+    private final String name;
+
+    /**
+     * Factory creating unkeyed engines.
+     */
+    private final Supplier<BlockCipher> factory;
+
+    /**
+     * Constructs a backend.
+     *
+     * @param name the name of the backend
+     * @param factory the factory creating its engines
+     */
+    CipherBackend(String name, Supplier<BlockCipher> factory) {
+        this.name = name;
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the name of the backend, as used in the system property.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Checks whether the backend can run on this JVM.
+     *
+     * @return true if engines can be created
+     */
+    public boolean isAvailable() {
+        return this != JCE || JCEBlockCipher.isSupported();
+    }
+
+    /**
+     * Creates a new, unkeyed engine of this backend.
+     *
+     * @return the engine
+     * @throws IllegalStateException if the backend is not available on this JVM
+     */
+    public BlockCipher newCipher() {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Cipher backend not available: " + name);
+        }
+        return factory.get();
+    }
+
+    /**
+     * Returns the backend with the given name, ignoring case.
+     *
+     * @param name the name of the backend
+     * @return the backend
+     * @throws IllegalArgumentException if no backend has that name
+     */
+    public static CipherBackend fromName(String name) {
+        for (CipherBackend backend : values()) {
+            if (backend.name.equalsIgnoreCase(name)) {
+                return backend;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cipher backend: " + name);
+    }
+
+    /**
+     * Returns the backend used by AESEncryption when none is given, selecting it on the first call.
+     *
+     * @return the default backend
+     * @throws IllegalArgumentException if the system property names an unknown or unavailable backend
+     */
+    public static CipherBackend getDefault() {
+        CipherBackend backend = defaultBackend;
+        if (backend == null) {
+            synchronized (CipherBackend.class) {
+                backend = defaultBackend;
+                if (backend == null) {
+                    backend = select(System.getProperty(BACKEND_PROPERTY, AUTO));
+                    defaultBackend = backend;
+                }
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * Resolves a backend setting: a backend name, or {@code auto} for the fastest available backend.
+     *
+     * @param setting the value of the system property
+     * @return the backend
+     * @throws IllegalArgumentException if the setting names an unknown or unavailable backend
+     */
+    static CipherBackend select(String setting) {
+        if (setting == null || setting.isBlank() || AUTO.equals(setting.trim().toLowerCase(Locale.ROOT))) {
+            return fastest();
+        }
+        CipherBackend backend = fromName(setting.trim());
+        if (!backend.isAvailable()) {
+            throw new IllegalArgumentException("Cipher backend not available: " + backend.name);
+        }
+        return backend;
+    }
+
+    /**
+     * Runs the self-benchmark over the available backends and returns the fastest one.
+     * Each engine is warmed up, then timed on several samples of CTR-like batches; its best sample counts,
+     * which filters out GC pauses and descheduling. The whole run takes a few milliseconds.
+     *
+     * @return the fastest available backend
+     */
+    static CipherBackend fastest() {
+        // The benchmark key protects nothing, so it does not need to come from SecureRandom
+        byte[] key = new byte[32];
+        ThreadLocalRandom.current().nextBytes(key);
+        byte[] buffer = new byte[BENCHMARK_BLOCKS * BlockCipher.BLOCK_SIZE];
+
+        CipherBackend fastest = TABLE;
+        long best = Long.MAX_VALUE;
+        for (CipherBackend backend : values()) {
+            if (!backend.isAvailable()) {
+                continue;
+            }
+            BlockCipher cipher = backend.newCipher();
+            cipher.keyExpansion(key);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                cipher.encryptBlocks(buffer, 0, buffer, 0, BENCHMARK_BLOCKS);
+            }
+            long time = Long.MAX_VALUE;
+            for (int sample = 0; sample < SAMPLES; sample++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < SAMPLE_ROUNDS; i++) {
+                    cipher.encryptBlocks(buffer, 0, buffer, 0, BENCHMARK_BLOCKS);
+                }
+                time = Math.min(time, System.nanoTime() - start);
+            }
+            if (time < best) {
+                best = time;
+                fastest = backend;
+            }
+        }
+        return fastest;
+    }
+}
@@ -0,0 +1,103 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+/**
+ * CipherMode enum lists the block cipher modes of operation supported by AESEncryption.
+ * Every encrypted message starts with the id of its mode, so the receiver can decrypt it
+ * without knowing in advance which mode the sender used.
+ */
+public enum CipherMode {
+    /**
+     * Cipher Block Chaining with PKCS7 padding and a random 16-byte IV. No integrity check.
+     */
+    CBC((byte) 0x01, 16, 0),
+
+    /**
+     * Counter mode with a random 16-byte initial counter block. No padding and no integrity check.
+     */
+    CTR((byte) 0x02, 16, 0),
+
+    /**
+     * Galois/Counter Mode with a 12-byte nonce and a 16-byte authentication tag.
+     */
+    GCM((byte) 0x03, 12, 16);
+
+    /**
+     * Identifier written in the first byte of the ciphertext.
+     */
+    private final byte id;
+
+    /**
+     * Length of the IV (or nonce) following the identifier.
+     */
+    private final int ivLength;
+
+    /**
+     * Length of the authentication tag appended to the ciphertext.
+     */
+    private final int tagLength;
+
+    /**
+     * Constructs a cipher mode.
+     *
+     * @param id the identifier written in the ciphertext header
+     * @param ivLength the length of the IV (or nonce)
+     * @param tagLength the length of the authentication tag, 0 if the mode is not authenticated
+     */
+    CipherMode(byte id, int ivLength, int tagLength) {
+        this.id = id;
+        this.ivLength = ivLength;
+        this.tagLength = tagLength;
+    }
+
+    /**
+     * Returns the identifier written in the ciphertext header.
+     *
+     * @return the mode identifier
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Returns the length of the IV (or nonce).
+     *
+     * @return the IV length in bytes
+     */
+    public int getIvLength() {
+        return ivLength;
+    }
+
+    /**
+     * Returns the length of the authentication tag.
+     *
+     * @return the tag length in bytes, 0 if the mode is not authenticated
+     */
+    public int getTagLength() {
+        return tagLength;
+    }
+
+    /**
+     * Returns the length of the header preceding the ciphertext: the mode identifier and the IV.
+     *
+     * @return the header length in bytes
+     */
+    public int getHeaderLength() {
+        return 1 + ivLength;
+    }
+
+    /**
+     * Returns the mode with the given identifier.
+     *
+     * @param id the identifier read from a ciphertext header
+     * @return the matching mode
+     * @throws IllegalArgumentException if no mode has this identifier
+     */
+    public static CipherMode fromId(byte id) {
+        for (CipherMode mode : values()) {
+            if (mode.id == id) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cipher mode: " + id);
+    }
+}
@@ -0,0 +1,118 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CounterIVGenerator class is a deterministic random bit generator in the style of CTR_DRBG (NIST SP 800-90A):
+ * IVs are the encryptions of consecutive counter blocks under a random key private to the generator.
+ * The key and the initial counter come from SecureRandom once, at construction; afterwards no entropy is read.
+ * Every IV uses its own counter block, and AES is a permutation, so IVs of 16 bytes never repeat and shorter
+ * ones (truncated blocks) are as collision-resistant as random values, while remaining unpredictable without
+ * the generator's key, as CBC requires. The generator key is unrelated to the message key, so IVs never reveal
+ * keystream blocks of CTR or GCM.
+ * Threads reserve batches of counter values with a single atomic increment and encrypt them in one call,
+ * so IV generation is lock-free and amortised over {@value #BATCH_BLOCKS} messages.
+ */
+public class CounterIVGenerator implements IVGenerator {
+    /**
+     * Number of counter blocks a thread reserves and encrypts at once.
+     */
+    private static final int BATCH_BLOCKS = 64;
+
+    /**
+     * Size of an AES block in bytes.
+     */
+    private static final int BLOCK_SIZE = BlockCipher.BLOCK_SIZE;
+
+    /**
+     * Source of the generator keys and initial counters, only read at construction.
+     */
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    /**
+     * Pre-generated IV blocks of one thread.
+     */
+    private static final class Batch {
+        private final byte[] blocks = new byte[BATCH_BLOCKS * BLOCK_SIZE];
+        private int position = blocks.length;
+    }
+
+    /**
+     * Block cipher keyed with the generator key.
+     */
+    private final BlockCipher cipher;
+
+    /**
+     * High and low 64 bits of the initial counter block.
+     */
+    private final long counterHigh;
+    private final long counterLow;
+
+    /**
+     * Index of the next counter block to reserve.
+     */
+    private final AtomicLong nextBlock = new AtomicLong();
+
+    /**
+     * Batches of the threads using this generator.
+     */
+    private final ThreadLocal<Batch> batches = ThreadLocal.withInitial(Batch::new);
+
+    /**
+     * Constructs a generator on the engine of the default backend.
+     */
+    public CounterIVGenerator() {
+        this(CipherBackend.getDefault().newCipher());
+    }
+
+    /**
+     * Constructs a generator on the given unkeyed engine, which it keys with a fresh random key.
+     *
+     * @param cipher the block cipher engine, owned by the generator from now on
+     * @throws IllegalArgumentException if the block cipher is null
+     */
+    public CounterIVGenerator(BlockCipher cipher) {
+        if (cipher == null) {
+            throw new IllegalArgumentException("Block cipher cannot be null");
+        }
+        byte[] seed = new byte[32 + BLOCK_SIZE];
+        SEED_SOURCE.nextBytes(seed);
+        cipher.keyExpansion(Arrays.copyOf(seed, 32));
+        this.cipher = cipher;
+        this.counterHigh = GHash.getLong(seed, 32);
+        this.counterLow = GHash.getLong(seed, 40);
+        Arrays.fill(seed, (byte) 0);
+    }
+
+    @Override
+    public void nextIV(byte[] dst, int off, int len) {
+        if (len < 0 || len > BLOCK_SIZE) {
+            throw new IllegalArgumentException("IV length must be between 0 and 16 bytes");
+        }
+        Batch batch = batches.get();
+        if (batch.position == batch.blocks.length) {
+            refill(batch);
+        }
+        System.arraycopy(batch.blocks, batch.position, dst, off, len);
+        batch.position += BLOCK_SIZE;
+    }
+
+    /**
+     * Reserves the next batch of counter values and encrypts them into the thread's batch.
+     *
+     * @param batch the batch of the current thread
+     */
+    private void refill(Batch batch) {
+        long first = nextBlock.getAndAdd(BATCH_BLOCKS);
+        byte[] blocks = batch.blocks;
+        for (int i = 0; i < BATCH_BLOCKS; i++) {
+            // The index runs in the low 64 bits, which do not wrap before 2^64 IVs
+            GHash.putLong(blocks, i * BLOCK_SIZE, counterHigh);
+            GHash.putLong(blocks, i * BLOCK_SIZE + 8, counterLow + first + i);
+        }
+        cipher.encryptBlocks(blocks, 0, blocks, 0, BATCH_BLOCKS);
+        batch.position = 0;
+    }
+}
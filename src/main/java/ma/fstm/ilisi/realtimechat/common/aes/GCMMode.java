@@ -0,0 +1,215 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GCMMode class implements Galois/Counter Mode on top of a BlockCipher, with a 12-byte nonce,
+ * no additional authenticated data and a 16-byte tag.
+ * The data is encrypted with CTRMode starting at counter 2, and authenticated with the table-driven GHash.
+ * Decryption verifies the tag before decrypting anything, so forged messages cost one hash pass only.
+ */
+final class GCMMode {
+    /**
+     * Size of an AES block in bytes.
+     */
+    private static final int BLOCK_SIZE = BlockCipher.BLOCK_SIZE;
+
+    /**
+     * Length of the nonce in bytes.
+     */
+    static final int NONCE_SIZE = 12;
+
+    /**
+     * Length of the authentication tag in bytes.
+     */
+    static final int TAG_SIZE = 16;
+
+    /**
+     * Thread-confined scratch space holding the pre-counter block J0, the tag and the length block,
+     * and the GHASH state.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[3 * BLOCK_SIZE]);
+    private static final ThreadLocal<long[]> HASH_STATE = ThreadLocal.withInitial(() -> new long[2]);
+
+    /**
+     * The keyed block cipher.
+     */
+    private final BlockCipher cipher;
+
+    /**
+     * GHASH tables for the hash subkey of the cipher's key.
+     */
+    private final GHash ghash;
+
+    /**
+     * Constructs a GCM instance for a keyed block cipher and derives its hash subkey.
+     *
+     * @param cipher the keyed block cipher
+     */
+    GCMMode(BlockCipher cipher) {
+        this.cipher = cipher;
+        byte[] h = new byte[BLOCK_SIZE];
+        cipher.encryptBlock(h, 0, h, 0);
+        this.ghash = new GHash(h);
+    }
+
+    /**
+     * Encrypts {@code src[in..in+len)} and appends the tag. The nonce is read before any output is written.
+     *
+     * @param nonce the array holding the nonce
+     * @param nonceOff the offset of the nonce
+     * @param src the array holding the plaintext
+     * @param in the offset of the plaintext
+     * @param len the length of the plaintext
+     * @param dst the array receiving the ciphertext followed by the tag
+     * @param out the offset at which the ciphertext is written
+     * @param parallel whether the output does not overlap the input, allowing the parallel keystream
+     * @return the number of bytes written, i.e. {@code len + 16}
+     */
+    int encrypt(byte[] nonce, int nonceOff, byte[] src, int in, int len, byte[] dst, int out, boolean parallel) {
+        byte[] scratch = SCRATCH.get();
+        preCounterBlock(nonce, nonceOff, scratch);
+
+        // Encrypt with the counter starting right after J0
+        CTRMode.putInt(scratch, BLOCK_SIZE + BLOCK_SIZE - 4, 2);
+        System.arraycopy(scratch, 0, scratch, BLOCK_SIZE, BLOCK_SIZE - 4);
+        CTRMode.crypt(cipher, scratch, BLOCK_SIZE, src, in, len, dst, out, parallel);
+
+        // Authenticate the ciphertext
+        computeTag(dst, out, len, scratch);
+        System.arraycopy(scratch, BLOCK_SIZE, dst, out + len, TAG_SIZE);
+        return len + TAG_SIZE;
+    }
+
+    /**
+     * Verifies the tag of {@code src[in..in+len)} (ciphertext followed by the tag), then decrypts it.
+     *
+     * @param nonce the array holding the nonce
+     * @param nonceOff the offset of the nonce
+     * @param src the array holding the ciphertext and the tag
+     * @param in the offset of the ciphertext
+     * @param len the length of the ciphertext and the tag
+     * @param dst the array receiving the plaintext
+     * @param out the offset at which the plaintext is written
+     * @param parallel whether the output does not overlap the input, allowing the parallel keystream
+     * @return the length of the plaintext, i.e. {@code len - 16}
+     * @throws IllegalArgumentException if the tag does not match
+     */
+    int decrypt(byte[] nonce, int nonceOff, byte[] src, int in, int len, byte[] dst, int out, boolean parallel) {
+        int length = len - TAG_SIZE;
+        byte[] scratch = SCRATCH.get();
+        preCounterBlock(nonce, nonceOff, scratch);
+
+        // Check the tag before spending any work on decryption
+        computeTag(src, in, length, scratch);
+        int difference = 0;
+        for (int j = 0; j < TAG_SIZE; j++) {
+            // Constant-time comparison, the position of a mismatch must not leak through timing
+            difference |= scratch[BLOCK_SIZE + j] ^ src[in + length + j];
+        }
+        if (difference != 0) {
+            throw new IllegalArgumentException("Message authentication failed");
+        }
+
+        CTRMode.putInt(scratch, BLOCK_SIZE + BLOCK_SIZE - 4, 2);
+        System.arraycopy(scratch, 0, scratch, BLOCK_SIZE, BLOCK_SIZE - 4);
+        CTRMode.crypt(cipher, scratch, BLOCK_SIZE, src, in, length, dst, out, parallel);
+        return length;
+    }
+
+    /**
+     * Verifies the tag of the ciphertext and tag remaining in a buffer, reading the ciphertext in chunks
+     * through a work array so buffers of any size are authenticated in constant memory.
+     * The position of the buffer is left unchanged.
+     *
+     * @param nonce the array holding the nonce
+     * @param nonceOff the offset of the nonce
+     * @param data the buffer holding the ciphertext followed by the tag
+     * @param work a work array of at least 48 bytes
+     * @throws IllegalArgumentException if the tag does not match
+     */
+    void verify(byte[] nonce, int nonceOff, ByteBuffer data, byte[] work) {
+        ByteBuffer view = data.duplicate();
+        int length = view.remaining() - TAG_SIZE;
+        long[] state = HASH_STATE.get();
+        state[0] = 0;
+        state[1] = 0;
+
+        // Only the last chunk may end on a partial block, GHASH pads it with zeros
+        int chunk = work.length & -BLOCK_SIZE;
+        for (int remaining = length; remaining > 0; ) {
+            int n = Math.min(chunk, remaining);
+            view.get(work, 0, n);
+            ghash.update(state, work, 0, n);
+            remaining -= n;
+        }
+
+        byte[] scratch = SCRATCH.get();
+        preCounterBlock(nonce, nonceOff, scratch);
+        finishTag(state, length, scratch);
+        view.get(work, 0, TAG_SIZE);
+        int difference = 0;
+        for (int j = 0; j < TAG_SIZE; j++) {
+            // Constant-time comparison, the position of a mismatch must not leak through timing
+            difference |= scratch[BLOCK_SIZE + j] ^ work[j];
+        }
+        if (difference != 0) {
+            throw new IllegalArgumentException("Message authentication failed");
+        }
+    }
+
+    /**
+     * Returns the GHASH tables of the key, for the incremental GCM cipher.
+     *
+     * @return the GHASH instance
+     */
+    GHash getGHash() {
+        return ghash;
+    }
+
+    /**
+     * Builds the pre-counter block J0 = nonce || 0x00000001 in {@code scratch[0..16)}.
+     *
+     * @param nonce the array holding the nonce
+     * @param nonceOff the offset of the nonce
+     * @param scratch the scratch buffer
+     */
+    private static void preCounterBlock(byte[] nonce, int nonceOff, byte[] scratch) {
+        System.arraycopy(nonce, nonceOff, scratch, 0, NONCE_SIZE);
+        CTRMode.putInt(scratch, NONCE_SIZE, 1);
+    }
+
+    /**
+     * Computes the tag GHASH(C) XOR E(J0) of a ciphertext into {@code scratch[16..32)}.
+     *
+     * @param ciphertext the array holding the ciphertext
+     * @param off the offset of the ciphertext
+     * @param len the length of the ciphertext
+     * @param scratch the scratch buffer holding J0 in its first block
+     */
+    private void computeTag(byte[] ciphertext, int off, int len, byte[] scratch) {
+        long[] state = HASH_STATE.get();
+        state[0] = 0;
+        state[1] = 0;
+        ghash.update(state, ciphertext, off, len);
+        finishTag(state, len, scratch);
+    }
+
+    /**
+     * Completes a GHASH state over {@code len} ciphertext bytes into the tag, written to {@code scratch[16..32)}.
+     *
+     * @param state the GHASH state over the ciphertext
+     * @param len the length of the ciphertext
+     * @param scratch the scratch buffer holding J0 in its first block
+     */
+    private void finishTag(long[] state, long len, byte[] scratch) {
+        ghash.finish(state, 0, len, scratch, 2 * BLOCK_SIZE);
+
+        cipher.encryptBlock(scratch, 0, scratch, BLOCK_SIZE);
+        GHash.putLong(scratch, 2 * BLOCK_SIZE, state[0]);
+        GHash.putLong(scratch, 2 * BLOCK_SIZE + 8, state[1]);
+        for (int j = 0; j < TAG_SIZE; j++) {
+            scratch[BLOCK_SIZE + j] ^= scratch[2 * BLOCK_SIZE + j];
+        }
+    }
+}
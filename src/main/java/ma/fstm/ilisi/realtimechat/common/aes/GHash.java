@@ -0,0 +1,146 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+/**
+ * GHash class implements the GHASH universal hash of GCM with Shoup's 4-bit tables.
+ * Multiplying by the hash subkey H is done 4 bits at a time from sixteen precomputed multiples of H,
+ * instead of a bit-by-bit loop over the 128 bits of the operand.
+ * The tables depend only on H, so one instance can be shared by several threads.
+ */
+final class GHash {
+    /**
+     * Reduction constants for the 4 bits shifted out of the low end at each step.
+     */
+    private static final long[] LAST4 = {
+            0x0000, 0x1c20, 0x3840, 0x2460, 0x7080, 0x6ca0, 0x48c0, 0x54e0,
+            0xe100, 0xfd20, 0xd940, 0xc560, 0x9180, 0x8da0, 0xa9c0, 0xb5e0
+    };
+
+    /**
+     * High and low 64 bits of the sixteen 4-bit multiples of H.
+     */
+    private final long[] hh = new long[16];
+    private final long[] hl = new long[16];
+
+    /**
+     * Builds the multiplication tables for the hash subkey H.
+     *
+     * @param h the hash subkey, i.e. the encryption of the all-zero block
+     */
+    GHash(byte[] h) {
+        long vh = getLong(h, 0);
+        long vl = getLong(h, 8);
+
+        hl[8] = vl;
+        hh[8] = vh;
+        for (int i = 4; i > 0; i >>= 1) {
+            long t = (vl & 1) != 0 ? 0xe100000000000000L : 0;
+            vl = (vh << 63) | (vl >>> 1);
+            vh = (vh >>> 1) ^ t;
+            hl[i] = vl;
+            hh[i] = vh;
+        }
+        for (int i = 2; i <= 8; i *= 2) {
+            vh = hh[i];
+            vl = hl[i];
+            for (int j = 1; j < i; j++) {
+                hh[i + j] = vh ^ hh[j];
+                hl[i + j] = vl ^ hl[j];
+            }
+        }
+    }
+
+    /**
+     * Absorbs {@code data[off..off+len)} into the hash state, zero-padding the last partial block.
+     *
+     * @param state the hash state, high and low 64 bits
+     * @param data the array holding the data
+     * @param off the offset of the data
+     * @param len the length of the data
+     */
+    void update(long[] state, byte[] data, int off, int len) {
+        long yh = state[0];
+        long yl = state[1];
+        int end = off + len;
+        while (off < end) {
+            int n = Math.min(16, end - off);
+            if (n == 16) {
+                yh ^= getLong(data, off);
+                yl ^= getLong(data, off + 8);
+            } else {
+                for (int j = 0; j < n; j++) {
+                    long b = (data[off + j] & 0xFFL);
+                    if (j < 8) {
+                        yh ^= b << (56 - 8 * j);
+                    } else {
+                        yl ^= b << (56 - 8 * (j - 8));
+                    }
+                }
+            }
+            off += n;
+
+            // Multiply (yh, yl) by H, from the least significant nibble up
+            long zh = 0;
+            long zl = 0;
+            for (int i = 15; i >= 0; i--) {
+                int x = (int) ((i < 8 ? yh >>> (56 - 8 * i) : yl >>> (56 - 8 * (i - 8))) & 0xFF);
+                int lo = x & 0x0F;
+                int hi = x >>> 4;
+                if (i != 15) {
+                    int rem = (int) (zl & 0x0F);
+                    zl = (zh << 60) | (zl >>> 4);
+                    zh = (zh >>> 4) ^ (LAST4[rem] << 48);
+                }
+                zh ^= hh[lo];
+                zl ^= hl[lo];
+
+                int rem = (int) (zl & 0x0F);
+                zl = (zh << 60) | (zl >>> 4);
+                zh = (zh >>> 4) ^ (LAST4[rem] << 48);
+                zh ^= hh[hi];
+                zl ^= hl[hi];
+            }
+            yh = zh;
+            yl = zl;
+        }
+        state[0] = yh;
+        state[1] = yl;
+    }
+
+    /**
+     * Absorbs the final length block: the bit lengths of the additional data and of the ciphertext.
+     *
+     * @param state the hash state, high and low 64 bits
+     * @param aadLength the length of the additional authenticated data in bytes
+     * @param ciphertextLength the length of the ciphertext in bytes
+     * @param scratch a 16-byte buffer used to build the length block
+     * @param scratchOff the offset of the buffer
+     */
+    void finish(long[] state, long aadLength, long ciphertextLength, byte[] scratch, int scratchOff) {
+        putLong(scratch, scratchOff, aadLength * 8);
+        putLong(scratch, scratchOff + 8, ciphertextLength * 8);
+        update(state, scratch, scratchOff, 16);
+    }
+
+    /**
+     * Reads a big-endian long from a byte array.
+     *
+     * @param src the source array
+     * @param offset the offset of the first byte
+     * @return the packed long
+     */
+    static long getLong(byte[] src, int offset) {
+        return ((long) CTRMode.getInt(src, offset) << 32) | (CTRMode.getInt(src, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes a long to a byte array in big-endian order.
+     *
+     * @param dst the destination array
+     * @param offset the offset of the first byte
+     * @param value the value to write
+     */
+    static void putLong(byte[] dst, int offset, long value) {
+        CTRMode.putInt(dst, offset, (int) (value >>> 32));
+        CTRMode.putInt(dst, offset + 4, (int) value);
+    }
+}
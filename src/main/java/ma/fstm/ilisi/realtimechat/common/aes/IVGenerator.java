@@ -0,0 +1,53 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.util.Locale;
+
+/**
+ * IVGenerator interface represents a source of IVs and nonces for AESEncryption.
+ * Generated values must be unpredictable (CBC) and must not repeat under the same key (CTR and GCM).
+ * Implementations are called on the send path of every message, so they must be thread-safe and must not
+ * block on entropy: they are seeded once and pre-generate their output in per-thread buffers.
+ */
+public interface IVGenerator {
+    /**
+     * System property selecting the generator of new AESEncryption instances: {@code counter} or {@code random}.
+     */
+    String IV_PROPERTY = "realtimechat.aes.iv";
+
+    /**
+     * Writes a fresh IV (or nonce).
+     *
+     * @param dst the array receiving the IV
+     * @param off the offset at which the IV is written
+     * @param len the length of the IV, at most 16 bytes
+     * @throws IllegalArgumentException if the length is not supported
+     */
+    void nextIV(byte[] dst, int off, int len);
+
+    /**
+     * Creates the generator named by the {@value #IV_PROPERTY} system property, {@code counter} by default.
+     *
+     * @return a new generator
+     * @throws IllegalArgumentException if the property names an unknown generator
+     */
+    static IVGenerator newDefault() {
+        return create(System.getProperty(IV_PROPERTY));
+    }
+
+    /**
+     * Creates a generator from its name: {@code counter} for the AES-CTR DRBG ({@link CounterIVGenerator}),
+     * {@code random} for the buffered thread-local SecureRandom ({@link SecureRandomIVGenerator}).
+     *
+     * @param name the name of the generator, or null for the default
+     * @return a new generator
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static IVGenerator create(String name) {
+        String setting = name == null || name.isBlank() ? "counter" : name.trim().toLowerCase(Locale.ROOT);
+        return switch (setting) {
+            case "counter" -> new CounterIVGenerator();
+            case "random" -> new SecureRandomIVGenerator();
+            default -> throw new IllegalArgumentException("Unknown IV generator: " + name);
+        };
+    }
+}
@@ -0,0 +1,365 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+/**
+ * IncrementalCipher class encrypts or decrypts one message piece by piece, for callers that cannot hold
+ * the whole message in memory (streams, direct buffers). It produces and accepts exactly the same data as the
+ * one-shot AESEncryption methods, without the header which the caller writes or reads itself.
+ * An instance carries the chaining state of a single message and must not be shared between threads.
+ * The output of a call must not overlap its input.
+ */
+abstract class IncrementalCipher {
+    /**
+     * Size of an AES block in bytes.
+     */
+    static final int BLOCK_SIZE = BlockCipher.BLOCK_SIZE;
+
+    /**
+     * Processes the next piece of the message.
+     *
+     * @param in the array holding the input
+     * @param off the offset of the input
+     * @param len the length of the input
+     * @param out the array receiving the output, with room for {@code len + 16} bytes
+     * @param outOff the offset at which the output is written
+     * @return the number of bytes written
+     */
+    abstract int update(byte[] in, int off, int len, byte[] out, int outOff);
+
+    /**
+     * Completes the message: writes the padding or the tag when encrypting, checks them when decrypting.
+     *
+     * @param out the array receiving the output, with room for 16 bytes
+     * @param outOff the offset at which the output is written
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if the length, the padding or the tag of a decrypted message is invalid
+     */
+    abstract int doFinal(byte[] out, int outOff);
+
+    /**
+     * Creates an incremental encryptor.
+     *
+     * @param cipher the keyed block cipher
+     * @param ghash the GHASH tables of the key, used by GCM
+     * @param mode the mode of operation
+     * @param iv the array holding the IV (or nonce)
+     * @param ivOff the offset of the IV
+     * @return the encryptor
+     */
+    static IncrementalCipher encryptor(BlockCipher cipher, GHash ghash, CipherMode mode, byte[] iv, int ivOff) {
+        return switch (mode) {
+            case CBC -> new CBCEncryptor(cipher, iv, ivOff);
+            case CTR -> new CTRCipher(cipher, iv, ivOff, 0);
+            case GCM -> new GCMCipher(cipher, ghash, iv, ivOff, false);
+        };
+    }
+
+    /**
+     * Creates an incremental decryptor. GCM plaintext is released before the tag, which ends the message,
+     * has been checked: the caller learns about a forgery only from {@link #doFinal(byte[], int)}.
+     *
+     * @param cipher the keyed block cipher
+     * @param ghash the GHASH tables of the key, used by GCM
+     * @param mode the mode of operation
+     * @param iv the array holding the IV (or nonce)
+     * @param ivOff the offset of the IV
+     * @return the decryptor
+     */
+    static IncrementalCipher decryptor(BlockCipher cipher, GHash ghash, CipherMode mode, byte[] iv, int ivOff) {
+        return switch (mode) {
+            case CBC -> new CBCDecryptor(cipher, iv, ivOff);
+            case CTR -> new CTRCipher(cipher, iv, ivOff, 0);
+            case GCM -> new GCMCipher(cipher, ghash, iv, ivOff, true);
+        };
+    }
+
+    /**
+     * Creates a bare keystream cipher, e.g. to decrypt GCM data whose tag has already been checked.
+     *
+     * @param cipher the keyed block cipher
+     * @param counter the array holding the initial counter block
+     * @param counterOff the offset of the initial counter block
+     * @return the keystream cipher
+     */
+    static IncrementalCipher keystream(BlockCipher cipher, byte[] counter, int counterOff) {
+        return new CTRCipher(cipher, counter, counterOff, 0);
+    }
+
+    /**
+     * CBC encryption with PKCS7 padding; a partial block is kept until more data or the end of the message.
+     */
+    private static final class CBCEncryptor extends IncrementalCipher {
+        private final BlockCipher cipher;
+        private final byte[] chain = new byte[BLOCK_SIZE];
+        private final byte[] pending = new byte[BLOCK_SIZE];
+        private int pendingLength;
+
+        CBCEncryptor(BlockCipher cipher, byte[] iv, int ivOff) {
+            this.cipher = cipher;
+            System.arraycopy(iv, ivOff, chain, 0, BLOCK_SIZE);
+        }
+
+        @Override
+        int update(byte[] in, int off, int len, byte[] out, int outOff) {
+            int start = outOff;
+            while (len > 0) {
+                if (pendingLength == 0 && len >= BLOCK_SIZE) {
+                    // Full block straight from the input
+                    encryptBlock(in, off, out, outOff);
+                    off += BLOCK_SIZE;
+                    len -= BLOCK_SIZE;
+                    outOff += BLOCK_SIZE;
+                    continue;
+                }
+                int n = Math.min(BLOCK_SIZE - pendingLength, len);
+                System.arraycopy(in, off, pending, pendingLength, n);
+                pendingLength += n;
+                off += n;
+                len -= n;
+                if (pendingLength == BLOCK_SIZE) {
+                    encryptBlock(pending, 0, out, outOff);
+                    outOff += BLOCK_SIZE;
+                    pendingLength = 0;
+                }
+            }
+            return outOff - start;
+        }
+
+        @Override
+        int doFinal(byte[] out, int outOff) {
+            // Last block carries the PKCS7 padding
+            byte padding = (byte) (BLOCK_SIZE - pendingLength);
+            for (int j = pendingLength; j < BLOCK_SIZE; j++) {
+                pending[j] = padding;
+            }
+            encryptBlock(pending, 0, out, outOff);
+            pendingLength = 0;
+            return BLOCK_SIZE;
+        }
+
+        /**
+         * XORs a plaintext block with the chaining value, encrypts it and keeps the result as the next chaining value.
+         */
+        private void encryptBlock(byte[] in, int off, byte[] out, int outOff) {
+            Xor.xorBlock(in, off, chain, 0, out, outOff);
+            cipher.encryptBlock(out, outOff, out, outOff);
+            System.arraycopy(out, outOff, chain, 0, BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * CBC decryption; the last full block is held back until the end of the message to strip its padding.
+     */
+    private static final class CBCDecryptor extends IncrementalCipher {
+        private final BlockCipher cipher;
+        private byte[] chain = new byte[BLOCK_SIZE];
+        private byte[] pending = new byte[BLOCK_SIZE];
+        private int pendingLength;
+
+        CBCDecryptor(BlockCipher cipher, byte[] iv, int ivOff) {
+            this.cipher = cipher;
+            System.arraycopy(iv, ivOff, chain, 0, BLOCK_SIZE);
+        }
+
+        @Override
+        int update(byte[] in, int off, int len, byte[] out, int outOff) {
+            int start = outOff;
+            while (len > 0) {
+                if (pendingLength == BLOCK_SIZE) {
+                    // More data follows, so the held block is not the last one
+                    decryptPending(out, outOff);
+                    outOff += BLOCK_SIZE;
+                }
+                int n = Math.min(BLOCK_SIZE - pendingLength, len);
+                System.arraycopy(in, off, pending, pendingLength, n);
+                pendingLength += n;
+                off += n;
+                len -= n;
+            }
+            return outOff - start;
+        }
+
+        @Override
+        int doFinal(byte[] out, int outOff) {
+            if (pendingLength != BLOCK_SIZE) {
+                throw new IllegalArgumentException("Invalid encrypted data length");
+            }
+            decryptPending(out, outOff);
+
+            // Remove PKCS7 padding
+            int paddingLength = out[outOff + BLOCK_SIZE - 1] & 0xFF;
+            if (paddingLength == 0 || paddingLength > BLOCK_SIZE) {
+                throw new IllegalArgumentException("Invalid padding");
+            }
+            for (int j = BLOCK_SIZE - paddingLength; j < BLOCK_SIZE - 1; j++) {
+                if ((out[outOff + j] & 0xFF) != paddingLength) {
+                    throw new IllegalArgumentException("Invalid padding");
+                }
+            }
+            return BLOCK_SIZE - paddingLength;
+        }
+
+        /**
+         * Decrypts the held block and makes it the next chaining value.
+         */
+        private void decryptPending(byte[] out, int outOff) {
+            cipher.decryptBlock(pending, 0, out, outOff);
+            Xor.xorBlock(out, outOff, chain, 0, out, outOff);
+            byte[] previous = chain;
+            chain = pending;
+            pending = previous;
+            pendingLength = 0;
+        }
+    }
+
+    /**
+     * Counter mode keystream; the unused end of the current keystream block is kept for the next call.
+     */
+    private static final class CTRCipher extends IncrementalCipher {
+        private final BlockCipher cipher;
+        private final byte[] counter = new byte[BLOCK_SIZE];
+        private final byte[] keystream = new byte[BLOCK_SIZE];
+        private int used = BLOCK_SIZE;
+
+        CTRCipher(BlockCipher cipher, byte[] iv, int ivOff, int firstBlock) {
+            this.cipher = cipher;
+            System.arraycopy(iv, ivOff, counter, 0, BLOCK_SIZE);
+            CTRMode.putInt(counter, BLOCK_SIZE - 4, CTRMode.getInt(counter, BLOCK_SIZE - 4) + firstBlock);
+        }
+
+        @Override
+        int update(byte[] in, int off, int len, byte[] out, int outOff) {
+            int produced = len;
+            while (len > 0) {
+                if (used == BLOCK_SIZE) {
+                    cipher.encryptBlock(counter, 0, keystream, 0);
+                    CTRMode.putInt(counter, BLOCK_SIZE - 4, CTRMode.getInt(counter, BLOCK_SIZE - 4) + 1);
+                    used = 0;
+                }
+                int n = Math.min(BLOCK_SIZE - used, len);
+                Xor.xor(in, off, keystream, used, out, outOff, n);
+                used += n;
+                off += n;
+                outOff += n;
+                len -= n;
+            }
+            return produced;
+        }
+
+        @Override
+        int doFinal(byte[] out, int outOff) {
+            return 0;
+        }
+    }
+
+    /**
+     * GCM: counter mode from J0 + 1 with GHASH over the ciphertext. When decrypting, the last 16 bytes seen
+     * so far are held back because they may be the tag.
+     */
+    private static final class GCMCipher extends IncrementalCipher {
+        private final BlockCipher cipher;
+        private final GHash ghash;
+        private final boolean decrypting;
+        private final byte[] preCounter = new byte[BLOCK_SIZE];
+        private final CTRCipher keystream;
+        private final long[] state = new long[2];
+        private final byte[] hashBlock = new byte[BLOCK_SIZE];
+        private int hashFill;
+        private long ciphertextLength;
+        private final byte[] tail = new byte[GCMMode.TAG_SIZE];
+        private int tailFill;
+
+        GCMCipher(BlockCipher cipher, GHash ghash, byte[] nonce, int nonceOff, boolean decrypting) {
+            this.cipher = cipher;
+            this.ghash = ghash;
+            this.decrypting = decrypting;
+            System.arraycopy(nonce, nonceOff, preCounter, 0, GCMMode.NONCE_SIZE);
+            CTRMode.putInt(preCounter, GCMMode.NONCE_SIZE, 1);
+            this.keystream = new CTRCipher(cipher, preCounter, 0, 1);
+        }
+
+        @Override
+        int update(byte[] in, int off, int len, byte[] out, int outOff) {
+            if (!decrypting) {
+                keystream.update(in, off, len, out, outOff);
+                hash(out, outOff, len);
+                return len;
+            }
+
+            // Release everything but the last 16 bytes of the data seen so far
+            int release = tailFill + len - GCMMode.TAG_SIZE;
+            if (release <= 0) {
+                System.arraycopy(in, off, tail, tailFill, len);
+                tailFill += len;
+                return 0;
+            }
+            int fromTail = Math.min(tailFill, release);
+            hash(tail, 0, fromTail);
+            keystream.update(tail, 0, fromTail, out, outOff);
+            int fromInput = release - fromTail;
+            hash(in, off, fromInput);
+            keystream.update(in, off, fromInput, out, outOff + fromTail);
+
+            // Keep the unreleased bytes as the new tail
+            System.arraycopy(tail, fromTail, tail, 0, tailFill - fromTail);
+            tailFill -= fromTail;
+            System.arraycopy(in, off + fromInput, tail, tailFill, len - fromInput);
+            tailFill += len - fromInput;
+            return release;
+        }
+
+        @Override
+        int doFinal(byte[] out, int outOff) {
+            if (decrypting && tailFill != GCMMode.TAG_SIZE) {
+                throw new IllegalArgumentException("Invalid encrypted data length");
+            }
+
+            // Tag = GHASH(C) XOR E(J0)
+            ghash.update(state, hashBlock, 0, hashFill);
+            byte[] block = new byte[2 * BLOCK_SIZE];
+            ghash.finish(state, 0, ciphertextLength, block, 0);
+            cipher.encryptBlock(preCounter, 0, block, BLOCK_SIZE);
+            GHash.putLong(block, 0, state[0]);
+            GHash.putLong(block, 8, state[1]);
+            for (int j = 0; j < GCMMode.TAG_SIZE; j++) {
+                block[BLOCK_SIZE + j] ^= block[j];
+            }
+
+            if (!decrypting) {
+                System.arraycopy(block, BLOCK_SIZE, out, outOff, GCMMode.TAG_SIZE);
+                return GCMMode.TAG_SIZE;
+            }
+            int difference = 0;
+            for (int j = 0; j < GCMMode.TAG_SIZE; j++) {
+                // Constant-time comparison, the position of a mismatch must not leak through timing
+                difference |= block[BLOCK_SIZE + j] ^ tail[j];
+            }
+            if (difference != 0) {
+                throw new IllegalArgumentException("Message authentication failed");
+            }
+            return 0;
+        }
+
+        /**
+         * Absorbs ciphertext into GHASH, completing the buffered partial block first.
+         */
+        private void hash(byte[] data, int off, int len) {
+            ciphertextLength += len;
+            if (hashFill > 0) {
+                int n = Math.min(BLOCK_SIZE - hashFill, len);
+                System.arraycopy(data, off, hashBlock, hashFill, n);
+                hashFill += n;
+                off += n;
+                len -= n;
+                if (hashFill < BLOCK_SIZE) {
+                    return;
+                }
+                ghash.update(state, hashBlock, 0, BLOCK_SIZE);
+                hashFill = 0;
+            }
+            int full = len & -BLOCK_SIZE;
+            ghash.update(state, data, off, full);
+            System.arraycopy(data, off + full, hashBlock, 0, len - full);
+            hashFill = len - full;
+        }
+    }
+}
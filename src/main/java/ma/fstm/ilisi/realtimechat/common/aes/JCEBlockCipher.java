@@ -0,0 +1,144 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+
+/**
+ * JCEBlockCipher class delegates the AES block operations to the platform's {@code javax.crypto} provider,
+ * whose AES is compiled to the AES-NI (x86) or ARMv8 crypto instructions by the JIT when they are available.
+ * It produces exactly the same output as AESCore for the same key.
+ * JCE Cipher objects are not thread-safe, so every thread gets its own pair, initialised lazily with the
+ * current key; one keyed instance can therefore be shared by any number of threads.
+ */
+public class JCEBlockCipher implements BlockCipher {
+    /**
+     * Raw block transformation, the modes are implemented on top of it like for the other engines.
+     */
+    private static final String TRANSFORMATION = "AES/ECB/NoPadding";
+
+    /**
+     * Encryption and decryption Cipher objects of one thread, with the key they were initialised for.
+     *
+     * @param key the key both ciphers are initialised with
+     * @param encryptor the cipher in encryption mode
+     * @param decryptor the cipher in decryption mode
+     */
+    private record Ciphers(SecretKeySpec key, Cipher encryptor, Cipher decryptor) {
+    }
+
+    /**
+     * The current key, published once expanded.
+     */
+    private volatile SecretKeySpec key;
+
+    /**
+     * Cipher objects of each thread using this instance.
+     */
+    private final ThreadLocal<Ciphers> ciphers = new ThreadLocal<>();
+
+    /**
+     * Checks whether the JCE provider offers AES-256 in raw block mode.
+     *
+     * @return true if this engine can be used
+     */
+    public static boolean isSupported() {
+        try {
+            Cipher.getInstance(TRANSFORMATION).init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[32], "AES"));
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stores the key; the provider performs its own key expansion when each thread's ciphers are initialised.
+     *
+     * @param key the initial key used for the AES encryption/decryption, 16, 24 or 32 bytes long
+     * @throws IllegalArgumentException if the key is null or of an unsupported length
+     */
+    @Override
+    public void keyExpansion(byte[] key) {
+        // Check if the key is valid
+        KeySize.of(key);
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    @Override
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        encryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    @Override
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        decryptBlocks(in, inOff, out, outOff, 1);
+    }
+
+    /**
+     * Encrypts consecutive blocks with a single provider call, which lets the intrinsic pipeline them.
+     */
+    @Override
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        process(ciphers().encryptor(), in, inOff, out, outOff, blocks);
+    }
+
+    /**
+     * Decrypts consecutive blocks with a single provider call, which lets the intrinsic pipeline them.
+     */
+    @Override
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        process(ciphers().decryptor(), in, inOff, out, outOff, blocks);
+    }
+
+    /**
+     * Runs blocks through one of the thread's ciphers. ECB without padding keeps no data between calls,
+     * so the cipher is ready for the next call without being reinitialised.
+     *
+     * @param cipher the cipher of the current thread
+     * @param in the array holding the input blocks
+     * @param inOff the offset of the first input block
+     * @param out the array receiving the output blocks
+     * @param outOff the offset at which the output is written
+     * @param blocks the number of blocks
+     */
+    private static void process(Cipher cipher, byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        int len = blocks * BLOCK_SIZE;
+        Objects.checkFromIndexSize(inOff, len, in.length);
+        Objects.checkFromIndexSize(outOff, len, out.length);
+        try {
+            cipher.update(in, inOff, len, out, outOff);
+        } catch (ShortBufferException e) {
+            // Cannot happen, the output range has been checked
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the current thread's ciphers, (re)initialising them if the key has changed.
+     *
+     * @return the ciphers for the current key
+     * @throws IllegalStateException if no key has been expanded yet
+     */
+    private Ciphers ciphers() {
+        SecretKeySpec current = key;
+        if (current == null) {
+            throw new IllegalStateException("Key must be expanded before encrypting or decrypting");
+        }
+        Ciphers local = ciphers.get();
+        if (local == null || local.key() != current) {
+            try {
+                Cipher encryptor = Cipher.getInstance(TRANSFORMATION);
+                encryptor.init(Cipher.ENCRYPT_MODE, current);
+                Cipher decryptor = Cipher.getInstance(TRANSFORMATION);
+                decryptor.init(Cipher.DECRYPT_MODE, current);
+                local = new Ciphers(current, encryptor, decryptor);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES is not available from the JCE provider", e);
+            }
+            ciphers.set(local);
+        }
+        return local;
+    }
+}
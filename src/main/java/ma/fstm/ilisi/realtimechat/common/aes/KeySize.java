@@ -0,0 +1,143 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+/**
+ * KeySize enum lists the AES key sizes supported by the engines.
+ * The size is carried by the length of the key itself, so a peer receiving a key knows which
+ * variant to run without any extra negotiation. Smaller keys mean fewer rounds per block:
+ * AES-128 runs 10 rounds where AES-256 runs 14.
+ */
+public enum KeySize {
+    /**
+     * AES-128: 16-byte key, 10 rounds.
+     */
+    AES_128(16),
+
+    /**
+     * AES-192: 24-byte key, 12 rounds.
+     */
+    AES_192(24),
+
+    /**
+     * AES-256: 32-byte key, 14 rounds.
+     */
+    AES_256(32);
+
+    /**
+     * System property selecting the size of the keys generated by AESEncryption: {@code 128}, {@code 192} or {@code 256}.
+     */
+    public static final String KEY_SIZE_PROPERTY = "realtimechat.aes.keysize";
+
+    /**
+     * Length of the key in bytes.
+     */
+    private final int keyLength;
+
+    /**
+     * Constructs a key size.
+     *
+     * @param keyLength the length of the key in bytes
+     */
+    KeySize(int keyLength) {
+        this.keyLength = keyLength;
+    }
+
+    /**
+     * Returns the length of the key in bytes.
+     *
+     * @return the key length
+     */
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    /**
+     * Returns the number of 32-bit words comprising the key (NK in FIPS-197).
+     *
+     * @return the key length in words
+     */
+    public int getKeyWords() {
+        return keyLength / 4;
+    }
+
+    /**
+     * Returns the number of rounds (NR in FIPS-197), which is NK + 6.
+     *
+     * @return the number of rounds
+     */
+    public int getRounds() {
+        return getKeyWords() + 6;
+    }
+
+    /**
+     * Returns the length of the key in bits.
+     *
+     * @return the key size in bits
+     */
+    public int getBits() {
+        return keyLength * 8;
+    }
+
+    /**
+     * Returns the size of the given key.
+     *
+     * @param key the key
+     * @return the matching key size
+     * @throws IllegalArgumentException if the key is null or not 16, 24 or 32 bytes long
+     */
+    public static KeySize of(byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        return fromKeyLength(key.length);
+    }
+
+    /**
+     * Returns the key size with the given length in bytes.
+     *
+     * @param keyLength the length of the key in bytes
+     * @return the matching key size
+     * @throws IllegalArgumentException if no key size has that length
+     */
+    public static KeySize fromKeyLength(int keyLength) {
+        for (KeySize size : values()) {
+            if (size.keyLength == keyLength) {
+                return size;
+            }
+        }
+        throw new IllegalArgumentException("Key must be 16, 24 or 32 bytes for AES-128, AES-192 or AES-256");
+    }
+
+    /**
+     * Returns the key size with the given length in bits.
+     *
+     * @param bits the length of the key in bits
+     * @return the matching key size
+     * @throws IllegalArgumentException if no key size has that length
+     */
+    public static KeySize fromBits(int bits) {
+        for (KeySize size : values()) {
+            if (size.getBits() == bits) {
+                return size;
+            }
+        }
+        throw new IllegalArgumentException("Unknown AES key size: " + bits);
+    }
+
+    /**
+     * Returns the key size named by the {@value #KEY_SIZE_PROPERTY} system property, AES-256 by default.
+     *
+     * @return the configured key size
+     * @throws IllegalArgumentException if the property is not 128, 192 or 256
+     */
+    public static KeySize getDefault() {
+        String setting = System.getProperty(KEY_SIZE_PROPERTY);
+        if (setting == null || setting.isBlank()) {
+            return AES_256;
+        }
+        try {
+            return fromBits(Integer.parseInt(setting.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown AES key size: " + setting, e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import java.security.SecureRandom;
+
+/**
+ * SecureRandomIVGenerator class hands out IVs taken from a per-thread SecureRandom.
+ * Each thread seeds its own SecureRandom once, so threads never contend on a shared instance, and refills a
+ * buffer of random bytes in one call, so the underlying source (e.g. /dev/urandom) is read once per buffer
+ * instead of once per message.
+ */
+public class SecureRandomIVGenerator implements IVGenerator {
+    /**
+     * Default size of the per-thread buffer of random bytes.
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * Random source and pre-generated bytes of one thread.
+     */
+    private static final class Pool {
+        private final SecureRandom random = new SecureRandom();
+        private final byte[] bytes;
+        private int position;
+
+        Pool(int size) {
+            this.bytes = new byte[size];
+            this.position = size;
+        }
+    }
+
+    /**
+     * Pools of the threads using this generator.
+     */
+    private final ThreadLocal<Pool> pools;
+
+    /**
+     * Constructs a generator with the default buffer size.
+     */
+    public SecureRandomIVGenerator() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a generator pre-generating {@code bufferSize} random bytes per refill.
+     *
+     * @param bufferSize the size of the per-thread buffer, at least 16 bytes
+     * @throws IllegalArgumentException if the buffer is smaller than one block
+     */
+    public SecureRandomIVGenerator(int bufferSize) {
+        if (bufferSize < BlockCipher.BLOCK_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least 16 bytes");
+        }
+        this.pools = ThreadLocal.withInitial(() -> new Pool(bufferSize));
+    }
+
+    @Override
+    public void nextIV(byte[] dst, int off, int len) {
+        if (len < 0 || len > BlockCipher.BLOCK_SIZE) {
+            throw new IllegalArgumentException("IV length must be between 0 and 16 bytes");
+        }
+        Pool pool = pools.get();
+        if (pool.position + len > pool.bytes.length) {
+            pool.random.nextBytes(pool.bytes);
+            pool.position = 0;
+        }
+        System.arraycopy(pool.bytes, pool.position, dst, off, len);
+        pool.position += len;
+    }
+}
@@ -0,0 +1,77 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorXor class implements the Xor operations with the incubating Vector API, one SIMD register at a time.
+ * It is only loaded once Xor has found the {@code jdk.incubator.vector} module, so JVMs started without it
+ * never resolve these classes.
+ */
+final class VectorXor {
+    /**
+     * Widest vector shape of the CPU, used for bulk ranges.
+     */
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    /**
+     * 128-bit shape, exactly one AES block.
+     */
+    private static final VectorSpecies<Byte> BLOCK_SPECIES = ByteVector.SPECIES_128;
+
+    private VectorXor() {
+    }
+
+    /**
+     * Checks whether the CPU vectors hold at least one block, below which the API is emulated.
+     *
+     * @return true if the vector path is worth using
+     */
+    static boolean isSupported() {
+        return SPECIES.vectorByteSize() >= BlockCipher.BLOCK_SIZE;
+    }
+
+    /**
+     * Writes {@code a[aOff..aOff+len) ^ b[bOff..bOff+len)} to {@code dst[dstOff]}, in ascending order of
+     * whole vectors followed by a scalar tail.
+     *
+     * @param a the array holding the first operand
+     * @param aOff the offset of the first operand
+     * @param b the array holding the second operand
+     * @param bOff the offset of the second operand
+     * @param dst the array receiving the result
+     * @param dstOff the offset at which the result is written
+     * @param len the number of bytes
+     */
+    static void xor(byte[] a, int aOff, byte[] b, int bOff, byte[] dst, int dstOff, int len) {
+        int j = 0;
+        for (int bound = SPECIES.loopBound(len); j < bound; j += SPECIES.length()) {
+            ByteVector.fromArray(SPECIES, a, aOff + j)
+                    .lanewise(VectorOperators.XOR, ByteVector.fromArray(SPECIES, b, bOff + j))
+                    .intoArray(dst, dstOff + j);
+        }
+        for (int bound = len & -BlockCipher.BLOCK_SIZE; j < bound; j += BlockCipher.BLOCK_SIZE) {
+            xorBlock(a, aOff + j, b, bOff + j, dst, dstOff + j);
+        }
+        for (; j < len; j++) {
+            dst[dstOff + j] = (byte) (a[aOff + j] ^ b[bOff + j]);
+        }
+    }
+
+    /**
+     * Writes the XOR of two blocks to {@code dst[dstOff]} with a single 128-bit operation.
+     *
+     * @param a the array holding the first block
+     * @param aOff the offset of the first block
+     * @param b the array holding the second block
+     * @param bOff the offset of the second block
+     * @param dst the array receiving the result
+     * @param dstOff the offset at which the result is written
+     */
+    static void xorBlock(byte[] a, int aOff, byte[] b, int bOff, byte[] dst, int dstOff) {
+        ByteVector.fromArray(BLOCK_SPECIES, a, aOff)
+                .lanewise(VectorOperators.XOR, ByteVector.fromArray(BLOCK_SPECIES, b, bOff))
+                .intoArray(dst, dstOff);
+    }
+}
@@ -0,0 +1,100 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+/**
+ * Xor class combines byte ranges for the modes of operation: CBC chaining and keystream application.
+ * When the {@code jdk.incubator.vector} module is present (started with {@code --add-modules jdk.incubator.vector})
+ * and the CPU has SIMD registers of at least one block, the work goes to VectorXor; otherwise a scalar loop runs.
+ * The choice is made once per JVM and can be forced to the scalar loop with the {@value #VECTOR_PROPERTY}
+ * system property set to {@code false}. Both paths produce the same bytes.
+ */
+final class Xor {
+    /**
+     * System property enabling the Vector API path when it is available, {@code true} by default.
+     */
+    static final String VECTOR_PROPERTY = "realtimechat.aes.vector";
+
+    /**
+     * Name of the module providing the Vector API.
+     */
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    /**
+     * Whether the ranges are combined with the Vector API.
+     */
+    private static final boolean VECTORIZED = vectorAvailable();
+
+    private Xor() {
+    }
+
+    /**
+     * Checks whether the Vector API can be used: enabled by the system property, module resolved at startup
+     * and vectors of at least one block on this CPU. Below that the API falls back to a slow emulation.
+     *
+     * @return true if VectorXor should be used
+     */
+    private static boolean vectorAvailable() {
+        if (!Boolean.parseBoolean(System.getProperty(VECTOR_PROPERTY, "true"))) {
+            return false;
+        }
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            return false;
+        }
+        try {
+            return VectorXor.isSupported();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tells whether the Vector API path is in use in this JVM.
+     *
+     * @return true if the ranges are combined with SIMD instructions
+     */
+    static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * Writes {@code a[aOff..aOff+len) ^ b[bOff..bOff+len)} to {@code dst[dstOff]}.
+     * In the same array, the output may start at or before each input but must not start inside one.
+     *
+     * @param a the array holding the first operand
+     * @param aOff the offset of the first operand
+     * @param b the array holding the second operand
+     * @param bOff the offset of the second operand
+     * @param dst the array receiving the result
+     * @param dstOff the offset at which the result is written
+     * @param len the number of bytes
+     */
+    static void xor(byte[] a, int aOff, byte[] b, int bOff, byte[] dst, int dstOff, int len) {
+        if (VECTORIZED) {
+            VectorXor.xor(a, aOff, b, bOff, dst, dstOff, len);
+            return;
+        }
+        for (int j = 0; j < len; j++) {
+            dst[dstOff + j] = (byte) (a[aOff + j] ^ b[bOff + j]);
+        }
+    }
+
+    /**
+     * Writes the XOR of two blocks to {@code dst[dstOff]}, with the same overlap rules as
+     * {@link #xor(byte[], int, byte[], int, byte[], int, int)}.
+     *
+     * @param a the array holding the first block
+     * @param aOff the offset of the first block
+     * @param b the array holding the second block
+     * @param bOff the offset of the second block
+     * @param dst the array receiving the result
+     * @param dstOff the offset at which the result is written
+     */
+    static void xorBlock(byte[] a, int aOff, byte[] b, int bOff, byte[] dst, int dstOff) {
+        if (VECTORIZED) {
+            VectorXor.xorBlock(a, aOff, b, bOff, dst, dstOff);
+            return;
+        }
+        for (int j = 0; j < BlockCipher.BLOCK_SIZE; j++) {
+            dst[dstOff + j] = (byte) (a[aOff + j] ^ b[bOff + j]);
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package ma.fstm.ilisi.realtimechat.server;
 
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.HistoryEntry;
 import ma.fstm.ilisi.realtimechat.common.IChatClient;
 import ma.fstm.ilisi.realtimechat.common.IChatServer;
+import ma.fstm.ilisi.realtimechat.common.PresenceSnapshot;
+import ma.fstm.ilisi.realtimechat.common.ServerAddress;
 import ma.fstm.ilisi.realtimechat.common.User;
 import ma.fstm.ilisi.realtimechat.common.aes.AESEncryption;
+import ma.fstm.ilisi.realtimechat.common.aes.CipherBackend;
+import ma.fstm.ilisi.realtimechat.common.aes.KeySize;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -15,64 +24,212 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Represents the chat server in the real-time chat application.
  * Extends UnicastRemoteObject and implements IChatServer for RMI support.
+ * Every connected client has its own outbound queue, delivered by a virtual thread (see {@link ClientConnection}):
+ * sending and broadcasting only enqueue, so a slow or unreachable client never holds up the others.
+ * Joins, leaves and status changes go out as numbered deltas (see {@link Presence}), so presence traffic
+ * grows with the number of changes rather than with the square of the number of users. Status changes are
+ * first coalesced over a short window (see {@link PresenceAggregator}).
+ * Registration takes no server-wide lock: the registry maps are updated atomically, with the username taken
+ * under its own ConcurrentHashMap bin, and the fan-out happens on the connections and presence threads,
+ * so concurrent logins scale across cores. The queues are bounded (see {@link DeliveryOptions}), so a client
+ * that falls too far behind is isolated: its system traffic is dropped, or it is disconnected.
+ * Envelopes sent to a user who is not connected are kept on disk (see {@link OfflineStore}) and delivered
+ * in batches when the user registers, including after a restart of the server. Every envelope relayed is also
+ * kept in the conversation history (see {@link HistoryLog}), which clients read a page at a time.
+ * Room posts are encrypted once by the sender and fanned out to the connected members from the room index
+ * (see {@link RoomRegistry}), through the same per-client queues.
+ * Several servers can share the users as a cluster (see {@link ClusterNode}): each owns a consistent-hash slice
+ * of the usernames, clients are sent to the server owning theirs, and messages for users connected elsewhere
+ * are forwarded to their server. Each room is kept by the server owning its slot on the ring, which takes every
+ * call on it and fans posts out to the servers its members are connected to.
  */
 public class ChatServer extends UnicastRemoteObject implements IChatServer {
-    private final Map<IChatClient, User> connectedClients;
-    private final Map<String, IChatClient> clientsByUsername;
+    private final Map<IChatClient, ClientConnection> connectedClients;
+    private final Map<String, ClientConnection> clientsByUsername;
+    private final Presence presence;
+    private final PresenceAggregator presenceAggregator;
+    private final DeliveryOptions deliveryOptions;
+    private final OfflineStore offlineStore;
+    private final HistoryLog history;
+    private final RoomRegistry rooms;
     private final User serverUser;
     private final AESEncryption aes;
+    // Set once the server joins a cluster, null while it runs alone
+    private volatile ClusterNode cluster;
 
     /**
      * Constructs a new ChatServer instance.
      * Initializes the maps for connected clients and clients by username, and sets up the server user and AES encryption.
+     * The key size is that of the {@value KeySize#KEY_SIZE_PROPERTY} system property, AES-256 by default, and
+     * the presence window that of the {@value PresenceAggregator#WINDOW_PROPERTY} property, 200 ms by default.
+     * The limits of the client queues are set by the {@code realtimechat.delivery.*} properties, and the
+     * offline store and the history by the {@code realtimechat.offline.*} and {@code realtimechat.history.*}
+     * properties.
      *
      * @throws RemoteException if a remote communication error occurs
+     * @throws UncheckedIOException if the offline store or the history cannot be opened
      */
     public ChatServer() throws RemoteException {
+        this(PresenceAggregator.getDefaultWindowMillis(), DeliveryOptions.getDefault(), openOfflineStore(),
+                openHistory());
+    }
+
+    /**
+     * Constructs a new ChatServer instance with the given presence window, client queue limits, offline store
+     * and history.
+     *
+     * @param presenceWindowMillis the window over which status changes are coalesced, 0 to publish them at once
+     * @param deliveryOptions the limits of the outbound queue of each client
+     * @param offlineStore where envelopes for users who are not connected are kept
+     * @param history where every relayed envelope is kept
+     * @throws RemoteException if a remote communication error occurs
+     */
+    ChatServer(long presenceWindowMillis, DeliveryOptions deliveryOptions, OfflineStore offlineStore,
+               HistoryLog history) throws RemoteException {
+        this(presenceWindowMillis, deliveryOptions, offlineStore, history, new AESEncryption());
+    }
+
+    /**
+     * Constructs a new ChatServer instance using a given encryption key, such as the key of the cluster it is
+     * about to join, configured by the system properties otherwise.
+     *
+     * @param key the encryption key, 16, 24 or 32 bytes long
+     * @throws RemoteException if a remote communication error occurs
+     * @throws UncheckedIOException if the offline store or the history cannot be opened
+     */
+    ChatServer(byte[] key) throws RemoteException {
+        this(PresenceAggregator.getDefaultWindowMillis(), DeliveryOptions.getDefault(), openOfflineStore(),
+                openHistory(), new AESEncryption(key));
+    }
+
+    /**
+     * Constructs a new ChatServer instance with the given presence window, client queue limits, offline store,
+     * history and encryption.
+     *
+     * @param presenceWindowMillis the window over which status changes are coalesced, 0 to publish them at once
+     * @param deliveryOptions the limits of the outbound queue of each client
+     * @param offlineStore where envelopes for users who are not connected are kept
+     * @param history where every relayed envelope is kept
+     * @param aes the encryption whose key is handed to clients
+     * @throws RemoteException if a remote communication error occurs
+     */
+    ChatServer(long presenceWindowMillis, DeliveryOptions deliveryOptions, OfflineStore offlineStore,
+               HistoryLog history, AESEncryption aes) throws RemoteException {
         this.connectedClients = new ConcurrentHashMap<>();
         this.clientsByUsername = new ConcurrentHashMap<>();
+        this.presence = new Presence(this::broadcastPresence);
+        this.presenceAggregator = new PresenceAggregator(presenceWindowMillis, presence::statusesChanged);
+        this.deliveryOptions = deliveryOptions;
+        this.offlineStore = offlineStore;
+        this.history = history;
+        this.rooms = new RoomRegistry();
         this.serverUser = new User("Server");
-        this.aes = new AESEncryption();
+        this.aes = aes;
+    }
+
+    /**
+     * Makes this server a node of a cluster: binds its node in the registry next to the chat service, then joins
+     * the cluster of the seed, or starts a new one.
+     *
+     * @param registry the registry the chat service is bound in
+     * @param address the address of that registry, naming this node
+     * @param seed the address of a member of the cluster to join, or null to start a new cluster
+     * @throws RemoteException if the node cannot be bound or the seed cannot be reached
+     */
+    void joinCluster(Registry registry, ServerAddress address, ServerAddress seed) throws RemoteException {
+        ClusterNode node = new ClusterNode(address, this);
+        registry.rebind(ClusterNode.CLUSTER_SERVICE, node);
+        cluster = node;
+        if (seed != null) {
+            node.join(seed);
+        }
     }
 
     /**
      * Registers a new client with the chat server.
-     * Adds the client to the connected clients map and broadcasts the updated user list and a join message.
+     * Opens its connection and queues the join, as a presence delta and as a message, for every client.
+     * The connection is added before the join is published, so the new client gets its own join.
+     * A client registering again gets a fresh connection, and the previous one is unregistered.
+     * Envelopes kept for the user while it was offline are queued first, ahead of anything sent from now on.
      *
      * @param client the chat client to be registered
      * @param user the user associated with the client
      * @throws RemoteException if a remote communication error occurs
      */
     @Override
-    public synchronized void registerClient(IChatClient client, User user) throws RemoteException {
-        connectedClients.put(client, user);
-        clientsByUsername.put(user.getUsername(), client);
-        broadcastUserList();
+    public void registerClient(IChatClient client, User user) throws RemoteException {
+        ClientConnection connection = new ClientConnection(client, user, deliveryOptions, this::connectionFailed,
+                presence::getUsers, this::undeliverable);
+        ClientConnection previous = connectedClients.put(client, connection);
+        clientsByUsername.compute(user.getUsername(), (username, current) -> {
+            presenceAggregator.discard(username);
+            presence.joined(user);
+            return connection;
+        });
+        if (offlineStore.hasPending(user.getUsername())) {
+            connection.sendStored(offlineStore);
+        }
+        if (previous != null) {
+            disconnect(previous);
+        }
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.publishJoined(user);
+        }
         broadcastMessage("User " + user.getUsername() + " has joined the chat");
     }
 
     /**
      * Unregisters a client from the chat server.
-     * Removes the client from the connected clients map and broadcasts the updated user list and a leave message.
+     * Closes its connection, dropping what was still queued for it, and queues the leave, as a presence delta
+     * and as a message, for the remaining clients. A client replaced by a newer registration of the same
+     * username leaves silently.
      *
      * @param client the chat client to be unregistered
      * @throws RemoteException if a remote communication error occurs
      */
     @Override
-    public synchronized void unregisterClient(IChatClient client) throws RemoteException {
-        User user = connectedClients.get(client);
-        if (user != null) {
-            user.setOnline(false);
-            connectedClients.remove(client);
-            clientsByUsername.remove(user.getUsername());
-            broadcastUserList();
+    public void unregisterClient(IChatClient client) throws RemoteException {
+        ClientConnection connection = connectedClients.remove(client);
+        if (connection != null) {
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Closes a connection already removed from the connected clients, and publishes the leave unless a newer
+     * connection has taken over its username. The username is released under its own map bin, so a concurrent
+     * registration of the same name is published either before or after the leave, never interleaved with it.
+     *
+     * @param connection the connection
+     */
+    private void disconnect(ClientConnection connection) {
+        User user = connection.getUser();
+        user.setOnline(false);
+        connection.close();
+        boolean[] left = new boolean[1];
+        clientsByUsername.computeIfPresent(user.getUsername(), (username, current) -> {
+            if (current != connection) {
+                return current;
+            }
+            presenceAggregator.discard(username);
+            presence.left(user);
+            left[0] = true;
+            return null;
+        });
+        if (left[0]) {
+            ClusterNode cluster = this.cluster;
+            if (cluster != null) {
+                cluster.publishLeft(user);
+            }
             broadcastMessage("User " + user.getUsername() + " has left the chat");
         }
     }
 
     /**
      * Updates the online status of a user.
-     * Broadcasts the updated user list if the user is found.
+     * The change is broadcast at the end of the presence window, if the user is still connected and its status
+     * then differs from the one last broadcast.
      *
      * @param username the username of the user
      * @param isOnline the new online status of the user
@@ -80,34 +237,424 @@ public class ChatServer extends UnicastRemoteObject implements IChatServer {
      */
     @Override
     public void updateUserStatus(String username, boolean isOnline) throws RemoteException {
-        IChatClient client = clientsByUsername.get(username);
-        if (client != null) {
-            User user = connectedClients.get(client);
-            if (user != null) {
-                user.setOnline(isOnline);
-                broadcastUserList();
+        ClientConnection connection = clientsByUsername.get(username);
+        if (connection != null) {
+            connection.getUser().setOnline(isOnline);
+            presenceAggregator.statusChanged(username, isOnline);
+            ClusterNode cluster = this.cluster;
+            if (cluster != null) {
+                cluster.publishStatus(username, isOnline);
             }
         }
     }
 
     /**
      * Sends a message from a sender to a receiver.
+     * Returns as soon as the message is queued for the receiver, or forwarded to the server it is connected to.
      *
      * @param message the message to be sent
      * @param sender the user who sent the message
      * @param receiver the user who will receive the message
-     * @throws RemoteException if a remote communication error occurs
+     * @throws RemoteException if a remote communication error occurs, or the receiver's server cannot be reached
      */
     @Override
     public void sendMessage(String message, User sender, User receiver) throws RemoteException {
-        IChatClient receiverClient = clientsByUsername.get(receiver.getUsername());
-        if (receiverClient != null) {
-            receiverClient.receiveMessage(message, sender);
+        ServerAddress node = route(receiver.getUsername());
+        if (node != null) {
+            cluster.sendMessage(node, message, sender, receiver);
+            return;
+        }
+        relayMessage(message, sender, receiver);
+    }
+
+    /**
+     * Relays an encrypted envelope from a sender to a receiver, without decoding it.
+     * Returns as soon as the envelope is queued for the receiver; if the receiver predates envelopes, it is
+     * dropped and the sender is told. If the receiver is not connected, the envelope is
+     * kept in the offline store until it registers. Either way it is added to the history of the conversation.
+     * In a cluster, an envelope for a user connected to, or owned by, another server is forwarded to it, and
+     * both servers add it to their history, this one only once the forward succeeded.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     * @throws RemoteException if a remote communication error occurs, or the receiver's server cannot be reached
+     */
+    @Override
+    public void sendEnvelope(Envelope envelope, User sender, User receiver) throws RemoteException {
+        String username = receiver.getUsername();
+        ServerAddress node = route(username);
+        if (node == null) {
+            relayEnvelope(envelope, sender, receiver);
+            return;
+        }
+        cluster.sendEnvelope(node, envelope, sender, receiver);
+        // Only once the other server has it, so a failed forward, and the sender's retry, leave no trace here
+        try {
+            history.append(sender.getUsername(), username, envelope);
+        } catch (IOException e) {
+            System.err.println("Failed to record the message to " + username + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the server a message for a user should be forwarded to.
+     *
+     * @param username the username of the receiver
+     * @return the address of the server, or null if the message is for this one
+     */
+    private ServerAddress route(String username) {
+        ClusterNode cluster = this.cluster;
+        return cluster == null || clientsByUsername.containsKey(username) ? null : cluster.locate(username);
+    }
+
+    /**
+     * Queues a text message for a receiver connected to this server. It is dropped if the receiver is not
+     * connected.
+     *
+     * @param message the message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     */
+    void relayMessage(String message, User sender, User receiver) {
+        ClientConnection connection = clientsByUsername.get(receiver.getUsername());
+        if (connection != null) {
+            connection.sendMessage(message, sender);
+        }
+    }
+
+    /**
+     * Adds an envelope to the history, then queues it for the receiver if it is connected to this server, or
+     * keeps it in the offline store. An envelope kept for a user owned by another server, forwarded here just
+     * as the user left, is handed to that server from the cluster notification thread.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     * @throws RemoteException if the envelope cannot be recorded or kept
+     */
+    void relayEnvelope(Envelope envelope, User sender, User receiver) throws RemoteException {
+        String username = receiver.getUsername();
+        try {
+            history.append(sender.getUsername(), username, envelope);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to record the message to " + username, e);
+        }
+        ClientConnection connection = clientsByUsername.get(username);
+        if (connection != null) {
+            connection.sendEnvelope(envelope, sender);
+            return;
+        }
+        try {
+            offlineStore.append(username, sender, envelope);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to store the message for " + username, e);
+        }
+        // The receiver may have registered, and drained its mailbox, since it was looked up
+        connection = clientsByUsername.get(username);
+        if (connection != null) {
+            connection.sendStored(offlineStore);
+            return;
+        }
+        ClusterNode cluster = this.cluster;
+        if (cluster != null && !cluster.owns(username)) {
+            cluster.submit(() -> handOffStored(username));
+        }
+    }
+
+    /**
+     * Keeps envelopes handed over by another server, and queues them if the recipient is connected here.
+     *
+     * @param recipient the username of the recipient
+     * @param envelopes the envelopes, oldest first
+     * @param senders the sender of each envelope
+     * @throws RemoteException if the envelopes cannot be kept
+     */
+    void storeHandedOff(String recipient, List<Envelope> envelopes, List<User> senders) throws RemoteException {
+        try {
+            for (int i = 0; i < envelopes.size(); i++) {
+                offlineStore.append(recipient, senders.get(i), envelopes.get(i));
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Failed to store the messages handed off for " + recipient, e);
+        }
+        ClientConnection connection = clientsByUsername.get(recipient);
+        if (connection != null) {
+            connection.sendStored(offlineStore);
+        }
+    }
+
+    /**
+     * Hands the mailboxes of the users now owned by other servers over to them, after the cluster grew.
+     * Mailboxes of users still connected here are left to be delivered here. Rooms now kept by other servers
+     * are handed over too; a room that cannot be handed over stays here. Runs on the cluster notification thread.
+     */
+    void rebalance() {
+        ClusterNode cluster = this.cluster;
+        for (String recipient : offlineStore.getRecipients()) {
+            handOffStored(recipient);
+        }
+        for (String room : rooms.getRooms()) {
+            ServerAddress node = cluster.locateRoom(room);
+            if (node != null) {
+                List<String> members = List.copyOf(rooms.remove(room));
+                try {
+                    cluster.sendRoom(node, room, members);
+                } catch (RemoteException e) {
+                    System.err.println("Failed to hand off room " + room + " to " + node + ": " + e.getMessage());
+                    rooms.merge(room, members);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the mailbox of a user over to the server that owns the user, a batch at a time; each batch is removed
+     * from the offline store once the other server has kept it. On failure, the rest stays here. Nothing is
+     * handed over if the user is owned by, or connected to, this server.
+     * Runs on the cluster notification thread only, so handoffs of a mailbox never overlap and no lock is held
+     * across the remote calls.
+     *
+     * @param recipient the username of the recipient
+     */
+    private void handOffStored(String recipient) {
+        ClusterNode cluster = this.cluster;
+        if (cluster.owns(recipient) || clientsByUsername.containsKey(recipient)) {
+            return;
+        }
+        ServerAddress node = cluster.ownerOf(recipient);
+        List<OfflineStore.Message> messages;
+        try {
+            while (!(messages = offlineStore.peek(recipient, deliveryOptions.maxBatch())).isEmpty()) {
+                cluster.sendStored(node, recipient, messages);
+                offlineStore.acknowledge(recipient, messages);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to hand off the messages of " + recipient + " to " + node + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a user connected to another server of the cluster, and announces it like a local one.
+     *
+     * @param user the user
+     */
+    void remoteJoined(User user) {
+        presenceAggregator.discard(user.getUsername());
+        presence.joined(user);
+        broadcastMessage("User " + user.getUsername() + " has joined the chat");
+    }
+
+    /**
+     * Removes a user who left another server of the cluster, unless it is connected here.
+     *
+     * @param user the user
+     */
+    void remoteLeft(User user) {
+        if (!clientsByUsername.containsKey(user.getUsername())) {
+            presenceAggregator.discard(user.getUsername());
+            presence.left(user);
+            broadcastMessage("User " + user.getUsername() + " has left the chat");
+        }
+    }
+
+    /**
+     * Updates the status of a user connected to another server of the cluster.
+     *
+     * @param username the username of the user
+     * @param online the new status
+     */
+    void remoteStatusChanged(String username, boolean online) {
+        presenceAggregator.statusChanged(username, online);
+    }
+
+    /**
+     * Creates a room, with the user as its first member.
+     *
+     * @param room the name of the room
+     * @param user the user creating the room
+     * @return true if the room was created, false if a room of that name already exists
+     * @throws RemoteException if a remote communication error occurs
+     * @throws IllegalArgumentException if the name is blank or too long
+     */
+    @Override
+    public boolean createRoom(String room, User user) throws RemoteException {
+        ServerAddress node = routeRoom(room);
+        return node == null ? rooms.create(room, user.getUsername()) : cluster.sendCreateRoom(node, room, user);
+    }
+
+    /**
+     * Adds a user to the members of a room.
+     *
+     * @param room the name of the room
+     * @param user the user joining the room
+     * @return true if the user is a member, false if there is no such room
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public boolean joinRoom(String room, User user) throws RemoteException {
+        ServerAddress node = routeRoom(room);
+        return node == null ? rooms.join(room, user.getUsername()) : cluster.sendJoinRoom(node, room, user);
+    }
+
+    /**
+     * Removes a user from the members of a room, and the room with its last member.
+     *
+     * @param room the name of the room
+     * @param user the user leaving the room
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void leaveRoom(String room, User user) throws RemoteException {
+        ServerAddress node = routeRoom(room);
+        if (node == null) {
+            rooms.leave(room, user.getUsername());
+        } else {
+            cluster.sendLeaveRoom(node, room, user);
+        }
+    }
+
+    /**
+     * Queues an encrypted message for every connected member of a room but the sender, without decoding it.
+     * Returns once the message is queued for all of them; each enqueue takes constant time. In a cluster, the
+     * post goes to the server keeping the room.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member posting the message
+     * @return true if the message was posted, false if there is no such room or the sender is not a member
+     * @throws RemoteException if a remote communication error occurs, or the server keeping the room cannot be
+     *         reached
+     */
+    @Override
+    public boolean postToRoom(String room, Envelope envelope, User sender) throws RemoteException {
+        ServerAddress node = routeRoom(room);
+        return node == null ? fanOutRoomEnvelope(room, envelope, sender)
+                : cluster.sendPostToRoom(node, room, envelope, sender);
+    }
+
+    /**
+     * Returns the names of the existing rooms, on every server of the cluster.
+     *
+     * @return the names, sorted
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public List<String> getRooms() throws RemoteException {
+        ClusterNode cluster = this.cluster;
+        return cluster == null ? rooms.getRooms() : cluster.getRooms();
+    }
+
+    /**
+     * Returns the server keeping a room.
+     *
+     * @param room the name of the room
+     * @return the address of the server, or null if it is this one
+     */
+    private ServerAddress routeRoom(String room) {
+        ClusterNode cluster = this.cluster;
+        return cluster == null ? null : cluster.locateRoom(room);
+    }
+
+    /**
+     * Fans a post out from a room kept by this server: members connected here get it queued, and those connected
+     * to other servers get it through one call per server. A server that cannot be reached misses the post.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member posting the message
+     * @return true if the message was posted, false if there is no such room or the sender is not a member
+     */
+    boolean fanOutRoomEnvelope(String room, Envelope envelope, User sender) {
+        Set<String> members = rooms.getMembers(room);
+        String username = sender.getUsername();
+        if (!members.contains(username)) {
+            return false;
+        }
+        ClusterNode cluster = this.cluster;
+        Map<ServerAddress, List<String>> remote = new HashMap<>();
+        for (String member : members) {
+            if (!member.equals(username)) {
+                ClientConnection connection = clientsByUsername.get(member);
+                ServerAddress node;
+                if (connection != null) {
+                    connection.sendRoomEnvelope(room, envelope, sender);
+                } else if (cluster != null && (node = cluster.locationOf(member)) != null) {
+                    remote.computeIfAbsent(node, address -> new ArrayList<>()).add(member);
+                }
+            }
+        }
+        for (Map.Entry<ServerAddress, List<String>> entry : remote.entrySet()) {
+            try {
+                cluster.sendRoomEnvelope(entry.getKey(), room, envelope, sender, entry.getValue());
+            } catch (RemoteException e) {
+                System.err.println("Failed to relay a post to " + room + " to " + entry.getKey() + ": "
+                        + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues a room post, fanned out by the server keeping the room, for members connected to this server.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member who posted the message
+     * @param receivers the usernames of the members
+     */
+    void relayRoomEnvelope(String room, Envelope envelope, User sender, List<String> receivers) {
+        for (String receiver : receivers) {
+            ClientConnection connection = clientsByUsername.get(receiver);
+            if (connection != null) {
+                connection.sendRoomEnvelope(room, envelope, sender);
+            }
         }
     }
 
     /**
-     * Returns the encryption key used by the server.
+     * Returns the connected users with the sequence number of the last presence change they include.
+     *
+     * @return the current presence snapshot
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public PresenceSnapshot getPresenceSnapshot() throws RemoteException {
+        return presence.snapshot();
+    }
+
+    /**
+     * Returns a page of the history of the conversation between two users, read from the history segments.
+     *
+     * @param user the user asking for the history
+     * @param peer the other user of the conversation
+     * @param beforeSequence the page ends just before this sequence number
+     * @param limit the largest number of messages to return, capped at {@value HistoryLog#MAX_PAGE_SIZE}
+     * @return the messages, oldest first
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public List<HistoryEntry> fetchHistory(User user, User peer, long beforeSequence, int limit)
+            throws RemoteException {
+        return history.page(user.getUsername(), peer.getUsername(), beforeSequence, limit);
+    }
+
+    /**
+     * Returns the server of the cluster that owns a user, where its client should register.
+     *
+     * @param username the username of the user
+     * @return the address of the server, or null if this server is not part of a cluster
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public ServerAddress getHomeServer(String username) throws RemoteException {
+        ClusterNode cluster = this.cluster;
+        return cluster == null ? null : cluster.ownerOf(username);
+    }
+
+    /**
+     * Returns the encryption key used by the server. Its length tells clients the AES key size of this deployment.
      *
      * @return the encryption key
      * @throws RemoteException if a remote communication error occurs
@@ -117,57 +664,203 @@ public class ChatServer extends UnicastRemoteObject implements IChatServer {
         return aes.getKey();
     }
 
+    /**
+     * Stops the server's background work, including its notifications to the other servers of the cluster, the
+     * delivery threads of the connected clients, the presence fan-out thread and the status flush scheduler, and
+     * forces the offline store and the history to disk. Envelopes still in the store are delivered by the next
+     * server started on the same directory.
+     */
+    public void shutdown() {
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.close();
+        }
+        connectedClients.values().forEach(ClientConnection::shutdown);
+        presenceAggregator.close();
+        presence.close();
+        offlineStore.close();
+        history.close();
+    }
+
+    /**
+     * Returns the offline store.
+     *
+     * @return the offline store
+     */
+    OfflineStore getOfflineStore() {
+        return offlineStore;
+    }
+
+    /**
+     * Returns the cluster node of the server.
+     *
+     * @return the node, or null if the server is not part of a cluster
+     */
+    ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Returns the rooms kept by this server.
+     *
+     * @return the room registry
+     */
+    RoomRegistry getRoomRegistry() {
+        return rooms;
+    }
+
+    /**
+     * Returns the users connected to this server.
+     *
+     * @return the users, in no particular order
+     */
+    List<User> getLocalUsers() {
+        return clientsByUsername.values().stream().map(ClientConnection::getUser).toList();
+    }
+
+    /**
+     * Returns the aggregator coalescing status changes, whose counters tell how many were coalesced.
+     *
+     * @return the presence aggregator
+     */
+    PresenceAggregator getPresenceAggregator() {
+        return presenceAggregator;
+    }
+
+    /**
+     * Returns the connection of a user, whose gauges tell how far behind the client is.
+     *
+     * @param username the username of the user
+     * @return the connection, or null if the user is not connected
+     */
+    ClientConnection getConnection(String username) {
+        return clientsByUsername.get(username);
+    }
+
     /**
      * Broadcasts a message to all connected clients.
      *
      * @param message the message to be broadcasted
      */
     private void broadcastMessage(String message) {
-        connectedClients.keySet().forEach(client -> {
-            try {
-                client.receiveMessage(message, serverUser);
-            } catch (RemoteException e) {
-                System.err.println("Failed to send message to client: " + e.getMessage());
-                try {
-                    unregisterClient(client);
-                } catch (RemoteException ex) {
-                    System.err.println("Failed to unregister client: " + ex.getMessage());
-                }
-            }
-        });
+        connectedClients.values().forEach(connection -> connection.sendSystemMessage(message, serverUser));
     }
 
     /**
-     * Broadcasts the updated user list to all connected clients.
+     * Broadcasts a presence change to all connected clients.
+     *
+     * @param event the presence change
      */
-    private void broadcastUserList() {
-        List<User> users = new ArrayList<>(connectedClients.values());
-        connectedClients.keySet().forEach(client -> {
-            try {
-                client.updateUserList(users);
-            } catch (RemoteException e) {
-                System.err.println("Failed to update user list for client: " + e.getMessage());
-                try {
-                    unregisterClient(client);
-                } catch (RemoteException ex) {
-                    System.err.println("Failed to unregister client: " + ex.getMessage());
-                }
+    private void broadcastPresence(Presence.Event event) {
+        connectedClients.values().forEach(connection -> connection.sendPresence(event));
+    }
+
+    /**
+     * Unregisters the client of a connection whose delivery failed or whose queue overflowed.
+     * Called from the delivery thread of that connection, or from the thread of the sender that found it full.
+     *
+     * @param connection the failed connection
+     */
+    private void connectionFailed(ClientConnection connection) {
+        if (connectedClients.remove(connection.getClient(), connection)) {
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Tells the sender of an envelope that it was dropped because the client of the receiver predates envelopes.
+     * The server never decrypts envelopes, so it cannot turn one into the legacy text such a client reads.
+     * Called from the delivery thread of the receiver; a sender connected to another server is told through it.
+     *
+     * @param sender the user who sent the envelope
+     * @param receiver the user whose client predates envelopes
+     */
+    private void undeliverable(User sender, User receiver) {
+        String notice = "Message to " + receiver.getUsername()
+                + " was not delivered: their client is too old to read it";
+        ServerAddress node = route(sender.getUsername());
+        if (node == null) {
+            ClientConnection connection = clientsByUsername.get(sender.getUsername());
+            if (connection != null) {
+                connection.sendSystemMessage(notice, serverUser);
             }
-        });
+            return;
+        }
+        try {
+            cluster.sendMessage(node, notice, serverUser, sender);
+        } catch (RemoteException e) {
+            System.err.println("Failed to notify " + sender.getUsername() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fetches the encryption key of a cluster from one of its servers, so all the clients of the cluster share it.
+     *
+     * @param seed the address of a server of the cluster
+     * @return the encryption key
+     * @throws RemoteException if the server cannot be reached
+     * @throws NotBoundException if no chat server is bound at that address
+     */
+    private static byte[] fetchEncryptionKey(ServerAddress seed) throws RemoteException, NotBoundException {
+        return ((IChatServer) seed.lookup(ServerAddress.CHAT_SERVICE)).getEncryptionKey();
+    }
+
+    /**
+     * Opens the offline store configured by the system properties.
+     *
+     * @return the offline store
+     * @throws UncheckedIOException if the store cannot be opened
+     */
+    private static OfflineStore openOfflineStore() {
+        try {
+            return OfflineStore.openDefault();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the offline store", e);
+        }
+    }
+
+    /**
+     * Opens the history configured by the system properties.
+     *
+     * @return the history
+     * @throws UncheckedIOException if the history cannot be opened
+     */
+    private static HistoryLog openHistory() {
+        try {
+            return HistoryLog.openDefault();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the history", e);
+        }
     }
 
     /**
      * Main method to start the chat server.
-     * Creates a new ChatServer instance, binds it to the RMI registry, and starts the server.
+     * Creates a new ChatServer instance, binds it to the RMI registry at the {@value ClusterNode#ADDRESS_PROPERTY}
+     * address, and starts the server. With a {@value ClusterNode#SEED_PROPERTY} address, the server takes the
+     * encryption key of that cluster and joins it; otherwise it starts a cluster of its own.
      *
      * @param args command-line arguments
      */
     public static void main(String[] args) {
         try {
-            ChatServer server = new ChatServer();
-            Registry registry = LocateRegistry.createRegistry(1099);
-            registry.rebind("ChatService", server);
+            ServerAddress address = ClusterNode.getDefaultAddress();
+            ServerAddress seed = ClusterNode.getDefaultSeed();
+            ChatServer server = seed == null ? new ChatServer() : new ChatServer(fetchEncryptionKey(seed));
+            Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+            Registry registry = LocateRegistry.createRegistry(address.getPort());
+            registry.rebind(ServerAddress.CHAT_SERVICE, server);
+            server.joinCluster(registry, address, seed);
             System.out.println("Chat Server is running...");
+            System.out.println("Cluster node: " + address + ", members " + server.cluster.getMembers());
+            System.out.println("AES backend: " + CipherBackend.getDefault().getName());
+            System.out.println("AES key size: " + server.aes.getKeySize().getBits() + " bits");
+            System.out.println("Presence window: " + server.presenceAggregator.getWindowMillis() + " ms");
+            System.out.println("Client queues: " + server.deliveryOptions.capacity() + " calls, overflow policy "
+                    + server.deliveryOptions.policy().getName());
+            System.out.println("Offline store: " + server.offlineStore.getDirectory().toAbsolutePath() + ", "
+                    + server.offlineStore.getPendingCount() + " messages pending");
+            System.out.println("History: " + server.history.getDirectory().toAbsolutePath() + ", "
+                    + server.history.getConversationCount() + " conversations");
         } catch (Exception e) {
             System.err.println("Server exception: " + e.getMessage());
             e.printStackTrace();
@@ -0,0 +1,588 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.IChatClient;
+import ma.fstm.ilisi.realtimechat.common.RemoteCompatibility;
+import ma.fstm.ilisi.realtimechat.common.User;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Server side of a connected client: its outbound queue and the virtual thread delivering it.
+ * Sending only enqueues the call, so the sender's RMI thread, or a broadcast loop, never waits for the
+ * receiver; calls to one client are made in the order they were queued, one at a time.
+ * The queue is bounded: when it is full, the {@link OverflowPolicy} of the {@link DeliveryOptions} decides
+ * whether to drop old system traffic, make the sender wait a little, or disconnect the client. The lag gauges
+ * tell how far behind the client is. A call that fails, or an overflow the policy cannot absorb, closes the
+ * connection and reports it to the server, once.
+ * Envelopes waiting one after the other at the head of the queue are delivered together, up to the batch size,
+ * through {@link IChatClient#receiveMessages(List, List)}, optionally after lingering for more to arrive.
+ * The envelopes kept for the user while it was offline are delivered the same way, a batch at a time, and
+ * removed from the {@link OfflineStore} only once the client has taken them.
+ */
+final class ClientConnection {
+
+    /**
+     * Remote call waiting in the queue of a connection.
+     */
+    @FunctionalInterface
+    private interface Delivery {
+        /**
+         * Makes the remote call.
+         *
+         * @param connection the connection delivering the call
+         * @throws RemoteException if a remote communication error occurs
+         */
+        void deliver(ClientConnection connection) throws RemoteException;
+    }
+
+    /**
+     * Queued call with what the overflow policy, the lag gauge and the batching need to know about it.
+     *
+     * @param delivery the remote call
+     * @param droppable whether the call may be dropped to make room: system messages and presence deltas
+     * @param enqueuedNanos when the call was queued, from {@link System#nanoTime()}
+     * @param envelope the envelope delivered by the call, null if it is not an envelope
+     * @param sender the sender of the envelope, null if it is not an envelope
+     */
+    private record Pending(Delivery delivery, boolean droppable, long enqueuedNanos, Envelope envelope, User sender) {
+    }
+
+    /**
+     * Queued call draining the mailbox of the user; it makes its own remote calls, counted as they are made.
+     *
+     * @param store the offline store holding the mailbox
+     */
+    private record Drain(OfflineStore store) implements Delivery {
+        @Override
+        public void deliver(ClientConnection connection) throws RemoteException {
+            connection.deliverStored(store);
+        }
+    }
+
+    /**
+     * Queued after {@link #close()} to wake the delivery thread up so it can exit.
+     */
+    private static final Pending CLOSE = new Pending(connection -> { }, false, 0, null, null);
+
+    private final IChatClient client;
+    private final User user;
+    private final DeliveryOptions options;
+    private final BlockingQueue<Pending> queue;
+    private final Consumer<ClientConnection> onFailure;
+    private final Supplier<List<User>> userList;
+    private final BiConsumer<User, User> onUndeliverable;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Thread deliveryThread;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    // Set once the client turns out to predate envelopes, presence deltas, batched statuses, batches or rooms;
+    // delivery thread only
+    private boolean legacyEnvelopes;
+    private boolean legacyPresence;
+    private boolean legacyStatuses;
+    private boolean legacyBatches;
+    private boolean legacyRooms;
+    // Call taken from the queue while collecting a batch it cannot join, delivered next; delivery thread only
+    private Pending carried;
+
+    /**
+     * Constructs a connection and starts its delivery thread.
+     *
+     * @param client the remote client
+     * @param user the user logged in on the client
+     * @param options the limits of the outbound queue
+     * @param onFailure called once, if a remote call fails or the queue overflows
+     * @param userList supplies the full list of users sent instead of deltas to clients that predate them
+     * @param onUndeliverable called with the sender and the user of an envelope dropped because the client
+     *                        predates envelopes
+     */
+    ClientConnection(IChatClient client, User user, DeliveryOptions options, Consumer<ClientConnection> onFailure,
+                     Supplier<List<User>> userList, BiConsumer<User, User> onUndeliverable) {
+        this.client = client;
+        this.user = user;
+        this.options = options;
+        this.queue = new LinkedBlockingQueue<>(options.capacity());
+        this.onFailure = onFailure;
+        this.userList = userList;
+        this.onUndeliverable = onUndeliverable;
+        this.deliveryThread = Thread.ofVirtual()
+                .name("chat-delivery-" + user.getUsername())
+                .start(this::deliverAll);
+    }
+
+    /**
+     * Returns the remote client.
+     *
+     * @return the client
+     */
+    IChatClient getClient() {
+        return client;
+    }
+
+    /**
+     * Returns the user logged in on the client.
+     *
+     * @return the user
+     */
+    User getUser() {
+        return user;
+    }
+
+    /**
+     * Returns the number of calls waiting to be delivered.
+     *
+     * @return the queue length, 0 once the connection is closed
+     */
+    int getPendingCount() {
+        return closed.get() ? 0 : queue.size();
+    }
+
+    /**
+     * Returns how long the oldest call still queued has been waiting: how far behind the client is.
+     *
+     * @return the lag in milliseconds, 0 if nothing is queued
+     */
+    long getLagMillis() {
+        Pending oldest = queue.peek();
+        if (oldest == null || oldest == CLOSE) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.enqueuedNanos());
+    }
+
+    /**
+     * Returns the number of calls delivered to the client.
+     *
+     * @return the count
+     */
+    long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * Returns the number of remote calls made to the client; a batch of envelopes counts as one.
+     *
+     * @return the count
+     */
+    long getCallCount() {
+        return calls.sum();
+    }
+
+    /**
+     * Returns the number of calls dropped to make room in the queue.
+     *
+     * @return the count
+     */
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Checks whether the connection has been closed.
+     *
+     * @return true if closed
+     */
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Queues a chat message in text form. It is never dropped to make room.
+     *
+     * @param message the message
+     * @param sender the user who sent the message
+     */
+    void sendMessage(String message, User sender) {
+        enqueue(connection -> connection.client.receiveMessage(message, sender), false);
+    }
+
+    /**
+     * Queues a system message, such as a join or leave notice. It may be dropped to make room.
+     *
+     * @param message the message
+     * @param sender the user the server sends system messages as
+     */
+    void sendSystemMessage(String message, User sender) {
+        enqueue(connection -> connection.client.receiveMessage(message, sender), true);
+    }
+
+    /**
+     * Queues an encrypted envelope. A client that predates envelopes cannot read it, so it is dropped for that
+     * client and the sender is told; it is remembered so later envelopes are dropped without trying.
+     * It is never dropped to make room.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     */
+    void sendEnvelope(Envelope envelope, User sender) {
+        enqueue(new Pending(connection -> connection.deliverEnvelope(envelope, sender), false, System.nanoTime(),
+                envelope, sender));
+    }
+
+    /**
+     * Queues an encrypted envelope posted to a room. A client that predates rooms gets it as an envelope from
+     * the sender, or not at all if it also predates envelopes; it is remembered so later posts go straight to
+     * that form.
+     * It is never dropped to make room.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the user who posted the message
+     */
+    void sendRoomEnvelope(String room, Envelope envelope, User sender) {
+        enqueue(connection -> connection.deliverRoomEnvelope(room, envelope, sender), false);
+    }
+
+    /**
+     * Queues the delivery of the envelopes waiting for the user in the offline store. They are read and
+     * delivered in batches when the call reaches the head of the queue, so a large mailbox does not fill the
+     * queue, and each batch is acknowledged once delivered: if the client fails, the rest stays in the store.
+     *
+     * @param store the offline store
+     */
+    void sendStored(OfflineStore store) {
+        enqueue(new Pending(new Drain(store), false, System.nanoTime(), null, null));
+    }
+
+    /**
+     * Queues a presence change. A client that predates presence deltas, or batched status changes, gets the
+     * full list of users through updateUserList instead, as it stands when the call is made. It may be dropped
+     * to make room: the client notices the gap and fetches a snapshot.
+     *
+     * @param event the presence change
+     */
+    void sendPresence(Presence.Event event) {
+        enqueue(connection -> connection.deliverPresence(event), true);
+    }
+
+    /**
+     * Closes the connection: pending calls are dropped and the delivery thread exits after its current call.
+     *
+     * @return true if the connection was open, false if it was already closed
+     */
+    boolean close() {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+        queue.clear();
+        // If a racing send refilled the queue, the delivery thread wakes up on that call instead
+        queue.offer(CLOSE);
+        return true;
+    }
+
+    /**
+     * Closes the connection and interrupts its delivery thread, so a call in progress does not outlive the
+     * server.
+     */
+    void shutdown() {
+        close();
+        deliveryThread.interrupt();
+    }
+
+    /**
+     * Adds a call to the queue, unless the connection is closed, applying the overflow policy if it is full.
+     *
+     * @param delivery the call
+     * @param droppable whether the call may be dropped to make room
+     */
+    private void enqueue(Delivery delivery, boolean droppable) {
+        enqueue(new Pending(delivery, droppable, System.nanoTime(), null, null));
+    }
+
+    /**
+     * Adds a call to the queue, unless the connection is closed, applying the overflow policy if it is full.
+     *
+     * @param pending the call
+     */
+    private void enqueue(Pending pending) {
+        if (closed.get()) {
+            return;
+        }
+        boolean droppable = pending.droppable();
+        if (queue.offer(pending)) {
+            return;
+        }
+        switch (options.policy()) {
+            case DROP_OLDEST -> {
+                while (dropOldest()) {
+                    if (queue.offer(pending)) {
+                        return;
+                    }
+                }
+                if (droppable) {
+                    dropped.increment();
+                    return;
+                }
+            }
+            case BLOCK -> {
+                try {
+                    if (queue.offer(pending, options.blockMillis(), TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            case DISCONNECT -> {
+            }
+        }
+        overflow();
+    }
+
+    /**
+     * Removes the oldest droppable call from the queue.
+     *
+     * @return true if a call was removed
+     */
+    private boolean dropOldest() {
+        for (Iterator<Pending> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().droppable()) {
+                it.remove();
+                dropped.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Disconnects a client whose queue overflowed.
+     */
+    private void overflow() {
+        if (close()) {
+            System.err.println("Client " + user.getUsername() + " is too slow (" + options.capacity()
+                    + " calls queued, policy " + options.policy().getName() + "), disconnecting");
+            onFailure.accept(this);
+        }
+    }
+
+    /**
+     * Delivers an envelope. Clients that predate envelopes only read the legacy CBC layout, which the server
+     * cannot produce without looking inside, so the envelope is dropped for them and reported to the server,
+     * which tells the sender.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    private void deliverEnvelope(Envelope envelope, User sender) throws RemoteException {
+        if (!legacyEnvelopes) {
+            try {
+                client.receiveEnvelope(envelope, sender);
+                return;
+            } catch (RemoteException e) {
+                if (!RemoteCompatibility.isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                legacyEnvelopes = true;
+            }
+        }
+        onUndeliverable.accept(sender, user);
+    }
+
+    /**
+     * Delivers a room post, falling back to a plain envelope for clients that predate rooms.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the user who posted the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    private void deliverRoomEnvelope(String room, Envelope envelope, User sender) throws RemoteException {
+        if (!legacyRooms) {
+            try {
+                client.receiveRoomEnvelope(room, envelope, sender);
+                return;
+            } catch (RemoteException e) {
+                if (!RemoteCompatibility.isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                legacyRooms = true;
+            }
+        }
+        deliverEnvelope(envelope, sender);
+    }
+
+    /**
+     * Delivers a presence change, falling back to the full list of users for clients that predate deltas. A batch
+     * of status changes falls back to it on its own for clients that only predate batched statuses; the list
+     * leaves such a client without a sequence number, so it loads a snapshot on the next delta.
+     *
+     * @param event the presence change
+     * @throws RemoteException if a remote communication error occurs
+     */
+    private void deliverPresence(Presence.Event event) throws RemoteException {
+        boolean statuses = event.change() == Presence.Change.STATUSES_CHANGED;
+        if (!legacyPresence && !(statuses && legacyStatuses)) {
+            try {
+                switch (event.change()) {
+                    case JOINED -> client.userJoined(event.user(), event.sequence());
+                    case LEFT -> client.userLeft(event.user(), event.sequence());
+                    case STATUSES_CHANGED -> client.statusesChanged(event.users(), event.sequence());
+                }
+                return;
+            } catch (RemoteException e) {
+                if (!RemoteCompatibility.isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                if (statuses) {
+                    legacyStatuses = true;
+                } else {
+                    legacyPresence = true;
+                }
+            }
+        }
+        client.updateUserList(userList.get());
+    }
+
+    /**
+     * Collects the envelopes following the first one at the head of the queue, up to the batch size, waiting up
+     * to the linger time for more. The first call that is not an envelope is kept for the next round.
+     *
+     * @param first the envelope taken from the queue
+     * @return the envelopes to deliver together, starting with the first
+     * @throws InterruptedException if interrupted while lingering
+     */
+    private List<Pending> collectBatch(Pending first) throws InterruptedException {
+        List<Pending> batch = new ArrayList<>();
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.lingerMillis());
+        while (batch.size() < options.maxBatch()) {
+            Pending next = queue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || (next = queue.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+                    break;
+                }
+            }
+            if (next.envelope() == null) {
+                carried = next;
+                break;
+            }
+            batch.add(next);
+        }
+        return batch;
+    }
+
+    /**
+     * Delivers envelopes in one call, or one by one to clients that predate batches.
+     *
+     * @param batch the envelopes
+     * @throws RemoteException if a remote communication error occurs
+     */
+    private void deliverBatch(List<Pending> batch) throws RemoteException {
+        if (!legacyBatches) {
+            List<Envelope> envelopes = new ArrayList<>(batch.size());
+            List<User> senders = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                envelopes.add(pending.envelope());
+                senders.add(pending.sender());
+            }
+            try {
+                client.receiveMessages(envelopes, senders);
+                calls.increment();
+                delivered.add(batch.size());
+                return;
+            } catch (RemoteException e) {
+                if (!RemoteCompatibility.isUnsupportedMethod(e)) {
+                    throw e;
+                }
+                legacyBatches = true;
+            }
+        }
+        for (Pending pending : batch) {
+            deliver(pending);
+        }
+    }
+
+    /**
+     * Delivers the mailbox of the user, a batch at a time, until it is empty or the connection is closed.
+     *
+     * @param store the offline store
+     * @throws RemoteException if a remote communication error occurs
+     */
+    private void deliverStored(OfflineStore store) throws RemoteException {
+        String username = user.getUsername();
+        List<OfflineStore.Message> messages;
+        while (!closed.get() && !(messages = store.peek(username, options.maxBatch())).isEmpty()) {
+            List<Pending> batch = new ArrayList<>(messages.size());
+            long now = System.nanoTime();
+            for (OfflineStore.Message message : messages) {
+                Envelope envelope = message.envelope();
+                User sender = message.sender();
+                batch.add(new Pending(connection -> connection.deliverEnvelope(envelope, sender), false, now,
+                        envelope, sender));
+            }
+            if (batch.size() == 1) {
+                deliver(batch.get(0));
+            } else {
+                deliverBatch(batch);
+            }
+            try {
+                store.acknowledge(username, messages);
+            } catch (IOException e) {
+                System.err.println("Failed to compact the offline store: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Makes a single queued call.
+     *
+     * @param pending the call
+     * @throws RemoteException if a remote communication error occurs
+     */
+    private void deliver(Pending pending) throws RemoteException {
+        pending.delivery().deliver(this);
+        calls.increment();
+        delivered.increment();
+    }
+
+    /**
+     * Body of the delivery thread: makes the queued calls until the connection is closed or a call fails.
+     */
+    private void deliverAll() {
+        try {
+            while (!closed.get()) {
+                Pending pending = carried != null ? carried : queue.take();
+                carried = null;
+                if (closed.get()) {
+                    return;
+                }
+                if (pending.delivery() instanceof Drain drain) {
+                    drain.deliver(this);
+                    continue;
+                }
+                if (pending.envelope() != null && options.maxBatch() > 1 && !legacyBatches) {
+                    List<Pending> batch = collectBatch(pending);
+                    if (batch.size() > 1) {
+                        deliverBatch(batch);
+                        continue;
+                    }
+                }
+                deliver(pending);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RemoteException e) {
+            if (close()) {
+                System.err.println("Failed to deliver to " + user.getUsername() + ": " + e.getMessage());
+                onFailure.accept(this);
+            }
+        }
+    }
+}
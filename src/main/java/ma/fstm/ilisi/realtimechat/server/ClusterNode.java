@@ -0,0 +1,723 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.ServerAddress;
+import ma.fstm.ilisi.realtimechat.common.User;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Membership of a chat server in a cluster, and its channel to the other nodes.
+ * Usernames are placed on the nodes by a {@link HashRing}: a user connects to its home node, which also keeps
+ * its offline mailbox. A message for a user connected elsewhere is forwarded, once, to the node the user is
+ * connected to, or else to its home node. Every node tells the others who connects to it and leaves it, so
+ * each node knows where the users are and lists all of them.
+ * A node joins through any member, the seed; a node that learns of new members passes the whole membership on
+ * to all the members it knows, until every node has the same, so nodes may join through different seeds at
+ * once. When the ring changes, the mailboxes of the users that moved are handed to their new home node. Users
+ * already connected stay where they are until they reconnect. Nodes never leave the ring.
+ * Rooms are placed on the ring too, under their name prefixed with {@value #ROOM_KEY_PREFIX}: the node keeping a
+ * room takes every call on it, and fans posts out to the nodes its members are connected to, one call per node.
+ * When the ring changes, the rooms that moved are handed to their new node.
+ * Notifications go out on a single virtual thread, in order, so the sender never waits for the other nodes;
+ * forwarded messages are sent on the sender's own thread, so a node that cannot be reached fails the send.
+ */
+final class ClusterNode extends UnicastRemoteObject implements IClusterNode {
+
+    /**
+     * Name under which a node is bound in its registry, next to {@value ServerAddress#CHAT_SERVICE}.
+     */
+    static final String CLUSTER_SERVICE = "ClusterService";
+
+    /**
+     * System property setting the address of this node, where its registry is created and other nodes and
+     * clients reach it.
+     */
+    static final String ADDRESS_PROPERTY = "realtimechat.cluster.address";
+
+    /**
+     * System property setting the address of a running node to join; unset to start a new cluster.
+     */
+    static final String SEED_PROPERTY = "realtimechat.cluster.seed";
+
+    /**
+     * Default address of this node.
+     */
+    static final String DEFAULT_ADDRESS = "localhost:" + ServerAddress.DEFAULT_PORT;
+
+    /**
+     * Prefix of the ring key of a room, so a room and a user of the same name may be kept by different nodes.
+     */
+    static final String ROOM_KEY_PREFIX = "#";
+
+    /**
+     * Remote call to another node.
+     */
+    @FunctionalInterface
+    private interface Call {
+        /**
+         * Makes the remote call.
+         *
+         * @param peer the other node
+         * @throws RemoteException if a remote communication error occurs
+         */
+        void invoke(IClusterNode peer) throws RemoteException;
+    }
+
+    private final ServerAddress address;
+    private final ChatServer server;
+    private final Map<ServerAddress, IClusterNode> peers = new ConcurrentHashMap<>();
+    // Node each user connected elsewhere is connected to, kept up to date by the other nodes
+    private final Map<String, ServerAddress> locations = new ConcurrentHashMap<>();
+    private final ExecutorService notifier;
+    private volatile HashRing ring;
+
+    /**
+     * Constructs the node of a server, alone in its cluster until it joins one, and exports it.
+     *
+     * @param address the address of this node
+     * @param server the chat server of this node
+     * @throws RemoteException if the node cannot be exported
+     */
+    ClusterNode(ServerAddress address, ChatServer server) throws RemoteException {
+        this.address = address;
+        this.server = server;
+        this.ring = new HashRing(List.of(address));
+        this.notifier = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("cluster-notify").factory());
+    }
+
+    /**
+     * Returns the address named by the {@value #ADDRESS_PROPERTY} system property,
+     * {@value #DEFAULT_ADDRESS} by default.
+     *
+     * @return the address of this node
+     * @throws IllegalArgumentException if the property is not a valid address
+     */
+    static ServerAddress getDefaultAddress() {
+        String setting = System.getProperty(ADDRESS_PROPERTY);
+        return ServerAddress.parse(setting == null || setting.isBlank() ? DEFAULT_ADDRESS : setting);
+    }
+
+    /**
+     * Returns the address named by the {@value #SEED_PROPERTY} system property.
+     *
+     * @return the address of the node to join, or null to start a new cluster
+     * @throws IllegalArgumentException if the property is not a valid address
+     */
+    static ServerAddress getDefaultSeed() {
+        String setting = System.getProperty(SEED_PROPERTY);
+        return setting == null || setting.isBlank() ? null : ServerAddress.parse(setting);
+    }
+
+    /**
+     * Joins the cluster of a running node.
+     *
+     * @param seed the address of any member of the cluster
+     * @throws RemoteException if the seed cannot be reached
+     */
+    void join(ServerAddress seed) throws RemoteException {
+        List<ServerAddress> members = new ArrayList<>();
+        call(seed, peer -> members.addAll(peer.admit(address)));
+        merge(members);
+    }
+
+    /**
+     * Returns the address of this node.
+     *
+     * @return the address
+     */
+    ServerAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the members of the cluster, this node included.
+     *
+     * @return the addresses of the members, sorted
+     */
+    List<ServerAddress> getMembers() {
+        return ring.getNodes();
+    }
+
+    /**
+     * Returns the home node of a user.
+     *
+     * @param username the username of the user
+     * @return the address of the node
+     */
+    ServerAddress ownerOf(String username) {
+        return ring.ownerOf(username);
+    }
+
+    /**
+     * Checks whether this node is the home node of a user.
+     *
+     * @param username the username of the user
+     * @return true if the user belongs to this node
+     */
+    boolean owns(String username) {
+        return ownerOf(username).equals(address);
+    }
+
+    /**
+     * Returns the node a message for a user should go to: the node the user is connected to, or else its home
+     * node.
+     *
+     * @param username the username of the receiver
+     * @return the address of the node, or null if it is this node
+     */
+    ServerAddress locate(String username) {
+        ServerAddress node = locations.get(username);
+        if (node == null) {
+            node = ownerOf(username);
+        }
+        return node.equals(address) ? null : node;
+    }
+
+    /**
+     * Returns the node keeping a room.
+     *
+     * @param room the name of the room
+     * @return the address of the node
+     */
+    ServerAddress ownerOfRoom(String room) {
+        return ring.ownerOf(ROOM_KEY_PREFIX + room);
+    }
+
+    /**
+     * Returns the node a call on a room should go to.
+     *
+     * @param room the name of the room
+     * @return the address of the node keeping the room, or null if it is this node
+     */
+    ServerAddress locateRoom(String room) {
+        ServerAddress node = ownerOfRoom(room);
+        return node.equals(address) ? null : node;
+    }
+
+    /**
+     * Returns the node a user connected elsewhere is connected to.
+     *
+     * @param username the username of the user
+     * @return the address of the node, or null if the user is not connected to another node
+     */
+    ServerAddress locationOf(String username) {
+        return locations.get(username);
+    }
+
+    /**
+     * Forwards an envelope to another node.
+     *
+     * @param node the address of the node
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     * @throws RemoteException if the node cannot be reached
+     */
+    void sendEnvelope(ServerAddress node, Envelope envelope, User sender, User receiver) throws RemoteException {
+        call(node, peer -> peer.forwardEnvelope(envelope, sender, receiver));
+    }
+
+    /**
+     * Forwards a Base64 text message to another node.
+     *
+     * @param node the address of the node
+     * @param message the message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     * @throws RemoteException if the node cannot be reached
+     */
+    void sendMessage(ServerAddress node, String message, User sender, User receiver) throws RemoteException {
+        call(node, peer -> peer.forwardMessage(message, sender, receiver));
+    }
+
+    /**
+     * Hands envelopes kept for a user over to another node.
+     *
+     * @param node the address of the node
+     * @param recipient the username of the recipient
+     * @param messages the envelopes and their senders, oldest first
+     * @throws RemoteException if the node cannot be reached
+     */
+    void sendStored(ServerAddress node, String recipient, List<OfflineStore.Message> messages)
+            throws RemoteException {
+        List<Envelope> envelopes = new ArrayList<>(messages.size());
+        List<User> senders = new ArrayList<>(messages.size());
+        for (OfflineStore.Message message : messages) {
+            envelopes.add(message.envelope());
+            senders.add(message.sender());
+        }
+        call(node, peer -> peer.handOff(recipient, envelopes, senders));
+    }
+
+    /**
+     * Creates a room on the node keeping it.
+     *
+     * @param node the address of the node
+     * @param room the name of the room
+     * @param user the user creating the room
+     * @return true if the room was created, false if a room of that name already exists
+     * @throws RemoteException if the node cannot be reached
+     */
+    boolean sendCreateRoom(ServerAddress node, String room, User user) throws RemoteException {
+        boolean[] created = new boolean[1];
+        call(node, peer -> created[0] = peer.createRoom(room, user));
+        return created[0];
+    }
+
+    /**
+     * Adds a user to a room on the node keeping it.
+     *
+     * @param node the address of the node
+     * @param room the name of the room
+     * @param user the user joining the room
+     * @return true if the user is a member, false if there is no such room
+     * @throws RemoteException if the node cannot be reached
+     */
+    boolean sendJoinRoom(ServerAddress node, String room, User user) throws RemoteException {
+        boolean[] joined = new boolean[1];
+        call(node, peer -> joined[0] = peer.joinRoom(room, user));
+        return joined[0];
+    }
+
+    /**
+     * Removes a user from a room on the node keeping it.
+     *
+     * @param node the address of the node
+     * @param room the name of the room
+     * @param user the user leaving the room
+     * @throws RemoteException if the node cannot be reached
+     */
+    void sendLeaveRoom(ServerAddress node, String room, User user) throws RemoteException {
+        call(node, peer -> peer.leaveRoom(room, user));
+    }
+
+    /**
+     * Posts an envelope to a room on the node keeping it.
+     *
+     * @param node the address of the node
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member posting the message
+     * @return true if the message was posted, false if there is no such room or the sender is not a member
+     * @throws RemoteException if the node cannot be reached
+     */
+    boolean sendPostToRoom(ServerAddress node, String room, Envelope envelope, User sender)
+            throws RemoteException {
+        boolean[] posted = new boolean[1];
+        call(node, peer -> posted[0] = peer.postToRoom(room, envelope, sender));
+        return posted[0];
+    }
+
+    /**
+     * Sends a room post to the members connected to another node.
+     *
+     * @param node the address of the node
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member who posted the message
+     * @param receivers the usernames of the members connected to the node
+     * @throws RemoteException if the node cannot be reached
+     */
+    void sendRoomEnvelope(ServerAddress node, String room, Envelope envelope, User sender, List<String> receivers)
+            throws RemoteException {
+        call(node, peer -> peer.deliverRoomEnvelope(room, envelope, sender, receivers));
+    }
+
+    /**
+     * Hands a room, with its members, over to the node now keeping it.
+     *
+     * @param node the address of the node
+     * @param room the name of the room
+     * @param members the usernames of the members
+     * @throws RemoteException if the node cannot be reached
+     */
+    void sendRoom(ServerAddress node, String room, List<String> members) throws RemoteException {
+        call(node, peer -> peer.handOffRoom(room, members));
+    }
+
+    /**
+     * Returns the names of the rooms kept by every node. The rooms of a node that cannot be reached are left
+     * out.
+     *
+     * @return the names, sorted
+     */
+    List<String> getRooms() {
+        Set<String> names = new TreeSet<>(server.getRoomRegistry().getRooms());
+        for (ServerAddress node : ring.getNodes()) {
+            if (!node.equals(address)) {
+                try {
+                    call(node, peer -> names.addAll(peer.listRooms()));
+                } catch (RemoteException e) {
+                    System.err.println("Failed to list the rooms of node " + node + ": " + e.getMessage());
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Tells the other nodes that a user connected to this one.
+     *
+     * @param user the user
+     */
+    void publishJoined(User user) {
+        User copy = copy(user);
+        notifyPeers(peer -> peer.userJoined(copy, address));
+    }
+
+    /**
+     * Tells the other nodes that a user left this one.
+     *
+     * @param user the user
+     */
+    void publishLeft(User user) {
+        User copy = copy(user);
+        notifyPeers(peer -> peer.userLeft(copy, address));
+    }
+
+    /**
+     * Tells the other nodes that a user connected to this one changed status.
+     *
+     * @param username the username of the user
+     * @param online the new status
+     */
+    void publishStatus(String username, boolean online) {
+        notifyPeers(peer -> peer.statusChanged(username, online));
+    }
+
+    /**
+     * Stops the notifications and unexports the node.
+     */
+    void close() {
+        notifier.shutdown();
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // Already unexported
+        }
+    }
+
+    /**
+     * Admits a new node into the cluster.
+     *
+     * @param node the address of the new node
+     * @return the members of the cluster, including the new node
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public List<ServerAddress> admit(ServerAddress node) throws RemoteException {
+        merge(List.of(node));
+        return ring.getNodes();
+    }
+
+    /**
+     * Adds the members this node did not know.
+     *
+     * @param members the members known to the caller
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void updateMembers(List<ServerAddress> members) throws RemoteException {
+        merge(members);
+    }
+
+    /**
+     * Relays a forwarded envelope as if it had been sent to this node.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     * @throws RemoteException if the envelope cannot be kept
+     */
+    @Override
+    public void forwardEnvelope(Envelope envelope, User sender, User receiver) throws RemoteException {
+        server.relayEnvelope(envelope, sender, receiver);
+    }
+
+    /**
+     * Relays a forwarded text message to the receiver, if it is connected to this node.
+     *
+     * @param message the message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void forwardMessage(String message, User sender, User receiver) throws RemoteException {
+        server.relayMessage(message, sender, receiver);
+    }
+
+    /**
+     * Keeps envelopes handed over by another node in the offline store of this one.
+     *
+     * @param recipient the username of the recipient
+     * @param envelopes the envelopes, oldest first
+     * @param senders the sender of each envelope
+     * @throws RemoteException if the envelopes cannot be kept
+     */
+    @Override
+    public void handOff(String recipient, List<Envelope> envelopes, List<User> senders) throws RemoteException {
+        if (envelopes.size() != senders.size()) {
+            throw new IllegalArgumentException("Expected one sender per envelope");
+        }
+        server.storeHandedOff(recipient, envelopes, senders);
+    }
+
+    /**
+     * Records where a user connected, and adds it to the users of this node.
+     *
+     * @param user the user
+     * @param node the node the user is connected to
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void userJoined(User user, ServerAddress node) throws RemoteException {
+        locations.put(user.getUsername(), node);
+        server.remoteJoined(user);
+    }
+
+    /**
+     * Removes a user from the users of this node, unless it has connected to another node since.
+     *
+     * @param user the user
+     * @param node the node the user was connected to
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void userLeft(User user, ServerAddress node) throws RemoteException {
+        if (locations.remove(user.getUsername(), node)) {
+            server.remoteLeft(user);
+        }
+    }
+
+    /**
+     * Updates the status of a user connected to another node.
+     *
+     * @param username the username of the user
+     * @param online the new status
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void statusChanged(String username, boolean online) throws RemoteException {
+        if (locations.containsKey(username)) {
+            server.remoteStatusChanged(username, online);
+        }
+    }
+
+    /**
+     * Creates a room kept by this node, with the user as its first member.
+     *
+     * @param room the name of the room
+     * @param user the user creating the room
+     * @return true if the room was created, false if a room of that name already exists
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public boolean createRoom(String room, User user) throws RemoteException {
+        return server.getRoomRegistry().create(room, user.getUsername());
+    }
+
+    /**
+     * Adds a user to the members of a room kept by this node.
+     *
+     * @param room the name of the room
+     * @param user the user joining the room
+     * @return true if the user is a member, false if there is no such room
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public boolean joinRoom(String room, User user) throws RemoteException {
+        return server.getRoomRegistry().join(room, user.getUsername());
+    }
+
+    /**
+     * Removes a user from the members of a room kept by this node.
+     *
+     * @param room the name of the room
+     * @param user the user leaving the room
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void leaveRoom(String room, User user) throws RemoteException {
+        server.getRoomRegistry().leave(room, user.getUsername());
+    }
+
+    /**
+     * Fans a post out from a room kept by this node.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member posting the message
+     * @return true if the message was posted, false if there is no such room or the sender is not a member
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public boolean postToRoom(String room, Envelope envelope, User sender) throws RemoteException {
+        return server.fanOutRoomEnvelope(room, envelope, sender);
+    }
+
+    /**
+     * Queues a room post for the members connected to this node.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member who posted the message
+     * @param receivers the usernames of the members to queue it for
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void deliverRoomEnvelope(String room, Envelope envelope, User sender, List<String> receivers)
+            throws RemoteException {
+        server.relayRoomEnvelope(room, envelope, sender, receivers);
+    }
+
+    /**
+     * Returns the names of the rooms kept by this node.
+     *
+     * @return the names, sorted
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public List<String> listRooms() throws RemoteException {
+        return server.getRoomRegistry().getRooms();
+    }
+
+    /**
+     * Adds a room handed over by another node to the rooms of this one, merging the members if it exists.
+     *
+     * @param room the name of the room
+     * @param members the usernames of the members
+     * @throws RemoteException if a remote communication error occurs
+     */
+    @Override
+    public void handOffRoom(String room, List<String> members) throws RemoteException {
+        server.getRoomRegistry().merge(room, members);
+    }
+
+    /**
+     * Adds members to the ring. If any was new, passes the membership on to the other members, tells the new
+     * ones about the users connected here, and hands the mailboxes of the users and the rooms that moved to their
+     * new home.
+     *
+     * @param members the members to add, some possibly known already
+     */
+    private void merge(Collection<ServerAddress> members) {
+        HashRing updated;
+        List<ServerAddress> added = new ArrayList<>();
+        synchronized (this) {
+            Set<ServerAddress> nodes = new LinkedHashSet<>(ring.getNodes());
+            for (ServerAddress member : members) {
+                if (nodes.add(member)) {
+                    added.add(member);
+                }
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+            ring = updated = new HashRing(nodes);
+        }
+        List<ServerAddress> membership = updated.getNodes();
+        notifyPeers(peer -> peer.updateMembers(membership));
+        for (ServerAddress node : added) {
+            for (User user : server.getLocalUsers()) {
+                User copy = copy(user);
+                notify(node, peer -> peer.userJoined(copy, address));
+            }
+        }
+        submit(server::rebalance);
+    }
+
+    /**
+     * Queues a notification for every other member.
+     *
+     * @param call the remote call
+     */
+    private void notifyPeers(Call call) {
+        for (ServerAddress node : ring.getNodes()) {
+            if (!node.equals(address)) {
+                notify(node, call);
+            }
+        }
+    }
+
+    /**
+     * Queues a notification for a member. A member that cannot be reached misses it.
+     *
+     * @param node the address of the member
+     * @param call the remote call
+     */
+    private void notify(ServerAddress node, Call call) {
+        submit(() -> {
+            try {
+                call(node, call);
+            } catch (RemoteException e) {
+                System.err.println("Failed to notify node " + node + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the notification thread, unless the node is closed. Tasks run one at a time, in the order
+     * they were submitted.
+     *
+     * @param task the task
+     */
+    void submit(Runnable task) {
+        try {
+            notifier.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed: the other nodes are no longer told anything
+        }
+    }
+
+    /**
+     * Makes a remote call to a member, looking it up in its registry the first time. A member that fails a call
+     * is looked up again on the next one, in case it was restarted.
+     *
+     * @param node the address of the member
+     * @param call the remote call
+     * @throws RemoteException if the member cannot be reached or the call fails
+     */
+    private void call(ServerAddress node, Call call) throws RemoteException {
+        IClusterNode peer = peers.get(node);
+        try {
+            if (peer == null) {
+                peer = (IClusterNode) node.lookup(CLUSTER_SERVICE);
+                peers.put(node, peer);
+            }
+            call.invoke(peer);
+        } catch (NotBoundException e) {
+            throw new RemoteException("No cluster node bound at " + node, e);
+        } catch (RemoteException e) {
+            peers.remove(node);
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a user, so a notification sent later carries the status of the moment.
+     *
+     * @param user the user
+     * @return the copy
+     */
+    private static User copy(User user) {
+        User copy = new User(user.getUsername());
+        copy.setOnline(user.isOnline());
+        return copy;
+    }
+}
@@ -0,0 +1,109 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+/**
+ * Limits of the outbound queue of each client, and how envelopes waiting in it are batched.
+ *
+ * @param capacity the number of calls a queue holds before the overflow policy applies
+ * @param policy what to do when a queue is full
+ * @param blockMillis how long the {@link OverflowPolicy#BLOCK} policy makes a sender wait for room
+ * @param maxBatch the largest number of envelopes delivered in one call, 1 to deliver them one by one
+ * @param lingerMillis how long to wait for more envelopes before delivering a batch of one, 0 to never wait
+ */
+record DeliveryOptions(int capacity, OverflowPolicy policy, long blockMillis, int maxBatch, long lingerMillis) {
+
+    /**
+     * System property setting the capacity of each client's queue.
+     */
+    static final String CAPACITY_PROPERTY = "realtimechat.delivery.capacity";
+
+    /**
+     * System property setting how long, in milliseconds, the block policy makes a sender wait.
+     */
+    static final String BLOCK_PROPERTY = "realtimechat.delivery.block";
+
+    /**
+     * System property setting the largest number of envelopes delivered in one call.
+     */
+    static final String BATCH_PROPERTY = "realtimechat.delivery.batch";
+
+    /**
+     * System property setting how long, in milliseconds, to wait for more envelopes to batch.
+     */
+    static final String LINGER_PROPERTY = "realtimechat.delivery.linger";
+
+    /**
+     * Default capacity of each client's queue.
+     */
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Default wait of the block policy, in milliseconds.
+     */
+    static final long DEFAULT_BLOCK_MILLIS = 100;
+
+    /**
+     * Default largest number of envelopes delivered in one call.
+     */
+    static final int DEFAULT_MAX_BATCH = 64;
+
+    /**
+     * Validates the options.
+     *
+     * @throws IllegalArgumentException if the capacity or the batch size is not positive, the policy is null,
+     *                                  or a wait is negative
+     */
+    DeliveryOptions {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Delivery capacity must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Overflow policy cannot be null");
+        }
+        if (blockMillis < 0) {
+            throw new IllegalArgumentException("Block timeout cannot be negative");
+        }
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("Linger time cannot be negative");
+        }
+    }
+
+    /**
+     * Returns the options set by the {@value #CAPACITY_PROPERTY}, {@value OverflowPolicy#POLICY_PROPERTY},
+     * {@value #BLOCK_PROPERTY}, {@value #BATCH_PROPERTY} and {@value #LINGER_PROPERTY} system properties,
+     * with the defaults for those not set.
+     *
+     * @return the configured options
+     * @throws IllegalArgumentException if a property is invalid
+     */
+    static DeliveryOptions getDefault() {
+        return new DeliveryOptions(
+                intProperty(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+                OverflowPolicy.getDefault(),
+                intProperty(BLOCK_PROPERTY, (int) DEFAULT_BLOCK_MILLIS),
+                intProperty(BATCH_PROPERTY, DEFAULT_MAX_BATCH),
+                intProperty(LINGER_PROPERTY, 0));
+    }
+
+    /**
+     * Reads a numeric system property.
+     *
+     * @param property the name of the property
+     * @param defaultValue the value if the property is not set
+     * @return the value
+     * @throws IllegalArgumentException if the property is not an integer
+     */
+    private static int intProperty(String property, int defaultValue) {
+        String setting = System.getProperty(property);
+        if (setting == null || setting.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(setting.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + property + ": " + setting, e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.ServerAddress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash placement of usernames on the nodes of a cluster.
+ * Each node is hashed to {@value #VIRTUAL_NODES} points of a 64-bit ring, and a username belongs to the node
+ * of the first point at or after its own hash, wrapping around. Adding a node only moves the usernames that
+ * fall just before its points, about one in N, and all of them to the new node. The ring only depends on the
+ * set of nodes, so every node computes the same placement from the same membership. A ring is immutable: a
+ * membership change builds a new one.
+ */
+final class HashRing {
+
+    /**
+     * Number of points of each node on the ring, which evens out the share of each node.
+     */
+    static final int VIRTUAL_NODES = 128;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final TreeMap<Long, ServerAddress> points = new TreeMap<>();
+    private final List<ServerAddress> nodes;
+
+    /**
+     * Builds the ring of a set of nodes.
+     *
+     * @param nodes the nodes, in any order
+     * @throws IllegalArgumentException if there are no nodes
+     */
+    HashRing(Collection<ServerAddress> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        List<ServerAddress> sorted = new ArrayList<>(nodes);
+        sorted.sort((a, b) -> a.toString().compareTo(b.toString()));
+        for (ServerAddress node : sorted) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                // On the rare collision, the node first in address order keeps the point, on every node alike
+                points.putIfAbsent(hash(node + "#" + i), node);
+            }
+        }
+        this.nodes = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Returns the node a username belongs to.
+     *
+     * @param username the username
+     * @return the node
+     */
+    ServerAddress ownerOf(String username) {
+        Map.Entry<Long, ServerAddress> point = points.ceilingEntry(hash(username));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    /**
+     * Returns the nodes of the ring.
+     *
+     * @return the nodes, sorted by address
+     */
+    List<ServerAddress> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Hashes a key to a point of the ring: 64-bit FNV-1a of its UTF-8 bytes, then the MurmurHash3 finalizer,
+     * which spreads the close hashes of similar keys such as "node#1" and "node#2" over the whole ring.
+     *
+     * @param key the key
+     * @return the point
+     */
+    static long hash(String key) {
+        long hash = FNV_OFFSET;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
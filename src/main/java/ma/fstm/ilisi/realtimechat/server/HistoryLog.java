@@ -0,0 +1,428 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.HistoryEntry;
+import ma.fstm.ilisi.realtimechat.common.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.encodeName;
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.nameLength;
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.putName;
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.readString;
+
+/**
+ * Conversation history: every envelope relayed by the server, still encrypted, in the memory-mapped segment
+ * files of a {@link SegmentLog}.
+ * Messages are numbered from 1 in each conversation, and each record points back to the previous record of
+ * its conversation, so a page is read by following those links from a starting record, without touching the
+ * other conversations. The starting record comes from a sparse index keeping the position of every
+ * {@value #INDEX_INTERVAL}th message of each conversation, plus its latest one: a page of n messages costs at
+ * most n + {@value #INDEX_INTERVAL} record reads from the page cache, however long the history.
+ * Appends are group-committed like those of the {@link OfflineStore}; each record carries a CRC of its body,
+ * and the index is rebuilt from the records on startup. A walk stops at the first link that does not lead to an
+ * intact, older record of the same conversation, such as one into the damaged tail of a segment after a crash.
+ * Records are never modified once written, so a page only follows the links under the monitor and copies the
+ * payloads after releasing it, without holding up appends.
+ *
+ * <p>Record layout: the body length (int, 0 marks the end of a segment) and the CRC-32C of the body (int),
+ * then the body: the sequence number in the conversation (long), the time it was relayed (long, milliseconds
+ * since the epoch), the segment number and offset of the previous record of the conversation (long and int,
+ * 0 and 0 for the first one), the sender and the receiver (each an unsigned short length and UTF-8 bytes)
+ * and the envelope payload.
+ */
+final class HistoryLog implements Closeable {
+
+    /**
+     * System property setting the directory of the segment files.
+     */
+    static final String DIRECTORY_PROPERTY = "realtimechat.history.dir";
+
+    /**
+     * System property setting the group-commit interval in milliseconds; {@code 0} forces every append.
+     */
+    static final String FLUSH_PROPERTY = "realtimechat.history.flush";
+
+    /**
+     * Default directory of the segment files, relative to the working directory.
+     */
+    static final String DEFAULT_DIRECTORY = "history";
+
+    /**
+     * Default group-commit interval in milliseconds.
+     */
+    static final long DEFAULT_FLUSH_MILLIS = 100;
+
+    /**
+     * Default size of a segment file. An envelope larger than that gets a segment of its own.
+     */
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Number of messages of a conversation between two entries of the sparse index.
+     */
+    static final int INDEX_INTERVAL = 64;
+
+    /**
+     * Largest page served at once.
+     */
+    static final int MAX_PAGE_SIZE = 500;
+
+    private static final int HEADER_LENGTH = 8;
+    // Sequence number, timestamp, previous segment and offset
+    private static final int FIXED_BODY_LENGTH = 8 + 8 + 8 + 4;
+    // The fixed part and the length of both names
+    private static final int MIN_BODY_LENGTH = FIXED_BODY_LENGTH + 2 + 2;
+
+    /**
+     * Segment file mapped in memory. The mapping outlives the file channel, closed as soon as it is mapped.
+     *
+     * @param id the number of the segment, which orders the files
+     * @param buffer the mapping of the file
+     */
+    private record Segment(long id, MappedByteBuffer buffer) {
+    }
+
+    /**
+     * Position of a record.
+     *
+     * @param segment the segment holding the record
+     * @param offset the offset of the record in the segment
+     */
+    private record Position(Segment segment, int offset) {
+    }
+
+    /**
+     * Latest message of a conversation and the sparse index of the older ones.
+     */
+    private static final class Conversation {
+        long lastSequence;
+        Position last;
+        final NavigableMap<Long, Position> index = new TreeMap<>();
+    }
+
+    private final SegmentLog log;
+    private final Map<Long, Segment> segments = new HashMap<>();
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    private Segment active;
+    private long lastSegmentId;
+    private boolean closed;
+
+    /**
+     * Opens the history in a directory, creating it if needed, and rebuilds the index from the segments found there.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of a segment file in bytes
+     * @param flushMillis the group-commit interval in milliseconds, 0 to force every append to disk
+     * @throws IOException if the directory or a segment cannot be read or created
+     * @throws IllegalArgumentException if the segment size is too small or the interval negative
+     */
+    HistoryLog(Path directory, int segmentSize, long flushMillis) throws IOException {
+        this.log = new SegmentLog(directory, segmentSize, flushMillis);
+        recover();
+        log.start("history-flush");
+    }
+
+    /**
+     * Opens the history configured by the {@value #DIRECTORY_PROPERTY} and {@value #FLUSH_PROPERTY} system
+     * properties, in the {@value #DEFAULT_DIRECTORY} directory and with a {@value #DEFAULT_FLUSH_MILLIS} ms
+     * interval by default.
+     *
+     * @return the history
+     * @throws IOException if the history cannot be opened
+     * @throws IllegalArgumentException if the interval property is not a non-negative number
+     */
+    static HistoryLog openDefault() throws IOException {
+        return new HistoryLog(SegmentLog.directoryProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY),
+                DEFAULT_SEGMENT_SIZE, SegmentLog.flushProperty(FLUSH_PROPERTY, DEFAULT_FLUSH_MILLIS, "history"));
+    }
+
+    /**
+     * Returns the directory of the segment files.
+     *
+     * @return the directory
+     */
+    Path getDirectory() {
+        return log.getDirectory();
+    }
+
+    /**
+     * Returns the number of conversations in the history.
+     *
+     * @return the count
+     */
+    synchronized int getConversationCount() {
+        return conversations.size();
+    }
+
+    /**
+     * Appends a message to the conversation between its sender and its receiver.
+     *
+     * @param sender the username of the sender
+     * @param receiver the username of the receiver
+     * @param envelope the encrypted message
+     * @return the sequence number of the message in the conversation
+     * @throws IOException if a new segment cannot be created
+     * @throws IllegalArgumentException if a username is longer than {@value SegmentLog#MAX_NAME_LENGTH} bytes in
+     *                                  UTF-8
+     * @throws IllegalStateException if the history is closed
+     */
+    long append(String sender, String receiver, Envelope envelope) throws IOException {
+        byte[] from = encodeName(sender);
+        byte[] to = encodeName(receiver);
+        byte[] payload = envelope.getPayload();
+        long sequence;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("History is closed");
+            }
+            Conversation conversation = conversations.computeIfAbsent(key(sender, receiver),
+                    name -> new Conversation());
+            sequence = conversation.lastSequence + 1;
+            Position position = write(sequence, System.currentTimeMillis(), conversation.last, from, to, payload);
+            add(conversation, sequence, position);
+        }
+        if (log.isForcedOnWrite()) {
+            flush();
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns a page of the conversation between two users: the latest messages numbered before a given one.
+     *
+     * @param user the username of one user
+     * @param peer the username of the other user
+     * @param beforeSequence the page ends just before this sequence number; {@link Long#MAX_VALUE} for the
+     *                       latest messages
+     * @param limit the largest number of messages, capped at {@value #MAX_PAGE_SIZE}
+     * @return the messages, oldest first, empty if there are none before that number
+     */
+    List<HistoryEntry> page(String user, String peer, long beforeSequence, int limit) {
+        String key = key(user, peer);
+        int max = Math.min(limit, MAX_PAGE_SIZE);
+        List<Position> positions = new ArrayList<>(Math.max(max, 0));
+        synchronized (this) {
+            Conversation conversation = conversations.get(key);
+            if (conversation == null || closed || limit <= 0) {
+                return new ArrayList<>();
+            }
+            long target = Math.min(beforeSequence - 1, conversation.lastSequence);
+            if (target < 1) {
+                return new ArrayList<>();
+            }
+            Map.Entry<Long, Position> start = conversation.index.ceilingEntry(target);
+            Position position = start != null ? start.getValue() : conversation.last;
+            long next = Long.MAX_VALUE;
+            while (position != null && positions.size() < max) {
+                ByteBuffer body = body(position);
+                long sequence = body == null ? 0 : body.getLong();
+                // Each link must lead back in the conversation; anything else is a damaged record
+                if (sequence < 1 || sequence >= next) {
+                    break;
+                }
+                next = sequence;
+                body.getLong();
+                if (sequence <= target) {
+                    positions.add(position);
+                }
+                position = position(body.getLong(), body.getInt());
+            }
+        }
+
+        List<HistoryEntry> entries = new ArrayList<>(positions.size());
+        for (Position position : positions) {
+            HistoryEntry entry = read(position, key);
+            if (entry == null) {
+                break;
+            }
+            entries.add(entry);
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    /**
+     * Forces the segments written since the last flush to disk.
+     */
+    void flush() {
+        log.flush();
+    }
+
+    /**
+     * Stops the flush thread and forces every pending write to disk.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        log.close();
+    }
+
+    /**
+     * Records a new message as the latest of its conversation, and in the sparse index if it falls on the interval.
+     *
+     * @param conversation the conversation
+     * @param sequence the sequence number of the message
+     * @param position the position of its record
+     */
+    private static void add(Conversation conversation, long sequence, Position position) {
+        conversation.lastSequence = sequence;
+        conversation.last = position;
+        if (sequence % INDEX_INTERVAL == 0) {
+            conversation.index.put(sequence, position);
+        }
+    }
+
+    /**
+     * Writes a record at the end of the active segment, rolling to a new segment if it does not fit.
+     *
+     * @param sequence the sequence number of the message in its conversation
+     * @param timestamp when the message was relayed
+     * @param previous the previous record of the conversation, null for the first one
+     * @param from the sender, in UTF-8
+     * @param to the receiver, in UTF-8
+     * @param payload the envelope payload
+     * @return the position of the record
+     * @throws IOException if a new segment cannot be created
+     */
+    private Position write(long sequence, long timestamp, Position previous, byte[] from, byte[] to, byte[] payload)
+            throws IOException {
+        int bodyLength = FIXED_BODY_LENGTH + nameLength(from) + nameLength(to) + payload.length;
+        int recordLength = HEADER_LENGTH + bodyLength;
+        if (!SegmentLog.fits(active == null ? null : active.buffer(), recordLength)) {
+            active = createSegment(recordLength);
+        }
+        MappedByteBuffer buffer = active.buffer();
+        int offset = buffer.position();
+        ByteBuffer body = buffer.slice(offset + HEADER_LENGTH, bodyLength)
+                .putLong(sequence)
+                .putLong(timestamp)
+                .putLong(previous == null ? 0 : previous.segment().id())
+                .putInt(previous == null ? 0 : previous.offset());
+        putName(putName(body, from), to).put(payload);
+        SegmentLog.seal(buffer, offset, HEADER_LENGTH, body);
+        log.markDirty(buffer);
+        return new Position(active, offset);
+    }
+
+    /**
+     * Resolves the link stored in a record.
+     *
+     * @param segmentId the segment number, 0 for none
+     * @param offset the offset in the segment
+     * @return the position, or null if there is no previous record or its segment is gone
+     */
+    private Position position(long segmentId, int offset) {
+        Segment segment = segments.get(segmentId);
+        return segment == null ? null : new Position(segment, offset);
+    }
+
+    /**
+     * Creates and maps a new segment file, numbered after the last one.
+     *
+     * @param recordLength the length of the record it is created for
+     * @return the segment
+     * @throws IOException if the file cannot be created or mapped
+     */
+    private Segment createSegment(int recordLength) throws IOException {
+        long id = ++lastSegmentId;
+        Segment segment = new Segment(id, log.create(id, recordLength));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Maps the existing segments in order and rebuilds the latest message and the sparse index of every
+     * conversation from their records. Each segment is read up to its end marker or its first damaged record;
+     * new records go to a fresh segment. Only the fixed part and the names of each record are read.
+     *
+     * @throws IOException if the directory cannot be listed or a segment cannot be mapped
+     */
+    private void recover() throws IOException {
+        for (SegmentLog.SegmentFile file : log.list()) {
+            Segment segment = new Segment(file.id(), SegmentLog.map(file.path(), 0));
+            segments.put(file.id(), segment);
+            lastSegmentId = Math.max(lastSegmentId, file.id());
+            SegmentLog.scan(segment.buffer(), HEADER_LENGTH, MIN_BODY_LENGTH, (offset, body) -> {
+                long sequence = body.getLong();
+                body.position(FIXED_BODY_LENGTH);
+                String sender = readString(body);
+                String receiver = readString(body);
+                add(conversations.computeIfAbsent(key(sender, receiver), key -> new Conversation()), sequence,
+                        new Position(segment, offset));
+            });
+        }
+    }
+
+    /**
+     * Returns the key of the conversation between two users, the same whichever of them sent the message.
+     *
+     * @param user the username of one user
+     * @param peer the username of the other user
+     * @return the key
+     */
+    private static String key(String user, String peer) {
+        return user.compareTo(peer) <= 0 ? user + '\0' + peer : peer + '\0' + user;
+    }
+
+    /**
+     * Reads the record at a position found by following the links of a conversation, checking that it is intact
+     * and belongs to that conversation.
+     *
+     * @param position the position of the record
+     * @param key the key of the conversation
+     * @return the message, or null if the record is damaged or belongs to another conversation
+     */
+    private static HistoryEntry read(Position position, String key) {
+        ByteBuffer body = body(position);
+        if (body == null || !SegmentLog.isIntact(position.segment().buffer(), position.offset(), body)) {
+            return null;
+        }
+        long sequence = body.getLong();
+        long timestamp = body.getLong();
+        body.position(FIXED_BODY_LENGTH);
+        String sender = readString(body);
+        String receiver = readString(body);
+        if (!key(sender, receiver).equals(key)) {
+            return null;
+        }
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        return new HistoryEntry(sequence, timestamp, new User(sender), new Envelope(payload));
+    }
+
+    /**
+     * Returns the body of the record at a position, if its length fits in its segment.
+     *
+     * @param position the position of the record
+     * @return a view of the body, positioned at its start, or null if the position or the length is out of bounds
+     */
+    private static ByteBuffer body(Position position) {
+        MappedByteBuffer buffer = position.segment().buffer();
+        int offset = position.offset();
+        if (offset < 0 || offset > buffer.capacity() - HEADER_LENGTH) {
+            return null;
+        }
+        int bodyLength = buffer.getInt(offset);
+        if (bodyLength < MIN_BODY_LENGTH || bodyLength > buffer.capacity() - offset - HEADER_LENGTH) {
+            return null;
+        }
+        return SegmentLog.body(buffer, offset, HEADER_LENGTH);
+    }
+}
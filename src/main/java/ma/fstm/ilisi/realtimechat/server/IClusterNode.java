@@ -0,0 +1,163 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.ServerAddress;
+import ma.fstm.ilisi.realtimechat.common.User;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Node-to-node channel of a chat server cluster. Each node binds one in its registry, next to the chat service;
+ * clients never use it.
+ */
+public interface IClusterNode extends Remote {
+
+    /**
+     * Admits a new node into the cluster. The node receiving the call adds it to its members and passes the new
+     * membership on to the other members.
+     *
+     * @param node the address of the new node
+     * @return the members of the cluster, including the new node
+     * @throws RemoteException if a remote communication error occurs
+     */
+    List<ServerAddress> admit(ServerAddress node) throws RemoteException;
+
+    /**
+     * Tells a node about the members of the cluster. The node adds those it did not know, and moves the users
+     * they now own to them.
+     *
+     * @param members the members known to the caller
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void updateMembers(List<ServerAddress> members) throws RemoteException;
+
+    /**
+     * Relays an envelope to a user connected to, or owned by, the receiving node, without decoding it.
+     *
+     * @param envelope the encrypted message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void forwardEnvelope(Envelope envelope, User sender, User receiver) throws RemoteException;
+
+    /**
+     * Relays a Base64 text message, from a client that predates envelopes, to a user connected to the receiving
+     * node. Text messages are not kept for users who are not connected.
+     *
+     * @param message the message
+     * @param sender the user who sent the message
+     * @param receiver the user who will receive the message
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void forwardMessage(String message, User sender, User receiver) throws RemoteException;
+
+    /**
+     * Hands over envelopes kept for a user who is not connected, to the node that now owns the user.
+     *
+     * @param recipient the username of the recipient
+     * @param envelopes the envelopes, oldest first
+     * @param senders the sender of each envelope
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void handOff(String recipient, List<Envelope> envelopes, List<User> senders) throws RemoteException;
+
+    /**
+     * Tells a node that a user connected to another node.
+     *
+     * @param user the user
+     * @param node the node the user is connected to
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void userJoined(User user, ServerAddress node) throws RemoteException;
+
+    /**
+     * Tells a node that a user left another node.
+     *
+     * @param user the user
+     * @param node the node the user was connected to
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void userLeft(User user, ServerAddress node) throws RemoteException;
+
+    /**
+     * Tells a node that a user connected to another node changed status.
+     *
+     * @param username the username of the user
+     * @param online the new status
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void statusChanged(String username, boolean online) throws RemoteException;
+
+    /**
+     * Creates a room kept by the receiving node, with the user as its first member.
+     *
+     * @param room the name of the room
+     * @param user the user creating the room
+     * @return true if the room was created, false if a room of that name already exists
+     * @throws RemoteException if a remote communication error occurs
+     * @throws IllegalArgumentException if the name is blank or too long
+     */
+    boolean createRoom(String room, User user) throws RemoteException;
+
+    /**
+     * Adds a user to the members of a room kept by the receiving node.
+     *
+     * @param room the name of the room
+     * @param user the user joining the room
+     * @return true if the user is a member, false if there is no such room
+     * @throws RemoteException if a remote communication error occurs
+     */
+    boolean joinRoom(String room, User user) throws RemoteException;
+
+    /**
+     * Removes a user from the members of a room kept by the receiving node.
+     *
+     * @param room the name of the room
+     * @param user the user leaving the room
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void leaveRoom(String room, User user) throws RemoteException;
+
+    /**
+     * Posts an envelope to a room kept by the receiving node, which fans it out to the connected members.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member posting the message
+     * @return true if the message was posted, false if there is no such room or the sender is not a member
+     * @throws RemoteException if a remote communication error occurs
+     */
+    boolean postToRoom(String room, Envelope envelope, User sender) throws RemoteException;
+
+    /**
+     * Queues a room post for members connected to the receiving node, without decoding it.
+     *
+     * @param room the name of the room
+     * @param envelope the encrypted message
+     * @param sender the member who posted the message
+     * @param receivers the usernames of the members to queue it for
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void deliverRoomEnvelope(String room, Envelope envelope, User sender, List<String> receivers)
+            throws RemoteException;
+
+    /**
+     * Returns the names of the rooms kept by the receiving node.
+     *
+     * @return the names, sorted
+     * @throws RemoteException if a remote communication error occurs
+     */
+    List<String> listRooms() throws RemoteException;
+
+    /**
+     * Hands over a room, with its members, to the node that now keeps it.
+     *
+     * @param room the name of the room
+     * @param members the usernames of the members
+     * @throws RemoteException if a remote communication error occurs
+     */
+    void handOffRoom(String room, List<String> members) throws RemoteException;
+}
@@ -0,0 +1,521 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.encodeName;
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.nameLength;
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.putName;
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.readBytes;
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.readString;
+import static ma.fstm.ilisi.realtimechat.server.SegmentLog.skipString;
+
+/**
+ * Durable mailbox of the envelopes sent to users who are not connected.
+ * Envelopes are appended, still encrypted, to the memory-mapped segment files of a {@link SegmentLog}, so an
+ * append is a copy into the page cache under the store's monitor, with no system call. A virtual thread forces
+ * the segments written since its last pass to disk every flush interval (group commit): a crash loses at most
+ * that interval of appends, never a record half-written, since each record carries a CRC of its body and
+ * recovery stops at the first bad one.
+ * An in-memory index keeps the pending records of each recipient in order; it is rebuilt from the segments on
+ * startup. Delivered records are marked in place. A segment whose records have all been delivered is deleted,
+ * and one that is mostly delivered has its pending records copied to the active segment first (compaction).
+ * A mark not yet forced when the server crashes is lost, so delivery is at least once.
+ *
+ * <p>Record layout: the body length (int, 0 marks the end of a segment), the CRC-32C of the body (int), the
+ * state (byte, pending or delivered), then the body: the sequence number of the record (long), the recipient
+ * and the sender (each an unsigned short length and UTF-8 bytes) and the envelope payload.
+ */
+final class OfflineStore implements Closeable {
+
+    /**
+     * Pending envelope, as handed to the recipient.
+     *
+     * @param sequence the sequence number of its record, which identifies it to {@link #acknowledge(String, List)}
+     * @param sender the user who sent the envelope
+     * @param envelope the envelope
+     */
+    record Message(long sequence, User sender, Envelope envelope) {
+    }
+
+    /**
+     * System property setting the directory of the segment files.
+     */
+    static final String DIRECTORY_PROPERTY = "realtimechat.offline.dir";
+
+    /**
+     * System property setting the group-commit interval in milliseconds; {@code 0} forces every append.
+     */
+    static final String FLUSH_PROPERTY = "realtimechat.offline.flush";
+
+    /**
+     * Default directory of the segment files, relative to the working directory.
+     */
+    static final String DEFAULT_DIRECTORY = "offline";
+
+    /**
+     * Default group-commit interval in milliseconds.
+     */
+    static final long DEFAULT_FLUSH_MILLIS = 100;
+
+    /**
+     * Default size of a segment file. An envelope larger than that gets a segment of its own.
+     */
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_LENGTH = 9;
+    private static final int STATE_OFFSET = 8;
+    private static final byte PENDING = 0;
+    private static final byte DELIVERED = 1;
+    // A sealed segment with less than this fraction of its records pending is compacted
+    private static final int COMPACTION_RATIO = 4;
+
+    /**
+     * Segment file mapped in memory. The mapping outlives the file channel, closed as soon as it is mapped.
+     */
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int records;
+        int pending;
+
+        /**
+         * Constructs a segment with no records counted yet.
+         *
+         * @param id the number of the segment, which orders the files
+         * @param path the segment file
+         * @param buffer the mapping of the file
+         */
+        Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Position of a pending record. Compaction moves it, so the index holds the entry rather than the position.
+     */
+    private static final class Entry {
+        final long sequence;
+        Segment segment;
+        int offset;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param sequence the sequence number of the record
+         * @param segment the segment holding the record
+         * @param offset the offset of the record in the segment
+         */
+        Entry(long sequence, Segment segment, int offset) {
+            this.sequence = sequence;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private final SegmentLog log;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, ArrayDeque<Entry>> index = new HashMap<>();
+    private Segment active;
+    private long sequence;
+    private int pendingCount;
+    private boolean closed;
+
+    /**
+     * Opens the store in a directory, creating it if needed, and recovers the pending envelopes of the segments
+     * found there.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of a segment file in bytes
+     * @param flushMillis the group-commit interval in milliseconds, 0 to force every append to disk
+     * @throws IOException if the directory or a segment cannot be read or created
+     * @throws IllegalArgumentException if the segment size is too small or the interval negative
+     */
+    OfflineStore(Path directory, int segmentSize, long flushMillis) throws IOException {
+        this.log = new SegmentLog(directory, segmentSize, flushMillis);
+        recover();
+        log.start("offline-flush");
+    }
+
+    /**
+     * Opens the store configured by the {@value #DIRECTORY_PROPERTY} and {@value #FLUSH_PROPERTY} system
+     * properties, in the {@value #DEFAULT_DIRECTORY} directory and with a {@value #DEFAULT_FLUSH_MILLIS} ms
+     * interval by default.
+     *
+     * @return the store
+     * @throws IOException if the store cannot be opened
+     * @throws IllegalArgumentException if the interval property is not a non-negative number
+     */
+    static OfflineStore openDefault() throws IOException {
+        return new OfflineStore(SegmentLog.directoryProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY),
+                DEFAULT_SEGMENT_SIZE, SegmentLog.flushProperty(FLUSH_PROPERTY, DEFAULT_FLUSH_MILLIS, "offline"));
+    }
+
+    /**
+     * Returns the directory of the segment files.
+     *
+     * @return the directory
+     */
+    Path getDirectory() {
+        return log.getDirectory();
+    }
+
+    /**
+     * Returns the group-commit interval.
+     *
+     * @return the interval in milliseconds
+     */
+    long getFlushMillis() {
+        return log.getFlushMillis();
+    }
+
+    /**
+     * Appends an envelope to the mailbox of its recipient.
+     *
+     * @param recipient the username of the recipient
+     * @param sender the user who sent the envelope
+     * @param envelope the envelope
+     * @throws IOException if a new segment cannot be created
+     * @throws IllegalArgumentException if a username is longer than {@value SegmentLog#MAX_NAME_LENGTH} bytes in
+     *                                  UTF-8
+     * @throws IllegalStateException if the store is closed
+     */
+    void append(String recipient, User sender, Envelope envelope) throws IOException {
+        byte[] to = encodeName(recipient);
+        byte[] from = encodeName(sender.getUsername());
+        byte[] payload = envelope.getPayload();
+        synchronized (this) {
+            ensureOpen();
+            long recordSequence = ++sequence;
+            int offset = write(recordSequence, to, from, payload);
+            index.computeIfAbsent(recipient, name -> new ArrayDeque<>())
+                    .add(new Entry(recordSequence, active, offset));
+            pendingCount++;
+        }
+        if (log.isForcedOnWrite()) {
+            flush();
+        }
+    }
+
+    /**
+     * Checks whether envelopes are waiting for a user.
+     *
+     * @param recipient the username of the recipient
+     * @return true if at least one envelope is pending
+     */
+    synchronized boolean hasPending(String recipient) {
+        ArrayDeque<Entry> entries = index.get(recipient);
+        return entries != null && !entries.isEmpty();
+    }
+
+    /**
+     * Returns the users with envelopes waiting.
+     *
+     * @return the usernames of the recipients, in no particular order
+     */
+    synchronized List<String> getRecipients() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * Returns the number of envelopes waiting, for all users.
+     *
+     * @return the count
+     */
+    synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Returns the number of segment files.
+     *
+     * @return the count
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the oldest envelopes waiting for a user, without removing them: they stay pending until
+     * acknowledged, so a delivery that fails leaves them for the next connection.
+     *
+     * @param recipient the username of the recipient
+     * @param max the largest number of envelopes to return
+     * @return the envelopes, oldest first, empty if none is pending
+     */
+    synchronized List<Message> peek(String recipient, int max) {
+        ArrayDeque<Entry> entries = index.get(recipient);
+        if (entries == null || closed) {
+            return List.of();
+        }
+        List<Message> messages = new ArrayList<>(Math.min(max, entries.size()));
+        for (Entry entry : entries) {
+            if (messages.size() == max) {
+                break;
+            }
+            messages.add(read(entry));
+        }
+        return messages;
+    }
+
+    /**
+     * Marks envelopes returned by {@link #peek(String, int)} as delivered, deleting or compacting the segments
+     * left with few or no pending records. Exactly those envelopes are removed, by sequence number, so two
+     * deliveries of the same mailbox at once may both send an envelope but never remove one the other has not
+     * sent; envelopes already acknowledged are skipped.
+     *
+     * @param recipient the username of the recipient
+     * @param messages the envelopes delivered
+     * @throws IOException if compaction needs a new segment and it cannot be created
+     */
+    synchronized void acknowledge(String recipient, List<Message> messages) throws IOException {
+        ArrayDeque<Entry> entries = index.get(recipient);
+        if (entries == null || closed || messages.isEmpty()) {
+            return;
+        }
+        Set<Long> delivered = new HashSet<>();
+        long last = 0;
+        for (Message message : messages) {
+            delivered.add(message.sequence());
+            last = Math.max(last, message.sequence());
+        }
+        Set<Segment> touched = new HashSet<>();
+        // The mailbox is in sequence order, so nothing past the last delivered can match
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext() && !delivered.isEmpty(); ) {
+            Entry entry = iterator.next();
+            if (entry.sequence > last) {
+                break;
+            }
+            if (!delivered.remove(entry.sequence)) {
+                continue;
+            }
+            iterator.remove();
+            entry.segment.buffer.put(entry.offset + STATE_OFFSET, DELIVERED);
+            entry.segment.pending--;
+            pendingCount--;
+            log.markDirty(entry.segment.buffer);
+            touched.add(entry.segment);
+        }
+        if (entries.isEmpty()) {
+            index.remove(recipient);
+        }
+        for (Segment segment : touched) {
+            if (segment != active) {
+                reclaim(segment);
+            }
+        }
+    }
+
+    /**
+     * Deletes a sealed segment with nothing pending, or compacts one that is mostly delivered.
+     *
+     * @param segment the sealed segment
+     * @throws IOException if compaction needs a new segment and it cannot be created
+     */
+    private void reclaim(Segment segment) throws IOException {
+        if (segment.pending == 0) {
+            delete(segment);
+        } else if (segment.pending * COMPACTION_RATIO < segment.records) {
+            compact(segment);
+        }
+    }
+
+    /**
+     * Forces the segments written since the last flush to disk.
+     */
+    void flush() {
+        log.flush();
+    }
+
+    /**
+     * Stops the flush thread and forces every pending write to disk. The envelopes stay on disk for the next
+     * server to deliver.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        log.close();
+    }
+
+    /**
+     * Throws if the store is closed.
+     */
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Offline store is closed");
+        }
+    }
+
+    /**
+     * Writes a record at the end of the active segment, rolling to a new segment if it does not fit.
+     * The segment sealed by a roll is reclaimed at once, since acknowledgements made while it was active
+     * skipped it and none may come later.
+     *
+     * @param recordSequence the sequence number of the record
+     * @param to the recipient, in UTF-8
+     * @param from the sender, in UTF-8
+     * @param payload the envelope payload
+     * @return the offset of the record in the active segment
+     * @throws IOException if a new segment cannot be created
+     */
+    private int write(long recordSequence, byte[] to, byte[] from, byte[] payload) throws IOException {
+        int bodyLength = 8 + nameLength(to) + nameLength(from) + payload.length;
+        int recordLength = HEADER_LENGTH + bodyLength;
+        if (!SegmentLog.fits(active == null ? null : active.buffer, recordLength)) {
+            Segment sealed = active;
+            active = createSegment(recordLength);
+            if (sealed != null) {
+                reclaim(sealed);
+            }
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int offset = buffer.position();
+        ByteBuffer body = buffer.slice(offset + HEADER_LENGTH, bodyLength).putLong(recordSequence);
+        putName(putName(body, to), from).put(payload);
+        buffer.put(offset + STATE_OFFSET, PENDING);
+        SegmentLog.seal(buffer, offset, HEADER_LENGTH, body);
+        active.records++;
+        active.pending++;
+        log.markDirty(buffer);
+        return offset;
+    }
+
+    /**
+     * Reads the sender and envelope of a pending record.
+     *
+     * @param entry the position of the record
+     * @return the message
+     */
+    private Message read(Entry entry) {
+        ByteBuffer body = SegmentLog.body(entry.segment.buffer, entry.offset, HEADER_LENGTH);
+        body.getLong();
+        skipString(body);
+        String sender = readString(body);
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        return new Message(entry.sequence, new User(sender), new Envelope(payload));
+    }
+
+    /**
+     * Copies the pending records of a mostly delivered segment to the active segment, then deletes it.
+     * The copies keep their sequence numbers, so recovery after a crash between the copy and the deletion
+     * keeps one of each and the mailboxes keep their order.
+     *
+     * @param segment the sealed segment
+     * @throws IOException if the active segment fills up and a new one cannot be created
+     */
+    private void compact(Segment segment) throws IOException {
+        List<Entry> moved = new ArrayList<>();
+        for (ArrayDeque<Entry> entries : index.values()) {
+            for (Entry entry : entries) {
+                if (entry.segment == segment) {
+                    moved.add(entry);
+                }
+            }
+        }
+        for (Entry entry : moved) {
+            ByteBuffer body = SegmentLog.body(segment.buffer, entry.offset, HEADER_LENGTH);
+            body.getLong();
+            byte[] to = readBytes(body);
+            byte[] from = readBytes(body);
+            byte[] payload = new byte[body.remaining()];
+            body.get(payload);
+            int offset = write(entry.sequence, to, from, payload);
+            entry.segment = active;
+            entry.offset = offset;
+        }
+        // The copies must be on disk before the originals disappear
+        active.buffer.force();
+        delete(segment);
+    }
+
+    /**
+     * Removes a segment and its file. Its mapping is released when the buffer is collected.
+     *
+     * @param segment the segment
+     * @throws IOException if the file cannot be deleted
+     */
+    private void delete(Segment segment) throws IOException {
+        segments.remove(segment);
+        log.forget(segment.buffer);
+        Files.deleteIfExists(segment.path);
+    }
+
+    /**
+     * Creates and maps a new segment file, numbered after the last one.
+     *
+     * @param recordLength the length of the record it is created for
+     * @return the segment
+     * @throws IOException if the file cannot be created or mapped
+     */
+    private Segment createSegment(int recordLength) throws IOException {
+        long id = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).id + 1;
+        Segment segment = new Segment(id, log.path(id), log.create(id, recordLength));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Maps the existing segments in order and rebuilds the index from their pending records. Each segment is
+     * read up to its end marker or its first damaged record; new records go to a fresh segment.
+     * Segments with nothing pending are deleted.
+     *
+     * @throws IOException if the directory cannot be listed or a segment cannot be mapped
+     */
+    private void recover() throws IOException {
+        Map<Long, Entry> seen = new HashMap<>();
+        Map<String, List<Entry>> recovered = new HashMap<>();
+        for (SegmentLog.SegmentFile file : log.list()) {
+            Segment segment = new Segment(file.id(), file.path(), SegmentLog.map(file.path(), 0));
+            segments.add(segment);
+            MappedByteBuffer buffer = segment.buffer;
+            // The sequence number and the length of both names
+            SegmentLog.scan(buffer, HEADER_LENGTH, 8 + 2 + 2, (offset, body) -> {
+                long recordSequence = body.getLong();
+                String recipient = readString(body);
+                segment.records++;
+                sequence = Math.max(sequence, recordSequence);
+                if (buffer.get(offset + STATE_OFFSET) == PENDING && !seen.containsKey(recordSequence)) {
+                    Entry entry = new Entry(recordSequence, segment, offset);
+                    seen.put(recordSequence, entry);
+                    recovered.computeIfAbsent(recipient, user -> new ArrayList<>()).add(entry);
+                    segment.pending++;
+                    pendingCount++;
+                }
+            });
+        }
+        recovered.forEach((recipient, entries) -> {
+            entries.sort(Comparator.comparingLong(entry -> entry.sequence));
+            index.put(recipient, new ArrayDeque<>(entries));
+        });
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment.pending == 0) {
+                delete(segment);
+            }
+        }
+    }
+}
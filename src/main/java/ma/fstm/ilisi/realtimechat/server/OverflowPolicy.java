@@ -0,0 +1,83 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+/**
+ * What the server does when the outbound queue of a client is full, i.e. when the client takes its calls more
+ * slowly than they arrive. Whatever the policy, a client that cannot catch up ends up disconnected rather than
+ * holding up the others.
+ */
+enum OverflowPolicy {
+    /**
+     * Drop the oldest queued system message or presence delta to make room. Presence deltas are safe to drop:
+     * the client notices the gap and fetches a snapshot. Chat messages are never dropped; a queue holding
+     * nothing else disconnects the client.
+     */
+    DROP_OLDEST("drop-oldest"),
+
+    /**
+     * Make the sender wait for room, for at most the block timeout, then disconnect the client.
+     */
+    BLOCK("block"),
+
+    /**
+     * Disconnect the client as soon as its queue is full.
+     */
+    DISCONNECT("disconnect");
+
+    /**
+     * System property selecting the policy: {@code drop-oldest}, {@code block} or {@code disconnect}.
+     */
+    static final String POLICY_PROPERTY = "realtimechat.delivery.policy";
+
+    /**
+     * Name of the policy, as used in the system property.
+     */
+    private final String name;
+
+    /**
+     * Constructs a policy.
+     *
+     * @param name the name of the policy
+     */
+    OverflowPolicy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of the policy, as used in the system property.
+     *
+     * @return the name
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the policy with the given name, ignoring case.
+     *
+     * @param name the name of the policy
+     * @return the policy
+     * @throws IllegalArgumentException if no policy has that name
+     */
+    static OverflowPolicy fromName(String name) {
+        for (OverflowPolicy policy : values()) {
+            if (policy.name.equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown overflow policy: " + name);
+    }
+
+    /**
+     * Returns the policy named by the {@value #POLICY_PROPERTY} system property, {@link #DROP_OLDEST} by default.
+     *
+     * @return the configured policy
+     * @throws IllegalArgumentException if the property names an unknown policy
+     */
+    static OverflowPolicy getDefault() {
+        String setting = System.getProperty(POLICY_PROPERTY);
+        if (setting == null || setting.isBlank()) {
+            return DROP_OLDEST;
+        }
+        return fromName(setting.trim());
+    }
+}
@@ -0,0 +1,170 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.PresenceSnapshot;
+import ma.fstm.ilisi.realtimechat.common.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Versioned list of the connected users. A change only updates the list, takes the next sequence number and
+ * queues the event, all in constant time under the registry's own monitor; a single virtual thread hands the
+ * events to the fan-out in sequence order, outside any lock, so all clients see the changes in that order.
+ * A snapshot includes exactly the changes numbered up to its sequence number, whether or not they have been
+ * fanned out yet. The users are copied on the way in, so the events and snapshots sent to clients are not
+ * affected by later changes.
+ */
+final class Presence {
+
+    /**
+     * Kind of presence change.
+     */
+    enum Change {
+        JOINED,
+        LEFT,
+        STATUSES_CHANGED
+    }
+
+    /**
+     * Numbered presence change, as sent to clients.
+     *
+     * @param change the kind of change
+     * @param users copies of the users, with their status after the change: one for a join or leave, one or more
+     *              for a batch of status changes
+     * @param sequence the sequence number of the change
+     */
+    record Event(Change change, List<User> users, long sequence) {
+
+        /**
+         * Returns the user of a join or leave.
+         *
+         * @return the user
+         */
+        User user() {
+            return users.get(0);
+        }
+    }
+
+    private final Map<String, User> users = new LinkedHashMap<>();
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+    private final Thread fanoutThread;
+    private long sequence;
+
+    /**
+     * Constructs an empty registry and starts its fan-out thread.
+     *
+     * @param fanout receives every event, in sequence order, on the fan-out thread
+     */
+    Presence(Consumer<Event> fanout) {
+        fanoutThread = Thread.ofVirtual().name("presence-fanout").start(() -> {
+            try {
+                while (true) {
+                    fanout.accept(events.take());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Records that a user joined, replacing any user of the same name.
+     *
+     * @param user the user
+     */
+    synchronized void joined(User user) {
+        User copy = copy(user);
+        users.put(copy.getUsername(), copy);
+        publish(Change.JOINED, List.of(copy));
+    }
+
+    /**
+     * Records that a user left. Does nothing if the user is not connected.
+     *
+     * @param user the user
+     */
+    synchronized void left(User user) {
+        User removed = users.remove(user.getUsername());
+        if (removed != null) {
+            User copy = copy(removed);
+            copy.setOnline(false);
+            publish(Change.LEFT, List.of(copy));
+        }
+    }
+
+    /**
+     * Records new online statuses as a single change. Users who are not connected, or already have their status,
+     * are left out; nothing is published if no user is left.
+     *
+     * @param statuses the new status of each user, by username
+     * @return the number of users whose status changed
+     */
+    synchronized int statusesChanged(Map<String, Boolean> statuses) {
+        List<User> changed = new ArrayList<>();
+        statuses.forEach((username, online) -> {
+            User current = users.get(username);
+            if (current != null && current.isOnline() != online) {
+                User copy = copy(current);
+                copy.setOnline(online);
+                users.put(username, copy);
+                changed.add(copy);
+            }
+        });
+        if (!changed.isEmpty()) {
+            publish(Change.STATUSES_CHANGED, List.copyOf(changed));
+        }
+        return changed.size();
+    }
+
+    /**
+     * Returns the connected users with the sequence number of the last change.
+     *
+     * @return the snapshot
+     */
+    synchronized PresenceSnapshot snapshot() {
+        return new PresenceSnapshot(sequence, new ArrayList<>(users.values()));
+    }
+
+    /**
+     * Returns the connected users.
+     *
+     * @return a copy of the list of users, in the order they joined
+     */
+    synchronized List<User> getUsers() {
+        return new ArrayList<>(users.values());
+    }
+
+    /**
+     * Stops the fan-out thread. Changes recorded afterwards update the list but are no longer fanned out.
+     */
+    void close() {
+        fanoutThread.interrupt();
+    }
+
+    /**
+     * Numbers a change and queues it for the fan-out thread.
+     *
+     * @param change the kind of change
+     * @param users the users after the change
+     */
+    private void publish(Change change, List<User> users) {
+        events.offer(new Event(change, users, ++sequence));
+    }
+
+    /**
+     * Copies a user, so the registry never shares an instance with the caller.
+     *
+     * @param user the user
+     * @return the copy
+     */
+    private static User copy(User user) {
+        User copy = new User(user.getUsername());
+        copy.setOnline(user.isOnline());
+        return copy;
+    }
+}
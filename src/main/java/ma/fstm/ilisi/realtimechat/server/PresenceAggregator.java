@@ -0,0 +1,191 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Collects status changes over a short window and publishes only the latest status of each user once the
+ * window ends, all in one presence delta, so a client that flaps or reconnects quickly costs one delta per window
+ * instead of one per toggle, however many users changed; a toggle that ends where it started costs none.
+ * The window opens with the first change after a flush. The counters tell how many changes were received,
+ * folded into another one, and actually published.
+ */
+final class PresenceAggregator {
+
+    /**
+     * System property setting the coalescing window in milliseconds; {@code 0} publishes every change at once.
+     */
+    static final String WINDOW_PROPERTY = "realtimechat.presence.window";
+
+    /**
+     * Default coalescing window in milliseconds.
+     */
+    static final long DEFAULT_WINDOW_MILLIS = 200;
+
+    private final long windowMillis;
+    private final ToIntFunction<Map<String, Boolean>> publisher;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder published = new LongAdder();
+
+    /**
+     * Constructs an aggregator.
+     *
+     * @param windowMillis the coalescing window in milliseconds, 0 to publish every change at once
+     * @param publisher publishes the statuses of users as one change, returning how many were not already the
+     *                  published ones
+     * @throws IllegalArgumentException if the window is negative
+     */
+    PresenceAggregator(long windowMillis, ToIntFunction<Map<String, Boolean>> publisher) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Presence window cannot be negative");
+        }
+        this.windowMillis = windowMillis;
+        this.publisher = publisher;
+        this.scheduler = windowMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(
+                Thread.ofVirtual().name("presence-flush").factory());
+    }
+
+    /**
+     * Returns the window named by the {@value #WINDOW_PROPERTY} system property,
+     * {@value #DEFAULT_WINDOW_MILLIS} ms by default.
+     *
+     * @return the configured window in milliseconds
+     * @throws IllegalArgumentException if the property is not a non-negative number
+     */
+    static long getDefaultWindowMillis() {
+        String setting = System.getProperty(WINDOW_PROPERTY);
+        if (setting == null || setting.isBlank()) {
+            return DEFAULT_WINDOW_MILLIS;
+        }
+        try {
+            long window = Long.parseLong(setting.trim());
+            if (window < 0) {
+                throw new IllegalArgumentException("Presence window cannot be negative: " + setting);
+            }
+            return window;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid presence window: " + setting, e);
+        }
+    }
+
+    /**
+     * Returns the coalescing window.
+     *
+     * @return the window in milliseconds
+     */
+    long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Records a status change, to be published when the window ends.
+     *
+     * @param username the username of the user
+     * @param online the new status
+     */
+    void statusChanged(String username, boolean online) {
+        received.increment();
+        if (scheduler == null) {
+            publish(Map.of(username, online));
+            return;
+        }
+        synchronized (this) {
+            if (pending.put(username, online) != null) {
+                coalesced.increment();
+            }
+            if (!flushScheduled) {
+                try {
+                    scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+                    flushScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    // Closed: the status stays pending, as nothing fans it out any more
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the flush scheduler, dropping a flush still waiting for its window to close.
+     */
+    void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Drops the pending status of a user who joins or leaves; the join or leave carries the status itself.
+     *
+     * @param username the username of the user
+     */
+    synchronized void discard(String username) {
+        if (pending.remove(username) != null) {
+            coalesced.increment();
+        }
+    }
+
+    /**
+     * Publishes the pending status of every user, as one change, and closes the window.
+     */
+    void flush() {
+        Map<String, Boolean> changes;
+        synchronized (this) {
+            changes = new LinkedHashMap<>(pending);
+            pending.clear();
+            flushScheduled = false;
+        }
+        if (!changes.isEmpty()) {
+            publish(changes);
+        }
+    }
+
+    /**
+     * Returns the number of status changes received.
+     *
+     * @return the count
+     */
+    long getReceivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * Returns the number of status changes that were not published: superseded by a later change in the same
+     * window, dropped by a join or leave, or back to the status already published.
+     *
+     * @return the count
+     */
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Returns the number of status changes published, several of which may share a presence delta.
+     *
+     * @return the count
+     */
+    long getPublishedCount() {
+        return published.sum();
+    }
+
+    /**
+     * Publishes statuses, counting those that changed something as published and the others as coalesced.
+     *
+     * @param changes the status of each user, by username
+     */
+    private void publish(Map<String, Boolean> changes) {
+        int changed = publisher.applyAsInt(changes);
+        published.add(changed);
+        coalesced.add(changes.size() - changed);
+    }
+}
@@ -0,0 +1,137 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index from each room to the usernames of its members, used to fan a room post out to them.
+ * Membership changes are made under the map bin of the room, so they never race with the room being created or
+ * removed; a room is removed with its last member. Posting only reads the member set, without any lock, and
+ * sees the members of the moment. Membership is kept by username, so it survives reconnections.
+ */
+final class RoomRegistry {
+
+    /**
+     * Longest room name accepted.
+     */
+    static final int MAX_NAME_LENGTH = 64;
+
+    private final Map<String, Set<String>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a room with a first member.
+     *
+     * @param room the name of the room
+     * @param username the username of the member
+     * @return true if the room was created, false if it already exists
+     * @throws IllegalArgumentException if the name is blank or longer than {@value #MAX_NAME_LENGTH} characters
+     */
+    boolean create(String room, String username) {
+        checkName(room);
+        boolean[] created = new boolean[1];
+        rooms.computeIfAbsent(room, name -> {
+            Set<String> members = ConcurrentHashMap.newKeySet();
+            members.add(username);
+            created[0] = true;
+            return members;
+        });
+        return created[0];
+    }
+
+    /**
+     * Adds a member to a room.
+     *
+     * @param room the name of the room
+     * @param username the username of the member
+     * @return true if the user is a member, false if there is no such room
+     */
+    boolean join(String room, String username) {
+        return rooms.computeIfPresent(room, (name, members) -> {
+            members.add(username);
+            return members;
+        }) != null;
+    }
+
+    /**
+     * Removes a member from a room, and the room if it was its last member.
+     *
+     * @param room the name of the room
+     * @param username the username of the member
+     */
+    void leave(String room, String username) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(username);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * Adds members to a room, creating it if needed. Used when a room is handed over from another server.
+     *
+     * @param room the name of the room
+     * @param usernames the usernames of the members
+     */
+    void merge(String room, Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.addAll(usernames);
+            return members;
+        });
+    }
+
+    /**
+     * Removes a room with all its members.
+     *
+     * @param room the name of the room
+     * @return the usernames of the members, empty if there was no such room
+     */
+    Set<String> remove(String room) {
+        Set<String> members = rooms.remove(room);
+        return members == null ? Set.of() : members;
+    }
+
+    /**
+     * Returns the members of a room.
+     *
+     * @param room the name of the room
+     * @return a live, unmodifiable view of the usernames of the members, empty if there is no such room
+     */
+    Set<String> getMembers(String room) {
+        Set<String> members = rooms.get(room);
+        return members == null ? Set.of() : Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Returns the names of the rooms.
+     *
+     * @return the names, sorted
+     */
+    List<String> getRooms() {
+        List<String> names = new ArrayList<>(rooms.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Checks a room name.
+     *
+     * @param room the name of the room
+     * @throws IllegalArgumentException if the name is blank or too long
+     */
+    private static void checkName(String room) {
+        if (room == null || room.isBlank() || room.length() > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Room name must hold between 1 and " + MAX_NAME_LENGTH
+                    + " characters");
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Directory of memory-mapped segment files shared by the {@link OfflineStore} and the {@link HistoryLog}:
+ * the naming and mapping of the files, the group commit that forces the segments written since its last pass
+ * to disk, and the framing of their records. A record starts with the length of its body (int, 0 marks the end
+ * of a segment) and the CRC-32C of the body (int), followed by any header bytes of its own and the body; the
+ * body and the CRC are written before the length, which is what makes the record visible to recovery.
+ * What the records hold, and which segments are live, is up to the owner, which calls this class under its own
+ * monitor; only the set of written segments has a lock of its own, so flushes run outside that monitor.
+ */
+final class SegmentLog {
+
+    /**
+     * Longest username a record holds, in UTF-8 bytes.
+     */
+    static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Segment file found in the directory.
+     *
+     * @param id the number of the segment, which orders the files
+     * @param path the file
+     */
+    record SegmentFile(long id, Path path) {
+    }
+
+    /**
+     * Receives the records of a segment during recovery.
+     */
+    @FunctionalInterface
+    interface RecordVisitor {
+        /**
+         * Receives a record whose CRC matched.
+         *
+         * @param offset the offset of the record in the segment
+         * @param body a view of the body, positioned at its start
+         */
+        void visit(int offset, ByteBuffer body);
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long flushMillis;
+    // Mappings compare by content, so the set goes by identity
+    private final Set<MappedByteBuffer> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Opens a directory of segment files, creating it if needed. Group commit starts with {@link #start(String)},
+     * once the owner has recovered the existing segments.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of a segment file in bytes
+     * @param flushMillis the group-commit interval in milliseconds, 0 to force every write to disk
+     * @throws IOException if the directory cannot be created
+     * @throws IllegalArgumentException if the segment size is too small or the interval negative
+     */
+    SegmentLog(Path directory, int segmentSize, long flushMillis) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 1024 bytes");
+        }
+        if (flushMillis < 0) {
+            throw new IllegalArgumentException("Flush interval cannot be negative");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushMillis = flushMillis;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the directory named by a system property, or the default one if it is not set.
+     *
+     * @param property the name of the system property
+     * @param defaultDirectory the directory used by default, relative to the working directory
+     * @return the directory
+     */
+    static Path directoryProperty(String property, String defaultDirectory) {
+        String setting = System.getProperty(property);
+        return Paths.get(setting == null || setting.isBlank() ? defaultDirectory : setting.trim());
+    }
+
+    /**
+     * Returns the group-commit interval set by a system property, or the default one if it is not set.
+     *
+     * @param property the name of the system property
+     * @param defaultMillis the interval used by default
+     * @param description what the interval is for, in error messages
+     * @return the interval in milliseconds
+     * @throws IllegalArgumentException if the property is not a number
+     */
+    static long flushProperty(String property, long defaultMillis, String description) {
+        String flush = System.getProperty(property);
+        if (flush == null || flush.isBlank()) {
+            return defaultMillis;
+        }
+        try {
+            return Long.parseLong(flush.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + description + " flush interval: " + flush, e);
+        }
+    }
+
+    /**
+     * Starts the virtual thread of the group commit, unless every write is forced.
+     *
+     * @param threadName the name of the thread
+     */
+    void start(String threadName) {
+        if (flushMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name(threadName).factory());
+            flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the directory of the segment files.
+     *
+     * @return the directory
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the group-commit interval.
+     *
+     * @return the interval in milliseconds
+     */
+    long getFlushMillis() {
+        return flushMillis;
+    }
+
+    /**
+     * Tells whether every write is forced to disk by the writer rather than by the group commit.
+     *
+     * @return true if the interval is 0
+     */
+    boolean isForcedOnWrite() {
+        return flushMillis == 0;
+    }
+
+    /**
+     * Lists the segment files of the directory in order, skipping files whose name is not a segment number.
+     *
+     * @return the segment files, oldest first
+     * @throws IOException if the directory cannot be listed
+     */
+    List<SegmentFile> list() throws IOException {
+        List<SegmentFile> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    files.add(new SegmentFile(id, path));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(SegmentFile::id));
+        return files;
+    }
+
+    /**
+     * Returns the path of a segment file.
+     *
+     * @param id the number of the segment
+     * @return the path
+     */
+    Path path(long id) {
+        return directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Tells whether a record fits in a segment after the records already written, keeping room for the zero
+     * length that ends the segment.
+     *
+     * @param buffer the segment, positioned after its last record; null if there is none yet
+     * @param recordLength the length of the record, header included
+     * @return true if the record fits
+     */
+    static boolean fits(MappedByteBuffer buffer, int recordLength) {
+        return buffer != null && buffer.position() + recordLength + 4 <= buffer.capacity();
+    }
+
+    /**
+     * Creates and maps a new segment file, large enough for a record and its end marker.
+     * A record larger than the segment size gets a segment of its own.
+     *
+     * @param id the number of the segment
+     * @param recordLength the length of the record that did not fit in the previous segment
+     * @return the mapping
+     * @throws IOException if the file cannot be created or mapped
+     */
+    MappedByteBuffer create(long id, int recordLength) throws IOException {
+        return map(path(id), Math.max(segmentSize, recordLength + 4));
+    }
+
+    /**
+     * Maps a segment file, extending it to the given size if it is shorter.
+     *
+     * @param path the file
+     * @param size the smallest size of the mapping in bytes
+     * @return the mapping
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    /**
+     * Reads the records of a segment up to its end marker or its first damaged record: one whose length runs
+     * past the segment or whose CRC does not match.
+     *
+     * @param buffer the segment
+     * @param headerLength the length of the record header, the length and CRC included
+     * @param minBodyLength the shortest valid body
+     * @param visitor receives each valid record
+     */
+    static void scan(MappedByteBuffer buffer, int headerLength, int minBodyLength, RecordVisitor visitor) {
+        int offset = 0;
+        while (offset + headerLength <= buffer.capacity()) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength < Math.max(1, minBodyLength) || bodyLength > buffer.capacity() - offset - headerLength) {
+                return;
+            }
+            ByteBuffer body = body(buffer, offset, headerLength);
+            if (!isIntact(buffer, offset, body)) {
+                return;
+            }
+            visitor.visit(offset, body);
+            offset += headerLength + bodyLength;
+        }
+    }
+
+    /**
+     * Completes a record whose body has been written: writes its CRC, then its length, and moves the
+     * position of the segment past it.
+     *
+     * @param buffer the segment
+     * @param offset the offset of the record
+     * @param headerLength the length of the record header
+     * @param body the body, as written from its start
+     */
+    static void seal(MappedByteBuffer buffer, int offset, int headerLength, ByteBuffer body) {
+        int bodyLength = body.position();
+        buffer.putInt(offset + 4, crc(body.flip()));
+        buffer.putInt(offset, bodyLength);
+        buffer.position(offset + headerLength + bodyLength);
+    }
+
+    /**
+     * Returns the body of the record at an offset.
+     *
+     * @param buffer the segment
+     * @param offset the offset of the record
+     * @param headerLength the length of the record header
+     * @return a view of the body, positioned at its start
+     */
+    static ByteBuffer body(ByteBuffer buffer, int offset, int headerLength) {
+        return buffer.slice(offset + headerLength, buffer.getInt(offset));
+    }
+
+    /**
+     * Checks the body of a record against the CRC written with it.
+     *
+     * @param buffer the segment
+     * @param offset the offset of the record
+     * @param body the body of the record
+     * @return true if the CRC matches
+     */
+    static boolean isIntact(ByteBuffer buffer, int offset, ByteBuffer body) {
+        return crc(body) == buffer.getInt(offset + 4);
+    }
+
+    /**
+     * Computes the CRC-32C of a body without moving its position.
+     *
+     * @param body the body
+     * @return the CRC
+     */
+    private static int crc(ByteBuffer body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Records that a segment was written, for the next flush.
+     *
+     * @param buffer the segment
+     */
+    void markDirty(MappedByteBuffer buffer) {
+        synchronized (dirty) {
+            dirty.add(buffer);
+        }
+    }
+
+    /**
+     * Forgets a segment about to be deleted, so the next flush does not force it.
+     *
+     * @param buffer the segment
+     */
+    void forget(MappedByteBuffer buffer) {
+        synchronized (dirty) {
+            dirty.remove(buffer);
+        }
+    }
+
+    /**
+     * Forces the segments written since the last flush to disk.
+     */
+    void flush() {
+        List<MappedByteBuffer> toForce;
+        synchronized (dirty) {
+            toForce = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+        // Outside the lock, so writes go on while the pages are written
+        for (MappedByteBuffer buffer : toForce) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Stops the group commit and forces every pending write to disk.
+     */
+    void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Encodes a username for a record.
+     *
+     * @param username the username
+     * @return the UTF-8 bytes
+     * @throws IllegalArgumentException if the encoding is longer than {@value #MAX_NAME_LENGTH} bytes
+     */
+    static byte[] encodeName(String username) {
+        byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Username is too long to be stored: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a length-prefixed username.
+     *
+     * @param body the record body
+     * @param name the UTF-8 bytes of the username
+     * @return the body
+     */
+    static ByteBuffer putName(ByteBuffer body, byte[] name) {
+        return body.putShort((short) name.length).put(name);
+    }
+
+    /**
+     * Returns the space taken by a length-prefixed username.
+     *
+     * @param name the UTF-8 bytes of the username
+     * @return the length in bytes
+     */
+    static int nameLength(byte[] name) {
+        return 2 + name.length;
+    }
+
+    /**
+     * Reads a length-prefixed username.
+     *
+     * @param body the record body, positioned at the length
+     * @return the UTF-8 bytes
+     */
+    static byte[] readBytes(ByteBuffer body) {
+        byte[] bytes = new byte[Short.toUnsignedInt(body.getShort())];
+        body.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads a length-prefixed username.
+     *
+     * @param body the record body, positioned at the length
+     * @return the username
+     */
+    static String readString(ByteBuffer body) {
+        return new String(readBytes(body), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skips a length-prefixed username.
+     *
+     * @param body the record body, positioned at the length
+     */
+    static void skipString(ByteBuffer body) {
+        int length = Short.toUnsignedInt(body.getShort());
+        body.position(body.position() + length);
+    }
+}
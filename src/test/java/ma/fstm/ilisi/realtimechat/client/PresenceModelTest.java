@@ -0,0 +1,85 @@
+package ma.fstm.ilisi.realtimechat.client;
+
+import ma.fstm.ilisi.realtimechat.common.PresenceSnapshot;
+import ma.fstm.ilisi.realtimechat.common.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PresenceModelTest {
+
+    private static List<String> names(PresenceModel model) {
+        return model.getUsers().stream().map(User::getUsername).toList();
+    }
+
+    private static User offline(String username) {
+        User user = new User(username);
+        user.setOnline(false);
+        return user;
+    }
+
+    @Test
+    @DisplayName("Test the first delta asks for a snapshot")
+    void testFirstDelta() {
+        PresenceModel model = new PresenceModel();
+        assertFalse(model.joined(new User("alice"), 1), "Without a snapshot every delta is a gap");
+        assertTrue(model.getUsers().isEmpty(), "Nothing should be applied before the snapshot");
+    }
+
+    @Test
+    @DisplayName("Test deltas are applied in sequence after a snapshot")
+    void testDeltas() {
+        PresenceModel model = new PresenceModel();
+        model.reset(new PresenceSnapshot(3, List.of(new User("alice"), new User("bob"))));
+
+        assertTrue(model.joined(new User("carol"), 4));
+        assertTrue(model.statusChanged(offline("alice"), 5));
+        assertTrue(model.left(new User("bob"), 6));
+
+        assertEquals(List.of("alice", "carol"), names(model), "Joins and leaves should be applied");
+        assertFalse(model.getUsers().get(0).isOnline(), "The status change should be applied");
+        assertEquals(6, model.getSequence());
+    }
+
+    @Test
+    @DisplayName("Test a batch of status changes is applied as one delta")
+    void testStatusBatch() {
+        PresenceModel model = new PresenceModel();
+        model.reset(new PresenceSnapshot(3, List.of(new User("alice"), new User("bob"), new User("carol"))));
+
+        assertTrue(model.statusesChanged(List.of(offline("alice"), offline("carol")), 4));
+        assertEquals(List.of(false, true, false), model.getUsers().stream().map(User::isOnline).toList(),
+                "Every status of the batch should be applied");
+        assertEquals(4, model.getSequence(), "The batch should take a single sequence number");
+        assertFalse(model.statusesChanged(List.of(offline("bob")), 6), "A missed delta should still be noticed");
+    }
+
+    @Test
+    @DisplayName("Test deltas covered by the snapshot are ignored")
+    void testStaleDeltas() {
+        PresenceModel model = new PresenceModel();
+        model.reset(new PresenceSnapshot(5, List.of(new User("alice"))));
+
+        assertTrue(model.joined(new User("bob"), 4), "An older delta is already in the snapshot");
+        assertTrue(model.left(new User("alice"), 5), "The last delta of the snapshot is already in it");
+        assertEquals(List.of("alice"), names(model), "Covered deltas should not change the list");
+    }
+
+    @Test
+    @DisplayName("Test a missed delta asks for a snapshot")
+    void testGap() {
+        PresenceModel model = new PresenceModel();
+        model.reset(new PresenceSnapshot(2, List.of(new User("alice"))));
+
+        assertFalse(model.joined(new User("carol"), 4), "Delta 3 was missed");
+        assertEquals(List.of("alice"), names(model), "A delta after a gap should not be applied");
+
+        model.reset(new PresenceSnapshot(4, List.of(new User("alice"), new User("bob"), new User("carol"))));
+        assertEquals(List.of("alice", "bob", "carol"), names(model), "The snapshot should fill the gap");
+        model.reset(new PresenceSnapshot(3, List.of()));
+        assertEquals(4, model.getSequence(), "An older snapshot should be ignored");
+    }
+}
@@ -0,0 +1,148 @@
+package ma.fstm.ilisi.realtimechat.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SearchIndexTest {
+    private Path directory;
+    private SearchIndex index;
+
+    private static List<String> texts(List<SearchHit> hits) {
+        return hits.stream().map(SearchHit::text).toList();
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("search");
+        index = new SearchIndex(directory);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        index.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test terms are lower-cased, stripped of accents and kept once")
+    void testTokenize() {
+        assertEquals(List.of("deja", "vu", "l", "ete", "2024"),
+                List.copyOf(SearchIndex.tokenize("Déjà vu, l'été 2024... DÉJÀ!")));
+        assertTrue(SearchIndex.tokenize(" ?! ").isEmpty(), "Punctuation has no terms");
+    }
+
+    @Test
+    @DisplayName("Test a query finds the messages with all its terms, newest first")
+    void testSearch() throws IOException {
+        index.add("bob", "alice", 1, "Lunch at noon?");
+        index.add("bob", "bob", 2, "Noon is fine, see you at lunch");
+        index.add("carol", "alice", 3, "Dinner tonight");
+        index.add("carol", "carol", 4, "Le déjeuner est prêt");
+
+        assertEquals(List.of("Noon is fine, see you at lunch", "Lunch at noon?"), texts(index.search("lunch NOON", 10)));
+        assertEquals(List.of("Dinner tonight"), texts(index.search("tonight", 10)));
+        assertEquals(List.of("Le déjeuner est prêt"), texts(index.search("pret", 10)), "Accents should not matter");
+        assertTrue(index.search("lunch dinner", 10).isEmpty(), "No message has both terms");
+        assertTrue(index.search("", 10).isEmpty(), "An empty query finds nothing");
+
+        SearchHit hit = index.search("dinner", 10).get(0);
+        assertEquals("carol", hit.peer());
+        assertEquals("alice", hit.sender());
+        assertEquals(3, hit.timestamp());
+    }
+
+    @Test
+    @DisplayName("Test the last term of a query matches as a prefix")
+    void testPrefix() throws IOException {
+        index.add("bob", "alice", 1, "meeting tomorrow");
+        index.add("bob", "alice", 2, "meet me tomorrow");
+        index.add("bob", "alice", 3, "tomorrow then");
+
+        assertEquals(3, index.search("tomorrow", 10).size());
+        assertEquals(List.of("meet me tomorrow", "meeting tomorrow"), texts(index.search("tomorrow mee", 10)));
+        assertEquals(List.of("meet me tomorrow"), texts(index.search("meet tomorrow", 10)),
+                "Only the last term is a prefix");
+        assertEquals(1, index.search("mee", 1).size(), "Results should be capped");
+    }
+
+    @Test
+    @DisplayName("Test the index survives a restart, with or without being saved")
+    void testReopen() throws IOException {
+        index.add("bob", "alice", 1, "first message");
+        index.close();
+
+        index = new SearchIndex(directory);
+        index.add("bob", "alice", 2, "second message");
+        // Not saved: the second message must be indexed again from the message file
+
+        SearchIndex reopened = new SearchIndex(directory);
+        try {
+            assertEquals(2, reopened.getMessageCount());
+            assertEquals(List.of("second message", "first message"), texts(reopened.search("message", 10)));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Test a message cut short by a crash is discarded")
+    void testTornMessage() throws IOException {
+        index.add("bob", "alice", 1, "kept");
+        index.add("bob", "alice", 2, "lost");
+        index.close();
+        Files.delete(directory.resolve("index.dat"));
+        try (FileChannel file = FileChannel.open(directory.resolve("messages.dat"), StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 2);
+        }
+
+        index = new SearchIndex(directory);
+        assertEquals(1, index.getMessageCount());
+        assertTrue(index.search("lost", 10).isEmpty());
+        index.add("bob", "alice", 3, "after");
+        assertEquals(List.of("after"), texts(index.search("after", 10)), "Appends should go on after the cut");
+    }
+
+    @Test
+    @DisplayName("Test queries over many messages use the index")
+    void testManyMessages() throws IOException {
+        for (int i = 0; i < 100_000; i++) {
+            index.add("bob", "alice", i, "message number " + i + (i % 1000 == 0 ? " milestone" : ""));
+        }
+        long start = System.nanoTime();
+        List<SearchHit> hits = index.search("message milestone", 1000);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(100, hits.size());
+        assertEquals("message number 99000 milestone", hits.get(0).text(), "Newest first");
+        assertTrue(elapsedMillis < 1000, "Query took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    @DisplayName("Test usernames cannot name a directory outside the root of the indexes")
+    void testDefaultDirectory() {
+        Path root = SearchIndex.getDefaultDirectory("alice").getParent();
+        assertEquals(root.resolve("a_b"), SearchIndex.getDefaultDirectory("a/b"));
+        assertEquals(root.resolve(".alice"), SearchIndex.getDefaultDirectory(".alice"));
+        for (String username : new String[]{"", ".", "..", "..."}) {
+            assertThrows(IllegalArgumentException.class, () -> SearchIndex.getDefaultDirectory(username),
+                    "\"" + username + "\" should be rejected");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ma.fstm.ilisi.realtimechat.common;
+
+import ma.fstm.ilisi.realtimechat.common.aes.AESEncryption;
+import ma.fstm.ilisi.realtimechat.common.aes.CipherMode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EnvelopeTest {
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+
+    private static byte[] encrypt(AESEncryption aes, String message, CipherMode mode) {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        byte[] encrypted = new byte[AESEncryption.getEncryptedLength(data.length, mode)];
+        aes.encrypt(data, 0, data.length, encrypted, 0, mode);
+        return encrypted;
+    }
+
+    @Test
+    @DisplayName("Test envelope serialization round trip")
+    void testRoundTrip() throws Exception {
+        AESEncryption aes = new AESEncryption();
+        for (CipherMode mode : CipherMode.values()) {
+            byte[] payload = encrypt(aes, "Hello, World!", mode);
+            Envelope copy = (Envelope) deserialize(serialize(new Envelope(payload)));
+
+            assertEquals(Envelope.VERSION, copy.getVersion(), "Version should survive serialization");
+            assertArrayEquals(payload, copy.getPayload(), "Payload should survive serialization");
+            assertEquals(mode, copy.getMode(), "Mode should be read from the payload");
+            assertArrayEquals(Arrays.copyOfRange(payload, 1, 1 + mode.getIvLength()), copy.getIv(),
+                    "IV should be read from the payload");
+        }
+    }
+
+    @Test
+    @DisplayName("Test envelope is smaller on the wire than Base64 text")
+    void testCompactness() throws Exception {
+        AESEncryption aes = new AESEncryption();
+        String message = "x".repeat(3000);
+        byte[] payload = encrypt(aes, message, CipherMode.GCM);
+
+        int binary = serialize(new Envelope(payload)).length;
+        int text = serialize(Base64.getEncoder().encodeToString(payload)).length;
+        assertTrue(binary < text * 0.8, "Binary envelope (" + binary + " bytes) should beat Base64 (" + text + " bytes)");
+        assertTrue(binary - payload.length < 100, "Framing overhead should be small");
+    }
+
+    @Test
+    @DisplayName("Test Base64 form matches the String API")
+    void testBase64Form() {
+        AESEncryption aes = new AESEncryption();
+        Envelope envelope = new Envelope(encrypt(aes, "Legacy peer", CipherMode.GCM));
+        assertEquals("Legacy peer", aes.decrypt(envelope.toBase64()),
+                "Peers that predate envelopes should decrypt the Base64 form");
+    }
+
+    @Test
+    @DisplayName("Test invalid envelopes are rejected")
+    void testValidation() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> new Envelope(null));
+        assertThrows(IllegalArgumentException.class, () -> new Envelope(new byte[0]));
+
+        byte[] serialized = serialize(new Envelope(new byte[]{1, 2, 3}));
+        // The frame ends with the version byte, the length and the payload, right before the block end marker
+        int versionOffset = serialized.length - 1 - 3 - 4 - 1;
+        assertEquals(Envelope.VERSION, serialized[versionOffset]);
+
+        byte[] unknownVersion = serialized.clone();
+        unknownVersion[versionOffset] = 9;
+        IOException versionError = assertThrows(IOException.class, () -> deserialize(unknownVersion));
+        assertFalse(versionError instanceof InvalidClassException);
+
+        byte[] hugeLength = serialized.clone();
+        ByteArrayOutputStream length = new ByteArrayOutputStream();
+        new DataOutputStream(length).writeInt(Integer.MAX_VALUE);
+        System.arraycopy(length.toByteArray(), 0, hugeLength, versionOffset + 1, 4);
+        assertThrows(IOException.class, () -> deserialize(hugeLength), "Oversized length should be rejected");
+    }
+
+    @Test
+    @DisplayName("Test detection of methods missing on older peers")
+    void testUnsupportedMethodDetection() {
+        UnmarshalException missing = new UnmarshalException("unrecognized method hash: method not supported by remote object");
+        assertTrue(RemoteCompatibility.isUnsupportedMethod(missing));
+        assertTrue(RemoteCompatibility.isUnsupportedMethod(
+                new ServerException("RemoteException occurred in server thread", missing)));
+        assertFalse(RemoteCompatibility.isUnsupportedMethod(new UnmarshalException("error unmarshalling arguments")));
+        assertFalse(RemoteCompatibility.isUnsupportedMethod(new IOException("connection reset")));
+    }
+}
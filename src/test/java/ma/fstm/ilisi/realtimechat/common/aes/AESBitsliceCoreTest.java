@@ -0,0 +1,114 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AESBitsliceCoreTest {
+    private AESBitsliceCore bitsliceCore;
+    private AESCore referenceCore;
+    private byte[] testKey;
+
+    @BeforeEach
+    void setUp() {
+        // Same 256-bit test key as AESCoreTest
+        testKey = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            testKey[i] = (byte)i;
+        }
+        bitsliceCore = new AESBitsliceCore();
+        bitsliceCore.keyExpansion(testKey);
+        referenceCore = new AESCore();
+        referenceCore.keyExpansion(testKey);
+    }
+
+    @Test
+    @DisplayName("Test FIPS-197 known answers for every key size")
+    void testKnownAnswers() {
+        byte[] plaintext = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            plaintext[i] = (byte)(i * 0x11);
+        }
+        byte[][] expected = {
+                {(byte)0x69, (byte)0xc4, (byte)0xe0, (byte)0xd8, (byte)0x6a, (byte)0x7b, (byte)0x04, (byte)0x30,
+                        (byte)0xd8, (byte)0xcd, (byte)0xb7, (byte)0x80, (byte)0x70, (byte)0xb4, (byte)0xc5, (byte)0x5a},
+                {(byte)0xdd, (byte)0xa9, (byte)0x7c, (byte)0xa4, (byte)0x86, (byte)0x4c, (byte)0xdf, (byte)0xe0,
+                        (byte)0x6e, (byte)0xaf, (byte)0x70, (byte)0xa0, (byte)0xec, (byte)0x0d, (byte)0x71, (byte)0x91},
+                {(byte)0x8e, (byte)0xa2, (byte)0xb7, (byte)0xca, (byte)0x51, (byte)0x67, (byte)0x45, (byte)0xbf,
+                        (byte)0xea, (byte)0xfc, (byte)0x49, (byte)0x90, (byte)0x4b, (byte)0x49, (byte)0x60, (byte)0x89}
+        };
+
+        for (KeySize keySize : KeySize.values()) {
+            AESBitsliceCore core = new AESBitsliceCore();
+            core.keyExpansion(Arrays.copyOf(testKey, keySize.getKeyLength()));
+            byte[] ciphertext = expected[keySize.ordinal()];
+            assertArrayEquals(ciphertext, core.encryptBlock(plaintext), "Ciphertext should match FIPS-197 for " + keySize);
+            assertArrayEquals(plaintext, core.decryptBlock(ciphertext), "Plaintext should match FIPS-197 for " + keySize);
+        }
+    }
+
+    @Test
+    @DisplayName("Test same output as AESCore for random keys and blocks")
+    void testMatchesAESCoreRandom() {
+        Random random = new Random(42);
+        byte[] block = new byte[16];
+
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[KeySize.values()[i % 3].getKeyLength()];
+            random.nextBytes(key);
+            random.nextBytes(block);
+            AESCore reference = new AESCore();
+            reference.keyExpansion(key);
+            AESBitsliceCore bitslice = new AESBitsliceCore();
+            bitslice.keyExpansion(key);
+
+            byte[] encrypted = bitslice.encryptBlock(block);
+            assertArrayEquals(reference.encryptBlock(block), encrypted, "Encryption should match AESCore");
+            assertArrayEquals(block, bitslice.decryptBlock(encrypted), "Decryption should restore the block");
+        }
+    }
+
+    @Test
+    @DisplayName("Test batches of every size, including partial passes")
+    void testBatches() {
+        Random random = new Random(7);
+        for (int blocks = 0; blocks <= 13; blocks++) {
+            byte[] data = new byte[5 + blocks * 16];
+            random.nextBytes(data);
+            // One block at a time, as AESCore hands its batches to the bitsliced engine
+            byte[] expected = new byte[blocks * 16];
+            for (int b = 0; b < blocks; b++) {
+                referenceCore.encryptBlock(data, 5 + b * 16, expected, b * 16);
+            }
+
+            byte[] encrypted = new byte[3 + blocks * 16];
+            bitsliceCore.encryptBlocks(data, 5, encrypted, 3, blocks);
+            assertArrayEquals(expected, Arrays.copyOfRange(encrypted, 3, encrypted.length),
+                    "Batch of " + blocks + " blocks should match AESCore");
+
+            // In place
+            bitsliceCore.decryptBlocks(encrypted, 3, encrypted, 3, blocks);
+            assertArrayEquals(Arrays.copyOfRange(data, 5, data.length), Arrays.copyOfRange(encrypted, 3, encrypted.length),
+                    "In-place batch of " + blocks + " blocks should decrypt");
+        }
+    }
+
+    @Test
+    @DisplayName("Test key and range validation")
+    void testValidation() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new AESBitsliceCore().keyExpansion(new byte[20]),
+                "Invalid key size should throw exception");
+        assertThrows(IllegalStateException.class,
+                () -> new AESBitsliceCore().encryptBlock(new byte[16]),
+                "Using an unkeyed engine should throw exception");
+        assertThrows(IndexOutOfBoundsException.class,
+                () -> bitsliceCore.encryptBlocks(new byte[40], 0, new byte[48], 0, 3),
+                "Batch past the end of the array should throw exception");
+    }
+}
@@ -0,0 +1,149 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AESCipherStreamTest {
+    private static final int[] LENGTHS = {0, 1, 15, 16, 17, 4095, 4096, 4097, 100_000};
+
+    private AESEncryption aes;
+    private SecureRandom random;
+
+    @BeforeEach
+    void setUp() {
+        aes = new AESEncryption();
+        random = new SecureRandom();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private byte[] encryptStream(byte[] data, CipherMode mode, int writeSize) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (OutputStream out = new AESCipherOutputStream(sink, aes, mode)) {
+            for (int off = 0; off < data.length; off += writeSize) {
+                out.write(data, off, Math.min(writeSize, data.length - off));
+            }
+        }
+        return sink.toByteArray();
+    }
+
+    private byte[] decryptStream(byte[] encrypted, int readSize) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (InputStream in = new AESCipherInputStream(new ByteArrayInputStream(encrypted), aes)) {
+            byte[] buffer = new byte[readSize];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                sink.write(buffer, 0, n);
+            }
+        }
+        return sink.toByteArray();
+    }
+
+    @Test
+    @DisplayName("Test stream round trip in every mode and write size")
+    void testRoundTrip() throws IOException {
+        for (CipherMode mode : CipherMode.values()) {
+            for (int length : LENGTHS) {
+                byte[] data = randomBytes(length);
+                for (int chunk : new int[]{1, 7, 16, 1000, 65536}) {
+                    byte[] encrypted = encryptStream(data, mode, chunk);
+                    assertEquals(AESEncryption.getEncryptedLength(length, mode), encrypted.length,
+                            "Stream output length should match the message format for " + mode);
+                    assertArrayEquals(data, decryptStream(encrypted, chunk),
+                            mode + " stream of length " + length + " in chunks of " + chunk + " should round trip");
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test streams interoperate with the array API")
+    void testInteroperability() throws IOException {
+        for (CipherMode mode : CipherMode.values()) {
+            byte[] data = randomBytes(10_000);
+
+            byte[] streamed = encryptStream(data, mode, 333);
+            byte[] output = new byte[streamed.length];
+            int length = aes.decrypt(streamed, 0, streamed.length, output, 0);
+            assertArrayEquals(data, Arrays.copyOf(output, length),
+                    "The array API should decrypt a " + mode + " stream");
+
+            byte[] encrypted = new byte[AESEncryption.getEncryptedLength(data.length, mode)];
+            aes.encrypt(data, 0, data.length, encrypted, 0, mode);
+            assertArrayEquals(data, decryptStream(encrypted, 512),
+                    "The input stream should decrypt a " + mode + " message");
+        }
+    }
+
+    @Test
+    @DisplayName("Test single byte reads and writes")
+    void testSingleBytes() throws IOException {
+        byte[] data = randomBytes(50);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (OutputStream out = new AESCipherOutputStream(sink, aes)) {
+            for (byte b : data) {
+                out.write(b);
+            }
+        }
+        try (InputStream in = new AESCipherInputStream(new ByteArrayInputStream(sink.toByteArray()), aes)) {
+            for (byte b : data) {
+                assertEquals(b & 0xFF, in.read(), "Each byte should be read back");
+            }
+            assertEquals(-1, in.read(), "End of message should return -1");
+        }
+    }
+
+    @Test
+    @DisplayName("Test skipping decrypted bytes")
+    void testSkip() throws IOException {
+        byte[] data = randomBytes(10_000);
+        byte[] encrypted = encryptStream(data, CipherMode.CBC, 1000);
+        try (InputStream in = new AESCipherInputStream(new ByteArrayInputStream(encrypted), aes)) {
+            assertEquals(9_000, in.skip(9_000), "Skip should consume plaintext bytes");
+            assertEquals(data[9_000] & 0xFF, in.read(), "Reading should resume after the skipped bytes");
+        }
+    }
+
+    @Test
+    @DisplayName("Test tampered and truncated streams are rejected")
+    void testTamperedStream() throws IOException {
+        byte[] data = randomBytes(5000);
+        byte[] gcm = encryptStream(data, CipherMode.GCM, 1000);
+        gcm[100] ^= 0x01;
+        assertThrows(IOException.class, () -> decryptStream(gcm, 1000),
+                "A tampered GCM stream should fail authentication");
+
+        byte[] cbc = encryptStream(data, CipherMode.CBC, 1000);
+        byte[] truncated = Arrays.copyOf(cbc, cbc.length - 5);
+        assertThrows(IOException.class, () -> decryptStream(truncated, 1000),
+                "A truncated CBC stream should be rejected");
+
+        assertThrows(IOException.class, () -> decryptStream(new byte[0], 1000),
+                "An empty stream should be rejected");
+        assertThrows(IOException.class, () -> decryptStream(new byte[]{0x7F, 0, 0}, 1000),
+                "An unknown mode should be rejected");
+    }
+
+    @Test
+    @DisplayName("Test writing to a closed stream")
+    void testWriteAfterClose() throws IOException {
+        OutputStream out = new AESCipherOutputStream(new ByteArrayOutputStream(), aes);
+        out.close();
+        assertThrows(IOException.class, () -> out.write(1), "Writing after close should fail");
+    }
+}
@@ -3,6 +3,9 @@ package ma.fstm.ilisi.realtimechat.common.aes;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.DisplayName;
+
+import java.util.Random;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class AESCoreTest {
@@ -148,11 +151,31 @@ public class AESCoreTest {
     @Test
     @DisplayName("Test key size validation")
     void testKeySizeValidation() {
-        byte[] invalidKey = new byte[24];
+        byte[] invalidKey = new byte[20];
         AESCore newCore = new AESCore();
 
         assertThrows(IllegalArgumentException.class,
                 () -> newCore.keyExpansion(invalidKey),
                 "Invalid key size should throw exception");
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Test batches match block-by-block encryption, on either side of the bitsliced pass size")
+    void testBatches() {
+        Random random = new Random(3);
+        for (int blocks = 0; blocks <= 2 * AESBitsliceCore.PARALLEL_BLOCKS + 1; blocks++) {
+            byte[] data = new byte[blocks * 16];
+            random.nextBytes(data);
+            byte[] expected = new byte[data.length];
+            for (int b = 0; b < blocks; b++) {
+                aesCore.encryptBlock(data, b * 16, expected, b * 16);
+            }
+
+            byte[] batch = data.clone();
+            aesCore.encryptBlocks(batch, 0, batch, 0, blocks);
+            assertArrayEquals(expected, batch, "Batch of " + blocks + " blocks should match single blocks");
+            aesCore.decryptBlocks(batch, 0, batch, 0, blocks);
+            assertArrayEquals(data, batch, "Batch of " + blocks + " blocks should decrypt");
+        }
+    }
+}
@@ -4,7 +4,21 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.DisplayName;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -177,8 +191,9 @@ public class AESEncryptionTest {
         String message = "Original message";
         String encrypted = aes.encrypt(message);
 
-        // Tamper with the encrypted message
-        String tamperedEncrypted = encrypted.substring(0, encrypted.length() - 1) + "X";
+        // Tamper with the encrypted message, making sure the last character really changes
+        char replacement = encrypted.charAt(encrypted.length() - 1) == 'X' ? 'Y' : 'X';
+        String tamperedEncrypted = encrypted.substring(0, encrypted.length() - 1) + replacement;
 
         assertThrows(RuntimeException.class, () -> {
             aes.decrypt(tamperedEncrypted);
@@ -202,4 +217,444 @@ public class AESEncryptionTest {
         assertArrayEquals(customKey, customAes.getKey(), "Custom key should be correctly set");
     }
 
-}
\ No newline at end of file
+    @Test
+    @DisplayName("Test AES-128 and AES-192 keys")
+    void testKeySizes() {
+        for (KeySize keySize : KeySize.values()) {
+            AESEncryption sized = new AESEncryption(keySize);
+            assertEquals(keySize.getKeyLength(), sized.getKey().length, "Generated key should have the requested size");
+            assertEquals(keySize, new AESEncryption(sized.getKey()).getKeySize(), "Key size should follow the key length");
+
+            // The JCE provider is an independent implementation of every key size
+            AESEncryption reference = new AESEncryption(sized.getKey(), new AESCore());
+            AESEncryption jce = new AESEncryption(sized.getKey(), new JCEBlockCipher());
+            for (CipherMode mode : CipherMode.values()) {
+                String message = "Key size " + keySize.getBits() + " in " + mode;
+                assertEquals(message, jce.decrypt(reference.encrypt(message, mode)),
+                        "Engines should agree for " + keySize);
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new AESEncryption(new byte[20]),
+                "Unsupported key length should throw exception");
+    }
+
+    @Test
+    @DisplayName("Test interoperability between block cipher engines")
+    void testEngineInteroperability() {
+        byte[] key = aes.getKey();
+        AESEncryption reference = new AESEncryption(key, new AESCore());
+        AESEncryption table = new AESEncryption(key, new AESTableCore());
+
+        String message = "Engines must agree on the wire format";
+        assertEquals(message, reference.decrypt(table.encrypt(message)),
+                "AESCore should decrypt AESTableCore ciphertext");
+        assertEquals(message, table.decrypt(reference.encrypt(message)),
+                "AESTableCore should decrypt AESCore ciphertext");
+    }
+
+
+    @Test
+    @DisplayName("Test concurrent use of a shared instance")
+    void testConcurrentSharedInstance() throws Exception {
+        for (BlockCipher engine : new BlockCipher[]{new AESCore(), new AESTableCore()}) {
+            AESEncryption shared = new AESEncryption(aes.getKey(), engine);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Callable<Boolean>> tasks = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int thread = t;
+                    tasks.add(() -> {
+                        for (int i = 0; i < 200; i++) {
+                            String message = "Thread " + thread + " message " + i;
+                            if (!message.equals(shared.decrypt(shared.encrypt(message)))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    });
+                }
+                for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                    assertTrue(result.get(), "Concurrent round trips should not corrupt each other");
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+
+    @Test
+    @DisplayName("Test offset-based encryption into a caller buffer")
+    void testOffsetEncryptionDecryption() {
+        byte[] message = "Offset based message API".getBytes(StandardCharsets.UTF_8);
+        byte[] src = new byte[message.length + 10];
+        System.arraycopy(message, 0, src, 5, message.length);
+
+        byte[] dst = new byte[AESEncryption.getEncryptedLength(message.length) + 7];
+        int written = aes.encrypt(src, 5, message.length, dst, 7);
+        assertEquals(AESEncryption.getEncryptedLength(message.length), written,
+                "Encrypted length should match the announced length");
+
+        byte[] plain = new byte[written];
+        int length = aes.decrypt(dst, 7, written, plain, 0);
+        assertArrayEquals(message, Arrays.copyOf(plain, length), "Decrypted bytes should match original");
+
+        String decrypted = aes.decrypt(Base64.getEncoder()
+                .encodeToString(Arrays.copyOfRange(dst, 7, 7 + written)));
+        assertEquals("Offset based message API", decrypted, "Buffer and String APIs should be compatible");
+    }
+
+    @Test
+    @DisplayName("Test in-place encryption and decryption")
+    void testInPlaceEncryptionDecryption() {
+        byte[] message = "In-place round trip across several AES blocks".getBytes(StandardCharsets.UTF_8);
+        for (CipherMode mode : CipherMode.values()) {
+            int headroom = mode.getHeaderLength();
+            byte[] buffer = new byte[AESEncryption.getEncryptedLength(message.length, mode)];
+            // Reserve a headroom for the header in front of the plaintext
+            System.arraycopy(message, 0, buffer, headroom, message.length);
+
+            int written = aes.encrypt(buffer, headroom, message.length, buffer, 0, mode);
+            int length = aes.decrypt(buffer, 0, written, buffer, 0);
+
+            assertArrayEquals(message, Arrays.copyOf(buffer, length),
+                    "In-place round trip should restore the message in " + mode);
+        }
+    }
+
+    @Test
+    @DisplayName("Test overlapping buffers that would lose input")
+    void testInvalidOverlap() {
+        byte[] buffer = new byte[64];
+        buffer[0] = CipherMode.CBC.getId();
+        assertThrows(IllegalArgumentException.class,
+                () -> aes.encrypt(buffer, 8, 16, buffer, 0),
+                "Output overwriting unread plaintext should throw exception");
+        assertThrows(IllegalArgumentException.class,
+                () -> aes.decrypt(buffer, 0, 49, buffer, 32),
+                "Output overwriting unread ciphertext should throw exception");
+    }
+
+    @Test
+    @DisplayName("Test parallel decryption matches sequential decryption")
+    void testParallelDecryption() {
+        byte[] message = new byte[AESEncryption.PARALLEL_THRESHOLD * 4 + 5];
+        new SecureRandom().nextBytes(message);
+        for (CipherMode mode : CipherMode.values()) {
+            byte[] encrypted = new byte[AESEncryption.getEncryptedLength(message.length, mode)];
+            aes.encrypt(message, 0, message.length, encrypted, 0, mode);
+
+            // A separate output buffer takes the fork/join path
+            byte[] parallel = new byte[encrypted.length];
+            int parallelLength = aes.decrypt(encrypted, 0, encrypted.length, parallel, 0);
+
+            // In-place output always stays sequential
+            int sequentialLength = aes.decrypt(encrypted, 0, encrypted.length, encrypted, 0);
+
+            assertEquals(message.length, parallelLength, "Parallel decryption should return the plaintext length");
+            assertArrayEquals(message, Arrays.copyOf(parallel, parallelLength),
+                    "Parallel decryption should restore the data in " + mode);
+            assertArrayEquals(message, Arrays.copyOf(encrypted, sequentialLength),
+                    "Sequential decryption should restore the data in " + mode);
+        }
+    }
+
+    @Test
+    @DisplayName("Test every mode round trip and header")
+    void testModesRoundTrip() {
+        for (CipherMode mode : CipherMode.values()) {
+            for (int length = 0; length < 40; length++) {
+                String message = "M".repeat(length);
+                byte[] encrypted = Base64.getDecoder().decode(aes.encrypt(message, mode));
+
+                assertEquals(mode.getId(), encrypted[0], "First byte should identify the mode");
+                assertEquals(AESEncryption.getEncryptedLength(length, mode), encrypted.length,
+                        "Ciphertext length should match the announced length in " + mode);
+                assertEquals(message, aes.decrypt(aes.encrypt(message, mode)),
+                        "Message of length " + length + " should round trip in " + mode);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test CTR and GCM add no padding")
+    void testNoPaddingOverhead() {
+        String message = "17bytes_messages!";
+        assertEquals(1 + 16 + 17, Base64.getDecoder().decode(aes.encrypt(message, CipherMode.CTR)).length,
+                "CTR ciphertext should be as long as the plaintext plus the header");
+        assertEquals(1 + 12 + 17 + 16, Base64.getDecoder().decode(aes.encrypt(message, CipherMode.GCM)).length,
+                "GCM ciphertext should be as long as the plaintext plus the header and the tag");
+    }
+
+    @Test
+    @DisplayName("Test GCM rejects every single-bit forgery")
+    void testGcmRejectsForgeries() {
+        byte[] encrypted = Base64.getDecoder().decode(aes.encrypt("Authenticated message", CipherMode.GCM));
+
+        for (int i = 1; i < encrypted.length; i++) {
+            byte[] forged = encrypted.clone();
+            forged[i] ^= 0x01;
+            byte[] output = new byte[forged.length];
+            assertThrows(IllegalArgumentException.class,
+                    () -> aes.decrypt(forged, 0, forged.length, output, 0),
+                    "Flipping a bit at offset " + i + " should fail authentication");
+        }
+    }
+
+    @Test
+    @DisplayName("Test GCM output matches the JCE implementation")
+    void testGcmMatchesJce() throws Exception {
+        Cipher jce = Cipher.getInstance("AES/GCM/NoPadding");
+        SecretKeySpec keySpec = new SecretKeySpec(aes.getKey(), "AES");
+
+        for (int length : new int[]{0, 1, 15, 16, 17, 100, AESEncryption.PARALLEL_THRESHOLD + 3}) {
+            byte[] message = new byte[length];
+            new SecureRandom().nextBytes(message);
+            byte[] encrypted = new byte[AESEncryption.getEncryptedLength(length, CipherMode.GCM)];
+            aes.encrypt(message, 0, length, encrypted, 0, CipherMode.GCM);
+
+            jce.init(Cipher.DECRYPT_MODE, keySpec,
+                    new GCMParameterSpec(128, encrypted, 1, 12));
+            byte[] decrypted = jce.doFinal(encrypted, 13, encrypted.length - 13);
+            assertArrayEquals(message, decrypted, "JCE should decrypt a GCM message of length " + length);
+        }
+    }
+
+    @Test
+    @DisplayName("Test unknown mode")
+    void testUnknownMode() {
+        byte[] encrypted = Base64.getDecoder().decode(aes.encrypt("Test message"));
+        encrypted[0] = 0x7F;
+        String unknown = Base64.getEncoder().encodeToString(encrypted);
+
+        assertThrows(IllegalArgumentException.class, () -> aes.decrypt(unknown),
+                "Unknown mode id should throw IllegalArgumentException");
+    }
+
+    @Test
+    @DisplayName("Test messages of peers that predate modes are decrypted by the legacy method only")
+    void testLegacyLayout() throws Exception {
+        Cipher jce = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        SecretKeySpec keySpec = new SecretKeySpec(aes.getKey(), "AES");
+        SecureRandom random = new SecureRandom();
+
+        for (int first = 0; first < 256; first++) {
+            String message = "Legacy message " + first;
+            byte[] iv = new byte[16];
+            random.nextBytes(iv);
+            iv[0] = (byte) first;
+            jce.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            byte[] ciphertext = jce.doFinal(message.getBytes(StandardCharsets.UTF_8));
+            byte[] legacy = new byte[iv.length + ciphertext.length];
+            System.arraycopy(iv, 0, legacy, 0, iv.length);
+            System.arraycopy(ciphertext, 0, legacy, iv.length, ciphertext.length);
+
+            String encoded = Base64.getEncoder().encodeToString(legacy);
+            assertEquals(message, aes.decryptLegacy(encoded),
+                    "A legacy message whose IV starts with " + first + " should be decrypted");
+            if (first != CipherMode.CTR.getId()) {
+                assertThrows(IllegalArgumentException.class, () -> aes.decrypt(encoded),
+                        "The mode API should not guess the legacy layout (CTR is not authenticated)");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test the legacy method writes the layout of peers that predate modes")
+    void testLegacyEncryption() throws Exception {
+        Cipher jce = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        SecretKeySpec keySpec = new SecretKeySpec(aes.getKey(), "AES");
+
+        for (int length = 0; length < 40; length++) {
+            String message = "L".repeat(length);
+            byte[] encrypted = Base64.getDecoder().decode(aes.encryptLegacy(message));
+
+            assertEquals(0, encrypted.length % 16, "A legacy ciphertext has no mode id");
+            jce.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(encrypted, 0, 16));
+            byte[] decrypted = jce.doFinal(encrypted, 16, encrypted.length - 16);
+            assertEquals(message, new String(decrypted, StandardCharsets.UTF_8),
+                    "A peer that predates modes should decrypt a message of length " + length);
+        }
+    }
+
+    @Test
+    @DisplayName("Test forged GCM messages are rejected, never read as another layout")
+    void testForgedGcm() {
+        for (int i = 0; i < 2000; i++) {
+            byte[] encrypted = Base64.getDecoder().decode(aes.encrypt("abc", CipherMode.GCM));
+            encrypted[1 + i % (encrypted.length - 1)] ^= (byte) (1 << (i % 8));
+            String forged = Base64.getEncoder().encodeToString(encrypted);
+            assertThrows(IllegalArgumentException.class, () -> aes.decrypt(forged),
+                    "Forged message " + i + " should be rejected");
+        }
+    }
+
+    @Test
+    @DisplayName("Test ByteBuffer encryption with heap, direct and read-only buffers")
+    void testByteBuffers() {
+        for (CipherMode mode : CipherMode.values()) {
+            for (int length : new int[]{0, 1, 17, AESEncryption.CHUNK_SIZE + 5, 3 * AESEncryption.CHUNK_SIZE}) {
+                byte[] message = new byte[length];
+                new SecureRandom().nextBytes(message);
+                int encryptedLength = AESEncryption.getEncryptedLength(length, mode);
+
+                for (boolean direct : new boolean[]{false, true}) {
+                    ByteBuffer src = direct
+                            ? ByteBuffer.allocateDirect(length).put(message).flip()
+                            : ByteBuffer.wrap(message);
+                    ByteBuffer encrypted = direct
+                            ? ByteBuffer.allocateDirect(encryptedLength + 3)
+                            : ByteBuffer.allocate(encryptedLength + 3);
+                    assertEquals(encryptedLength, aes.encrypt(src, encrypted, mode),
+                            "Encryption should write the whole message");
+                    assertFalse(src.hasRemaining(), "Encryption should consume the source");
+                    encrypted.flip();
+
+                    // Decrypt from a read-only view, which always goes through the work buffer
+                    ByteBuffer decrypted = ByteBuffer.allocateDirect(encryptedLength);
+                    assertEquals(length, aes.decrypt(encrypted.asReadOnlyBuffer(), decrypted),
+                            "Decryption should return the plaintext length");
+                    decrypted.flip();
+                    byte[] result = new byte[decrypted.remaining()];
+                    decrypted.get(result);
+                    assertArrayEquals(message, result,
+                            mode + " round trip through " + (direct ? "direct" : "heap") + " buffers of length " + length);
+
+                    // And from the heap, through the array API
+                    byte[] array = new byte[encrypted.remaining()];
+                    encrypted.get(array);
+                    ByteBuffer heap = ByteBuffer.allocate(encryptedLength);
+                    aes.decrypt(ByteBuffer.wrap(array), heap);
+                    assertArrayEquals(message, Arrays.copyOf(heap.array(), heap.position()),
+                            "The array API should decrypt buffer output");
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test ByteBuffer decryption failures leave positions unchanged")
+    void testByteBufferFailures() {
+        byte[] message = new byte[5000];
+        ByteBuffer encrypted = ByteBuffer.allocateDirect(AESEncryption.getEncryptedLength(message.length));
+        aes.encrypt(ByteBuffer.wrap(message), encrypted);
+        encrypted.flip();
+        encrypted.put(100, (byte) (encrypted.get(100) ^ 0x01));
+
+        ByteBuffer output = ByteBuffer.allocateDirect(message.length);
+        assertThrows(IllegalArgumentException.class, () -> aes.decrypt(encrypted, output),
+                "A tampered GCM buffer should fail authentication");
+        assertEquals(0, encrypted.position(), "Source position should be unchanged");
+        assertEquals(0, output.position(), "Destination position should be unchanged");
+
+        ByteBuffer small = ByteBuffer.allocateDirect(10);
+        assertThrows(IllegalArgumentException.class, () -> aes.encrypt(ByteBuffer.wrap(message), small),
+                "Encrypting into a small buffer should fail");
+    }
+
+    @Test
+    @DisplayName("Test batch encryption and decryption of message lists")
+    void testBatchRoundTrip() throws Exception {
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            messages.add("Message " + i + " 🔐 ".repeat(i % 17) + "x".repeat(i * 37 % 2000));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (CipherMode mode : CipherMode.values()) {
+                List<String> sequential = aes.encryptAll(messages, mode, null);
+                List<String> concurrent = aes.encryptAll(messages, mode, executor);
+                assertEquals(messages.size(), concurrent.size(), "One ciphertext per message");
+                for (int i = 0; i < messages.size(); i++) {
+                    assertEquals(messages.get(i), aes.decrypt(concurrent.get(i)),
+                            mode + " batch ciphertexts should decrypt one by one");
+                }
+                assertEquals(messages, aes.decryptAll(sequential), mode + " sequential batch round trip");
+                assertEquals(messages, aes.decryptAll(concurrent, executor), mode + " concurrent batch round trip");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(List.of(), aes.encryptAll(List.of()), "An empty batch should give an empty list");
+    }
+
+    @Test
+    @DisplayName("Test batch failures report the failing message")
+    void testBatchFailures() {
+        List<String> encrypted = new ArrayList<>(aes.encryptAll(List.of("a", "b", "c", "d")));
+        encrypted.set(2, "not a ciphertext");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> aes.decryptAll(encrypted, Runnable::run), "An invalid ciphertext should fail the batch");
+        assertTrue(e.getMessage().contains("index 2"), "The message should name the failing index");
+
+        assertThrows(IllegalArgumentException.class, () -> aes.encryptAll(Arrays.asList("a", null)),
+                "Null messages should be rejected");
+        assertThrows(IllegalArgumentException.class, () -> aes.decryptAll(null),
+                "A null batch should be rejected");
+    }
+
+    @Test
+    @DisplayName("Test batch encryption and decryption of contiguous buffers")
+    void testContiguousBatch() {
+        SecureRandom random = new SecureRandom();
+        int[] lengths = new int[200];
+        int total = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = random.nextInt(i % 50 == 0 ? 100_000 : 500);
+            total += lengths[i];
+        }
+        byte[] plaintexts = new byte[total + 3];
+        random.nextBytes(plaintexts);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (CipherMode mode : CipherMode.values()) {
+                int[] encryptedLengths = new int[lengths.length];
+                int encryptedTotal = 0;
+                for (int i = 0; i < lengths.length; i++) {
+                    encryptedLengths[i] = AESEncryption.getEncryptedLength(lengths[i], mode);
+                    encryptedTotal += encryptedLengths[i];
+                }
+                byte[] ciphertexts = new byte[encryptedTotal + 5];
+                assertEquals(encryptedTotal, aes.encryptAll(plaintexts, 3, lengths, ciphertexts, 5, mode, executor),
+                        "Encryption should return the total ciphertext length");
+
+                // Out of place, sequentially
+                byte[] decrypted = new byte[encryptedTotal];
+                int[] plaintextLengths = new int[lengths.length];
+                assertEquals(total, aes.decryptAll(ciphertexts, 5, encryptedLengths, decrypted, 0,
+                        plaintextLengths, null), "Decryption should return the total plaintext length");
+                assertArrayEquals(lengths, plaintextLengths, mode + " plaintext lengths");
+
+                // In place, on the executor
+                int[] inPlaceLengths = new int[lengths.length];
+                aes.decryptAll(ciphertexts, 5, encryptedLengths, ciphertexts, 5, inPlaceLengths, executor);
+                assertArrayEquals(lengths, inPlaceLengths, mode + " in-place plaintext lengths");
+
+                int in = 3;
+                int out = 0;
+                for (int i = 0; i < lengths.length; i++) {
+                    byte[] expected = Arrays.copyOfRange(plaintexts, in, in + lengths[i]);
+                    assertArrayEquals(expected, Arrays.copyOfRange(decrypted, out, out + lengths[i]),
+                            mode + " message " + i);
+                    assertArrayEquals(expected, Arrays.copyOfRange(ciphertexts, 5 + out, 5 + out + lengths[i]),
+                            mode + " in-place message " + i);
+                    in += lengths[i];
+                    out += encryptedLengths[i];
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        byte[] buffer = new byte[4096];
+        assertThrows(IllegalArgumentException.class,
+                () -> aes.encryptAll(buffer, 0, new int[] {100}, buffer, 50, CipherMode.GCM, null),
+                "Overlapping batch buffers should be rejected");
+        assertThrows(IllegalArgumentException.class,
+                () -> aes.decryptAll(buffer, 0, new int[] {100}, buffer, 0, new int[2], null),
+                "Mismatched length arrays should be rejected");
+    }
+}
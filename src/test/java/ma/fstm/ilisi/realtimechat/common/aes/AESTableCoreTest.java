@@ -0,0 +1,155 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AESTableCoreTest {
+    private AESTableCore tableCore;
+    private AESCore referenceCore;
+    private byte[] testKey;
+
+    @BeforeEach
+    void setUp() {
+        // Same 256-bit test key as AESCoreTest
+        testKey = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            testKey[i] = (byte)i;
+        }
+        tableCore = new AESTableCore();
+        tableCore.keyExpansion(testKey);
+        referenceCore = new AESCore();
+        referenceCore.keyExpansion(testKey);
+    }
+
+    @Test
+    @DisplayName("Test FIPS-197 AES-256 known answer")
+    void testKnownAnswer() {
+        byte[] plaintext = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            plaintext[i] = (byte)(i * 0x11);
+        }
+        byte[] expected = {
+                (byte)0x8e, (byte)0xa2, (byte)0xb7, (byte)0xca, (byte)0x51, (byte)0x67, (byte)0x45, (byte)0xbf,
+                (byte)0xea, (byte)0xfc, (byte)0x49, (byte)0x90, (byte)0x4b, (byte)0x49, (byte)0x60, (byte)0x89
+        };
+
+        assertArrayEquals(expected, tableCore.encryptBlock(plaintext), "Ciphertext should match FIPS-197 C.3");
+        assertArrayEquals(plaintext, tableCore.decryptBlock(expected), "Plaintext should match FIPS-197 C.3");
+    }
+
+    @Test
+    @DisplayName("Test FIPS-197 AES-128 and AES-192 known answers")
+    void testKnownAnswerSmallerKeys() {
+        byte[] plaintext = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            plaintext[i] = (byte)(i * 0x11);
+        }
+        byte[] expected128 = {
+                (byte)0x69, (byte)0xc4, (byte)0xe0, (byte)0xd8, (byte)0x6a, (byte)0x7b, (byte)0x04, (byte)0x30,
+                (byte)0xd8, (byte)0xcd, (byte)0xb7, (byte)0x80, (byte)0x70, (byte)0xb4, (byte)0xc5, (byte)0x5a
+        };
+        byte[] expected192 = {
+                (byte)0xdd, (byte)0xa9, (byte)0x7c, (byte)0xa4, (byte)0x86, (byte)0x4c, (byte)0xdf, (byte)0xe0,
+                (byte)0x6e, (byte)0xaf, (byte)0x70, (byte)0xa0, (byte)0xec, (byte)0x0d, (byte)0x71, (byte)0x91
+        };
+
+        AESTableCore table = new AESTableCore();
+        table.keyExpansion(Arrays.copyOf(testKey, 16));
+        assertArrayEquals(expected128, table.encryptBlock(plaintext), "Ciphertext should match FIPS-197 C.1");
+        assertArrayEquals(plaintext, table.decryptBlock(expected128), "Plaintext should match FIPS-197 C.1");
+
+        table.keyExpansion(Arrays.copyOf(testKey, 24));
+        assertArrayEquals(expected192, table.encryptBlock(plaintext), "Ciphertext should match FIPS-197 C.2");
+        assertArrayEquals(plaintext, table.decryptBlock(expected192), "Plaintext should match FIPS-197 C.2");
+    }
+
+    @Test
+    @DisplayName("Test same output as AESCore for the AESCoreTest vectors")
+    void testMatchesAESCore() {
+        byte[] sequential = new byte[16];
+        byte[] shifted = new byte[16];
+        byte[] ones = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            sequential[i] = (byte)i;
+            shifted[i] = (byte)(i + 1);
+            ones[i] = (byte)0xFF;
+        }
+
+        for (byte[] block : new byte[][]{sequential, shifted, ones, new byte[16]}) {
+            assertArrayEquals(referenceCore.encryptBlock(block), tableCore.encryptBlock(block),
+                    "Encryption should match AESCore");
+            assertArrayEquals(referenceCore.decryptBlock(block), tableCore.decryptBlock(block),
+                    "Decryption should match AESCore");
+        }
+    }
+
+    @Test
+    @DisplayName("Test same output as AESCore for random keys and blocks")
+    void testMatchesAESCoreRandom() {
+        Random random = new Random(42);
+        byte[] block = new byte[16];
+
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[KeySize.values()[i % 3].getKeyLength()];
+            random.nextBytes(key);
+            random.nextBytes(block);
+            AESCore reference = new AESCore();
+            reference.keyExpansion(key);
+            AESTableCore table = new AESTableCore();
+            table.keyExpansion(key);
+
+            byte[] encrypted = table.encryptBlock(block);
+            assertArrayEquals(reference.encryptBlock(block), encrypted, "Encryption should match AESCore");
+            assertArrayEquals(block, table.decryptBlock(encrypted), "Decryption should restore the block");
+        }
+    }
+
+    @Test
+    @DisplayName("Test block size validation")
+    void testBlockSizeValidation() {
+        assertThrows(IllegalArgumentException.class,
+                () -> tableCore.encryptBlock(new byte[15]),
+                "Block size smaller than 16 bytes should throw exception");
+
+        assertThrows(IllegalArgumentException.class,
+                () -> tableCore.decryptBlock(new byte[17]),
+                "Block size larger than 16 bytes should throw exception");
+    }
+
+    @Test
+    @DisplayName("Test key size validation")
+    void testKeySizeValidation() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new AESTableCore().keyExpansion(new byte[20]),
+                "Invalid key size should throw exception");
+    }
+
+    @Test
+    @DisplayName("Test in-place block encryption at an offset")
+    void testInPlaceBlockAtOffset() {
+        byte[] plaintext = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            plaintext[i] = (byte)i;
+        }
+        byte[] buffer = new byte[40];
+        System.arraycopy(plaintext, 0, buffer, 9, 16);
+
+        tableCore.encryptBlock(buffer, 9, buffer, 9);
+        assertArrayEquals(referenceCore.encryptBlock(plaintext), Arrays.copyOfRange(buffer, 9, 25),
+                "In-place encryption should match AESCore");
+
+        tableCore.decryptBlock(buffer, 9, buffer, 9);
+        assertArrayEquals(plaintext, Arrays.copyOfRange(buffer, 9, 25),
+                "In-place decryption should restore the block");
+
+        assertThrows(IndexOutOfBoundsException.class,
+                () -> tableCore.encryptBlock(buffer, 30, buffer, 0),
+                "Block past the end of the array should throw exception");
+    }
+}
@@ -0,0 +1,76 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CipherBackendTest {
+
+    @Test
+    @DisplayName("Test backend lookup by name")
+    void testFromName() {
+        assertEquals(CipherBackend.CORE, CipherBackend.fromName("core"));
+        assertEquals(CipherBackend.TABLE, CipherBackend.fromName("Table"));
+        assertEquals(CipherBackend.BITSLICE, CipherBackend.fromName("bitslice"));
+        assertEquals(CipherBackend.JCE, CipherBackend.fromName("JCE"));
+        assertThrows(IllegalArgumentException.class, () -> CipherBackend.fromName("aes-ni"),
+                "Unknown backend name should throw exception");
+    }
+
+    @Test
+    @DisplayName("Test explicit setting overrides the self-benchmark")
+    void testSelectOverride() {
+        for (CipherBackend backend : CipherBackend.values()) {
+            assertEquals(backend, CipherBackend.select(" " + backend.getName() + " "),
+                    "Named backend should be selected");
+        }
+        assertThrows(IllegalArgumentException.class, () -> CipherBackend.select("fastest"),
+                "Unknown setting should throw exception");
+    }
+
+    @Test
+    @DisplayName("Test self-benchmark picks an available backend")
+    void testAutoSelection() {
+        CipherBackend selected = CipherBackend.select("auto");
+        assertTrue(selected.isAvailable(), "Selected backend should be available");
+        assertTrue(CipherBackend.select(null).isAvailable(), "Missing setting should run the self-benchmark");
+        assertNotNull(CipherBackend.getDefault(), "A default backend should always be chosen");
+    }
+
+    @Test
+    @DisplayName("Test all backends are wire-compatible")
+    void testWireCompatibility() {
+        byte[] key = new AESEncryption().getKey();
+        String message = "Mixed fleets must interoperate while moving to hardware acceleration";
+
+        for (CipherBackend sender : CipherBackend.values()) {
+            AESEncryption encryptor = new AESEncryption(key, sender.newCipher());
+            for (CipherMode mode : CipherMode.values()) {
+                String encrypted = encryptor.encrypt(message, mode);
+                for (CipherBackend receiver : CipherBackend.values()) {
+                    AESEncryption decryptor = new AESEncryption(key, receiver.newCipher());
+                    assertEquals(message, decryptor.decrypt(encrypted),
+                            sender + " to " + receiver + " in " + mode + " should interoperate");
+                }
+            }
+
+            // Large enough for the batched and parallel paths
+            byte[] data = new byte[AESEncryption.PARALLEL_THRESHOLD + 100];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte)i;
+            }
+            for (CipherMode mode : CipherMode.values()) {
+                byte[] encrypted = new byte[AESEncryption.getEncryptedLength(data.length, mode)];
+                encryptor.encrypt(data, 0, data.length, encrypted, 0, mode);
+                byte[] decrypted = new byte[encrypted.length];
+                int length = new AESEncryption(key, new AESCore())
+                        .decrypt(encrypted, 0, encrypted.length, decrypted, 0);
+                assertArrayEquals(data, Arrays.copyOf(decrypted, length),
+                        sender + " large " + mode + " message should decrypt with AESCore");
+            }
+        }
+    }
+}
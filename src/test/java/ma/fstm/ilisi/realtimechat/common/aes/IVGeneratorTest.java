@@ -0,0 +1,126 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IVGeneratorTest {
+
+    private static List<IVGenerator> generators() {
+        return List.of(new CounterIVGenerator(), new SecureRandomIVGenerator(),
+                new SecureRandomIVGenerator(16));
+    }
+
+    @Test
+    @DisplayName("Test IVs do not repeat on a single thread")
+    void testUniqueness() {
+        for (IVGenerator generator : generators()) {
+            Set<ByteBuffer> seen = new HashSet<>();
+            for (int i = 0; i < 10_000; i++) {
+                byte[] iv = new byte[12];
+                generator.nextIV(iv, 0, 12);
+                assertTrue(seen.add(ByteBuffer.wrap(iv)), generator.getClass().getSimpleName() + " repeated an IV");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test IVs do not repeat across threads")
+    void testConcurrentUniqueness() throws Exception {
+        for (IVGenerator generator : generators()) {
+            Set<ByteBuffer> seen = ConcurrentHashMap.newKeySet();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Callable<Boolean>> tasks = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    tasks.add(() -> {
+                        for (int i = 0; i < 2_000; i++) {
+                            byte[] iv = new byte[16];
+                            generator.nextIV(iv, 0, 16);
+                            if (!seen.add(ByteBuffer.wrap(iv))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    });
+                }
+                for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                    assertTrue(result.get(), generator.getClass().getSimpleName() + " repeated an IV across threads");
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test independent generators produce different IVs")
+    void testIndependentGenerators() {
+        byte[] first = new byte[16];
+        byte[] second = new byte[16];
+        new CounterIVGenerator().nextIV(first, 0, 16);
+        new CounterIVGenerator().nextIV(second, 0, 16);
+        assertFalse(Arrays.equals(first, second), "Each generator should have its own key and counter");
+    }
+
+    @Test
+    @DisplayName("Test IV length and offset handling")
+    void testLengthAndOffset() {
+        for (IVGenerator generator : generators()) {
+            byte[] buffer = new byte[20];
+            generator.nextIV(buffer, 3, 12);
+            assertEquals(0, buffer[0] | buffer[1] | buffer[2], "Bytes before the offset should be untouched");
+            assertEquals(0, buffer[15] | buffer[16] | buffer[17] | buffer[18] | buffer[19],
+                    "Bytes after the IV should be untouched");
+            assertThrows(IllegalArgumentException.class, () -> generator.nextIV(new byte[32], 0, 17),
+                    "IVs longer than a block should be rejected");
+        }
+    }
+
+    @Test
+    @DisplayName("Test generator selection by name")
+    void testCreate() {
+        assertInstanceOf(CounterIVGenerator.class, IVGenerator.create(null));
+        assertInstanceOf(CounterIVGenerator.class, IVGenerator.create("Counter"));
+        assertInstanceOf(SecureRandomIVGenerator.class, IVGenerator.create("random"));
+        assertThrows(IllegalArgumentException.class, () -> IVGenerator.create("zero"),
+                "Unknown generator name should throw exception");
+        assertThrows(IllegalArgumentException.class, () -> new SecureRandomIVGenerator(8),
+                "Buffers smaller than a block should be rejected");
+    }
+
+    @Test
+    @DisplayName("Test AESEncryption takes its IVs from the given generator")
+    void testEncryptionUsesGenerator() {
+        byte[] key = new AESEncryption().getKey();
+        IVGenerator fixed = (dst, off, len) -> Arrays.fill(dst, off, off + len, (byte) 0x5A);
+        AESEncryption aes = new AESEncryption(key, new AESTableCore(), fixed);
+
+        byte[] encrypted = new byte[AESEncryption.getEncryptedLength(5, CipherMode.CTR)];
+        aes.encrypt(new byte[5], 0, 5, encrypted, 0, CipherMode.CTR);
+        for (int i = 1; i <= 16; i++) {
+            assertEquals(0x5A, encrypted[i], "The IV should come from the generator");
+        }
+
+        for (IVGenerator generator : generators()) {
+            AESEncryption other = new AESEncryption(key, new AESTableCore(), generator);
+            for (CipherMode mode : CipherMode.values()) {
+                assertEquals("Hello", aes.decrypt(other.encrypt("Hello", mode)),
+                        "Messages should decrypt whatever generator produced their IV");
+            }
+        }
+    }
+}
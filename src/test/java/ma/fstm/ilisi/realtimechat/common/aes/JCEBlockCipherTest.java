@@ -0,0 +1,136 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JCEBlockCipherTest {
+    private JCEBlockCipher jceCipher;
+    private AESTableCore referenceCore;
+
+    @BeforeEach
+    void setUp() {
+        // Same 256-bit test key as AESCoreTest
+        byte[] testKey = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            testKey[i] = (byte)i;
+        }
+        jceCipher = new JCEBlockCipher();
+        jceCipher.keyExpansion(testKey);
+        referenceCore = new AESTableCore();
+        referenceCore.keyExpansion(testKey);
+    }
+
+    @Test
+    @DisplayName("Test JCE AES is available")
+    void testSupported() {
+        assertTrue(JCEBlockCipher.isSupported(), "Every Java SE platform must provide AES");
+        assertTrue(CipherBackend.JCE.isAvailable(), "JCE backend should be available");
+    }
+
+    @Test
+    @DisplayName("Test FIPS-197 AES-256 known answer")
+    void testKnownAnswer() {
+        byte[] plaintext = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            plaintext[i] = (byte)(i * 0x11);
+        }
+        byte[] expected = {
+                (byte)0x8e, (byte)0xa2, (byte)0xb7, (byte)0xca, (byte)0x51, (byte)0x67, (byte)0x45, (byte)0xbf,
+                (byte)0xea, (byte)0xfc, (byte)0x49, (byte)0x90, (byte)0x4b, (byte)0x49, (byte)0x60, (byte)0x89
+        };
+
+        assertArrayEquals(expected, jceCipher.encryptBlock(plaintext), "Ciphertext should match FIPS-197 C.3");
+        assertArrayEquals(plaintext, jceCipher.decryptBlock(expected), "Plaintext should match FIPS-197 C.3");
+    }
+
+    @Test
+    @DisplayName("Test batched blocks match the table engine")
+    void testBatchMatchesTableCore() {
+        Random random = new Random(42);
+        byte[] data = new byte[37 * 16 + 5];
+        random.nextBytes(data);
+
+        byte[] expected = new byte[data.length];
+        referenceCore.encryptBlocks(data, 5, expected, 0, 37);
+        byte[] actual = new byte[data.length];
+        jceCipher.encryptBlocks(data, 5, actual, 0, 37);
+        assertArrayEquals(expected, actual, "Batched encryption should match AESTableCore");
+
+        // In place, at the same offset
+        byte[] buffer = actual.clone();
+        jceCipher.decryptBlocks(buffer, 0, buffer, 0, 37);
+        assertArrayEquals(Arrays.copyOfRange(data, 5, 5 + 37 * 16), Arrays.copyOf(buffer, 37 * 16),
+                "In-place batched decryption should restore the data");
+    }
+
+    @Test
+    @DisplayName("Test re-keying is seen by threads that already used the engine")
+    void testRekey() {
+        byte[] block = new byte[16];
+        byte[] before = jceCipher.encryptBlock(block);
+
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte)7);
+        jceCipher.keyExpansion(key);
+        AESCore reference = new AESCore();
+        reference.keyExpansion(key);
+
+        assertFalse(Arrays.equals(before, jceCipher.encryptBlock(block)), "New key should change the output");
+        assertArrayEquals(reference.encryptBlock(block), jceCipher.encryptBlock(block),
+                "Output should match AESCore with the new key");
+    }
+
+    @Test
+    @DisplayName("Test a shared engine from several threads")
+    void testConcurrentUse() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int seed = t;
+                tasks.add(() -> {
+                    Random random = new Random(seed);
+                    byte[] block = new byte[16];
+                    for (int i = 0; i < 500; i++) {
+                        random.nextBytes(block);
+                        if (!Arrays.equals(referenceCore.encryptBlock(block), jceCipher.encryptBlock(block))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+            }
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                assertTrue(result.get(), "Every thread should get the reference output");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Test key and range validation")
+    void testValidation() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new JCEBlockCipher().keyExpansion(new byte[20]),
+                "Invalid key size should throw exception");
+        assertThrows(IllegalStateException.class,
+                () -> new JCEBlockCipher().encryptBlock(new byte[16]),
+                "Using an unkeyed engine should throw exception");
+        assertThrows(IndexOutOfBoundsException.class,
+                () -> jceCipher.encryptBlock(new byte[20], 8, new byte[16], 0),
+                "Block past the end of the array should throw exception");
+    }
+}
@@ -0,0 +1,70 @@
+package ma.fstm.ilisi.realtimechat.common.aes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XorTest {
+
+    private static byte[] reference(byte[] a, int aOff, byte[] b, int bOff, int len) {
+        byte[] result = new byte[len];
+        for (int j = 0; j < len; j++) {
+            result[j] = (byte) (a[aOff + j] ^ b[bOff + j]);
+        }
+        return result;
+    }
+
+    @Test
+    @DisplayName("Test XOR of ranges of every length and alignment")
+    void testRanges() {
+        Random random = new Random(42);
+        byte[] a = new byte[1200];
+        byte[] b = new byte[1200];
+        random.nextBytes(a);
+        random.nextBytes(b);
+
+        for (int len = 0; len <= 1100; len += len < 80 ? 1 : 37) {
+            int aOff = random.nextInt(40);
+            int bOff = random.nextInt(40);
+            int dstOff = random.nextInt(40);
+            byte[] dst = new byte[1200];
+            Xor.xor(a, aOff, b, bOff, dst, dstOff, len);
+
+            assertArrayEquals(reference(a, aOff, b, bOff, len), Arrays.copyOfRange(dst, dstOff, dstOff + len),
+                    "XOR of " + len + " bytes should match the scalar result");
+            assertTrue(Arrays.equals(new byte[dstOff], Arrays.copyOf(dst, dstOff)),
+                    "Bytes before the output should be untouched");
+            assertTrue(Arrays.equals(new byte[1200 - dstOff - len], Arrays.copyOfRange(dst, dstOff + len, 1200)),
+                    "Bytes after the output should be untouched");
+        }
+    }
+
+    @Test
+    @DisplayName("Test in-place XOR and output ahead of the input")
+    void testOverlap() {
+        Random random = new Random(7);
+        byte[] key = new byte[300];
+        random.nextBytes(key);
+        for (int shift : new int[]{0, 1, 5, 16, 33}) {
+            byte[] data = new byte[340];
+            random.nextBytes(data);
+            byte[] expected = reference(data, shift, key, 0, 300);
+
+            Xor.xor(data, shift, key, 0, data, 0, 300);
+            assertArrayEquals(expected, Arrays.copyOf(data, 300),
+                    "Output starting " + shift + " bytes before the input should match");
+        }
+
+        byte[] block = new byte[BlockCipher.BLOCK_SIZE];
+        byte[] chain = new byte[BlockCipher.BLOCK_SIZE];
+        random.nextBytes(block);
+        random.nextBytes(chain);
+        byte[] expected = reference(block, 0, chain, 0, BlockCipher.BLOCK_SIZE);
+        Xor.xorBlock(block, 0, chain, 0, block, 0);
+        assertArrayEquals(expected, block, "In-place block XOR should match");
+    }
+}
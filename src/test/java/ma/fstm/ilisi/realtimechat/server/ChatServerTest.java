@@ -0,0 +1,659 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.HistoryEntry;
+import ma.fstm.ilisi.realtimechat.common.IChatClient;
+import ma.fstm.ilisi.realtimechat.common.PresenceSnapshot;
+import ma.fstm.ilisi.realtimechat.common.User;
+import ma.fstm.ilisi.realtimechat.common.aes.AESEncryption;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatServerTest {
+    private ChatServer server;
+    private Path offlineDirectory;
+    private Path historyDirectory;
+
+    /**
+     * In-process client recording what the server delivers to it.
+     */
+    static class RecordingClient implements IChatClient {
+        final List<String> messages = new CopyOnWriteArrayList<>();
+        final List<Envelope> envelopes = new CopyOnWriteArrayList<>();
+        final List<List<User>> userLists = new CopyOnWriteArrayList<>();
+        final List<String> presence = new CopyOnWriteArrayList<>();
+        final List<Integer> batches = new CopyOnWriteArrayList<>();
+        final List<String> roomPosts = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void receiveMessage(String message, User sender) throws RemoteException {
+            messages.add(sender.getUsername() + ": " + message);
+        }
+
+        @Override
+        public void receiveEnvelope(Envelope envelope, User sender) throws RemoteException {
+            envelopes.add(envelope);
+        }
+
+        @Override
+        public void receiveMessages(List<Envelope> envelopes, List<User> senders) throws RemoteException {
+            assertEquals(envelopes.size(), senders.size(), "One sender per envelope");
+            batches.add(envelopes.size());
+            this.envelopes.addAll(envelopes);
+        }
+
+        @Override
+        public void receiveRoomEnvelope(String room, Envelope envelope, User sender) throws RemoteException {
+            roomPosts.add(room + " " + sender.getUsername());
+            envelopes.add(envelope);
+        }
+
+        @Override
+        public void updateUserList(List<User> users) throws RemoteException {
+            userLists.add(users);
+        }
+
+        @Override
+        public void userJoined(User user, long sequence) throws RemoteException {
+            presence.add(sequence + " joined " + user.getUsername());
+        }
+
+        @Override
+        public void userLeft(User user, long sequence) throws RemoteException {
+            presence.add(sequence + " left " + user.getUsername());
+        }
+
+        @Override
+        public void statusChanged(User user, long sequence) throws RemoteException {
+            presence.add(sequence + " " + user.getUsername() + (user.isOnline() ? " online" : " offline"));
+        }
+
+        @Override
+        public void statusesChanged(List<User> users, long sequence) throws RemoteException {
+            presence.add(sequence + " " + users.stream()
+                    .map(user -> user.getUsername() + (user.isOnline() ? " online" : " offline"))
+                    .collect(Collectors.joining(", ")));
+        }
+    }
+
+    /**
+     * Client that takes envelopes only once released, like a client on a congested link.
+     */
+    static class SlowClient extends RecordingClient {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void receiveEnvelope(Envelope envelope, User sender) throws RemoteException {
+            awaitRelease();
+            super.receiveEnvelope(envelope, sender);
+        }
+
+        @Override
+        public void receiveMessages(List<Envelope> envelopes, List<User> senders) throws RemoteException {
+            awaitRelease();
+            super.receiveMessages(envelopes, senders);
+        }
+
+        private void awaitRelease() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Client that has gone away without unregistering.
+     */
+    static class UnreachableClient extends RecordingClient {
+        @Override
+        public void userJoined(User user, long sequence) throws RemoteException {
+            throw new ConnectException("Connection refused to host");
+        }
+    }
+
+    /**
+     * Client built before envelopes, presence deltas and rooms: the remote object rejects the unknown methods, as RMI
+     * does.
+     */
+    static class LegacyClient extends RecordingClient {
+        int envelopeAttempts;
+        int presenceAttempts;
+        int roomAttempts;
+
+        @Override
+        public synchronized void receiveRoomEnvelope(String room, Envelope envelope, User sender)
+                throws RemoteException {
+            roomAttempts++;
+            throw unsupported();
+        }
+
+        @Override
+        public synchronized void receiveEnvelope(Envelope envelope, User sender) throws RemoteException {
+            envelopeAttempts++;
+            throw unsupported();
+        }
+
+        @Override
+        public synchronized void receiveMessages(List<Envelope> envelopes, List<User> senders)
+                throws RemoteException {
+            throw unsupported();
+        }
+
+        @Override
+        public synchronized void userJoined(User user, long sequence) throws RemoteException {
+            presenceAttempts++;
+            throw unsupported();
+        }
+
+        @Override
+        public synchronized void userLeft(User user, long sequence) throws RemoteException {
+            presenceAttempts++;
+            throw unsupported();
+        }
+
+        @Override
+        public synchronized void statusChanged(User user, long sequence) throws RemoteException {
+            presenceAttempts++;
+            throw unsupported();
+        }
+
+        @Override
+        public synchronized void statusesChanged(List<User> users, long sequence) throws RemoteException {
+            presenceAttempts++;
+            throw unsupported();
+        }
+
+        private static RemoteException unsupported() {
+            return new ServerException("RemoteException occurred in server thread",
+                    new UnmarshalException("unrecognized method hash: method not supported by remote object"));
+        }
+    }
+
+    /**
+     * Encrypts a message into an envelope with the key of the server, as its clients do.
+     */
+    private Envelope encryptedEnvelope(String message) throws RemoteException {
+        AESEncryption aes = new AESEncryption(server.getEncryptionKey());
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[AESEncryption.getEncryptedLength(data.length)];
+        aes.encrypt(data, 0, data.length, payload, 0);
+        return new Envelope(payload);
+    }
+
+    /**
+     * Returns the text messages a client received from alice, without the sender.
+     */
+    private static List<String> fromAlice(RecordingClient client) {
+        return client.messages.stream()
+                .filter(message -> message.startsWith("alice: "))
+                .map(message -> message.substring("alice: ".length()))
+                .toList();
+    }
+
+    /**
+     * Waits for deliveries, made by the server in the background, to satisfy a condition.
+     */
+    private static void awaitDelivery(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail(message);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Starts a server keeping offline messages and history in the test's directories.
+     */
+    private ChatServer startServer() throws IOException {
+        return new ChatServer(PresenceAggregator.getDefaultWindowMillis(), DeliveryOptions.getDefault(),
+                new OfflineStore(offlineDirectory, OfflineStore.DEFAULT_SEGMENT_SIZE, 0),
+                new HistoryLog(historyDirectory, HistoryLog.DEFAULT_SEGMENT_SIZE, 0));
+    }
+
+    /**
+     * Shuts a server down and unexports it.
+     */
+    private static void stopServer(ChatServer server) throws RemoteException {
+        server.shutdown();
+        UnicastRemoteObject.unexportObject(server, true);
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        offlineDirectory = Files.createTempDirectory("offline");
+        historyDirectory = Files.createTempDirectory("history");
+        server = startServer();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        stopServer(server);
+        OfflineStoreTest.deleteDirectory(offlineDirectory);
+        OfflineStoreTest.deleteDirectory(historyDirectory);
+    }
+
+    @Test
+    @DisplayName("Test envelopes are relayed untouched")
+    void testEnvelopeRelay() throws Exception {
+        RecordingClient alice = new RecordingClient();
+        RecordingClient bob = new RecordingClient();
+        server.registerClient(alice, new User("alice"));
+        server.registerClient(bob, new User("bob"));
+
+        Envelope envelope = new Envelope(new byte[]{3, 1, 2, 3});
+        server.sendEnvelope(envelope, new User("alice"), new User("bob"));
+
+        awaitDelivery(() -> !bob.envelopes.isEmpty(), "Receiver should get the envelope");
+        assertEquals(1, bob.envelopes.size(), "Receiver should get the envelope once");
+        assertSame(envelope.getPayload(), bob.envelopes.get(0).getPayload(), "Payload should not be copied or decoded");
+        assertTrue(alice.envelopes.isEmpty(), "Sender should not get its own envelope");
+    }
+
+    @Test
+    @DisplayName("Test envelopes for clients that predate them are dropped and the sender is told")
+    void testLegacyReceiver() throws Exception {
+        LegacyClient bob = new LegacyClient();
+        RecordingClient alice = new RecordingClient();
+        server.registerClient(bob, new User("bob"));
+        server.registerClient(alice, new User("alice"));
+
+        Envelope envelope = encryptedEnvelope("Hello Bob");
+        server.sendEnvelope(envelope, new User("alice"), new User("bob"));
+        server.sendEnvelope(envelope, new User("alice"), new User("bob"));
+
+        String notice = "Server: Message to bob was not delivered: their client is too old to read it";
+        awaitDelivery(() -> alice.messages.stream().filter(notice::equals).count() == 2,
+                "The sender should be told of each dropped message");
+        assertTrue(fromAlice(bob).isEmpty(), "The server should not turn envelopes into text");
+        assertEquals(1, bob.envelopeAttempts, "The server should remember the client predates envelopes");
+    }
+
+    @Test
+    @DisplayName("Test text messages from older clients are still relayed")
+    void testLegacySender() throws Exception {
+        RecordingClient bob = new RecordingClient();
+        server.registerClient(bob, new User("bob"));
+
+        server.sendMessage("b2xkIGNsaWVudA==", new User("alice"), new User("bob"));
+        awaitDelivery(() -> bob.messages.contains("alice: b2xkIGNsaWVudA=="), "Text message should be relayed as is");
+    }
+
+    @Test
+    @DisplayName("Test messages to users who are not connected are kept")
+    void testUnknownReceiver() {
+        assertDoesNotThrow(() -> server.sendEnvelope(new Envelope(new byte[]{3}), new User("alice"), new User("nobody")));
+        assertEquals(1, server.getOfflineStore().getPendingCount(), "The envelope should wait in the offline store");
+    }
+
+    @Test
+    @DisplayName("Test offline messages are delivered in one batch when the receiver registers")
+    void testOfflineDelivery() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            server.sendEnvelope(new Envelope(new byte[]{3, (byte) i}), new User("alice"), new User("bob"));
+        }
+
+        RecordingClient bob = new RecordingClient();
+        server.registerClient(bob, new User("bob"));
+        server.sendEnvelope(new Envelope(new byte[]{3, 5}), new User("alice"), new User("bob"));
+
+        awaitDelivery(() -> bob.envelopes.size() == 6, "Bob should get the offline and the live envelopes");
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i, bob.envelopes.get(i).getPayload()[1], "Offline envelopes should come first, in order");
+        }
+        assertEquals(5, (int) bob.batches.get(0), "The offline envelopes should be delivered together");
+        awaitDelivery(() -> server.getOfflineStore().getPendingCount() == 0, "Delivered envelopes should be removed");
+    }
+
+    @Test
+    @DisplayName("Test offline messages survive a restart of the server")
+    void testOfflineRestart() throws Exception {
+        server.sendEnvelope(new Envelope(new byte[]{3, 42}), new User("alice"), new User("bob"));
+        stopServer(server);
+        server = startServer();
+
+        RecordingClient bob = new RecordingClient();
+        server.registerClient(bob, new User("bob"));
+        awaitDelivery(() -> !bob.envelopes.isEmpty(), "Bob should get the envelope sent before the restart");
+        assertArrayEquals(new byte[]{3, 42}, bob.envelopes.get(0).getPayload(), "Payload should be kept as is");
+    }
+
+    @Test
+    @DisplayName("Test a room post is fanned out to every other member from one call")
+    void testRoomFanOut() throws Exception {
+        User alice = new User("alice");
+        RecordingClient sender = new RecordingClient();
+        server.registerClient(sender, alice);
+        assertTrue(server.createRoom("team", alice), "The room should be created");
+        assertFalse(server.createRoom("team", alice), "The room exists already");
+
+        List<RecordingClient> members = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            RecordingClient member = new RecordingClient();
+            User user = new User("member" + i);
+            server.registerClient(member, user);
+            assertTrue(server.joinRoom("team", user));
+            members.add(member);
+        }
+        RecordingClient outsider = new RecordingClient();
+        server.registerClient(outsider, new User("outsider"));
+
+        Envelope envelope = new Envelope(new byte[]{3, 1, 2, 3});
+        assertTrue(server.postToRoom("team", envelope, alice), "Members may post");
+        for (RecordingClient member : members) {
+            awaitDelivery(() -> !member.envelopes.isEmpty(), "Every member should get the post");
+            assertEquals(List.of("team alice"), member.roomPosts, "The post should name the room and the sender");
+            assertSame(envelope.getPayload(), member.envelopes.get(0).getPayload(), "The payload should be shared");
+        }
+        assertTrue(sender.roomPosts.isEmpty(), "The sender should not get its own post");
+        assertTrue(outsider.roomPosts.isEmpty(), "Users outside the room should not get the post");
+        assertFalse(server.postToRoom("team", envelope, new User("outsider")), "Non-members may not post");
+        assertEquals(List.of("team"), server.getRooms());
+    }
+
+    @Test
+    @DisplayName("Test a room is removed with its last member")
+    void testRoomLeave() throws Exception {
+        User alice = new User("alice");
+        User bob = new User("bob");
+        server.createRoom("team", alice);
+        server.joinRoom("team", bob);
+
+        server.leaveRoom("team", alice);
+        assertFalse(server.postToRoom("team", new Envelope(new byte[]{3}), alice), "Alice has left");
+        assertEquals(List.of("team"), server.getRooms(), "Bob is still in the room");
+        server.leaveRoom("team", bob);
+        assertTrue(server.getRooms().isEmpty(), "The empty room should be removed");
+        assertFalse(server.joinRoom("team", alice), "A removed room cannot be joined");
+        assertThrows(IllegalArgumentException.class, () -> server.createRoom(" ", alice), "Blank names are rejected");
+    }
+
+    @Test
+    @DisplayName("Test room posts to clients that predate rooms and envelopes are dropped and the poster is told")
+    void testLegacyRoomMember() throws Exception {
+        User alice = new User("alice");
+        User bob = new User("bob");
+        LegacyClient legacy = new LegacyClient();
+        RecordingClient sender = new RecordingClient();
+        server.registerClient(legacy, bob);
+        server.registerClient(sender, alice);
+        server.createRoom("team", alice);
+        server.joinRoom("team", bob);
+
+        Envelope envelope = encryptedEnvelope("Hello team");
+        server.postToRoom("team", envelope, alice);
+        server.postToRoom("team", envelope, alice);
+
+        awaitDelivery(() -> sender.messages.stream().filter(message -> message.contains("Message to bob"))
+                        .count() == 2,
+                "The poster should be told of each post the member cannot read");
+        assertTrue(fromAlice(legacy).isEmpty(), "The server should not turn posts into text");
+        assertEquals(1, legacy.roomAttempts, "The server should remember the client predates rooms");
+    }
+
+    @Test
+    @DisplayName("Test relayed envelopes are kept in the history of their conversation")
+    void testHistory() throws Exception {
+        User alice = new User("alice");
+        User bob = new User("bob");
+        server.registerClient(new RecordingClient(), bob);
+        for (int i = 0; i < 5; i++) {
+            server.sendEnvelope(new Envelope(new byte[]{3, (byte) i}), i % 2 == 0 ? alice : bob,
+                    i % 2 == 0 ? bob : alice);
+        }
+        server.sendEnvelope(new Envelope(new byte[]{3, 9}), alice, new User("carol"));
+
+        List<HistoryEntry> latest = server.fetchHistory(bob, alice, Long.MAX_VALUE, 3);
+        assertEquals(List.of(3L, 4L, 5L), latest.stream().map(HistoryEntry::getSequence).toList(),
+                "The latest page should come oldest first");
+        assertEquals("alice", latest.get(2).getSender().getUsername(), "The sender should be kept");
+        assertArrayEquals(new byte[]{3, 4}, latest.get(2).getEnvelope().getPayload(), "Payload should be kept as is");
+
+        List<HistoryEntry> earlier = server.fetchHistory(alice, bob, latest.get(0).getSequence(), 3);
+        assertEquals(List.of(1L, 2L), earlier.stream().map(HistoryEntry::getSequence).toList(),
+                "Both users should see the same conversation");
+        assertTrue(server.fetchHistory(alice, bob, 1, 3).isEmpty(), "Nothing comes before the first message");
+    }
+
+    @Test
+    @DisplayName("Test a slow receiver holds up neither senders nor other clients")
+    void testSlowReceiver() throws Exception {
+        SlowClient slow = new SlowClient();
+        RecordingClient bob = new RecordingClient();
+        server.registerClient(slow, new User("slow"));
+        server.registerClient(bob, new User("bob"));
+
+        Envelope envelope = new Envelope(new byte[]{3, 1, 2, 3});
+        for (int i = 0; i < 10; i++) {
+            server.sendEnvelope(envelope, new User("alice"), new User("slow"));
+        }
+        server.sendEnvelope(envelope, new User("alice"), new User("bob"));
+        server.registerClient(new RecordingClient(), new User("carol"));
+
+        awaitDelivery(() -> bob.envelopes.size() == 1, "Other receivers should not wait for the slow one");
+        awaitDelivery(() -> bob.messages.contains("Server: User carol has joined the chat"),
+                "Logins should not wait for the slow receiver");
+        assertTrue(slow.envelopes.isEmpty(), "The slow receiver is still blocked");
+
+        slow.release.countDown();
+        awaitDelivery(() -> slow.envelopes.size() == 10, "The slow receiver should get its queue once released");
+    }
+
+    @Test
+    @DisplayName("Test each receiver gets its messages in sending order")
+    void testDeliveryOrder() throws Exception {
+        RecordingClient bob = new RecordingClient();
+        server.registerClient(bob, new User("bob"));
+
+        for (int i = 0; i < 200; i++) {
+            server.sendMessage("message " + i, new User("alice"), new User("bob"));
+        }
+        awaitDelivery(() -> bob.messages.size() == 201, "Every message should be delivered");
+        for (int i = 0; i < 200; i++) {
+            assertEquals("alice: message " + i, bob.messages.get(i + 1), "Messages should keep their order");
+        }
+    }
+
+    @Test
+    @DisplayName("Test unreachable clients are unregistered")
+    void testUnreachableClient() throws Exception {
+        RecordingClient bob = new RecordingClient();
+        server.registerClient(bob, new User("bob"));
+        server.registerClient(new UnreachableClient(), new User("eve"));
+
+        awaitDelivery(() -> bob.messages.contains("Server: User eve has left the chat"),
+                "A client that cannot be reached should be unregistered");
+        server.sendMessage("hello", new User("bob"), new User("eve"));
+        assertTrue(bob.presence.contains("3 left eve"), "Others should see eve leave");
+        List<User> users = server.getPresenceSnapshot().getUsers();
+        assertEquals(List.of("bob"), users.stream().map(User::getUsername).toList(), "Only bob should remain");
+    }
+
+    @Test
+    @DisplayName("Test presence changes go out as numbered deltas")
+    void testPresenceDeltas() throws Exception {
+        RecordingClient alice = new RecordingClient();
+        RecordingClient bob = new RecordingClient();
+        server.registerClient(alice, new User("alice"));
+        server.registerClient(bob, new User("bob"));
+        server.updateUserStatus("bob", false);
+        server.updateUserStatus("bob", false);
+        awaitDelivery(() -> bob.presence.contains("3 bob offline"), "The status change should be published");
+        server.unregisterClient(alice);
+
+        List<String> expected = List.of("2 joined bob", "3 bob offline", "4 left alice");
+        // Bob may also get alice's join, if it was fanned out after his connection opened
+        awaitDelivery(() -> bob.presence.size() >= 3
+                        && bob.presence.subList(bob.presence.size() - 3, bob.presence.size()).equals(expected),
+                "Bob should get each change once, in order");
+        assertTrue(bob.presence.size() == 3 || bob.presence.get(0).equals("1 joined alice"),
+                "Nothing else should be sent: " + bob.presence);
+        assertFalse(alice.presence.contains("4 left alice"), "Alice's connection was closed before her leave");
+        assertTrue(bob.userLists.isEmpty(), "No full list should be sent to clients that support deltas");
+
+        PresenceSnapshot snapshot = server.getPresenceSnapshot();
+        assertEquals(4, snapshot.getSequence(), "The snapshot should include the last change");
+        assertEquals(1, snapshot.getUsers().size(), "Only bob should remain");
+        assertFalse(snapshot.getUsers().get(0).isOnline(), "Bob is offline");
+    }
+
+    @Test
+    @DisplayName("Test clients that predate deltas get the full user list")
+    void testLegacyPresence() throws Exception {
+        LegacyClient old = new LegacyClient();
+        server.registerClient(old, new User("old"));
+        server.registerClient(new RecordingClient(), new User("bob"));
+
+        awaitDelivery(() -> old.userLists.size() == 2, "Each change should send the full list");
+        assertEquals(List.of("old", "bob"), old.userLists.get(1).stream().map(User::getUsername).toList(),
+                "The full list should hold every user");
+        assertEquals(1, old.presenceAttempts, "The server should remember the client predates deltas");
+    }
+
+    @Test
+    @DisplayName("Test status flapping is coalesced into one delta per window")
+    void testPresenceCoalescing() throws Exception {
+        RecordingClient alice = new RecordingClient();
+        server.registerClient(alice, new User("alice"));
+        server.registerClient(new RecordingClient(), new User("bob"));
+
+        for (int i = 0; i < 9; i++) {
+            server.updateUserStatus("bob", i % 2 != 0);
+        }
+        awaitDelivery(() -> alice.presence.contains("3 bob offline"), "The last status should be published");
+        server.updateUserStatus("bob", true);
+        server.updateUserStatus("bob", false);
+        Thread.sleep(3 * PresenceAggregator.DEFAULT_WINDOW_MILLIS);
+
+        assertEquals(List.of("1 joined alice", "2 joined bob", "3 bob offline"), alice.presence,
+                "Flapping should cost at most one delta per window");
+        PresenceAggregator aggregator = server.getPresenceAggregator();
+        assertEquals(11, aggregator.getReceivedCount());
+        assertEquals(1, aggregator.getPublishedCount());
+        assertEquals(10, aggregator.getCoalescedCount());
+    }
+
+    @Test
+    @DisplayName("Test the status changes of a window go out as one delta")
+    void testPresenceBatch() throws Exception {
+        RecordingClient observer = new RecordingClient();
+        server.registerClient(observer, new User("observer"));
+        for (String username : List.of("alice", "bob", "carol")) {
+            server.registerClient(new RecordingClient(), new User(username));
+        }
+        awaitDelivery(() -> observer.presence.size() == 4, "Every join should be published");
+
+        server.updateUserStatus("alice", false);
+        server.updateUserStatus("bob", false);
+        server.updateUserStatus("carol", false);
+        awaitDelivery(() -> observer.presence.size() == 5, "The window should be published");
+        assertEquals("5 alice offline, bob offline, carol offline", observer.presence.get(4),
+                "All the changes of the window should share one call and one sequence number");
+    }
+
+    @Test
+    @DisplayName("Test clients that predate batched statuses get the full list for a window")
+    void testLegacyPresenceBatch() throws Exception {
+        RecordingClient older = new RecordingClient() {
+            @Override
+            public void statusesChanged(List<User> users, long sequence) throws RemoteException {
+                throw new ServerException("RemoteException occurred in server thread",
+                        new UnmarshalException("unrecognized method hash: method not supported by remote object"));
+            }
+        };
+        server.registerClient(older, new User("older"));
+        server.registerClient(new RecordingClient(), new User("alice"));
+        server.registerClient(new RecordingClient(), new User("bob"));
+
+        server.updateUserStatus("alice", false);
+        server.updateUserStatus("bob", false);
+        awaitDelivery(() -> older.userLists.size() == 1, "The window should send the full list once");
+        assertEquals(List.of(true, false, false), older.userLists.get(0).stream().map(User::isOnline).toList(),
+                "The list should hold the new statuses");
+        server.registerClient(new RecordingClient(), new User("carol"));
+        awaitDelivery(() -> older.presence.contains("5 joined carol"), "Joins should still go out as deltas");
+    }
+
+    @Test
+    @DisplayName("Test concurrent logins and logouts keep the registry and the delta order consistent")
+    void testConcurrentRegistration() throws Exception {
+        RecordingClient observer = new RecordingClient();
+        server.registerClient(observer, new User("observer"));
+
+        int users = 200;
+        List<RecordingClient> clients = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            clients.add(new RecordingClient());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    server.registerClient(clients.get(index), new User("user" + index));
+                    if (index % 2 == 0) {
+                        server.unregisterClient(clients.get(index));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        PresenceSnapshot snapshot = server.getPresenceSnapshot();
+        assertEquals(1 + users / 2, snapshot.getUsers().size(), "Odd users and the observer should remain");
+        assertEquals(1 + users + users / 2, snapshot.getSequence(), "Every join and leave should be numbered");
+
+        awaitDelivery(() -> observer.presence.size() == snapshot.getSequence(), "The observer should get every delta");
+        for (int i = 0; i < observer.presence.size(); i++) {
+            assertTrue(observer.presence.get(i).startsWith((i + 1) + " "), "Deltas should arrive in sequence order");
+        }
+    }
+
+    @Test
+    @DisplayName("Test a newer registration of a username is not removed by the older one leaving")
+    void testUsernameTakeover() throws Exception {
+        RecordingClient first = new RecordingClient();
+        RecordingClient second = new RecordingClient();
+        server.registerClient(first, new User("alice"));
+        server.registerClient(second, new User("alice"));
+        server.unregisterClient(first);
+
+        server.sendMessage("hello", new User("bob"), new User("alice"));
+        awaitDelivery(() -> second.messages.contains("bob: hello"), "The newer client should keep the username");
+        assertEquals(List.of("alice"), server.getPresenceSnapshot().getUsers().stream().map(User::getUsername).toList(),
+                "Alice should still be connected");
+    }
+}
@@ -0,0 +1,248 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClientConnectionTest {
+    private static final User SERVER = new User("Server");
+    private static final User ALICE = new User("alice");
+    private static final Envelope ENVELOPE = new Envelope(new byte[]{3, 1, 2, 3});
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger undeliverable = new AtomicInteger();
+    private ChatServerTest.SlowClient client;
+    private ClientConnection connection;
+
+    /**
+     * Opens a connection to a client that takes envelopes only once released, and blocks its delivery thread
+     * on a first envelope so that everything queued afterwards stays in the queue.
+     */
+    private void connect(int capacity, OverflowPolicy policy, long blockMillis) throws InterruptedException {
+        connect(new ChatServerTest.SlowClient(),
+                new DeliveryOptions(capacity, policy, blockMillis, DeliveryOptions.DEFAULT_MAX_BATCH, 0));
+    }
+
+    /**
+     * Opens a connection and blocks its delivery thread on a first envelope to the given slow client.
+     */
+    private void connect(ChatServerTest.SlowClient client, DeliveryOptions options) throws InterruptedException {
+        this.client = client;
+        connection = new ClientConnection(client, new User("bob"), options, failed -> failures.incrementAndGet(),
+                List::of, (sender, receiver) -> undeliverable.incrementAndGet());
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        awaitCondition(() -> connection.getPendingCount() == 0);
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() - deadline < 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) {
+            client.release.countDown();
+        }
+        System.clearProperty(DeliveryOptions.CAPACITY_PROPERTY);
+        System.clearProperty(OverflowPolicy.POLICY_PROPERTY);
+        System.clearProperty(DeliveryOptions.BATCH_PROPERTY);
+    }
+
+    @Test
+    @DisplayName("Test drop-oldest makes room by dropping system traffic, never chat messages")
+    void testDropOldest() throws Exception {
+        connect(3, OverflowPolicy.DROP_OLDEST, 0);
+        connection.sendSystemMessage("first notice", SERVER);
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        connection.sendSystemMessage("second notice", SERVER);
+        connection.sendSystemMessage("third notice", SERVER);
+        assertEquals(3, connection.getPendingCount(), "The queue should stay at its capacity");
+        assertEquals(1, connection.getDroppedCount(), "The first notice should make room for the third");
+
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        assertEquals(3, connection.getDroppedCount(), "Both notices left should make room for chat messages");
+        assertFalse(connection.isClosed(), "Dropping system traffic should keep the client connected");
+
+        connection.sendSystemMessage("fourth notice", SERVER);
+        assertEquals(4, connection.getDroppedCount(), "A notice with no room is dropped itself");
+        assertFalse(connection.isClosed());
+
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        assertTrue(connection.isClosed(), "A queue full of chat messages should disconnect the client");
+        assertEquals(1, failures.get(), "The server should be told once");
+        assertEquals(0, connection.getPendingCount(), "Closing should drop the queue");
+    }
+
+    @Test
+    @DisplayName("Test block makes the sender wait for room, then disconnects")
+    void testBlock() throws Exception {
+        connect(1, OverflowPolicy.BLOCK, 50);
+        connection.sendEnvelope(ENVELOPE, ALICE);
+
+        long start = System.nanoTime();
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(waited >= 40, "The sender should wait for room, waited " + waited + " ms");
+        assertTrue(connection.isClosed(), "A client that does not catch up in time should be disconnected");
+        assertEquals(1, failures.get());
+    }
+
+    @Test
+    @DisplayName("Test block lets the sender through once the client catches up")
+    void testBlockCatchUp() throws Exception {
+        connect(1, OverflowPolicy.BLOCK, 5000);
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        CountDownLatch sent = new CountDownLatch(1);
+        Thread sender = new Thread(() -> {
+            connection.sendEnvelope(ENVELOPE, ALICE);
+            sent.countDown();
+        });
+        sender.start();
+        Thread.sleep(20);
+        assertEquals(1, sent.getCount(), "The sender should be waiting for room");
+
+        client.release.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS), "The sender should get through once there is room");
+        assertFalse(connection.isClosed());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.envelopes.size() < 3 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(3, client.envelopes.size(), "Every envelope should be delivered");
+        assertEquals(3, connection.getDeliveredCount());
+    }
+
+    @Test
+    @DisplayName("Test disconnect drops the client as soon as its queue is full")
+    void testDisconnect() throws Exception {
+        connect(2, OverflowPolicy.DISCONNECT, 0);
+        connection.sendSystemMessage("notice", SERVER);
+        connection.sendSystemMessage("notice", SERVER);
+        assertFalse(connection.isClosed());
+        connection.sendSystemMessage("notice", SERVER);
+        assertTrue(connection.isClosed(), "The overflow should disconnect the client");
+        connection.sendSystemMessage("notice", SERVER);
+        assertEquals(1, failures.get(), "The server should be told once");
+    }
+
+    @Test
+    @DisplayName("Test the lag gauge tracks the oldest queued call")
+    void testLagGauge() throws Exception {
+        connect(10, OverflowPolicy.DROP_OLDEST, 0);
+        assertEquals(0, connection.getLagMillis(), "Nothing is queued yet");
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        Thread.sleep(30);
+        assertTrue(connection.getLagMillis() >= 25, "The lag should grow while the client is stuck");
+        assertEquals(1, connection.getPendingCount());
+
+        client.release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (connection.getPendingCount() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, connection.getLagMillis(), "The lag should fall back once the client catches up");
+    }
+
+    @Test
+    @DisplayName("Test the delivery options read from system properties")
+    void testOptionsProperties() {
+        DeliveryOptions defaults = DeliveryOptions.getDefault();
+        assertEquals(DeliveryOptions.DEFAULT_CAPACITY, defaults.capacity());
+        assertEquals(OverflowPolicy.DROP_OLDEST, defaults.policy());
+
+        System.setProperty(DeliveryOptions.CAPACITY_PROPERTY, "64");
+        System.setProperty(OverflowPolicy.POLICY_PROPERTY, "Block");
+        DeliveryOptions options = DeliveryOptions.getDefault();
+        assertEquals(64, options.capacity());
+        assertEquals(OverflowPolicy.BLOCK, options.policy());
+
+        System.setProperty(DeliveryOptions.BATCH_PROPERTY, "0");
+        assertThrows(IllegalArgumentException.class, DeliveryOptions::getDefault);
+        System.clearProperty(DeliveryOptions.BATCH_PROPERTY);
+        System.setProperty(OverflowPolicy.POLICY_PROPERTY, "evict");
+        assertThrows(IllegalArgumentException.class, DeliveryOptions::getDefault);
+        System.setProperty(OverflowPolicy.POLICY_PROPERTY, "disconnect");
+        System.setProperty(DeliveryOptions.CAPACITY_PROPERTY, "0");
+        assertThrows(IllegalArgumentException.class, DeliveryOptions::getDefault);
+    }
+
+    @Test
+    @DisplayName("Test envelopes waiting in a row are delivered in one call")
+    void testBatching() throws Exception {
+        connect(100, OverflowPolicy.DROP_OLDEST, 0);
+        for (int i = 0; i < 10; i++) {
+            connection.sendEnvelope(ENVELOPE, ALICE);
+        }
+        connection.sendSystemMessage("notice", SERVER);
+        for (int i = 0; i < 3; i++) {
+            connection.sendEnvelope(ENVELOPE, ALICE);
+        }
+        client.release.countDown();
+
+        awaitCondition(() -> connection.getDeliveredCount() == 15);
+        assertEquals(List.of(10, 3), client.batches, "The notice should split the envelopes into two batches");
+        assertEquals(List.of("Server: notice"), client.messages, "The notice should be delivered on its own");
+        assertEquals(14, client.envelopes.size());
+        assertEquals(4, connection.getCallCount(), "The first envelope, two batches and the notice");
+    }
+
+    @Test
+    @DisplayName("Test batches are capped at the batch size")
+    void testMaxBatch() throws Exception {
+        connect(new ChatServerTest.SlowClient(), new DeliveryOptions(100, OverflowPolicy.DROP_OLDEST, 0, 4, 0));
+        for (int i = 0; i < 10; i++) {
+            connection.sendEnvelope(ENVELOPE, ALICE);
+        }
+        client.release.countDown();
+
+        awaitCondition(() -> connection.getDeliveredCount() == 11);
+        assertEquals(List.of(4, 4, 2), client.batches);
+    }
+
+    @Test
+    @DisplayName("Test lingering gathers envelopes sent shortly after one another")
+    void testLinger() throws Exception {
+        ChatServerTest.RecordingClient recording = new ChatServerTest.RecordingClient();
+        connection = new ClientConnection(recording, new User("bob"),
+                new DeliveryOptions(100, OverflowPolicy.DROP_OLDEST, 0, 64, 500), failed -> failures.incrementAndGet(),
+                List::of, (sender, receiver) -> undeliverable.incrementAndGet());
+        connection.sendEnvelope(ENVELOPE, ALICE);
+        Thread.sleep(20);
+        connection.sendEnvelope(ENVELOPE, ALICE);
+
+        awaitCondition(() -> connection.getDeliveredCount() == 2);
+        assertEquals(List.of(2), recording.batches, "Both envelopes should go in one call");
+    }
+
+    @Test
+    @DisplayName("Test clients that predate batches get envelopes one by one")
+    void testLegacyBatches() throws Exception {
+        ChatServerTest.LegacyClient legacy = new ChatServerTest.LegacyClient();
+        connection = new ClientConnection(legacy, new User("old"),
+                new DeliveryOptions(100, OverflowPolicy.DROP_OLDEST, 0, 64, 200), failed -> failures.incrementAndGet(),
+                List::of, (sender, receiver) -> undeliverable.incrementAndGet());
+        for (int i = 0; i < 5; i++) {
+            connection.sendEnvelope(ENVELOPE, ALICE);
+        }
+
+        awaitCondition(() -> connection.getDeliveredCount() == 5);
+        assertEquals(5, undeliverable.get(), "Every envelope should be reported as undeliverable");
+        assertTrue(legacy.messages.isEmpty(), "The client cannot read envelopes in any form");
+        assertTrue(legacy.batches.isEmpty());
+        assertFalse(connection.isClosed(), "An unsupported batch call should not disconnect the client");
+    }
+}
@@ -0,0 +1,311 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.ServerAddress;
+import ma.fstm.ilisi.realtimechat.common.User;
+import ma.fstm.ilisi.realtimechat.common.aes.AESEncryption;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs several servers of a cluster in this JVM, each with its own registry on its own port, talking to each
+ * other over RMI as separate processes would.
+ */
+public class ClusterNodeTest {
+    private final List<Node> nodes = new ArrayList<>();
+
+    /**
+     * Server of the cluster, with its registry and directories.
+     */
+    private record Node(ChatServer server, Registry registry, ServerAddress address, Path offline, Path history) {
+        ClusterNode cluster() {
+            return server.getCluster();
+        }
+    }
+
+    /**
+     * Starts a server on a free port and joins it to the cluster of the seed, sharing its key.
+     *
+     * @param seed the node to join, or null to start a new cluster
+     */
+    private Node startNode(Node seed) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        ServerAddress address = new ServerAddress("localhost", port);
+        Path offline = Files.createTempDirectory("offline");
+        Path history = Files.createTempDirectory("history");
+        AESEncryption aes = seed == null ? new AESEncryption() : new AESEncryption(seed.server.getEncryptionKey());
+        ChatServer server = new ChatServer(0, DeliveryOptions.getDefault(),
+                new OfflineStore(offline, OfflineStore.DEFAULT_SEGMENT_SIZE, 0),
+                new HistoryLog(history, HistoryLog.DEFAULT_SEGMENT_SIZE, 0), aes);
+        Registry registry = LocateRegistry.createRegistry(port);
+        registry.rebind(ServerAddress.CHAT_SERVICE, server);
+        Node node = new Node(server, registry, address, offline, history);
+        nodes.add(node);
+        server.joinCluster(registry, address, seed == null ? null : seed.address);
+        return node;
+    }
+
+    /**
+     * Waits for the members of every node to be the given nodes.
+     */
+    private static void awaitMembers(Node... members) throws InterruptedException {
+        List<ServerAddress> expected = new ArrayList<>();
+        for (Node member : members) {
+            expected.add(member.address);
+        }
+        expected.sort((a, b) -> a.toString().compareTo(b.toString()));
+        for (Node member : members) {
+            await(() -> member.cluster().getMembers().equals(expected),
+                    member.address + " should know all members");
+        }
+    }
+
+    /**
+     * Returns the first username of the form user0, user1... owned by a node.
+     */
+    private static String userOf(Node node) {
+        for (int i = 0; ; i++) {
+            if (node.cluster().owns("user" + i)) {
+                return "user" + i;
+            }
+        }
+    }
+
+    /**
+     * Waits for the nodes to satisfy a condition, reached over RMI in the background.
+     */
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail(message);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static boolean lists(Node node, String username) {
+        try {
+            return node.server.getPresenceSnapshot().getUsers().contains(new User(username));
+        } catch (RemoteException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (Node node : nodes) {
+            node.server.shutdown();
+            UnicastRemoteObject.unexportObject(node.server, true);
+            UnicastRemoteObject.unexportObject(node.registry, true);
+            OfflineStoreTest.deleteDirectory(node.offline);
+            OfflineStoreTest.deleteDirectory(node.history);
+        }
+    }
+
+    @Test
+    @DisplayName("Test nodes joining through different seeds agree on the members and the placement")
+    void testMembership() throws Exception {
+        Node a = startNode(null);
+        Node b = startNode(a);
+        Node c = startNode(b);
+        awaitMembers(a, b, c);
+
+        for (int i = 0; i < 100; i++) {
+            ServerAddress home = a.server.getHomeServer("user" + i);
+            assertEquals(home, b.server.getHomeServer("user" + i));
+            assertEquals(home, c.server.getHomeServer("user" + i));
+        }
+        assertArrayEquals(a.server.getEncryptionKey(), c.server.getEncryptionKey(), "The key should be shared");
+    }
+
+    @Test
+    @DisplayName("Test envelopes are forwarded to the node of the receiver, both ways")
+    void testForwarding() throws Exception {
+        Node a = startNode(null);
+        Node b = startNode(a);
+        awaitMembers(a, b);
+        User alice = new User(userOf(a));
+        User bob = new User(userOf(b));
+        ChatServerTest.RecordingClient aliceClient = new ChatServerTest.RecordingClient();
+        ChatServerTest.RecordingClient bobClient = new ChatServerTest.RecordingClient();
+        a.server.registerClient(aliceClient, alice);
+        b.server.registerClient(bobClient, bob);
+        await(() -> lists(a, bob.getUsername()) && lists(b, alice.getUsername()),
+                "Each node should list the user of the other");
+        await(() -> aliceClient.presence.stream().anyMatch(event -> event.endsWith("joined " + bob.getUsername())),
+                "Alice should see Bob join");
+
+        a.server.sendEnvelope(new Envelope(new byte[]{3, 1}), alice, bob);
+        b.server.sendEnvelope(new Envelope(new byte[]{3, 2}), bob, alice);
+        await(() -> !bobClient.envelopes.isEmpty(), "Bob should get the envelope forwarded by his node");
+        await(() -> !aliceClient.envelopes.isEmpty(), "Alice should get the reply");
+        assertArrayEquals(new byte[]{3, 1}, bobClient.envelopes.get(0).getPayload());
+        assertArrayEquals(new byte[]{3, 2}, aliceClient.envelopes.get(0).getPayload());
+
+        assertEquals(2, a.server.fetchHistory(alice, bob, Long.MAX_VALUE, 10).size(), "Alice's node keeps both");
+        assertEquals(2, b.server.fetchHistory(bob, alice, Long.MAX_VALUE, 10).size(), "Bob's node keeps both");
+
+        b.server.unregisterClient(bobClient);
+        await(() -> !lists(a, bob.getUsername()), "Bob's leave should reach the other node");
+    }
+
+    @Test
+    @DisplayName("Test messages for an offline user wait on its home node")
+    void testOfflineForwarding() throws Exception {
+        Node a = startNode(null);
+        Node b = startNode(a);
+        awaitMembers(a, b);
+        User alice = new User(userOf(a));
+        User carol = new User(userOf(b));
+
+        a.server.sendEnvelope(new Envelope(new byte[]{3, 7}), alice, carol);
+        assertEquals(0, a.server.getOfflineStore().getPendingCount());
+        assertEquals(1, b.server.getOfflineStore().getPendingCount(), "The envelope should wait on Carol's node");
+
+        ChatServerTest.RecordingClient carolClient = new ChatServerTest.RecordingClient();
+        b.server.registerClient(carolClient, carol);
+        await(() -> !carolClient.envelopes.isEmpty(), "Carol should get the envelope when she registers");
+    }
+
+    @Test
+    @DisplayName("Test a forward that fails leaves nothing in the history of the sending node")
+    void testFailedForward() throws Exception {
+        Node a = startNode(null);
+        Node b = startNode(a);
+        awaitMembers(a, b);
+        User alice = new User(userOf(a));
+        User carol = new User(userOf(b));
+
+        UnicastRemoteObject.unexportObject(b.cluster(), true);
+        assertThrows(RemoteException.class,
+                () -> a.server.sendEnvelope(new Envelope(new byte[]{3, 7}), alice, carol));
+        assertTrue(a.server.fetchHistory(alice, carol, Long.MAX_VALUE, 10).isEmpty(),
+                "The envelope was not delivered, so it should not be in the history");
+    }
+
+    @Test
+    @DisplayName("Test a joining node takes over the mailboxes of the users it now owns")
+    void testRebalance() throws Exception {
+        Node a = startNode(null);
+        User alice = new User("alice");
+        int users = 200;
+        for (int i = 0; i < users; i++) {
+            a.server.sendEnvelope(new Envelope(new byte[]{3, (byte) i}), alice, new User("user" + i));
+        }
+        assertEquals(users, a.server.getOfflineStore().getPendingCount());
+
+        Node b = startNode(a);
+        awaitMembers(a, b);
+        int moved = 0;
+        for (int i = 0; i < users; i++) {
+            if (b.cluster().owns("user" + i)) {
+                moved++;
+            }
+        }
+        int expected = moved;
+        assertTrue(expected > 0, "The new node should own some of the users");
+        await(() -> b.server.getOfflineStore().getPendingCount() == expected
+                        && a.server.getOfflineStore().getPendingCount() == users - expected,
+                "The mailboxes of the moved users should be handed off");
+        for (String recipient : b.server.getOfflineStore().getRecipients()) {
+            assertTrue(b.cluster().owns(recipient), recipient + " should only be kept by its home node");
+        }
+
+        String moved0 = userOf(b);
+        ChatServerTest.RecordingClient client = new ChatServerTest.RecordingClient();
+        b.server.registerClient(client, new User(moved0));
+        await(() -> client.envelopes.size() == 1, "A moved user should get its mailbox from its new home");
+    }
+
+    /**
+     * Returns the first room name of the form room0, room1... kept by a node.
+     */
+    private static String roomOf(Node node) {
+        for (int i = 0; ; i++) {
+            if (node.cluster().ownerOfRoom("room" + i).equals(node.address)) {
+                return "room" + i;
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test members of a room on different nodes all get its posts, wherever the room is kept")
+    void testRooms() throws Exception {
+        Node a = startNode(null);
+        Node b = startNode(a);
+        awaitMembers(a, b);
+        User alice = new User(userOf(a));
+        User bob = new User(userOf(b));
+        ChatServerTest.RecordingClient aliceClient = new ChatServerTest.RecordingClient();
+        ChatServerTest.RecordingClient bobClient = new ChatServerTest.RecordingClient();
+        a.server.registerClient(aliceClient, alice);
+        b.server.registerClient(bobClient, bob);
+        await(() -> lists(a, bob.getUsername()) && lists(b, alice.getUsername()),
+                "Each node should list the user of the other");
+
+        String onA = roomOf(a);
+        String onB = roomOf(b);
+        assertTrue(a.server.createRoom(onB, alice), "A room kept elsewhere should be created there");
+        assertFalse(b.server.createRoom(onB, bob), "Both nodes should see the same room");
+        assertTrue(b.server.createRoom(onA, bob));
+        assertTrue(b.server.joinRoom(onB, bob));
+        assertTrue(a.server.joinRoom(onA, alice));
+        assertEquals(List.of(onB), b.server.getRoomRegistry().getRooms(), "Each room is kept by one node");
+        assertEquals(List.of(onA, onB).stream().sorted().toList(), a.server.getRooms(), "Rooms are listed everywhere");
+
+        assertTrue(a.server.postToRoom(onB, new Envelope(new byte[]{3, 1}), alice));
+        assertTrue(a.server.postToRoom(onA, new Envelope(new byte[]{3, 2}), alice));
+        assertTrue(b.server.postToRoom(onA, new Envelope(new byte[]{3, 3}), bob));
+        await(() -> bobClient.roomPosts.size() == 2, "Bob should get Alice's posts to both rooms");
+        await(() -> aliceClient.roomPosts.size() == 1, "Alice should get Bob's post");
+        assertEquals(onA + " " + bob.getUsername(), aliceClient.roomPosts.get(0));
+
+        b.server.leaveRoom(onA, bob);
+        assertFalse(b.server.postToRoom(onA, new Envelope(new byte[]{3, 4}), bob), "Bob has left");
+    }
+
+    @Test
+    @DisplayName("Test a joining node takes over the rooms it now keeps, with their members")
+    void testRoomRebalance() throws Exception {
+        Node a = startNode(null);
+        User alice = new User("alice");
+        int count = 20;
+        for (int i = 0; i < count; i++) {
+            a.server.createRoom("room" + i, alice);
+        }
+
+        Node b = startNode(a);
+        awaitMembers(a, b);
+        String moved = roomOf(b);
+        // A room is on neither node while it is handed off, so wait for the last one to arrive
+        await(() -> a.server.getRoomRegistry().getRooms().stream()
+                        .allMatch(room -> a.cluster().ownerOfRoom(room).equals(a.address))
+                        && a.server.getRoomRegistry().getRooms().size()
+                        + b.server.getRoomRegistry().getRooms().size() == count,
+                "The rooms now kept by the new node should be handed off, and none lost");
+        assertTrue(b.server.getRoomRegistry().getRooms().contains(moved), "The room should be on its new node");
+        assertEquals(count, a.server.getRooms().size(), "No room should be lost");
+        assertFalse(b.server.createRoom(moved, new User("bob")), "The room should exist on its new node");
+        assertTrue(b.server.getRoomRegistry().getMembers(moved).contains(alice.getUsername()));
+    }
+}
@@ -0,0 +1,64 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.ServerAddress;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashRingTest {
+    private static final int USERS = 30_000;
+
+    private static final ServerAddress A = new ServerAddress("localhost", 1099);
+    private static final ServerAddress B = new ServerAddress("localhost", 1100);
+    private static final ServerAddress C = new ServerAddress("localhost", 1101);
+    private static final ServerAddress D = new ServerAddress("localhost", 1102);
+
+    @Test
+    @DisplayName("Test the placement only depends on the set of nodes")
+    void testStablePlacement() {
+        HashRing ring = new HashRing(List.of(A, B, C));
+        HashRing shuffled = new HashRing(List.of(C, A, B));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.ownerOf("user" + i), shuffled.ownerOf("user" + i));
+        }
+        assertEquals(List.of(A, B, C), shuffled.getNodes(), "Nodes should be sorted by address");
+        assertEquals(A, new HashRing(List.of(A)).ownerOf("anyone"), "A lone node owns every user");
+    }
+
+    @Test
+    @DisplayName("Test every node gets a fair share of the users")
+    void testBalance() {
+        HashRing ring = new HashRing(List.of(A, B, C));
+        Map<ServerAddress, Integer> shares = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            shares.merge(ring.ownerOf("user" + i), 1, Integer::sum);
+        }
+        for (ServerAddress node : ring.getNodes()) {
+            double share = shares.getOrDefault(node, 0) / (double) USERS;
+            assertTrue(share > 0.25 && share < 0.42, node + " owns " + share + " of the users");
+        }
+    }
+
+    @Test
+    @DisplayName("Test adding a node only moves users to it, about one in N")
+    void testAddNode() {
+        HashRing before = new HashRing(List.of(A, B, C));
+        HashRing after = new HashRing(List.of(A, B, C, D));
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            String username = "user" + i;
+            ServerAddress owner = after.ownerOf(username);
+            if (!owner.equals(before.ownerOf(username))) {
+                assertEquals(D, owner, "A user should only move to the new node");
+                moved++;
+            }
+        }
+        double share = moved / (double) USERS;
+        assertTrue(share > 0.15 && share < 0.35, share + " of the users moved");
+    }
+}
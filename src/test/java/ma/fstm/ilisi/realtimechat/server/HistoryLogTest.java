@@ -0,0 +1,169 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.HistoryEntry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryLogTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    private Path directory;
+    private HistoryLog history;
+
+    private static Envelope envelope(long id) {
+        return new Envelope(ByteBuffer.allocate(9).put((byte) 3).putLong(id).array());
+    }
+
+    private static long id(HistoryEntry entry) {
+        return ByteBuffer.wrap(entry.getEnvelope().getPayload()).getLong(1);
+    }
+
+    private static List<Long> sequences(List<HistoryEntry> entries) {
+        return entries.stream().map(HistoryEntry::getSequence).toList();
+    }
+
+    private static List<Long> range(long from, long to) {
+        return LongStream.rangeClosed(from, to).boxed().toList();
+    }
+
+    /**
+     * Damages the last record of the first segment, the one the first record of the second segment links to,
+     * either in its length or in its payload, as a crash in the middle of a write would.
+     */
+    private void damageLastRecordOfFirstSegment(boolean length) throws IOException {
+        Path first = directory.resolve(String.format("%020d.seg", 1));
+        MappedByteBuffer buffer = SegmentLog.map(first, 0);
+        int offset = 0;
+        int last = 0;
+        while (buffer.getInt(offset) > 0) {
+            last = offset;
+            offset += 8 + buffer.getInt(offset);
+        }
+        if (length) {
+            buffer.putInt(last, Integer.MAX_VALUE);
+        } else {
+            int end = last + 8 + buffer.getInt(last) - 1;
+            buffer.put(end, (byte) (buffer.get(end) ^ 1));
+        }
+        buffer.force();
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("history");
+        history = new HistoryLog(directory, SEGMENT_SIZE, 0);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        history.close();
+        OfflineStoreTest.deleteDirectory(directory);
+    }
+
+    @Test
+    @DisplayName("Test messages are numbered per conversation, whichever side sent them")
+    void testSequenceNumbers() throws IOException {
+        assertEquals(1, history.append("alice", "bob", envelope(1)));
+        assertEquals(2, history.append("bob", "alice", envelope(2)));
+        assertEquals(1, history.append("alice", "carol", envelope(3)));
+        assertEquals(2, history.getConversationCount(), "Two conversations");
+
+        List<HistoryEntry> page = history.page("bob", "alice", Long.MAX_VALUE, 10);
+        assertEquals(List.of(1L, 2L), sequences(page), "Both messages, oldest first");
+        assertEquals("bob", page.get(1).getSender().getUsername(), "The sender should be kept");
+        assertTrue(history.page("bob", "carol", Long.MAX_VALUE, 10).isEmpty(), "No conversation");
+    }
+
+    @Test
+    @DisplayName("Test paging back through a long interleaved history")
+    void testPaging() throws IOException {
+        // Interleave two conversations over many segments
+        for (long i = 1; i <= 1000; i++) {
+            history.append("alice", "bob", envelope(i));
+            history.append("carol", "dave", envelope(-i));
+        }
+
+        List<HistoryEntry> latest = history.page("alice", "bob", Long.MAX_VALUE, 50);
+        assertEquals(range(951, 1000), sequences(latest), "The latest page");
+
+        List<Long> seen = new ArrayList<>();
+        long before = Long.MAX_VALUE;
+        List<HistoryEntry> page;
+        while (!(page = history.page("alice", "bob", before, 70)).isEmpty()) {
+            for (HistoryEntry entry : page) {
+                assertEquals(entry.getSequence(), id(entry), "Each entry should hold its own message");
+            }
+            seen.addAll(0, sequences(page));
+            before = page.get(0).getSequence();
+        }
+        assertEquals(range(1, 1000), seen, "Paging back should visit every message once");
+
+        assertEquals(range(100, 129), sequences(history.page("carol", "dave", 130, 30)),
+                "A page in the middle, between two index entries");
+        assertEquals(-129, id(history.page("carol", "dave", 130, 30).get(29)), "Conversations should not mix");
+    }
+
+    @Test
+    @DisplayName("Test pages are capped")
+    void testPageLimit() throws IOException {
+        for (long i = 1; i <= HistoryLog.MAX_PAGE_SIZE + 10; i++) {
+            history.append("alice", "bob", envelope(i));
+        }
+        assertEquals(HistoryLog.MAX_PAGE_SIZE, history.page("alice", "bob", Long.MAX_VALUE, 10_000).size());
+        assertTrue(history.page("alice", "bob", Long.MAX_VALUE, 0).isEmpty(), "An empty page");
+    }
+
+    @Test
+    @DisplayName("Test the history and its numbering survive a restart")
+    void testRecovery() throws IOException {
+        for (long i = 1; i <= 300; i++) {
+            history.append("alice", "bob", envelope(i));
+        }
+        history.close();
+
+        history = new HistoryLog(directory, SEGMENT_SIZE, 0);
+        assertEquals(range(91, 100), sequences(history.page("alice", "bob", 101, 10)), "Recovered page");
+        assertEquals(301, history.append("bob", "alice", envelope(301)), "Numbering should go on");
+        List<HistoryEntry> latest = history.page("alice", "bob", Long.MAX_VALUE, 2);
+        assertEquals(List.of(300L, 301L), sequences(latest), "New messages should follow the recovered ones");
+        assertEquals(300, id(latest.get(0)), "Recovered payload");
+    }
+
+    @Test
+    @DisplayName("Test a page stops at a damaged record instead of failing")
+    void testDamagedLink() throws IOException {
+        for (boolean length : new boolean[]{true, false}) {
+            history.close();
+            OfflineStoreTest.deleteDirectory(directory);
+            directory = Files.createTempDirectory("history");
+            history = new HistoryLog(directory, SEGMENT_SIZE, 0);
+            for (long i = 1; i <= 300; i++) {
+                history.append("alice", "bob", envelope(i));
+            }
+            history.close();
+            damageLastRecordOfFirstSegment(length);
+
+            history = new HistoryLog(directory, SEGMENT_SIZE, 0);
+            List<HistoryEntry> page = history.page("alice", "bob", Long.MAX_VALUE, HistoryLog.MAX_PAGE_SIZE);
+            assertFalse(page.isEmpty(), "The intact records should be served");
+            long first = page.get(0).getSequence();
+            assertTrue(first > 1, "The walk should stop at the damaged record");
+            assertEquals(range(first, 300), sequences(page), "The intact records, in order");
+            assertTrue(history.page("alice", "bob", first, 10).isEmpty(), "Nothing is served past the damage");
+        }
+    }
+}
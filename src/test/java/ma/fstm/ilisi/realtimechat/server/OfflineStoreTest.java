@@ -0,0 +1,212 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import ma.fstm.ilisi.realtimechat.common.Envelope;
+import ma.fstm.ilisi.realtimechat.common.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OfflineStoreTest {
+    private static final User ALICE = new User("alice");
+    private static final int SEGMENT_SIZE = 4096;
+
+    private Path directory;
+    private OfflineStore store;
+
+    /**
+     * Deletes a directory and the files in it.
+     */
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static Envelope envelope(int id, int length) {
+        byte[] payload = new byte[length];
+        payload[0] = 3;
+        payload[1] = (byte) id;
+        return new Envelope(payload);
+    }
+
+    private static int id(OfflineStore.Message message) {
+        return message.envelope().getPayload()[1];
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("offline");
+        store = new OfflineStore(directory, SEGMENT_SIZE, 0);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+        deleteDirectory(directory);
+    }
+
+    @Test
+    @DisplayName("Test each mailbox returns its envelopes in order until acknowledged")
+    void testPeekAndAcknowledge() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            store.append("bob", ALICE, envelope(i, 16));
+            store.append("carol", ALICE, envelope(10 + i, 16));
+        }
+
+        List<OfflineStore.Message> messages = store.peek("bob", 3);
+        assertEquals(List.of(0, 1, 2), messages.stream().map(OfflineStoreTest::id).toList(), "Oldest first");
+        assertEquals("alice", messages.get(0).sender().getUsername(), "The sender should be kept");
+        assertEquals(3, store.peek("bob", 3).size(), "Peeking should not remove anything");
+
+        store.acknowledge("bob", store.peek("bob", 3));
+        assertEquals(List.of(3, 4), store.peek("bob", 10).stream().map(OfflineStoreTest::id).toList(),
+                "Acknowledged envelopes should be gone");
+        assertEquals(5, store.peek("carol", 10).size(), "Other mailboxes should not be affected");
+        assertEquals(7, store.getPendingCount(), "Pending count");
+
+        store.acknowledge("bob", store.peek("bob", 2));
+        assertFalse(store.hasPending("bob"), "Bob's mailbox should be empty");
+        assertTrue(store.peek("bob", 10).isEmpty(), "Nothing should be left for bob");
+    }
+
+    @Test
+    @DisplayName("Test acknowledging removes exactly the envelopes delivered")
+    void testAcknowledgeTwice() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            store.append("bob", ALICE, envelope(i, 16));
+        }
+        // Two deliveries of the same mailbox peek the same batch, as a drain racing a handoff would
+        List<OfflineStore.Message> first = store.peek("bob", 3);
+        List<OfflineStore.Message> second = store.peek("bob", 3);
+        store.acknowledge("bob", first);
+        store.append("bob", ALICE, envelope(5, 16));
+        store.acknowledge("bob", second);
+
+        assertEquals(List.of(3, 4, 5), store.peek("bob", 10).stream().map(OfflineStoreTest::id).toList(),
+                "The second acknowledgement should not remove envelopes it did not deliver");
+        assertEquals(3, store.getPendingCount(), "Pending count");
+    }
+
+    @Test
+    @DisplayName("Test pending envelopes are recovered after a restart, delivered ones are not")
+    void testRecovery() throws IOException {
+        for (int i = 0; i < 40; i++) {
+            store.append(i % 2 == 0 ? "bob" : "carol", ALICE, envelope(i, 200));
+        }
+        store.acknowledge("bob", store.peek("bob", 5));
+        store.close();
+
+        store = new OfflineStore(directory, SEGMENT_SIZE, 0);
+        assertEquals(35, store.getPendingCount(), "Pending count after recovery");
+        assertEquals(10, id(store.peek("bob", 1).get(0)), "Bob's mailbox should resume after the delivered ones");
+        assertEquals(20, store.peek("carol", 100).size(), "Carol's mailbox should be intact");
+
+        store.append("bob", ALICE, envelope(99, 16));
+        List<OfflineStore.Message> bob = store.peek("bob", 100);
+        assertEquals(99, id(bob.get(bob.size() - 1)), "New envelopes should follow the recovered ones");
+    }
+
+    @Test
+    @DisplayName("Test recovery stops at a damaged record")
+    void testTornRecord() throws IOException {
+        store.append("bob", ALICE, envelope(1, 16));
+        store.append("bob", ALICE, envelope(2, 16));
+        store.close();
+
+        Path segment;
+        try (Stream<Path> paths = Files.list(directory)) {
+            segment = paths.findFirst().orElseThrow();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // Corrupt the last byte of the second record's payload, as a write cut short by a crash would
+            int first = 9 + 8 + 2 + 3 + 2 + 5 + 16;
+            file.seek(first + 9 + 8 + 2 + 3 + 2 + 5 + 15);
+            file.write(0x7F);
+        }
+
+        store = new OfflineStore(directory, SEGMENT_SIZE, 0);
+        assertEquals(List.of(1), store.peek("bob", 10).stream().map(OfflineStoreTest::id).toList(),
+                "Only the intact record should be recovered");
+    }
+
+    @Test
+    @DisplayName("Test delivered segments are deleted and mostly delivered ones compacted")
+    void testCompaction() throws IOException {
+        // About ten records per segment
+        for (int i = 0; i < 30; i++) {
+            store.append("bob", ALICE, envelope(i, 350));
+        }
+        store.append("carol", ALICE, envelope(100, 350));
+        int segments = store.getSegmentCount();
+        assertTrue(segments >= 3, "The records should span several segments");
+
+        store.acknowledge("bob", store.peek("bob", 10));
+        assertTrue(store.getSegmentCount() < segments, "The fully delivered segment should be deleted");
+
+        store.acknowledge("bob", store.peek("bob", 18));
+        assertEquals(List.of(28, 29), store.peek("bob", 10).stream().map(OfflineStoreTest::id).toList(),
+                "Compaction should keep the pending records in order");
+        assertEquals(100, id(store.peek("carol", 1).get(0)), "Compaction should keep other mailboxes");
+
+        store.close();
+        store = new OfflineStore(directory, SEGMENT_SIZE, 0);
+        assertEquals(3, store.getPendingCount(), "Compacted records should be recovered once");
+        assertEquals(List.of(28, 29), store.peek("bob", 10).stream().map(OfflineStoreTest::id).toList(),
+                "Recovered mailbox should keep its order");
+    }
+
+    @Test
+    @DisplayName("Test segments delivered while active are deleted once sealed")
+    void testDeliveredWhileActive() throws IOException {
+        // Every record is delivered while its segment is still active, across many rollovers
+        for (int i = 0; i < 200; i++) {
+            store.append("bob", ALICE, envelope(i, 350));
+            store.acknowledge("bob", store.peek("bob", 1));
+        }
+        assertEquals(0, store.getPendingCount());
+        assertEquals(1, store.getSegmentCount(), "Only the active segment should be left");
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count(), "Sealed segment files should be deleted");
+        }
+    }
+
+    @Test
+    @DisplayName("Test an envelope larger than a segment gets a segment of its own")
+    void testLargeEnvelope() throws IOException {
+        store.append("bob", ALICE, envelope(1, SEGMENT_SIZE * 2));
+        store.append("bob", ALICE, envelope(2, 16));
+        List<OfflineStore.Message> messages = store.peek("bob", 10);
+        assertEquals(SEGMENT_SIZE * 2, messages.get(0).envelope().getPayload().length, "Payload length");
+        assertEquals(2, id(messages.get(1)), "The next envelope should follow");
+    }
+
+    @Test
+    @DisplayName("Test group commit forces appends in the background")
+    void testGroupCommit() throws Exception {
+        store.close();
+        store = new OfflineStore(directory, SEGMENT_SIZE, 10);
+        for (int i = 0; i < 1000; i++) {
+            store.append("bob", ALICE, envelope(i, 16));
+        }
+        Thread.sleep(50);
+        store.close();
+        assertThrows(IllegalStateException.class, () -> store.append("bob", ALICE, envelope(0, 16)),
+                "A closed store should refuse appends");
+
+        store = new OfflineStore(directory, SEGMENT_SIZE, 10);
+        assertEquals(1000, store.getPendingCount(), "Every append should be on disk");
+    }
+}
@@ -0,0 +1,134 @@
+package ma.fstm.ilisi.realtimechat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PresenceAggregatorTest {
+    // Long enough for the window never to end on its own: the tests flush by hand
+    private static final long LONG_WINDOW = 3_600_000;
+
+    private final Map<String, Boolean> published = new HashMap<>();
+    private final List<String> deltas = new CopyOnWriteArrayList<>();
+
+    /**
+     * Publisher mimicking Presence: a status equal to the published one is not a change, and the others make
+     * one delta.
+     */
+    private int publish(Map<String, Boolean> statuses) {
+        List<String> changed = new ArrayList<>();
+        statuses.forEach((username, online) -> {
+            Boolean previous = published.put(username, online);
+            if (previous == null || previous != online) {
+                changed.add(username + (online ? " online" : " offline"));
+            }
+        });
+        if (!changed.isEmpty()) {
+            deltas.add(String.join(", ", changed));
+        }
+        return changed.size();
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.clearProperty(PresenceAggregator.WINDOW_PROPERTY);
+    }
+
+    @Test
+    @DisplayName("Test only the latest status of each user is published")
+    void testLatestStatusWins() {
+        PresenceAggregator aggregator = new PresenceAggregator(LONG_WINDOW, this::publish);
+        aggregator.statusChanged("alice", false);
+        aggregator.statusChanged("bob", false);
+        aggregator.statusChanged("alice", true);
+        aggregator.statusChanged("alice", false);
+        assertTrue(deltas.isEmpty(), "Nothing should be published before the window ends");
+
+        aggregator.flush();
+        assertEquals(List.of("alice offline, bob offline"), deltas, "One delta for the window");
+        assertEquals(4, aggregator.getReceivedCount());
+        assertEquals(2, aggregator.getCoalescedCount());
+        assertEquals(2, aggregator.getPublishedCount());
+    }
+
+    @Test
+    @DisplayName("Test a flap back to the published status costs nothing")
+    void testFlapCancelsOut() {
+        published.put("alice", true);
+        PresenceAggregator aggregator = new PresenceAggregator(LONG_WINDOW, this::publish);
+        aggregator.statusChanged("alice", false);
+        aggregator.statusChanged("alice", true);
+        aggregator.flush();
+
+        assertTrue(deltas.isEmpty(), "A status back where it started should not be published");
+        assertEquals(2, aggregator.getCoalescedCount());
+        assertEquals(0, aggregator.getPublishedCount());
+    }
+
+    @Test
+    @DisplayName("Test a join or leave drops the pending status")
+    void testDiscard() {
+        PresenceAggregator aggregator = new PresenceAggregator(LONG_WINDOW, this::publish);
+        aggregator.statusChanged("alice", false);
+        aggregator.discard("alice");
+        aggregator.discard("bob");
+        aggregator.flush();
+
+        assertTrue(deltas.isEmpty(), "The discarded status should not be published");
+        assertEquals(1, aggregator.getCoalescedCount());
+    }
+
+    @Test
+    @DisplayName("Test the window ends on its own")
+    void testScheduledFlush() throws InterruptedException {
+        PresenceAggregator aggregator = new PresenceAggregator(20, this::publish);
+        aggregator.statusChanged("alice", false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (deltas.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(List.of("alice offline"), deltas, "The change should be published when the window ends");
+    }
+
+    @Test
+    @DisplayName("Test a zero window publishes at once")
+    void testNoWindow() {
+        PresenceAggregator aggregator = new PresenceAggregator(0, this::publish);
+        aggregator.statusChanged("alice", false);
+        assertEquals(List.of("alice offline"), deltas, "The change should be published at once");
+        assertEquals(1, aggregator.getPublishedCount());
+    }
+
+    @Test
+    @DisplayName("Test the window property")
+    void testWindowProperty() {
+        assertEquals(PresenceAggregator.DEFAULT_WINDOW_MILLIS, PresenceAggregator.getDefaultWindowMillis());
+        System.setProperty(PresenceAggregator.WINDOW_PROPERTY, "500");
+        assertEquals(500, PresenceAggregator.getDefaultWindowMillis());
+        System.setProperty(PresenceAggregator.WINDOW_PROPERTY, "-1");
+        assertThrows(IllegalArgumentException.class, PresenceAggregator::getDefaultWindowMillis);
+        System.setProperty(PresenceAggregator.WINDOW_PROPERTY, "soon");
+        assertThrows(IllegalArgumentException.class, PresenceAggregator::getDefaultWindowMillis);
+        assertThrows(IllegalArgumentException.class, () -> new PresenceAggregator(-5, this::publish));
+    }
+
+    @Test
+    @DisplayName("Test a closed aggregator accepts changes without scheduling a flush")
+    void testClose() throws InterruptedException {
+        PresenceAggregator aggregator = new PresenceAggregator(1, this::publish);
+        aggregator.close();
+        aggregator.statusChanged("alice", false);
+        Thread.sleep(20);
+        assertTrue(deltas.isEmpty(), "Nothing should be published once closed");
+        aggregator.flush();
+        assertEquals(List.of("alice offline"), deltas, "The change should still be pending");
+    }
+}